@@ -0,0 +1,60 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.util.Random;
+
+import de.codesourcery.particles.ParticleSystem;
+
+/**
+ * Shared set-up code.
+ */
+final class Benchmarks
+{
+    public static final long SEED = 0xdeadbeef;
+
+    public static final int WIDTH = 1920;
+    public static final int HEIGHT = 1080;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Brings <code>count</code> particles with random positions and velocities to life.
+     */
+    public static void populate(ParticleSystem system,int count)
+    {
+        final Random rnd = new Random( SEED );
+        int remaining = count;
+        while ( remaining > 0 )
+        {
+            remaining -= system.claimDeadParticles( remaining , (storage,indices,from,to) ->
+            {
+                for ( int i = from ; i < to ; i++ )
+                {
+                    final int idx = indices[i];
+                    storage.posx[idx] = (rnd.nextFloat()-0.5f)*WIDTH;
+                    storage.posy[idx] = (rnd.nextFloat()-0.5f)*HEIGHT;
+                    storage.vx[idx] = (rnd.nextFloat()-0.5f)*200;
+                    storage.vy[idx] = (rnd.nextFloat()-0.5f)*200;
+                    storage.ax[idx] = 0;
+                    storage.ay[idx] = -9.81f*5;
+                    storage.color[idx] = 0xffffffff;
+                }
+            });
+        }
+    }
+}
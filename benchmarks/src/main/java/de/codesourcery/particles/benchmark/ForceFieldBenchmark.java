@@ -0,0 +1,104 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.particles.ParticleStorage;
+import de.codesourcery.particles.PointForceField;
+
+/**
+ * Cost of applying a {@link PointForceField} to 100k particles, depending on the number of sources and
+ * the Barnes-Hut accuracy parameter (theta = 0 is the exact O(particles*sources) evaluation).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ForceFieldBenchmark
+{
+    private static final int PARTICLES = 100000;
+
+    @Param({"10","100","1000"})
+    public int sources;
+
+    @Param({"0","0.5","1.0"})
+    public float theta;
+
+    private ParticleStorage storage;
+    private int[] indices;
+    private PointForceField field;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        final Random rnd = new Random( Benchmarks.SEED );
+        storage = new ParticleStorage( PARTICLES );
+        indices = new int[ PARTICLES ];
+        for ( int i = 0 ; i < PARTICLES ; i++ ) 
+        {
+            storage.posx[i] = (rnd.nextFloat()-0.5f)*Benchmarks.WIDTH;
+            storage.posy[i] = (rnd.nextFloat()-0.5f)*Benchmarks.HEIGHT;
+            indices[i] = i;
+        }
+        field = new PointForceField();
+        field.setTheta( theta );
+        for ( int i = 0 ; i < sources ; i++ ) 
+        {
+            final float x = (rnd.nextFloat()-0.5f)*Benchmarks.WIDTH;
+            final float y = (rnd.nextFloat()-0.5f)*Benchmarks.HEIGHT;
+            if ( (i & 3) == 0 ) {
+                field.addVortex( x , y , 1000 );
+            } else {
+                field.addAttractor( x , y , 1000 );
+            }
+        }
+        field.prepare( 0.016f );
+    }
+
+    @Benchmark
+    public float apply()
+    {
+        field.apply( storage , indices , 0 , PARTICLES , 0.016f );
+        return storage.vx[0];
+    }
+
+    @Benchmark
+    public float rebuildAndApply()
+    {
+        // moving a source forces the tree to be rebuilt
+        field.setPosition( 0 , storage.posx[1] , storage.posy[1] );
+        field.prepare( 0.016f );
+        field.apply( storage , indices , 0 , PARTICLES , 0.016f );
+        return storage.vx[0];
+    }
+}
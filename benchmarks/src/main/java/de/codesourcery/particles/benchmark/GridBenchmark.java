@@ -0,0 +1,103 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.particles.ParticleSystem;
+import de.codesourcery.particles.SpatialGrid;
+
+/**
+ * Cost of rebuilding and querying a {@link SpatialGrid}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class GridBenchmark
+{
+    @Param({"100000","500000"})
+    public int particles;
+
+    @Param({"8","32"})
+    public float cellSize;
+
+    private ParticleSystem system;
+    private SpatialGrid serial;
+    private SpatialGrid parallel;
+    private ForkJoinPool pool;
+    private final int[] result = new int[ 1024 ];
+    private float queryX;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        system = new ParticleSystem( particles );
+        system.setAnimator( new WrappingAnimator( Benchmarks.WIDTH , Benchmarks.HEIGHT ) );
+        Benchmarks.populate( system , particles );
+        system.tick( 0.016f );
+        pool = new ForkJoinPool();
+        serial = new SpatialGrid( -Benchmarks.WIDTH/2 , -Benchmarks.HEIGHT/2 , Benchmarks.WIDTH , Benchmarks.HEIGHT , cellSize );
+        parallel = new SpatialGrid( -Benchmarks.WIDTH/2 , -Benchmarks.HEIGHT/2 , Benchmarks.WIDTH , Benchmarks.HEIGHT , cellSize );
+        rebuildSerial();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int rebuildSerial()
+    {
+        system.visitAliveParticles( (storage,indices,from,to) -> serial.rebuild( storage , indices , to ) );
+        return serial.getCount();
+    }
+
+    @Benchmark
+    public int rebuildParallel()
+    {
+        system.visitAliveParticles( (storage,indices,from,to) -> parallel.rebuild( storage , indices , to , pool , 16*1024 ) );
+        return parallel.getCount();
+    }
+
+    @Benchmark
+    public int queryRadius()
+    {
+        queryX += 13;
+        if ( queryX > Benchmarks.WIDTH/2 ) {
+            queryX = -Benchmarks.WIDTH/2;
+        }
+        return serial.queryRadius( queryX , 0 , 20 , result );
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.codesourcery.particles.InteractionAnimator;
+import de.codesourcery.particles.OutOfBoundsVisitor;
+import de.codesourcery.particles.ParticleSystem;
+import de.codesourcery.particles.SpatialGrid;
+
+/**
+ * {@link ScenarioBenchmark} with and without particle-particle interaction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class InteractionBenchmark
+{
+    private static final int TICKS = 200;
+
+    public enum Interaction { NONE, REPULSION, COLLISION }
+
+    @Param
+    public Interaction interaction;
+
+    @Param({"false","true"})
+    public boolean parallel;
+
+    @Param({"2"})
+    public float radius;
+
+    private ParticleSystem system;
+    private OutOfBoundsVisitor animator;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        system = new ParticleSystem( 500000 );
+        system.setIncremental( true );
+        animator = new OutOfBoundsVisitor( system , new Random( Benchmarks.SEED ) );
+        animator.setBounds( 640 , 480 );
+        if ( interaction == Interaction.NONE ) {
+            system.setAnimator( animator );
+        } 
+        else 
+        {
+            final SpatialGrid grid = new SpatialGrid( -320 , -240 , 640 , 480 , radius );
+            system.setSpatialGrid( grid );
+            final InteractionAnimator.Mode mode = interaction == Interaction.REPULSION ? InteractionAnimator.Mode.REPULSION : InteractionAnimator.Mode.COLLISION;
+            system.setAnimator( new InteractionAnimator( animator , grid , mode , radius ) );
+        }
+        if ( parallel ) 
+        {
+            pool = new ForkJoinPool();
+            system.setForkJoinPool( pool );
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        if ( pool != null ) {
+            pool.shutdown();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        system.reset();
+        animator.rnd.setSeed( Benchmarks.SEED );
+        animator.resetStatistics();
+    }
+
+    @Benchmark
+    public void run200Ticks(Blackhole bh)
+    {
+        for ( int tick = 0 ; tick < TICKS ; tick++ )
+        {
+            system.tick( 0.016f );
+            if ( system.allDead() ) {
+                animator.init( system );
+            }
+        }
+        bh.consume( animator.getSpawnedCount() );
+        bh.consume( animator.getKilledCount() );
+    }
+}
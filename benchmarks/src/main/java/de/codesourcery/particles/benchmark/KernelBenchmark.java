@@ -0,0 +1,117 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.particles.AnimatorPipeline;
+import de.codesourcery.particles.IParticleKernel;
+import de.codesourcery.particles.ParticleKernels;
+import de.codesourcery.particles.ParticleStorage;
+
+/**
+ * Scalar vs. Vector API implementation of the integrate, age and cull stages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" , "--add-modules" , "jdk.incubator.vector" })
+public class KernelBenchmark
+{
+    private static final int PARTICLES = 100000;
+
+    public enum Kernel { SCALAR, VECTOR }
+
+    @Param
+    public Kernel kernel;
+
+    /**
+     * Whether particles are visited in storage order (like after a full compaction) or in random order.
+     */
+    @Param({"false","true"})
+    public boolean shuffled;
+
+    private ParticleStorage storage;
+    private int[] indices;
+    private AnimatorPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        final IParticleKernel k = kernel == Kernel.SCALAR ? ParticleKernels.scalar() : ParticleKernels.vector();
+        if ( k == null ) {
+            throw new IllegalStateException("Vector API not available");
+        }
+        final Random rnd = new Random( Benchmarks.SEED );
+        storage = new ParticleStorage( PARTICLES );
+        indices = new int[ PARTICLES ];
+        for ( int i = 0 ; i < PARTICLES ; i++ )
+        {
+            storage.instantiate( i );
+            storage.doStateTransition( i );
+            storage.posx[i] = (rnd.nextFloat()-0.5f)*Benchmarks.WIDTH;
+            storage.posy[i] = (rnd.nextFloat()-0.5f)*Benchmarks.HEIGHT;
+            storage.vx[i] = (rnd.nextFloat()-0.5f)*200;
+            storage.vy[i] = (rnd.nextFloat()-0.5f)*200;
+            storage.ay[i] = -9.81f*5;
+            indices[i] = i;
+        }
+        if ( shuffled ) 
+        {
+            for ( int i = PARTICLES-1 ; i > 0 ; i-- )
+            {
+                final int j = rnd.nextInt( i+1 );
+                final int tmp = indices[i];
+                indices[i] = indices[j];
+                indices[j] = tmp;
+            }
+        }
+        // nothing ever gets killed so that every invocation does the same amount of work
+        pipeline = new AnimatorPipeline( 
+                new AnimatorPipeline.Integrate( k ),
+                new AnimatorPipeline.Age( k ),
+                new AnimatorPipeline.Cull( -Float.MAX_VALUE , -Float.MAX_VALUE , Float.MAX_VALUE , Float.MAX_VALUE , k ) );
+    }
+
+    @Setup(Level.Iteration)
+    public void resetAges() 
+    {
+        for ( int i = 0 ; i < PARTICLES ; i++ ) {
+            storage.age[i] = Integer.MAX_VALUE;
+        }
+    }
+
+    @Benchmark
+    public int process() {
+        return pipeline.process( storage , indices , 0 , PARTICLES , 1e-6f );
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.particles.ParticleSnapshot;
+import de.codesourcery.particles.ParticleStorage;
+import de.codesourcery.particles.ParticleSystem;
+import de.codesourcery.particles.Renderer;
+
+/**
+ * Visiting all alive particles and plotting them into an int[] framebuffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class RasterizeBenchmark
+{
+    @Param({"100000","500000","2000000"})
+    public int particles;
+
+    private ParticleSystem system;
+    private ParticleSnapshot snapshot;
+    private final int[] pixels = new int[ Benchmarks.WIDTH * Benchmarks.HEIGHT ];
+    private Renderer serialRenderer;
+    private Renderer parallelRenderer;
+    private Renderer budgetRenderer;
+    private Renderer parallelBudgetRenderer;
+    private Renderer additiveRenderer;
+    private Renderer parallelAdditiveRenderer;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        system = new ParticleSystem( particles );
+        system.setAnimator( new WrappingAnimator( Benchmarks.WIDTH , Benchmarks.HEIGHT ) );
+        system.setSnapshotsEnabled( true );
+        Benchmarks.populate( system , particles );
+        system.tick( 0.016f );
+        snapshot = system.getLatestSnapshot();
+        
+        serialRenderer = new Renderer( Benchmarks.WIDTH , Benchmarks.HEIGHT );
+        pool = new ForkJoinPool();
+        parallelRenderer = new Renderer( Benchmarks.WIDTH , Benchmarks.HEIGHT );
+        parallelRenderer.setForkJoinPool( pool );
+        budgetRenderer = new Renderer( Benchmarks.WIDTH , Benchmarks.HEIGHT );
+        budgetRenderer.setFrameBudget( TimeUnit.MILLISECONDS.toNanos( 4 ) );
+        parallelBudgetRenderer = new Renderer( Benchmarks.WIDTH , Benchmarks.HEIGHT );
+        parallelBudgetRenderer.setForkJoinPool( pool );
+        parallelBudgetRenderer.setFrameBudget( TimeUnit.MILLISECONDS.toNanos( 4 ) );
+        additiveRenderer = new Renderer( Benchmarks.WIDTH , Benchmarks.HEIGHT );
+        additiveRenderer.setBlendMode( Renderer.BlendMode.ADDITIVE );
+        additiveRenderer.setToneMapping( Renderer.ToneMapping.EXPONENTIAL , 2 );
+        parallelAdditiveRenderer = new Renderer( Benchmarks.WIDTH , Benchmarks.HEIGHT );
+        parallelAdditiveRenderer.setForkJoinPool( pool );
+        parallelAdditiveRenderer.setBlendMode( Renderer.BlendMode.ADDITIVE );
+        parallelAdditiveRenderer.setToneMapping( Renderer.ToneMapping.EXPONENTIAL , 2 );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int[] rendererSerial()
+    {
+        serialRenderer.render( snapshot , pixels , 0 );
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] rendererParallel()
+    {
+        parallelRenderer.render( snapshot , pixels , 0 );
+        return pixels;
+    }
+
+    /**
+     * Serial rendering with a frame budget of 4 ms, the level of detail adapts during warm-up.
+     */
+    @Benchmark
+    public int[] rendererSerialBudget()
+    {
+        budgetRenderer.render( snapshot , pixels , 0 );
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] rendererParallelBudget()
+    {
+        parallelBudgetRenderer.render( snapshot , pixels , 0 );
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] rendererSerialAdditive()
+    {
+        additiveRenderer.render( snapshot , pixels , 0 );
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] rendererParallelAdditive()
+    {
+        parallelAdditiveRenderer.render( snapshot , pixels , 0 );
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] visitAliveParticles()
+    {
+        Arrays.fill( pixels , 0 );
+        system.visitAliveParticles( this::rasterize );
+        return pixels;
+    }
+
+    private void rasterize(ParticleStorage storage,int[] indices,int from,int to)
+    {
+        final int cx = Benchmarks.WIDTH/2;
+        final int cy = Benchmarks.HEIGHT/2;
+        final int maxOffset = pixels.length;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int idx = indices[i];
+            final int offset = (int) (storage.posx[idx] + cx) + (int) (cy - storage.posy[idx]) * Benchmarks.WIDTH;
+            if ( offset > 0 && offset < maxOffset ) {
+                pixels[offset] = storage.color[idx];
+            }
+        }
+    }
+
+    @Benchmark
+    public int[] rasterizeSnapshot()
+    {
+        Arrays.fill( pixels , 0 );
+        final int cx = Benchmarks.WIDTH/2;
+        final int cy = Benchmarks.HEIGHT/2;
+        final int maxOffset = pixels.length;
+        for ( int i = 0 , len = snapshot.getCount() ; i < len ; i++ )
+        {
+            final int offset = (int) (snapshot.posx[i] + cx) + (int) (cy - snapshot.posy[i]) * Benchmarks.WIDTH;
+            if ( offset > 0 && offset < maxOffset ) {
+                pixels[offset] = snapshot.color[i];
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.particles.GradientBuilder;
+import de.codesourcery.particles.ImageToVectors;
+import de.codesourcery.particles.Vec2d;
+
+/**
+ * Set-up work done when creating shapes and color gradients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ShapeBenchmark
+{
+    private BufferedImage image;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        image = ImageToVectors.render( "test" , 128 , 64 );
+    }
+
+    @Benchmark
+    public int[] buildGradient()
+    {
+        return new GradientBuilder().color( Color.WHITE ).steps( 30 ).color( Color.RED ).steps( 30 )
+                .color( Color.YELLOW ).steps( 50 ).color( Color.BLACK ).reverse().build();
+    }
+
+    @Benchmark
+    public List<Vec2d> scanImage() {
+        return ImageToVectors.scanImage( image , 0.25f );
+    }
+}
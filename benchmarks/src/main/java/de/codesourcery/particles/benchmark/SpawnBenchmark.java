@@ -0,0 +1,146 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.particles.Emitter;
+import de.codesourcery.particles.Particle;
+import de.codesourcery.particles.ParticleSystem;
+import de.codesourcery.particles.ShapeTemplate;
+import de.codesourcery.particles.Vec2d;
+
+/**
+ * Spawn bursts, claiming particles one-by-one versus in bulk.
+ * 
+ * Each iteration runs {@link #BATCH_SIZE} bursts against a freshly reset system 
+ * that is just large enough, the reported time is for the whole batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20, batchSize = SpawnBenchmark.BATCH_SIZE)
+@Measurement(iterations = 50, batchSize = SpawnBenchmark.BATCH_SIZE)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SpawnBenchmark
+{
+    public static final int BATCH_SIZE = 100;
+
+    @Param({"10","100","1000","10000"})
+    public int burstSize;
+
+    private ParticleSystem system;
+    private List<Vec2d> shape;
+    private ShapeTemplate template;
+    private Emitter emitter;
+
+    @Setup(Level.Trial)
+    public void setup() 
+    {
+        system = new ParticleSystem( burstSize * BATCH_SIZE );
+        shape = new ArrayList<>();
+        for ( int i = 0 ; i < burstSize ; i++ ) {
+            shape.add( new Vec2d( i , -i ) );
+        }
+        template = ShapeTemplate.compile( shape );
+        emitter = new Emitter( system ).setAcceleration( 0 , -9.81f ).setColor( 0xffffffff ).setAge( 100 );
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        system.reset();
+    }
+
+    @Benchmark
+    public int claimDeadParticle()
+    {
+        int claimed = 0;
+        for ( int i = 0 ; i < burstSize ; i++ )
+        {
+            final Particle p = system.claimDeadParticle();
+            if ( p == null ) {
+                break;
+            }
+            p.pos( 1 , 2 ).speed( 3 , 4 ).acceleration( 0 , -9.81f ).color( 0xffffffff ).age( 100 );
+            claimed++;
+        }
+        return claimed;
+    }
+
+    @Benchmark
+    public int claimDeadParticles()
+    {
+        return system.claimDeadParticles( burstSize , (storage,indices,from,to) ->
+        {
+            for ( int i = from ; i < to ; i++ )
+            {
+                final int idx = indices[i];
+                storage.posx[idx] = 1;
+                storage.posy[idx] = 2;
+                storage.vx[idx] = 3;
+                storage.vy[idx] = 4;
+                storage.ax[idx] = 0;
+                storage.ay[idx] = -9.81f;
+                storage.color[idx] = 0xffffffff;
+                storage.age[idx] = 100;
+            }
+        });
+    }
+
+    /**
+     * Spawning a shape given as a list of velocity offsets.
+     */
+    @Benchmark
+    public int spawnShapeList()
+    {
+        return system.claimDeadParticles( shape.size() , (storage,indices,from,to) ->
+        {
+            for ( int i = from , count = shape.size()-1 ; i < to ; i++ , count-- )
+            {
+                final Vec2d displacement = shape.get( count );
+                final int idx = indices[i];
+                storage.posx[idx] = 1;
+                storage.posy[idx] = 2;
+                storage.ax[idx] = 0;
+                storage.ay[idx] = -9.81f;
+                storage.vx[idx] = 3 + displacement.x;
+                storage.vy[idx] = 4 + displacement.y;
+                storage.color[idx] = 0xffffffff;
+                storage.age[idx] = 100;
+            }
+        });
+    }
+
+    @Benchmark
+    public int spawnShapeTemplate() {
+        return emitter.spawn( template , 1 , 2 , 3 , 4 );
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.particles.ParticleSnapshot;
+import de.codesourcery.particles.ParticleSystem;
+import de.codesourcery.particles.Renderer;
+
+/**
+ * Plotting particles as anti-aliased splats compared to plotting single pixels (on the caller's thread).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class SplatBenchmark
+{
+    @Param({"500000"})
+    public int particles;
+
+    /**
+     * Splat radius, 0 plots single pixels.
+     */
+    @Param({"0","1","2"})
+    public int radius;
+
+    private ParticleSnapshot snapshot;
+    private final int[] pixels = new int[ Benchmarks.WIDTH * Benchmarks.HEIGHT ];
+    private Renderer renderer;
+    private Renderer additiveRenderer;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        final ParticleSystem system = new ParticleSystem( particles );
+        system.setAnimator( new WrappingAnimator( Benchmarks.WIDTH , Benchmarks.HEIGHT ) );
+        system.setSnapshotsEnabled( true );
+        Benchmarks.populate( system , particles );
+        system.tick( 0.016f );
+        snapshot = system.getLatestSnapshot();
+
+        renderer = new Renderer( Benchmarks.WIDTH , Benchmarks.HEIGHT );
+        renderer.setSplatRadius( radius );
+        additiveRenderer = new Renderer( Benchmarks.WIDTH , Benchmarks.HEIGHT );
+        additiveRenderer.setBlendMode( Renderer.BlendMode.ADDITIVE );
+        additiveRenderer.setSplatRadius( radius );
+    }
+
+    /**
+     * Single pixels overwrite each other with radius 0, splats are always blended additively.
+     */
+    @Benchmark
+    public int[] render()
+    {
+        renderer.render( snapshot , pixels , 0 );
+        return pixels;
+    }
+
+    /**
+     * Additive blending for all radii.
+     */
+    @Benchmark
+    public int[] renderAdditive()
+    {
+        additiveRenderer.render( snapshot , pixels , 0 );
+        return pixels;
+    }
+}
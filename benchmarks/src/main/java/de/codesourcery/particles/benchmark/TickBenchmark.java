@@ -0,0 +1,91 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.codesourcery.particles.ParticleSystem;
+
+/**
+ * Cost of {@link ParticleSystem#tick(float)} with a constant number of alive particles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TickBenchmark
+{
+    public enum TickMode { SERIAL, PARALLEL, INCREMENTAL, PARALLEL_INCREMENTAL }
+
+    @Param({"100000","500000","2000000"})
+    public int poolSize;
+
+    @Param({"0.1","0.5","1.0"})
+    public float aliveRatio;
+
+    @Param
+    public TickMode mode;
+
+    private ParticleSystem system;
+    private ForkJoinPool pool;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        system = new ParticleSystem( poolSize );
+        system.setAnimator( new WrappingAnimator( Benchmarks.WIDTH , Benchmarks.HEIGHT ) );
+        if ( mode == TickMode.PARALLEL || mode == TickMode.PARALLEL_INCREMENTAL )
+        {
+            pool = new ForkJoinPool();
+            system.setForkJoinPool( pool );
+        }
+        system.setIncremental( mode == TickMode.INCREMENTAL || mode == TickMode.PARALLEL_INCREMENTAL );
+        Benchmarks.populate( system , (int) (poolSize*aliveRatio) );
+        system.tick( 0.016f );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        if ( pool != null ) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int tick()
+    {
+        system.tick( 0.016f );
+        return system.getAliveCount();
+    }
+}
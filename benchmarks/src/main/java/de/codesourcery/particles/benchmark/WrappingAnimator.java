@@ -0,0 +1,77 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles.benchmark;
+
+import de.codesourcery.particles.Particle;
+import de.codesourcery.particles.ParticleStorage;
+import de.codesourcery.particles.ParticleSystem;
+
+/**
+ * Thread-safe animator that never kills particles but wraps them around
+ * at the screen edges, so the number of alive particles stays constant.
+ */
+public final class WrappingAnimator implements ParticleSystem.IAnimator
+{
+    private final float halfWidth;
+    private final float halfHeight;
+
+    public WrappingAnimator(int width,int height)
+    {
+        this.halfWidth = width/2f;
+        this.halfHeight = height/2f;
+    }
+
+    @Override
+    public void beforeVisitingParticles(float deltaSeconds) {
+    }
+
+    @Override
+    public void tick(Particle p, float deltaSeconds)
+    {
+        p.move( deltaSeconds );
+        p.pos( wrap( p.posx() , halfWidth ) , wrap( p.posy() , halfHeight ) );
+    }
+
+    @Override
+    public void tick(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds)
+    {
+        storage.move( indices , from , to , deltaSeconds );
+        final float[] posx = storage.posx;
+        final float[] posy = storage.posy;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int idx = indices[i];
+            posx[idx] = wrap( posx[idx] , halfWidth );
+            posy[idx] = wrap( posy[idx] , halfHeight );
+        }
+    }
+
+    private static float wrap(float value,float limit)
+    {
+        if ( value < -limit ) {
+            return value + 2*limit;
+        }
+        if ( value > limit ) {
+            return value - 2*limit;
+        }
+        return value;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+}
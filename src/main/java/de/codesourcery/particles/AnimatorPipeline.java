@@ -0,0 +1,338 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * An animator made up of stages that each process a whole batch of particles at once.
+ *
+ * Each chunk of particles ticked by the {@link ParticleSystem} is copied into a thread-local {@link Batch}
+ * that is passed through all stages in order. Stages that kill particles remove them from the batch, so that
+ * later stages only see survivors. Keeping every stage a simple loop over the batch gives the JIT 
+ * a chance to inline and unroll it, instead of doing one virtual call per particle.
+ *
+ * Stages must be thread-safe for disjoint batches and must only be added between ticks.
+ * 
+ * @see OutOfBoundsVisitor for a preset pipeline
+ */
+public class AnimatorPipeline implements ParticleSystem.IAnimator
+{
+    private final List<IStage> stages = new ArrayList<>();
+    private IStage[] stageArray = new IStage[0];
+    private final LongAdder killed = new LongAdder();
+    private final ThreadLocal<Batch> batches = ThreadLocal.withInitial( Batch::new );
+
+    /**
+     * A pipeline stage.
+     */
+    public interface IStage
+    {
+        /**
+         * Invoked by a single thread at the start of each tick.
+         */
+        public default void beforeVisitingParticles(float deltaSeconds) {
+        }
+
+        public void process(Batch batch,float deltaSeconds);
+    }
+
+    /**
+     * The particles currently being processed.
+     */
+    public static final class Batch
+    {
+        public ParticleStorage storage;
+        /** particles still alive, only the first {@link #count} elements are valid */
+        public int[] indices = new int[0];
+        public int count;
+        /** particles killed so far */
+        public int killed;
+
+        void init(ParticleStorage storage,int[] src,int from,int to)
+        {
+            final int len = to - from;
+            if ( indices.length < len ) {
+                indices = new int[ len ];
+            }
+            System.arraycopy( src , from , indices , 0 , len );
+            this.storage = storage;
+            this.count = len;
+            this.killed = 0;
+        }
+
+        void init(ParticleStorage storage,int index)
+        {
+            if ( indices.length < 1 ) {
+                indices = new int[ 1 ];
+            }
+            indices[0] = index;
+            this.storage = storage;
+            this.count = 1;
+            this.killed = 0;
+        }
+
+        /**
+         * Kills the particle at <code>indices[position]</code>.
+         *
+         * Must be followed by a call to {@link #compact()} before the next stage runs.
+         */
+        public void kill(int position)
+        {
+            storage.kill( indices[position] );
+            indices[position] = -1;
+            killed++;
+        }
+
+        /**
+         * Removes killed particles, keeping the order of the others.
+         */
+        public void compact()
+        {
+            int out = 0;
+            for ( int i = 0 ; i < count ; i++ )
+            {
+                if ( indices[i] >= 0 ) {
+                    indices[out++] = indices[i];
+                }
+            }
+            count = out;
+        }
+    }
+
+    public AnimatorPipeline(IStage... stages)
+    {
+        for ( IStage s : stages ) {
+            add( s );
+        }
+    }
+
+    public AnimatorPipeline add(IStage stage) 
+    {
+        return add( stages.size() , stage );
+    }
+
+    public AnimatorPipeline add(int position,IStage stage)
+    {
+        Validate.notNull(stage,"stage must not be NULL");
+        stages.add( position , stage );
+        stageArray = stages.toArray( new IStage[0] );
+        return this;
+    }
+
+    public boolean remove(IStage stage)
+    {
+        final boolean removed = stages.remove( stage );
+        stageArray = stages.toArray( new IStage[0] );
+        return removed;
+    }
+
+    public List<IStage> getStages() {
+        return Collections.unmodifiableList( stages );
+    }
+
+    /**
+     * Returns the number of particles killed by stages so far.
+     */
+    public long getKilledCount() {
+        return killed.sum();
+    }
+
+    @Override
+    public void beforeVisitingParticles(float deltaSeconds)
+    {
+        for ( IStage stage : stageArray ) {
+            stage.beforeVisitingParticles( deltaSeconds );
+        }
+    }
+
+    @Override
+    public void tick(Particle p, float deltaSeconds) {
+        process( p.getStorage() , p.getIndex() , deltaSeconds );
+    }
+
+    @Override
+    public void tick(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds) {
+        process( storage , indices , from , to , deltaSeconds );
+    }
+
+    /**
+     * Runs particles <code>indices[from]...indices[to-1]</code> through all stages.
+     *
+     * @return number of particles that got killed
+     */
+    public int process(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds)
+    {
+        final Batch batch = batches.get();
+        batch.init( storage , indices , from , to );
+        return process( batch , deltaSeconds );
+    }
+
+    /**
+     * Runs a single particle through all stages.
+     *
+     * @return number of particles that got killed
+     */
+    public int process(ParticleStorage storage, int index, float deltaSeconds)
+    {
+        final Batch batch = batches.get();
+        batch.init( storage , index );
+        return process( batch , deltaSeconds );
+    }
+
+    private int process(Batch batch, float deltaSeconds)
+    {
+        for ( IStage stage : stageArray ) {
+            stage.process( batch , deltaSeconds );
+        }
+        batch.storage = null;
+        if ( batch.killed > 0 ) {
+            killed.add( batch.killed );
+        }
+        return batch.killed;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    /**
+     * Moves particles according to their velocity and acceleration.
+     */
+    public static class Integrate implements IStage
+    {
+        private final IParticleKernel kernel;
+
+        public Integrate() {
+            this( ParticleKernels.getDefault() );
+        }
+
+        public Integrate(IParticleKernel kernel) 
+        {
+            Validate.notNull(kernel,"kernel must not be NULL");
+            this.kernel = kernel;
+        }
+
+        @Override
+        public void process(Batch batch, float deltaSeconds) {
+            kernel.move( batch.storage , batch.indices , batch.count , deltaSeconds );
+        }
+    }
+
+    /**
+     * Decrements the age of particles and kills them when it drops below zero.
+     */
+    public static class Age implements IStage
+    {
+        private final IParticleKernel kernel;
+
+        public Age() {
+            this( ParticleKernels.getDefault() );
+        }
+
+        public Age(IParticleKernel kernel) 
+        {
+            Validate.notNull(kernel,"kernel must not be NULL");
+            this.kernel = kernel;
+        }
+
+        @Override
+        public void process(Batch batch, float deltaSeconds)
+        {
+            if ( kernel.age( batch ) ) {
+                batch.compact();
+            }
+        }
+    }
+
+    /**
+     * Looks up particle colors by age, particles with age 0 keep their color.
+     */
+    public static class ColorByAge implements IStage
+    {
+        private final int[] colors;
+
+        /**
+         * @param colors colors indexed by age, must cover the max. age of all particles
+         */
+        public ColorByAge(int[] colors) 
+        {
+            Validate.notNull(colors,"colors must not be NULL");
+            this.colors = colors;
+        }
+
+        @Override
+        public void process(Batch batch, float deltaSeconds)
+        {
+            final int[] age = batch.storage.age;
+            final int[] color = batch.storage.color;
+            final int[] indices = batch.indices;
+            for ( int i = 0 , count = batch.count ; i < count ; i++ )
+            {
+                final int idx = indices[i];
+                final int a = age[idx];
+                if ( a > 0 ) {
+                    color[idx] = colors[a];
+                }
+            }
+        }
+    }
+
+    /**
+     * Kills particles outside of a rectangle.
+     */
+    public static class Cull implements IStage
+    {
+        private final IParticleKernel kernel;
+        private float minX,minY,maxX,maxY;
+
+        public Cull(float minX,float minY,float maxX,float maxY) {
+            this( minX , minY , maxX , maxY , ParticleKernels.getDefault() );
+        }
+
+        public Cull(float minX,float minY,float maxX,float maxY,IParticleKernel kernel) 
+        {
+            Validate.notNull(kernel,"kernel must not be NULL");
+            this.kernel = kernel;
+            setBounds( minX , minY , maxX , maxY );
+        }
+
+        /**
+         * Must only be called between ticks.
+         */
+        public void setBounds(float minX,float minY,float maxX,float maxY)
+        {
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        @Override
+        public void process(Batch batch, float deltaSeconds)
+        {
+            if ( kernel.cull( batch , minX , minY , maxX , maxY ) ) {
+                batch.compact();
+            }
+        }
+    }
+}
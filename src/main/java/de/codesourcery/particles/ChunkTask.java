@@ -0,0 +1,66 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * Processes chunks <code>lo...hi-1</code> by recursively splitting the range in half.
+ */
+final class ChunkTask extends RecursiveAction 
+{
+    private final int lo;
+    private final int hi;
+    private final IntConsumer processor;
+    
+    public ChunkTask(int lo, int hi, IntConsumer processor)
+    {
+        this.lo = lo;
+        this.hi = hi;
+        this.processor = processor;
+    }
+
+    /**
+     * Processes chunks <code>0...chunks-1</code>, either using a pool or 
+     * on the caller's thread in ascending order if the pool is <code>null</code>.
+     */
+    public static void run(ForkJoinPool pool,int chunks,IntConsumer processor) 
+    {
+        if ( pool != null ) {
+            pool.invoke( new ChunkTask( 0 , chunks , processor ) );
+        } else {
+            for ( int chunk = 0 ; chunk < chunks ; chunk++ ) {
+                processor.accept( chunk );
+            }
+        }
+    }
+
+    @Override
+    protected void compute()
+    {
+        if ( hi - lo <= 1 ) 
+        {
+            if ( hi > lo ) {
+                processor.accept( lo );
+            }
+            return;
+        }
+        final int mid = (lo+hi) >>> 1;
+        invokeAll( new ChunkTask( lo , mid , processor ) , new ChunkTask( mid , hi , processor ) );
+    }
+}
@@ -0,0 +1,417 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A particle pool that grows and shrinks in chunks.
+ *
+ * Each chunk is a {@link ParticleSystem} of fixed capacity. When a claim cannot be satisfied by any chunk, a new chunk
+ * is added (up to a configurable max. number of chunks), existing chunks are never copied so growing does not
+ * stall ticks. When fewer particles than the {@link #setShrinkPolicy(float, int) low watermark} are alive for a number
+ * of consecutive ticks, one chunk without any alive or claimed particles is released per tick until 
+ * the initial number of chunks is reached.
+ *
+ * All chunks share a single animator that receives one {@link ParticleSystem.IAnimator#beforeVisitingParticles(float)}
+ * call per tick. The animator gets the pool (not a chunk) passed to {@link ParticleSystem.IAnimator#setParticlePool(IParticlePool)},
+ * so particles it spawns are claimed from the pool and may trigger growing it.
+ */
+public class ElasticParticlePool implements IParticlePool
+{
+    private final int chunkCapacity;
+    private final int minChunks;
+    private final int maxChunks;
+
+    // copy-on-write, replaced while holding the monitor of this instance
+    private volatile ParticleSystem[] chunks;
+    // chunk that satisfied the last claim
+    private volatile int claimHint;
+
+    private ParticleSystem.IAnimator animator = new ParticleSystem.IAnimator()
+    {
+        @Override
+        public void beforeVisitingParticles(float deltaSeconds) {
+        }
+
+        @Override
+        public void tick(Particle p, float deltaSeconds) {
+        }
+    };
+    private final ParticleSystem.IAnimator chunkAnimator = new ChunkAnimator();
+    private ForkJoinPool pool;
+    private boolean incremental;
+
+    private float lowWatermark = 0.25f;
+    private int shrinkDelayTicks = 300;
+    private int ticksBelowWatermark;
+
+    private final AtomicLong growCount = new AtomicLong();
+    private final AtomicLong shrinkCount = new AtomicLong();
+    private volatile int peakCapacity;
+    private volatile IResizeListener listener;
+
+    /**
+     * Notified when the pool grows or shrinks.
+     */
+    public interface IResizeListener
+    {
+        /**
+         * Invoked on the thread that tried to claim particles.
+         */
+        public void grown(int oldCapacity,int newCapacity,long durationNanos);
+
+        /**
+         * Invoked on the thread calling {@link ElasticParticlePool#tick(float)}.
+         */
+        public void shrunk(int oldCapacity,int newCapacity);
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param chunkCapacity number of particles per chunk
+     * @param initialChunks number of chunks allocated up-front, the pool never shrinks below this
+     * @param maxChunks max. number of chunks
+     */
+    public ElasticParticlePool(int chunkCapacity,int initialChunks,int maxChunks)
+    {
+        if ( chunkCapacity < 1 ) {
+            throw new IllegalArgumentException("Chunk capacity must be >= 1");
+        }
+        if ( initialChunks < 1 || maxChunks < initialChunks ) {
+            throw new IllegalArgumentException("Need 1 <= initialChunks <= maxChunks");
+        }
+        if ( (long) chunkCapacity * maxChunks > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException("Max. capacity exceeds Integer.MAX_VALUE");
+        }
+        this.chunkCapacity = chunkCapacity;
+        this.minChunks = initialChunks;
+        this.maxChunks = maxChunks;
+        final ParticleSystem[] tmp = new ParticleSystem[ initialChunks ];
+        for ( int i = 0 ; i < initialChunks ; i++ ) {
+            tmp[i] = createChunk();
+        }
+        this.chunks = tmp;
+        this.peakCapacity = getCapacity();
+    }
+
+    private final class ChunkAnimator implements ParticleSystem.IAnimator
+    {
+        @Override
+        public void beforeVisitingParticles(float deltaSeconds) {
+            // invoked once per tick by the pool
+        }
+
+        @Override
+        public void tick(Particle p, float deltaSeconds) {
+            animator.tick( p , deltaSeconds );
+        }
+
+        @Override
+        public void tick(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds) {
+            animator.tick( storage , indices , from , to , deltaSeconds );
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return animator.isThreadSafe();
+        }
+
+        @Override
+        public void setParticlePool(IParticlePool pool) {
+            // invoked by each chunk, the shared animator claims from the pool instead
+        }
+    }
+
+    private ParticleSystem createChunk()
+    {
+        final ParticleSystem chunk = new ParticleSystem( chunkCapacity );
+        chunk.setAnimator( chunkAnimator );
+        chunk.setForkJoinPool( pool );
+        chunk.setIncremental( incremental );
+        return chunk;
+    }
+
+    public synchronized void setAnimator(ParticleSystem.IAnimator animator) 
+    {
+        Validate.notNull(animator,"animator must not be NULL");
+        this.animator = animator;
+        animator.setParticlePool( this );
+    }
+
+    public synchronized void setForkJoinPool(ForkJoinPool pool)
+    {
+        this.pool = pool;
+        for ( ParticleSystem chunk : chunks ) {
+            chunk.setForkJoinPool( pool );
+        }
+    }
+
+    public synchronized void setIncremental(boolean incremental)
+    {
+        this.incremental = incremental;
+        for ( ParticleSystem chunk : chunks ) {
+            chunk.setIncremental( incremental );
+        }
+    }
+
+    /**
+     * Sets when the pool shrinks.
+     *
+     * @param lowWatermark fraction of the current capacity (0...1) the alive count needs to stay below
+     * @param ticks number of consecutive ticks the alive count needs to stay below the watermark
+     */
+    public synchronized void setShrinkPolicy(float lowWatermark,int ticks)
+    {
+        if ( ! ( lowWatermark >= 0 && lowWatermark <= 1 ) ) {
+            throw new IllegalArgumentException("Low watermark must be 0...1");
+        }
+        if ( ticks < 1 ) {
+            throw new IllegalArgumentException("Ticks must be >= 1");
+        }
+        this.lowWatermark = lowWatermark;
+        this.shrinkDelayTicks = ticks;
+    }
+
+    public void setResizeListener(IResizeListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Claims a single dead particle, growing the pool if necessary.
+     *
+     * @return particle or <code>null</code> if the pool is exhausted and may not grow any further
+     * @see ParticleSystem#claimDeadParticle()
+     */
+    @Override
+    public Particle claimDeadParticle()
+    {
+        while ( true )
+        {
+            final ParticleSystem[] current = chunks;
+            final int hint = claimHint;
+            for ( int i = 0 ; i < current.length ; i++ )
+            {
+                final int chunk = (hint + i) % current.length;
+                final Particle result = current[ chunk ].claimDeadParticle();
+                if ( result != null ) 
+                {
+                    claimHint = chunk;
+                    return result;
+                }
+            }
+            if ( ! grow( current ) ) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Claims up to <code>count</code> dead particles from a single chunk, growing the pool if no chunk has enough dead particles.
+     *
+     * Like with {@link ParticleSystem#claimDeadParticles(int, ParticleSystem.IRangeVisitor)} the visitor is invoked 
+     * at most once, so at most {@link #getChunkCapacity()} particles are claimed at a time. Fewer particles 
+     * than requested are only claimed when the pool may not grow any further.
+     * 
+     * @return number of particles claimed
+     */
+    @Override
+    public int claimDeadParticles(int count,ParticleSystem.IRangeVisitor visitor)
+    {
+        if ( count < 1 ) {
+            throw new IllegalArgumentException("count must be >= 1");
+        }
+        final int wanted = Math.min( count , chunkCapacity );
+        ParticleSystem[] current;
+        do
+        {
+            current = chunks;
+            final int hint = claimHint;
+            for ( int i = 0 ; i < current.length ; i++ )
+            {
+                final int chunk = (hint + i) % current.length;
+                final int claimed = current[ chunk ].claimDeadParticles( wanted , wanted , visitor );
+                if ( claimed > 0 ) 
+                {
+                    claimHint = chunk;
+                    return claimed;
+                }
+            }
+        } while ( grow( current ) );
+
+        // pool is exhausted, claim whatever is left in a single chunk
+        for ( ParticleSystem chunk : current ) 
+        {
+            final int claimed = chunk.claimDeadParticles( wanted , 1 , visitor );
+            if ( claimed > 0 ) {
+                return claimed;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds a chunk unless another thread already changed the chunks.
+     *
+     * @return whether claiming should be retried
+     */
+    private boolean grow(ParticleSystem[] expected)
+    {
+        synchronized(this)
+        {
+            if ( chunks != expected ) {
+                return true;
+            }
+            if ( expected.length == maxChunks ) {
+                return false;
+            }
+            final long start = System.nanoTime();
+            final ParticleSystem[] tmp = Arrays.copyOf( expected , expected.length+1 );
+            tmp[ expected.length ] = createChunk();
+            chunks = tmp;
+            claimHint = expected.length;
+            ticksBelowWatermark = 0;
+            growCount.incrementAndGet();
+            final int newCapacity = tmp.length * chunkCapacity;
+            peakCapacity = Math.max( peakCapacity , newCapacity );
+            final IResizeListener l = listener;
+            if ( l != null ) {
+                l.grown( expected.length * chunkCapacity , newCapacity , System.nanoTime() - start );
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Ticks all chunks and releases an idle chunk if the pool stayed below the low watermark long enough.
+     */
+    public void tick(float deltaSeconds)
+    {
+        final ParticleSystem.IAnimator a;
+        synchronized(this) {
+            a = animator;
+        }
+        a.beforeVisitingParticles( deltaSeconds );
+        final ParticleSystem[] current = chunks;
+        int alive = 0;
+        for ( ParticleSystem chunk : current ) 
+        {
+            chunk.tick( deltaSeconds );
+            alive += chunk.getAliveCount();
+        }
+        maybeShrink( current , alive );
+    }
+
+    private synchronized void maybeShrink(ParticleSystem[] current,int alive)
+    {
+        if ( chunks != current || current.length <= minChunks ) {
+            ticksBelowWatermark = 0;
+            return;
+        }
+        if ( alive >= lowWatermark * current.length * chunkCapacity ) {
+            ticksBelowWatermark = 0;
+            return;
+        }
+        if ( ++ticksBelowWatermark < shrinkDelayTicks ) {
+            return;
+        }
+        // release the most recently added idle chunk
+        for ( int i = current.length-1 ; i >= 0 ; i-- )
+        {
+            if ( current[i].retireIfIdle() ) 
+            {
+                final ParticleSystem[] tmp = new ParticleSystem[ current.length-1 ];
+                System.arraycopy( current , 0 , tmp , 0 , i );
+                System.arraycopy( current , i+1 , tmp , i , current.length-i-1 );
+                chunks = tmp;
+                claimHint = 0;
+                ticksBelowWatermark = 0;
+                shrinkCount.incrementAndGet();
+                final IResizeListener l = listener;
+                if ( l != null ) {
+                    l.shrunk( current.length * chunkCapacity , tmp.length * chunkCapacity );
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of particles that were alive during the last tick.
+     */
+    @Override
+    public int getAliveCount()
+    {
+        int result = 0;
+        for ( ParticleSystem chunk : chunks ) {
+            result += chunk.getAliveCount();
+        }
+        return result;
+    }
+
+    @Override
+    public void visitAliveParticles(ParticleSystem.IRangeVisitor visitor) 
+    {
+        for ( ParticleSystem chunk : chunks ) {
+            chunk.visitAliveParticles( visitor );
+        }
+    }
+
+    /**
+     * Returns the current chunks, for example to render their snapshots.
+     */
+    public List<ParticleSystem> getChunks() {
+        return Collections.unmodifiableList( Arrays.asList( chunks ) );
+    }
+
+    public int getChunkCount() {
+        return chunks.length;
+    }
+
+    public int getChunkCapacity() {
+        return chunkCapacity;
+    }
+
+    public int getCapacity() {
+        return chunks.length * chunkCapacity;
+    }
+
+    public int getMaxCapacity() {
+        return maxChunks * chunkCapacity;
+    }
+
+    /**
+     * Returns the largest capacity the pool ever had.
+     */
+    public int getPeakCapacity() {
+        return peakCapacity;
+    }
+
+    public long getGrowCount() {
+        return growCount.get();
+    }
+
+    public long getShrinkCount() {
+        return shrinkCount.get();
+    }
+}
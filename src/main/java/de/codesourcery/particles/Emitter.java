@@ -0,0 +1,411 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.PriorityQueue;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Spawns whole {@link ShapeTemplate shapes} into a {@link ParticleSystem} or {@link ElasticParticlePool}.
+ *
+ * All particles of a shape are claimed with a single {@link IParticlePool#claimDeadParticles(int, ParticleSystem.IRangeVisitor) bulk claim}
+ * and initialized by a single loop over the packed offsets. Emission can be limited to a number of particles per second 
+ * (token bucket, shapes are either emitted completely or dropped) and bursts can be scheduled ahead of time; 
+ * scheduled bursts wait until the rate limit allows them, but for no longer than the {@link #setMaxDelay(float) max. delay}, 
+ * so an over-subscribed emitter drops shapes instead of queuing them up forever.
+ *
+ * {@link #update(float)} needs to be called once per tick, for example from {@link ParticleSystem.IAnimator#beforeVisitingParticles(float)}.
+ * Emission only depends on the scheduled bursts and the time deltas passed to {@link #update(float)}, so an emitter restored 
+ * through {@link #loadState(DataInput)} emits exactly like the saved one. This class is thread-safe.
+ */
+public class Emitter
+{
+    private IParticlePool pool;
+
+    private float ax;
+    private float ay;
+    private int color = 0xffffffff;
+    private int age = 100;
+
+    private float particlesPerSecond; // 0 = unlimited
+    private float burstCapacity;
+    private float tokens;
+    private float maxDelay = 1;
+
+    private double time;
+    private long sequence;
+    private final PriorityQueue<Burst> scheduled = new PriorityQueue<>();
+
+    private long emitted;
+    private long dropped;
+
+    private static final class Burst implements Comparable<Burst>
+    {
+        final ShapeTemplate shape;
+        final float x,y,vx,vy;
+        final float interval;
+        int remaining;
+        double due;
+        long seq; // keeps bursts due at the same time in FIFO order
+
+        Burst(ShapeTemplate shape,float x,float y,float vx,float vy,int count,float interval)
+        {
+            this.shape = shape;
+            this.x = x;
+            this.y = y;
+            this.vx = vx;
+            this.vy = vy;
+            this.remaining = count;
+            this.interval = interval;
+        }
+
+        @Override
+        public int compareTo(Burst o)
+        {
+            final int result = Double.compare( due , o.due );
+            return result != 0 ? result : Long.compare( seq , o.seq );
+        }
+    }
+
+    public Emitter(IParticlePool pool) 
+    {
+        Validate.notNull(pool,"pool must not be NULL");
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the pool particles are claimed from.
+     */
+    public synchronized void setParticlePool(IParticlePool pool) 
+    {
+        Validate.notNull(pool,"pool must not be NULL");
+        this.pool = pool;
+    }
+
+    public synchronized Emitter setAcceleration(float ax,float ay) 
+    {
+        this.ax = ax;
+        this.ay = ay;
+        return this;
+    }
+
+    public synchronized Emitter setColor(int argb) 
+    {
+        this.color = argb;
+        return this;
+    }
+
+    public synchronized Emitter setAge(int age) 
+    {
+        this.age = age;
+        return this;
+    }
+
+    /**
+     * Limits the number of particles emitted per second.
+     *
+     * @param particlesPerSecond max. sustained rate, 0 disables the limit
+     * @param burstCapacity max. number of particles that may be emitted at once after being idle, 
+     * must be at least as large as the largest scheduled shape
+     */
+    public synchronized void setRateLimit(float particlesPerSecond,int burstCapacity)
+    {
+        if ( ! ( particlesPerSecond >= 0 ) || burstCapacity < 0 ) {
+            throw new IllegalArgumentException("Rate and burst capacity must be >= 0");
+        }
+        if ( particlesPerSecond > 0 ) 
+        {
+            for ( Burst b : scheduled ) {
+                checkFitsCapacity( b.shape , burstCapacity );
+            }
+        }
+        this.particlesPerSecond = particlesPerSecond;
+        this.burstCapacity = burstCapacity;
+        this.tokens = burstCapacity;
+    }
+
+    private static void checkFitsCapacity(ShapeTemplate shape,float burstCapacity)
+    {
+        if ( shape.size() > burstCapacity ) {
+            throw new IllegalArgumentException("Shape with "+shape.size()+" particles exceeds burst capacity of "+(int) burstCapacity);
+        }
+    }
+
+    /**
+     * Sets how long a scheduled emission may wait for the rate limit before it gets dropped.
+     */
+    public synchronized void setMaxDelay(float seconds)
+    {
+        if ( ! ( seconds >= 0 ) ) {
+            throw new IllegalArgumentException("Max. delay must be >= 0");
+        }
+        this.maxDelay = seconds;
+    }
+
+    public synchronized float getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Emits a shape right away, subject to the rate limit.
+     *
+     * @return number of particles spawned, 0 if the shape was dropped because of the rate limit
+     */
+    public synchronized int emit(ShapeTemplate shape,float x,float y,float vx,float vy)
+    {
+        if ( ! tryAcquire( shape.size() ) ) 
+        {
+            dropped += shape.size();
+            return 0;
+        }
+        return spawn( shape , x , y , vx , vy );
+    }
+
+    /**
+     * Schedules a burst.
+     * 
+     * @param delaySeconds time until the first emission
+     * @param count number of times the shape gets emitted
+     * @param intervalSeconds time between emissions
+     * @throws IllegalArgumentException if the shape is larger than the burst capacity of the rate limit
+     */
+    public synchronized void schedule(float delaySeconds,ShapeTemplate shape,float x,float y,float vx,float vy,int count,float intervalSeconds)
+    {
+        Validate.notNull(shape,"shape must not be NULL");
+        if ( count < 1 || delaySeconds < 0 || intervalSeconds < 0 ) {
+            throw new IllegalArgumentException("Invalid burst parameters");
+        }
+        if ( particlesPerSecond > 0 ) {
+            checkFitsCapacity( shape , burstCapacity );
+        }
+        final Burst burst = new Burst( shape , x , y , vx , vy , count , intervalSeconds );
+        burst.due = time + delaySeconds;
+        burst.seq = sequence++;
+        scheduled.add( burst );
+    }
+
+    /**
+     * Advances time, refills the rate limit and emits all due bursts.
+     * 
+     * Emissions that have been waiting for longer than the max. delay are dropped.
+     *
+     * @return number of particles spawned
+     */
+    public synchronized int update(float deltaSeconds)
+    {
+        time += deltaSeconds;
+        if ( particlesPerSecond > 0 ) {
+            tokens = Math.min( burstCapacity , tokens + particlesPerSecond * deltaSeconds );
+        }
+        int spawned = 0;
+        Burst burst;
+        while ( ( burst = scheduled.peek() ) != null && burst.due <= time )
+        {
+            final int size = burst.shape.size();
+            // shapes larger than the bucket (only possible after loadState()) would block the queue forever
+            final boolean drop = time - burst.due > maxDelay || ( particlesPerSecond > 0 && size > burstCapacity );
+            if ( ! drop && ! tryAcquire( size ) ) {
+                break; // try again after the bucket got refilled
+            }
+            scheduled.poll();
+            if ( drop ) {
+                dropped += size;
+            } else {
+                spawned += spawn( burst.shape , burst.x , burst.y , burst.vx , burst.vy );
+            }
+            if ( --burst.remaining > 0 ) 
+            {
+                burst.due += burst.interval;
+                burst.seq = sequence++;
+                scheduled.add( burst );
+            }
+        }
+        return spawned;
+    }
+
+    private boolean tryAcquire(int particles)
+    {
+        if ( particlesPerSecond <= 0 ) {
+            return true;
+        }
+        if ( tokens < particles ) {
+            return false;
+        }
+        tokens -= particles;
+        return true;
+    }
+
+    /**
+     * Spawns a shape ignoring the rate limit.
+     * 
+     * @return number of particles spawned, less than the size of the shape if the pool ran out of dead particles
+     */
+    public synchronized int spawn(ShapeTemplate shape,float x,float y,float vx,float vy)
+    {
+        final int size = shape.size();
+        if ( size == 0 ) {
+            return 0;
+        }
+        final float[] offsets = shape.offsets;
+        final float ax = this.ax;
+        final float ay = this.ay;
+        final int color = this.color;
+        final int age = this.age;
+        final int claimed = pool.claimDeadParticles( size , (storage,indices,from,to) ->
+        {
+            final float[] posx = storage.posx;
+            final float[] posy = storage.posy;
+            final float[] pvx = storage.vx;
+            final float[] pvy = storage.vy;
+            for ( int i = from , ptr = 0 ; i < to ; i++ , ptr += 2 )
+            {
+                final int idx = indices[i];
+                posx[idx] = x;
+                posy[idx] = y;
+                pvx[idx] = vx + offsets[ptr];
+                pvy[idx] = vy + offsets[ptr+1];
+                storage.ax[idx] = ax;
+                storage.ay[idx] = ay;
+                storage.color[idx] = color;
+                storage.age[idx] = age;
+            }
+        });
+        emitted += claimed;
+        dropped += size - claimed;
+        return claimed;
+    }
+
+    /**
+     * Writes the rate limit, pending bursts and counters.
+     */
+    public synchronized void saveState(DataOutput out) throws IOException
+    {
+        out.writeFloat( particlesPerSecond );
+        out.writeFloat( burstCapacity );
+        out.writeFloat( tokens );
+        out.writeDouble( time );
+        out.writeLong( sequence );
+        out.writeLong( emitted );
+        out.writeLong( dropped );
+        out.writeInt( scheduled.size() );
+        for ( Burst b : scheduled ) 
+        {
+            final float[] offsets = b.shape.offsets;
+            out.writeInt( offsets.length );
+            for ( float f : offsets ) {
+                out.writeFloat( f );
+            }
+            out.writeFloat( b.x );
+            out.writeFloat( b.y );
+            out.writeFloat( b.vx );
+            out.writeFloat( b.vy );
+            out.writeFloat( b.interval );
+            out.writeInt( b.remaining );
+            out.writeDouble( b.due );
+            out.writeLong( b.seq );
+        }
+    }
+
+    /**
+     * Restores state written by {@link #saveState(DataOutput)}, replacing all scheduled bursts.
+     */
+    public synchronized void loadState(DataInput in) throws IOException
+    {
+        final float particlesPerSecond = in.readFloat();
+        final float burstCapacity = in.readFloat();
+        final float tokens = in.readFloat();
+        if ( ! ( particlesPerSecond >= 0 ) || ! ( burstCapacity >= 0 ) ) {
+            throw new IOException("Invalid emitter rate limit");
+        }
+        final double time = in.readDouble();
+        final long sequence = in.readLong();
+        final long emitted = in.readLong();
+        final long dropped = in.readLong();
+        final int count = in.readInt();
+        if ( count < 0 ) {
+            throw new IOException("Invalid number of scheduled bursts: "+count);
+        }
+        final PriorityQueue<Burst> bursts = new PriorityQueue<>();
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            final int len = in.readInt();
+            if ( len < 0 || (len & 1) != 0 ) {
+                throw new IOException("Invalid shape size: "+len);
+            }
+            final float[] offsets = new float[ len ];
+            for ( int j = 0 ; j < len ; j++ ) {
+                offsets[j] = in.readFloat();
+            }
+            final float x = in.readFloat();
+            final float y = in.readFloat();
+            final float vx = in.readFloat();
+            final float vy = in.readFloat();
+            final float interval = in.readFloat();
+            final int remaining = in.readInt();
+            if ( remaining < 1 || ! ( interval >= 0 ) ) {
+                throw new IOException("Invalid burst");
+            }
+            final Burst burst = new Burst( ShapeTemplate.of( offsets ) , x , y , vx , vy , remaining , interval );
+            burst.due = in.readDouble();
+            burst.seq = in.readLong();
+            bursts.add( burst );
+        }
+        this.particlesPerSecond = particlesPerSecond;
+        this.burstCapacity = burstCapacity;
+        this.tokens = tokens;
+        this.time = time;
+        this.sequence = sequence;
+        this.emitted = emitted;
+        this.dropped = dropped;
+        scheduled.clear();
+        scheduled.addAll( bursts );
+    }
+
+    /**
+     * Returns the number of bursts waiting to be emitted.
+     */
+    public synchronized int getScheduledCount() 
+    {
+        int result = 0;
+        for ( Burst b : scheduled ) {
+            result += b.remaining;
+        }
+        return result;
+    }
+
+    /**
+     * Removes all scheduled bursts.
+     */
+    public synchronized void cancelScheduled() {
+        scheduled.clear();
+    }
+
+    public synchronized long getEmittedCount() {
+        return emitted;
+    }
+
+    /**
+     * Returns the number of particles that could not be spawned because of the rate limit, because a scheduled 
+     * emission exceeded the max. delay or because the system was full.
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Applies a number of {@link IForce forces} to particles before another animator moves them.
+ *
+ * Stages can be nested, for example an {@link InteractionAnimator} wrapping a force stage wrapping an {@link OutOfBoundsVisitor}.
+ * Forces must only be added or removed between ticks.
+ */
+public class ForceStage implements ParticleSystem.IAnimator
+{
+    // index of the particle passed to tick(Particle,float)
+    private static final ThreadLocal<int[]> SINGLE_INDEX = ThreadLocal.withInitial( () -> new int[1] );
+
+    private final ParticleSystem.IAnimator delegate;
+    private IForce[] forces;
+
+    public ForceStage(ParticleSystem.IAnimator delegate,IForce... forces)
+    {
+        Validate.notNull(delegate,"delegate must not be NULL");
+        Validate.noNullElements(forces,"forces must not be NULL or contain NULL elements");
+        this.delegate = delegate;
+        this.forces = forces.clone();
+    }
+
+    public ForceStage add(IForce force)
+    {
+        Validate.notNull(force,"force must not be NULL");
+        final IForce[] tmp = Arrays.copyOf( forces , forces.length+1 );
+        tmp[ forces.length ] = force;
+        forces = tmp;
+        return this;
+    }
+
+    public boolean remove(IForce force)
+    {
+        for ( int i = 0 ; i < forces.length ; i++ ) 
+        {
+            if ( forces[i] == force ) 
+            {
+                final IForce[] tmp = new IForce[ forces.length-1 ];
+                System.arraycopy( forces , 0 , tmp , 0 , i );
+                System.arraycopy( forces , i+1 , tmp , i , forces.length-i-1 );
+                forces = tmp;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ParticleSystem.IAnimator getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void beforeVisitingParticles(float deltaSeconds)
+    {
+        for ( IForce force : forces ) {
+            force.prepare( deltaSeconds );
+        }
+        delegate.beforeVisitingParticles( deltaSeconds );
+    }
+
+    @Override
+    public void tick(Particle p, float deltaSeconds)
+    {
+        final int[] index = SINGLE_INDEX.get();
+        index[0] = p.getIndex();
+        for ( IForce force : forces ) {
+            force.apply( p.getStorage() , index , 0 , 1 , deltaSeconds );
+        }
+        delegate.tick( p , deltaSeconds );
+    }
+
+    @Override
+    public void tick(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds)
+    {
+        for ( IForce force : forces ) {
+            force.apply( storage , indices , from , to , deltaSeconds );
+        }
+        delegate.tick( storage , indices , from , to , deltaSeconds );
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return delegate.isThreadSafe();
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        delegate.saveState( out );
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        delegate.loadState( in );
+    }
+
+    @Override
+    public void setParticlePool(IParticlePool pool) {
+        delegate.setParticlePool( pool );
+    }
+}
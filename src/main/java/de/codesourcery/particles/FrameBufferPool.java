@@ -0,0 +1,108 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of int[] framebuffers of a fixed size.
+ *
+ * Buffers are allocated lazily up to the pool's capacity, {@link #acquire()} returns <code>NULL</code>
+ * instead of blocking once all buffers are in use.
+ */
+public class FrameBufferPool
+{
+    private final int width;
+    private final int height;
+    private final int capacity;
+    private final ArrayBlockingQueue<int[]> free;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * Create instance.
+     *
+     * @param width framebuffer width in pixels
+     * @param height framebuffer height in pixels
+     * @param capacity max. number of buffers this pool will allocate
+     */
+    public FrameBufferPool(int width,int height,int capacity)
+    {
+        if ( width < 1 || height < 1 ) {
+            throw new IllegalArgumentException("Width and height must be >= 1");
+        }
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException("Capacity must be >= 1");
+        }
+        this.width = width;
+        this.height = height;
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<>( capacity );
+    }
+
+    /**
+     * Returns a framebuffer with undefined contents.
+     *
+     * @return framebuffer or <code>NULL</code> if all buffers are in use
+     */
+    public int[] acquire()
+    {
+        final int[] result = free.poll();
+        if ( result != null ) {
+            return result;
+        }
+        int current;
+        do {
+            current = allocated.get();
+            if ( current >= capacity ) {
+                return null;
+            }
+        } while ( ! allocated.compareAndSet( current , current+1 ) );
+        return new int[ width*height ];
+    }
+
+    /**
+     * Returns a framebuffer to the pool.
+     */
+    public void release(int[] buffer)
+    {
+        if ( buffer.length != width*height ) {
+            throw new IllegalArgumentException("Buffer has wrong size, expected "+(width*height)+" pixels but got "+buffer.length);
+        }
+        if ( ! free.offer( buffer ) ) {
+            throw new IllegalStateException("Buffer released more than once");
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of buffers currently not in use.
+     */
+    public int getAvailable() {
+        return free.size() + ( capacity - allocated.get() );
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Asynchronously writes rendered frames to an {@link IFrameSink}.
+ *
+ * Frames are taken from a {@link FrameBufferPool}, queued on a bounded queue and written by a fixed number of
+ * writer threads, after which the framebuffer is returned to the pool. If the writers cannot keep up,
+ * frames are dropped instead of blocking the caller.
+ *
+ * Typical usage:
+ * <pre>
+ * final int[] frame = exporter.acquireFrame();
+ * if ( frame != null ) {
+ *     renderer.render( snapshot , frame , 0 );
+ *     exporter.submit( frame );
+ * }
+ * </pre>
+ */
+public class FrameExporter implements Closeable
+{
+    private final IFrameSink sink;
+    private final FrameBufferPool pool;
+    private final ThreadPoolExecutor writers;
+
+    private final Object submitLock = new Object();
+    private long nextFrameNumber;
+
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicReference<IOException> error = new AtomicReference<>();
+    private volatile boolean closed;
+
+    /**
+     * Create instance.
+     *
+     * @param sink sink to write frames to
+     * @param pool pool to take framebuffers from, should hold at least <code>writerThreads + queueCapacity</code> buffers
+     * @param writerThreads number of threads writing to the sink
+     * @param queueCapacity max. number of frames waiting to be written
+     */
+    public FrameExporter(IFrameSink sink,FrameBufferPool pool,int writerThreads,int queueCapacity)
+    {
+        Validate.notNull(sink,"sink must not be NULL");
+        Validate.notNull(pool,"pool must not be NULL");
+        if ( writerThreads < 1 ) {
+            throw new IllegalArgumentException("Writer threads must be >= 1");
+        }
+        if ( queueCapacity < 1 ) {
+            throw new IllegalArgumentException("Queue capacity must be >= 1");
+        }
+        this.sink = sink;
+        this.pool = pool;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.writers = new ThreadPoolExecutor( writerThreads , writerThreads , 1 , TimeUnit.MINUTES , 
+                new ArrayBlockingQueue<>( queueCapacity ) , r -> 
+        {
+            final Thread t = new Thread( r , "frame-writer-"+threadCount.incrementAndGet() );
+            t.setDaemon( true );
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy() );
+    }
+
+    /**
+     * Returns a framebuffer to render the next frame into.
+     *
+     * @return framebuffer or <code>NULL</code> if no buffer is available (the frame is counted as dropped)
+     */
+    public int[] acquireFrame()
+    {
+        final int[] result = closed ? null : pool.acquire();
+        if ( result == null ) {
+            framesDropped.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Queues a frame for writing.
+     *
+     * The framebuffer must have been obtained from {@link #acquireFrame()} and must not be used
+     * by the caller after this method returns.
+     *
+     * @param pixels the frame
+     * @return <code>true</code> if the frame was queued, <code>false</code> if it was dropped because the queue is full
+     */
+    public boolean submit(int[] pixels)
+    {
+        synchronized( submitLock )
+        {
+            if ( ! closed ) 
+            {
+                final long frameNumber = nextFrameNumber;
+                try 
+                {
+                    writers.execute( () -> write( frameNumber , pixels ) );
+                    nextFrameNumber++;
+                    return true;
+                } 
+                catch(RejectedExecutionException e) {
+                    // queue full
+                }
+            }
+        }
+        pool.release( pixels );
+        framesDropped.incrementAndGet();
+        return false;
+    }
+
+    private void write(long frameNumber,int[] pixels)
+    {
+        try 
+        {
+            sink.writeFrame( frameNumber , pixels );
+            framesWritten.incrementAndGet();
+        } 
+        catch (IOException e) 
+        {
+            framesDropped.incrementAndGet();
+            error.compareAndSet( null , e );
+        } 
+        finally 
+        {
+            pool.release( pixels );
+        }
+    }
+
+    public int getWidth() {
+        return pool.getWidth();
+    }
+
+    public int getHeight() {
+        return pool.getHeight();
+    }
+
+    /**
+     * Returns the number of frames successfully written.
+     */
+    public long getFramesWritten() {
+        return framesWritten.get();
+    }
+
+    /**
+     * Returns the number of frames that were dropped because no framebuffer was available,
+     * the queue was full or writing failed.
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /**
+     * Returns the number of frames waiting to be written.
+     */
+    public int getQueueSize() {
+        return writers.getQueue().size();
+    }
+
+    /**
+     * Writes all queued frames and closes the sink.
+     *
+     * @throws IOException if closing the sink failed or writing any frame failed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized( submitLock )
+        {
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+        }
+        writers.shutdown();
+        try 
+        {
+            while ( ! writers.awaitTermination( 1 , TimeUnit.SECONDS ) ) {
+                // wait
+            }
+        } 
+        catch (InterruptedException e) 
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for frames to be written",e);
+        }
+        finally 
+        {
+            sink.close();
+        }
+        final IOException e = error.get();
+        if ( e != null ) {
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+/**
+ * A force that changes the velocity of particles before they are moved.
+ *
+ * @see ForceStage
+ */
+public interface IForce
+{
+    /**
+     * Invoked by a single thread at the start of each tick, before any call to
+     * {@link #apply(ParticleStorage, int[], int, int, float)}.
+     */
+    public default void prepare(float deltaSeconds) {
+    }
+
+    /**
+     * Changes the velocities of particles <code>indices[from]...indices[to-1]</code>.
+     *
+     * Must be thread-safe for disjoint ranges.
+     */
+    public void apply(ParticleStorage storage,int[] indices,int from,int to,float deltaSeconds);
+}
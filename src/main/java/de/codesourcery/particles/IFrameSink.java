@@ -0,0 +1,45 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives rendered frames.
+ *
+ * Implementations must support concurrent calls to {@link #writeFrame(long, int[])} from
+ * multiple threads, frames may arrive out of order.
+ *
+ * @see FrameExporter
+ */
+public interface IFrameSink extends Closeable
+{
+    /**
+     * Writes a frame.
+     *
+     * @param frameNumber number of the frame, starting with 0
+     * @param pixels ARGB pixels (row-major), must not be retained after this method returns
+     */
+    public void writeFrame(long frameNumber,int[] pixels) throws IOException;
+
+    /**
+     * Invoked after all frames have been written.
+     */
+    @Override
+    public default void close() throws IOException {
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+/**
+ * Implementation of the per-particle loops of the {@link AnimatorPipeline} stages that benefit from SIMD.
+ *
+ * @see ParticleKernels
+ */
+public interface IParticleKernel
+{
+    /**
+     * Integrates particles <code>indices[0]...indices[count-1]</code>, 
+     * see {@link ParticleStorage#move(int, float)}.
+     */
+    public void move(ParticleStorage storage,int[] indices,int count,float deltaSeconds);
+
+    /**
+     * Decrements the age of all particles in a batch and {@link AnimatorPipeline.Batch#kill(int) kills} particles 
+     * whose age dropped below zero.
+     *
+     * @return whether any particles got killed, the caller is responsible for compacting the batch
+     */
+    public boolean age(AnimatorPipeline.Batch batch);
+
+    /**
+     * {@link AnimatorPipeline.Batch#kill(int) Kills} particles outside of a rectangle.
+     *
+     * @return whether any particles got killed, the caller is responsible for compacting the batch
+     */
+    public boolean cull(AnimatorPipeline.Batch batch,float minX,float minY,float maxX,float maxY);
+}
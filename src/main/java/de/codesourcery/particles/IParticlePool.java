@@ -0,0 +1,54 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+/**
+ * Something particles can be claimed from, either a single {@link ParticleSystem} or an {@link ElasticParticlePool}.
+ *
+ * Animators that spawn particles on their own get the pool they should claim from passed to 
+ * {@link ParticleSystem.IAnimator#setParticlePool(IParticlePool)}.
+ */
+public interface IParticlePool
+{
+    /**
+     * Claims a single dead particle.
+     *
+     * @return the instantiated particle or <code>null</code> if no dead particle could be claimed
+     */
+    public Particle claimDeadParticle();
+
+    /**
+     * Claims up to <code>count</code> dead particles.
+     *
+     * The claimed particles are instantiated and passed to the visitor with a single invocation, so they 
+     * always belong to the same {@link ParticleStorage}.
+     *
+     * @param count max. number of particles to claim
+     * @param visitor visitor that receives the claimed particles, may be <code>null</code>
+     * @return number of particles claimed
+     */
+    public int claimDeadParticles(int count,ParticleSystem.IRangeVisitor visitor);
+
+    /**
+     * Visits the particles that were alive during the last tick, particles that got killed since are included.
+     */
+    public void visitAliveParticles(ParticleSystem.IRangeVisitor visitor);
+
+    /**
+     * Returns the number of particles that were alive during the last tick.
+     */
+    public int getAliveCount();
+}
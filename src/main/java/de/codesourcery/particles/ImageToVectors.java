@@ -51,7 +51,7 @@ public class ImageToVectors {
         return result;
     }
 
-    private static List<Vec2d> scanImage(BufferedImage image,float timeToDisplay) 
+    public static List<Vec2d> scanImage(BufferedImage image,float timeToDisplay) 
     {
         final List<Vec2d> result = new ArrayList<>();
         final int cx = image.getWidth()/2;
@@ -84,7 +84,7 @@ public class ImageToVectors {
         return result;
     }
     
-    private static BufferedImage render(String s,int width,int height) 
+    public static BufferedImage render(String s,int width,int height) 
     {
         final BufferedImage image = new BufferedImage(width,height,BufferedImage.TYPE_BYTE_BINARY);
         Graphics2D g2 = image.createGraphics();
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Adds short-range interaction between particles to another animator.
+ *
+ * Before the wrapped animator moves a particle, its velocity is changed according to the
+ * neighbors found in a {@link SpatialGrid} within a given radius. The grid must be attached to the
+ * system via {@link ParticleSystem#setSpatialGrid(SpatialGrid)}, so it always holds the positions (and velocities) 
+ * from the end of the previous tick. Because neighbors are only ever read from the grid, particles can be
+ * processed in parallel and the result does not depend on the order particles are ticked in.
+ *
+ * Particles that were claimed since the last tick are not in the grid yet, they are pushed away 
+ * by their neighbors but do not push back until the next tick.
+ */
+public class InteractionAnimator implements ParticleSystem.IAnimator
+{
+    public enum Mode 
+    {
+        /**
+         * Particles closer than the radius push each other away, with a force
+         * that grows linearly from zero (at the radius) to {@link InteractionAnimator#setStrength(float) strength}.
+         */
+        REPULSION,
+        /**
+         * Particles are discs with a diameter equal to the radius that collide elastically (all particles
+         * have the same mass).
+         */
+        COLLISION
+    }
+
+    private final ParticleSystem.IAnimator delegate;
+    private final SpatialGrid grid;
+    private final Mode mode;
+    private final float radius;
+    private float strength = 100;
+
+    /**
+     * Create instance.
+     *
+     * @param delegate animator that moves the particles
+     * @param grid grid to look up neighbors, cells should not be much smaller than <code>radius</code> 
+     * @param mode interaction mode
+     * @param radius max. distance between interacting particles
+     */
+    public InteractionAnimator(ParticleSystem.IAnimator delegate,SpatialGrid grid,Mode mode,float radius)
+    {
+        Validate.notNull(delegate,"delegate must not be NULL");
+        Validate.notNull(grid,"grid must not be NULL");
+        Validate.notNull(mode,"mode must not be NULL");
+        if ( ! ( radius > 0 ) ) {
+            throw new IllegalArgumentException("Radius must be > 0");
+        }
+        this.delegate = delegate;
+        this.grid = grid;
+        this.mode = mode;
+        this.radius = radius;
+        if ( mode == Mode.COLLISION ) {
+            grid.setStoreVelocities( true );
+        }
+    }
+
+    /**
+     * Sets the max. acceleration caused by a single neighbor in {@link Mode#REPULSION} mode.
+     */
+    public void setStrength(float strength) {
+        this.strength = strength;
+    }
+
+    public ParticleSystem.IAnimator getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void beforeVisitingParticles(float deltaSeconds) {
+        delegate.beforeVisitingParticles( deltaSeconds );
+    }
+
+    @Override
+    public void tick(Particle p, float deltaSeconds)
+    {
+        interact( p.getStorage() , p.getIndex() , deltaSeconds );
+        delegate.tick( p , deltaSeconds );
+    }
+
+    @Override
+    public void tick(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds)
+    {
+        for ( int i = from ; i < to ; i++ ) {
+            interact( storage , indices[i] , deltaSeconds );
+        }
+        delegate.tick( storage , indices , from , to , deltaSeconds );
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return delegate.isThreadSafe();
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        delegate.saveState( out );
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        delegate.loadState( in );
+    }
+
+    @Override
+    public void setParticlePool(IParticlePool pool) {
+        delegate.setParticlePool( pool );
+    }
+
+    private void interact(ParticleStorage storage,int idx,float deltaSeconds)
+    {
+        final float px = storage.posx[idx];
+        final float py = storage.posy[idx];
+        final float r = radius;
+        final float r2 = r*r;
+
+        final SpatialGrid g = grid;
+        final int[] cellStart = g.cellStart;
+        final int[] particles = g.particles;
+        final float[] x = g.x;
+        final float[] y = g.y;
+        final int columns = g.columns;
+        final int c0 = g.column( px - r );
+        final int c1 = g.column( px + r );
+        final int lastRow = g.row( py + r );
+
+        float dvx = 0;
+        float dvy = 0;
+        if ( mode == Mode.REPULSION ) 
+        {
+            final float k = strength;
+            for ( int row = g.row( py - r ) ; row <= lastRow ; row++ )
+            {
+                for ( int i = cellStart[ row*columns + c0 ] , end = cellStart[ row*columns + c1 + 1 ] ; i < end ; i++ )
+                {
+                    final float dx = px - x[i];
+                    final float dy = py - y[i];
+                    final float d2 = dx*dx + dy*dy;
+                    if ( d2 < r2 && d2 > 0 && particles[i] != idx ) 
+                    {
+                        final float d = (float) Math.sqrt( d2 );
+                        final float f = k * (1 - d/r) / d;
+                        dvx += dx*f;
+                        dvy += dy*f;
+                    }
+                }
+            }
+            storage.vx[idx] += dvx * deltaSeconds;
+            storage.vy[idx] += dvy * deltaSeconds;
+        } 
+        else if ( g.hasVelocities ) 
+        {
+            final float[] vx = g.vx;
+            final float[] vy = g.vy;
+            final float vxi = storage.vx[idx];
+            final float vyi = storage.vy[idx];
+            for ( int row = g.row( py - r ) ; row <= lastRow ; row++ )
+            {
+                for ( int i = cellStart[ row*columns + c0 ] , end = cellStart[ row*columns + c1 + 1 ] ; i < end ; i++ )
+                {
+                    final float dx = px - x[i];
+                    final float dy = py - y[i];
+                    final float d2 = dx*dx + dy*dy;
+                    if ( d2 < r2 && d2 > 0 && particles[i] != idx ) 
+                    {
+                        // only resolve particles that are approaching each other
+                        final float dot = (vxi - vx[i])*dx + (vyi - vy[i])*dy;
+                        if ( dot < 0 ) 
+                        {
+                            final float s = dot / d2;
+                            dvx -= s*dx;
+                            dvy -= s*dy;
+                        }
+                    }
+                }
+            }
+            storage.vx[idx] += dvx;
+            storage.vy[idx] += dvy;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Emits {@link TickProfiler} results as JFR events.
+ *
+ * Requires JDK 11+, loaded reflectively by {@link TickProfiler}.
+ */
+final class JfrEventSink implements TickProfiler.IEventSink
+{
+    @Name("de.codesourcery.particles.Tick")
+    @Label("Particle System Tick")
+    @Category("Particles")
+    @StackTrace(false)
+    static final class TickEvent extends Event
+    {
+        @Label("Tick")
+        long tick;
+
+        @Label("Alive Particles")
+        int alive;
+
+        @Label("Prepare") @Timespan
+        long prepare;
+
+        @Label("Partition") @Description("State transitions and alive/dead partitioning") @Timespan
+        long partition;
+
+        @Label("Animate") @Timespan
+        long animate;
+
+        @Label("Spatial Grid") @Timespan
+        long spatialGrid;
+
+        @Label("Snapshot") @Timespan
+        long snapshot;
+
+        @Label("Spawn") @Description("Time spent claiming particles since the previous tick") @Timespan
+        long spawn;
+    }
+
+    @Name("de.codesourcery.particles.ProfileWindow")
+    @Label("Particle System Profile Window")
+    @Category("Particles")
+    @StackTrace(false)
+    static final class WindowEvent extends Event
+    {
+        @Label("First Tick")
+        long firstTick;
+
+        @Label("Ticks")
+        int ticks;
+
+        @Label("Mean Tick Time") @Timespan
+        long meanTick;
+
+        @Label("Max. Tick Time") @Timespan
+        long maxTick;
+
+        @Label("Prepare") @Timespan
+        long prepare;
+
+        @Label("Partition") @Timespan
+        long partition;
+
+        @Label("Animate") @Timespan
+        long animate;
+
+        @Label("Spatial Grid") @Timespan
+        long spatialGrid;
+
+        @Label("Snapshot") @Timespan
+        long snapshot;
+
+        @Label("Spawn") @Timespan
+        long spawn;
+
+        @Label("Threads")
+        int threads;
+    }
+
+    @Override
+    public Object beginTick()
+    {
+        final TickEvent event = new TickEvent();
+        if ( ! event.isEnabled() ) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void endTick(Object token,long tickNumber,long[] phaseNanos,int aliveCount)
+    {
+        final TickEvent event = (TickEvent) token;
+        if ( event == null ) {
+            return;
+        }
+        event.end();
+        if ( event.shouldCommit() )
+        {
+            event.tick = tickNumber;
+            event.alive = aliveCount;
+            event.prepare = phaseNanos[ TickProfiler.Phase.PREPARE.ordinal() ];
+            event.partition = phaseNanos[ TickProfiler.Phase.PARTITION.ordinal() ];
+            event.animate = phaseNanos[ TickProfiler.Phase.ANIMATE.ordinal() ];
+            event.spatialGrid = phaseNanos[ TickProfiler.Phase.SPATIAL_GRID.ordinal() ];
+            event.snapshot = phaseNanos[ TickProfiler.Phase.SNAPSHOT.ordinal() ];
+            event.spawn = phaseNanos[ TickProfiler.Phase.SPAWN.ordinal() ];
+            event.commit();
+        }
+    }
+
+    @Override
+    public void windowCompleted(TickProfiler.Window window)
+    {
+        final WindowEvent event = new WindowEvent();
+        if ( event.shouldCommit() )
+        {
+            event.firstTick = window.getFirstTick();
+            event.ticks = window.getTickCount();
+            event.meanTick = (long) window.getMeanTickNanos();
+            event.maxTick = window.getMaxTickNanos();
+            event.prepare = window.getNanos( TickProfiler.Phase.PREPARE );
+            event.partition = window.getNanos( TickProfiler.Phase.PARTITION );
+            event.animate = window.getNanos( TickProfiler.Phase.ANIMATE );
+            event.spatialGrid = window.getNanos( TickProfiler.Phase.SPATIAL_GRID );
+            event.snapshot = window.getNanos( TickProfiler.Phase.SNAPSHOT );
+            event.spawn = window.getNanos( TickProfiler.Phase.SPAWN );
+            event.threads = window.getThreadNames().size();
+            event.commit();
+        }
+    }
+}
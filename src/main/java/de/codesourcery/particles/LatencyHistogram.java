@@ -0,0 +1,216 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of nanosecond latencies with log-linear buckets.
+ *
+ * Values below 32 are counted exactly, larger values are counted in buckets of
+ * 16 per power of two so the relative error of reported percentiles is at most ~6%
+ * over the full range of <code>long</code>.
+ *
+ * Recording is safe to do from any number of threads, queries are not atomic
+ * with respect to concurrent recording.
+ */
+public final class LatencyHistogram
+{
+    // sub-buckets per power of two (for values >= 2*SUB_BUCKETS)
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64-SUB_BUCKET_BITS)*SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKET_COUNT );
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Summary of a histogram, exported as composite data over JMX.
+     */
+    public static final class Summary
+    {
+        private final long count;
+        private final double mean;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+
+        Summary(long count,double mean,long max,long p50,long p90,long p99,long p999)
+        {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        @Override
+        public String toString() {
+            return "count="+count+", mean="+(long) mean+", p50="+p50+", p90="+p90+", p99="+p99+", p99.9="+p999+", max="+max;
+        }
+    }
+
+    static int bucketIndex(long value)
+    {
+        if ( value < 2*SUB_BUCKETS ) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS;
+        return shift*SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the largest value that is counted in a bucket.
+     */
+    static long highestValue(int bucket)
+    {
+        if ( bucket < 2*SUB_BUCKETS ) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa+1) << shift) - 1;
+    }
+
+    /**
+     * Records a latency, negative values are recorded as 0.
+     */
+    public void record(long nanos)
+    {
+        final long value = Math.max( 0 , nanos );
+        counts.incrementAndGet( bucketIndex( value ) );
+        sum.add( value );
+        long current;
+        while ( value > (current = max.get()) && ! max.compareAndSet( current , value ) ) {
+            // retry
+        }
+    }
+
+    public long getCount()
+    {
+        long total = 0;
+        for ( int i = 0 ; i < BUCKET_COUNT ; i++ ) {
+            total += counts.get( i );
+        }
+        return total;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        final long count = getCount();
+        return count == 0 ? 0 : sum.sum() / (double) count;
+    }
+
+    /**
+     * Returns the value at a given percentile.
+     *
+     * @param percentile percentile (0...100)
+     * @return upper bound of the bucket that contains the percentile (capped at the max. recorded value), 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        if ( percentile < 0 || percentile > 100 ) {
+            throw new IllegalArgumentException("Percentile must be in range 0...100");
+        }
+        final long[] copy = new long[ BUCKET_COUNT ];
+        long total = 0;
+        for ( int i = 0 ; i < BUCKET_COUNT ; i++ ) {
+            total += copy[i] = counts.get( i );
+        }
+        return valueAt( copy , total , percentile );
+    }
+
+    private long valueAt(long[] copy,long total,double percentile)
+    {
+        if ( total == 0 ) {
+            return 0;
+        }
+        final long rank = Math.max( 1 , (long) Math.ceil( percentile / 100.0 * total ) );
+        long seen = 0;
+        for ( int i = 0 ; i < BUCKET_COUNT ; i++ )
+        {
+            seen += copy[i];
+            if ( seen >= rank ) {
+                return Math.min( highestValue( i ) , max.get() );
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns count, mean, max. and the 50th, 90th, 99th and 99.9th percentile.
+     */
+    public Summary getSummary()
+    {
+        final long[] copy = new long[ BUCKET_COUNT ];
+        long total = 0;
+        for ( int i = 0 ; i < BUCKET_COUNT ; i++ ) {
+            total += copy[i] = counts.get( i );
+        }
+        final double mean = total == 0 ? 0 : sum.sum() / (double) total;
+        return new Summary( total , mean , max.get() ,
+                valueAt( copy , total , 50 ) , valueAt( copy , total , 90 ) ,
+                valueAt( copy , total , 99 ) , valueAt( copy , total , 99.9 ) );
+    }
+
+    public void reset()
+    {
+        for ( int i = 0 ; i < BUCKET_COUNT ; i++ ) {
+            counts.set( i , 0 );
+        }
+        sum.reset();
+        max.set( 0 );
+    }
+}
@@ -17,15 +17,19 @@ package de.codesourcery.particles;
 
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
+import javax.management.JMException;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
@@ -35,22 +39,18 @@ public class Main extends JFrame
 {
     static final boolean SPAWN_NEW = true;
 
-    private long lastCall;
-
     private class MyPanel extends JPanel 
     {
         private final OutOfBoundsVisitor outOfBoundsCheck;
         private final ParticleSystem system;
         private final Consumer<ParticleSystem> initializer;
-
-        private int cx;
-        private int cy;
+        private final SimulationLoop loop;
+        private final ParticleMetrics metrics = new ParticleMetrics();
 
         private BufferedImage buffer;
-        private Graphics2D bufferGfx; 
         private int[] pixels;
-        private int width;
-        private int maxOffset;        
+        private Renderer renderer;
+        private FrameExporter exporter;
 
         private int frames;
 
@@ -66,69 +66,156 @@ public class Main extends JFrame
                   ImageToVectors.load("a", 0.25f),
                   ImageToVectors.load("test", 0.25f)
             );              
+            // allow what the visitor schedules on average, anything beyond that gets dropped after waiting for the max. delay
+            this.outOfBoundsCheck.getEmitter().setRateLimit( outOfBoundsCheck.getScheduledParticleRate() , outOfBoundsCheck.getMaxBurstSize() );
             
             system.setAnimator( this.outOfBoundsCheck );
+            system.setForkJoinPool( ForkJoinPool.commonPool() );
+            system.setIncremental( true );
+            system.setSnapshotsEnabled( true );
+            system.setMetrics( metrics );
+            try {
+                metrics.register( "main" );
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
             this.initializer = this.outOfBoundsCheck::init;
+            
+            if ( System.getProperty( "profile" ) != null ) 
+            {
+                final TickProfiler profiler = new TickProfiler( 60 , 10 );
+                profiler.setJfrEnabled( TickProfiler.isJfrAvailable() );
+                profiler.setListener( window -> System.out.println( "Profile: "+window ) );
+                system.setProfiler( profiler );
+            }
+            
+            if ( System.getProperty( "replay.log" ) != null ) {
+                startReplayLog( new File( System.getProperty( "replay.log" ) ) );
+            }
+            
+            this.loop = new SimulationLoop( system , 60 );
+            this.loop.setListener( (sys,step) -> 
+            {
+                if ( sys.allDead() ) 
+                {
+                    System.out.println("All dead");
+                    initializer.accept( sys );
+                } 
+                if ( ( step % 60 ) == 0 ) 
+                {
+                    final LatencyHistogram tick = metrics.getTickHistogram();
+                    System.out.println("Simulation: "+loop.getSimulationRate()+" steps/s, dropped steps: "+loop.getDroppedSteps()+", lag: "+(loop.getLagNanos()/1000)+" us"
+                            + ", tick p50/p99/max: "+micros( tick.getValueAtPercentile( 50 ) )+"/"+micros( tick.getValueAtPercentile( 99 ) )+"/"+micros( tick.getMax() )+" us"
+                            + ", alive: "+metrics.getAliveCount()+" ("+Math.round( metrics.getPoolUtilization()*100 )+"%)"
+                            + ", spawned: "+metrics.getSpawnCount()+", killed: "+metrics.getKillCount()+", failed claims: "+metrics.getFailedClaimCount());
+                }
+            });
+        }
+
+        private void startReplayLog(File file) 
+        {
+            final ReplayRecorder recorder;
+            try {
+                recorder = new ReplayRecorder( file.toPath() , system , outOfBoundsCheck );
+            } catch (IOException e) {
+                throw new UncheckedIOException( e );
+            }
+            System.out.println("Writing replay log to "+file.getAbsolutePath());
+            Runtime.getRuntime().addShutdownHook( new Thread( () -> 
+            {
+                try {
+                    recorder.close();
+                    System.out.println("Recorded "+recorder.getEventCount()+" replay events");
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
         }
 
         private void setupBuffer() 
         {
             if ( buffer == null || buffer.getWidth() != getWidth() || buffer.getHeight() != getHeight() ) 
             {
-                this.width = getWidth();
-                this.maxOffset = getHeight()*width;
-                if ( bufferGfx != null ) {
-                    bufferGfx.dispose();
-                    bufferGfx = null;
-                }
                 buffer = new BufferedImage( getWidth() , getHeight() , BufferedImage.TYPE_INT_ARGB );
-                bufferGfx = buffer.createGraphics();
                 pixels = ((DataBufferInt) buffer.getRaster().getDataBuffer()).getData();
+                renderer = new Renderer( getWidth() , getHeight() );
+                renderer.setForkJoinPool( ForkJoinPool.commonPool() );
+                renderer.setMetrics( metrics );
+                if ( System.getProperty( "render.budget" ) != null ) {
+                    renderer.setFrameBudget( TimeUnit.MILLISECONDS.toNanos( Long.parseLong( System.getProperty( "render.budget" ) ) ) );
+                }
+                if ( System.getProperty( "render.additive" ) != null ) 
+                {
+                    renderer.setBlendMode( Renderer.BlendMode.ADDITIVE );
+                    renderer.setToneMapping( Renderer.ToneMapping.EXPONENTIAL , 2 );
+                }
+                if ( System.getProperty( "render.splat" ) != null ) {
+                    renderer.setSplatRadius( Integer.parseInt( System.getProperty( "render.splat" ) ) );
+                }
+                if ( exporter == null && System.getProperty( "record" ) != null ) {
+                    startRecording( new File( System.getProperty( "record" ) ) );
+                }
+            }
+        }
+
+        private void startRecording(File file) 
+        {
+            try {
+                final RawFrameSink sink = new RawFrameSink( file.toPath() , getWidth() , getHeight() );
+                exporter = new FrameExporter( sink , new FrameBufferPool( getWidth() , getHeight() , 8 ) , 2 , 4 );
+            } catch (IOException e) {
+                throw new UncheckedIOException( e );
+            }
+            System.out.println("Recording "+getWidth()+"x"+getHeight()+" frames to "+file.getAbsolutePath());
+            Runtime.getRuntime().addShutdownHook( new Thread( () -> 
+            {
+                try {
+                    exporter.close();
+                    System.out.println("Recorded "+exporter.getFramesWritten()+" frames, dropped "+exporter.getFramesDropped());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }));
+        }
+
+        private void recordFrame() 
+        {
+            // frames are recorded with the size of the window at the time recording started
+            if ( exporter != null && renderer.getWidth() == exporter.getWidth() && renderer.getHeight() == exporter.getHeight() ) 
+            {
+                final int[] frame = exporter.acquireFrame();
+                if ( frame != null ) 
+                {
+                    System.arraycopy( pixels , 0 , frame , 0 , frame.length );
+                    exporter.submit( frame );
+                }
             }
-            bufferGfx.clearRect( 0 , 0 , buffer.getWidth() , buffer.getHeight() );
         }
 
         @Override
         protected void paintComponent(Graphics g)
         {
             frames++;
-            long now = System.currentTimeMillis();
-
-            cx = getWidth()/2;
-            cy = getHeight()/2;
-
             setupBuffer();
             outOfBoundsCheck.setBounds( getWidth(), getHeight() );
 
-            long now2 = System.currentTimeMillis();
-
-            if ( system.allDead() ) 
-            {
-                System.out.println("All dead");
-                initializer.accept( system );
-            } 
-
-            system.visitAliveParticles( this::renderParticle );
+            // extrapolate positions by the time that has not been simulated yet
+            final float dt = loop.getInterpolationAlpha() * loop.getStepSeconds();
+            renderer.render( system.getLatestSnapshot() , pixels , dt );
+            recordFrame();
 
             g.drawImage(buffer , 0 , 0 , null );
 
-            if ( (frames%60) == 0 ) {
-                long now3 = System.currentTimeMillis();
-                System.out.println("Timing: total "+(now3-now)+" ms, rendering "+(now3-now2)+" ms, OOB check: "+(now2-now)+" ms , alive: "+system.getAliveCount());
+            if ( (frames%60) == 0 ) 
+            {
+                final LatencyHistogram render = metrics.getRenderHistogram();
+                System.out.println("Rendering p50/p99/max: "+micros( render.getValueAtPercentile( 50 ) )+"/"+micros( render.getValueAtPercentile( 99 ) )+"/"+micros( render.getMax() )+" us");
             }
         }
+    }
 
-        public boolean renderParticle(Particle p) 
-        {
-            int px = (int) (p.posx + cx);
-            int py = (int) (cy - p.posy);
-
-            final int offset = px + py * width;
-            if ( offset > 0 && offset < maxOffset ) {
-                pixels[offset] = p.color;
-            }
-            return true;
-        }
+    private static long micros(long nanos) {
+        return nanos / 1000;
     }
 
     public static void main(String[] args) throws InvocationTargetException, InterruptedException
@@ -136,8 +223,6 @@ public class Main extends JFrame
         SwingUtilities.invokeAndWait( () -> new Main().run() ); 
     }
 
-    private int frames;
-
     public void run() 
     {
         final MyPanel panel = new MyPanel();
@@ -151,22 +236,9 @@ public class Main extends JFrame
         frame.setExtendedState( frame.getExtendedState()|JFrame.MAXIMIZED_BOTH );
         frame.setVisible( true );
 
-        final Timer timer = new Timer(16, ev -> 
-        {
-            final long now = System.currentTimeMillis();
-            if ( lastCall != 0 ) 
-            {
-                final float deltaInSeconds = (now - lastCall)/1000f;
-                panel.system.tick( deltaInSeconds );
-                long now2 = System.currentTimeMillis();
-                frames++;
-                if ( ( frames % 60 ) == 0 ) {
-                    System.out.println("system tick(): "+(now2-now)+" , delta: "+(now-lastCall)+" ms, delta/seconds: "+deltaInSeconds);
-                }
-                panel.repaint();
-            }
-            lastCall = now;
-        });
+        panel.loop.start();
+        
+        final Timer timer = new Timer(16, ev -> panel.repaint() );
         timer.start();
     }
 }
\ No newline at end of file
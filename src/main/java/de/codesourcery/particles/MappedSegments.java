@@ -0,0 +1,209 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Transfers arrays to or from a region of a file through a sequence of memory mapped segments.
+ *
+ * A single {@link MappedByteBuffer} cannot be larger than 2 GB, so large particle systems are mapped one 
+ * segment at a time. A new segment is mapped starting at the current file position whenever the current one
+ * cannot hold the next value, values never straddle segments. All values are little endian.
+ */
+final class MappedSegments
+{
+    static final int DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+
+    private final FileChannel channel;
+    private final MapMode mode;
+    private final int segmentSize;
+    private final long end;
+
+    // file offset of the segment's first byte
+    private long segmentStart;
+    private MappedByteBuffer segment;
+
+    /**
+     * Create instance.
+     * 
+     * @param mode {@link MapMode#READ_ONLY} or {@link MapMode#READ_WRITE}
+     * @param position file offset of the region
+     * @param size size of the region in bytes
+     * @param segmentSize max. number of bytes mapped at a time, at least 8
+     */
+    MappedSegments(FileChannel channel,MapMode mode,long position,long size,int segmentSize)
+    {
+        if ( segmentSize < 8 ) {
+            throw new IllegalArgumentException("Segment size must be >= 8");
+        }
+        this.channel = channel;
+        this.mode = mode;
+        this.segmentSize = segmentSize;
+        this.segmentStart = position;
+        this.end = position + size;
+    }
+
+    /**
+     * Returns the current segment, mapping the next one if fewer than <code>bytes</code> bytes remain.
+     */
+    private MappedByteBuffer segment(int bytes) throws IOException
+    {
+        if ( segment != null && segment.remaining() >= bytes ) {
+            return segment;
+        }
+        long start = segmentStart;
+        if ( segment != null ) 
+        {
+            start += segment.position();
+            finishSegment();
+        }
+        final long size = Math.min( segmentSize , end - start );
+        if ( size < bytes ) {
+            throw new IOException("Region of "+(end-segmentStart)+" bytes exhausted");
+        }
+        segmentStart = start;
+        segment = channel.map( mode , start , size );
+        segment.order( ByteOrder.LITTLE_ENDIAN );
+        return segment;
+    }
+
+    private void finishSegment()
+    {
+        if ( mode == MapMode.READ_WRITE ) {
+            segment.force();
+        }
+        segment = null;
+    }
+
+    /**
+     * Flushes all written data to the file.
+     */
+    void finish() 
+    {
+        if ( segment != null ) {
+            finishSegment();
+        }
+    }
+
+    void putInt(int value) throws IOException {
+        segment( 4 ).putInt( value );
+    }
+
+    int getInt() throws IOException {
+        return segment( 4 ).getInt();
+    }
+
+    void putFloats(float[] data) throws IOException
+    {
+        for ( int offset = 0 ; offset < data.length ; ) 
+        {
+            final MappedByteBuffer buffer = segment( 4 );
+            final int len = Math.min( data.length - offset , buffer.remaining()/4 );
+            buffer.asFloatBuffer().put( data , offset , len );
+            buffer.position( buffer.position() + len*4 );
+            offset += len;
+        }
+    }
+
+    void getFloats(float[] data) throws IOException
+    {
+        for ( int offset = 0 ; offset < data.length ; ) 
+        {
+            final MappedByteBuffer buffer = segment( 4 );
+            final int len = Math.min( data.length - offset , buffer.remaining()/4 );
+            buffer.asFloatBuffer().get( data , offset , len );
+            buffer.position( buffer.position() + len*4 );
+            offset += len;
+        }
+    }
+
+    void putInts(int[] data) throws IOException
+    {
+        for ( int offset = 0 ; offset < data.length ; ) 
+        {
+            final MappedByteBuffer buffer = segment( 4 );
+            final int len = Math.min( data.length - offset , buffer.remaining()/4 );
+            buffer.asIntBuffer().put( data , offset , len );
+            buffer.position( buffer.position() + len*4 );
+            offset += len;
+        }
+    }
+
+    void getInts(int[] data) throws IOException
+    {
+        for ( int offset = 0 ; offset < data.length ; ) 
+        {
+            final MappedByteBuffer buffer = segment( 4 );
+            final int len = Math.min( data.length - offset , buffer.remaining()/4 );
+            buffer.asIntBuffer().get( data , offset , len );
+            buffer.position( buffer.position() + len*4 );
+            offset += len;
+        }
+    }
+
+    void putBytes(byte[] data) throws IOException
+    {
+        for ( int offset = 0 ; offset < data.length ; ) 
+        {
+            final MappedByteBuffer buffer = segment( 1 );
+            final int len = Math.min( data.length - offset , buffer.remaining() );
+            buffer.put( data , offset , len );
+            offset += len;
+        }
+    }
+
+    void getBytes(byte[] data) throws IOException
+    {
+        for ( int offset = 0 ; offset < data.length ; ) 
+        {
+            final MappedByteBuffer buffer = segment( 1 );
+            final int len = Math.min( data.length - offset , buffer.remaining() );
+            buffer.get( data , offset , len );
+            offset += len;
+        }
+    }
+
+    void putBooleans(boolean[] data) throws IOException
+    {
+        for ( int offset = 0 ; offset < data.length ; ) 
+        {
+            final MappedByteBuffer buffer = segment( 1 );
+            final int len = Math.min( data.length - offset , buffer.remaining() );
+            for ( int i = offset , end = offset + len ; i < end ; i++ ) {
+                buffer.put( data[i] ? (byte) 1 : 0 );
+            }
+            offset += len;
+        }
+    }
+
+    void getBooleans(boolean[] data) throws IOException
+    {
+        for ( int offset = 0 ; offset < data.length ; ) 
+        {
+            final MappedByteBuffer buffer = segment( 1 );
+            final int len = Math.min( data.length - offset , buffer.remaining() );
+            for ( int i = offset , end = offset + len ; i < end ; i++ ) {
+                data[i] = buffer.get() != 0;
+            }
+            offset += len;
+        }
+    }
+}
@@ -16,153 +16,492 @@
 package de.codesourcery.particles;
 
 import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Spawns particles that are killed when they leave the screen or get too old, some particles spawn children.
+ *
+ * Particles are processed by a preset {@link AnimatorPipeline} (integrate, age, cull, color). Children are spawned 
+ * by an {@link Emitter}: at the start of each tick bursts of shapes are scheduled at a configured rate, each one at the position 
+ * and with the velocity of an alive parent particle, and the emitter's rate limit decides when they actually get emitted. 
+ */
 public final class OutOfBoundsVisitor implements ParticleSystem.IAnimator 
 {
     public static final int[] colors = new GradientBuilder().color( Color.WHITE ).steps( 30 ).color( Color.RED ).steps( 30 ).color( Color.YELLOW ).steps( 50 ).color( Color.BLACK ).reverse().build();
     
-    public final Random rnd;
+    // spawned when no custom shapes have been assigned
+    private static final ShapeTemplate[] DEFAULT_SHAPES = { ring( 51 , 100 ) };
     
-    public int particlesSpawned = 0;
-    public int particlesKilled = 0;
+    // not final, restored by loadState()
+    public Random rnd;
+    
+    /**
+     * Downward acceleration assigned to new particles, set to zero when 
+     * using a {@link ForceStage} to apply gravity instead.
+     */
+    public float gravity = 9.81f*5;
+    
+    // striped, particles are killed concurrently by the parallel tick
+    private final LongAdder particlesSpawned = new LongAdder();
+    private final LongAdder particlesKilled = new LongAdder();
     
     private int shapeIdx;
+    // compiled into shape templates when a new list gets assigned, do not modify a list once it has been assigned
     public List<List<Vec2d>> customShapes = null;
+    // customShapes compiled into templates
+    private List<List<Vec2d>> templatesSource;
+    private ShapeTemplate[] templates;
     
-    private final ParticleSystem system;
+    private volatile IParticlePool pool;
+    private final Emitter emitter;
     private float pxmin,pxmax,pymin,pymax;
+    // cull bounds are only updated between ticks
+    private boolean boundsChanged;
+    
+    private float burstsPerSecond = 5;
+    private int shapesPerBurst = 3;
+    private float burstInterval = 0.1f;
+    // fractional number of bursts not scheduled yet
+    private float pendingBursts;
+    // position in the alive particles where the search for the next parent starts
+    private int parentCursor;
+    private final ParentSearch parentSearch = new ParentSearch();
+    
+    private final AnimatorPipeline.Cull cull = new AnimatorPipeline.Cull( 0 , 0 , 0 , 0 );
+    private final AnimatorPipeline pipeline = new AnimatorPipeline( 
+            new AnimatorPipeline.Integrate() , 
+            new AnimatorPipeline.Age() , 
+            cull , 
+            new AnimatorPipeline.ColorByAge( colors ) );
     
-    private int spawnCount;
-    private float elapsedTime;
+    private volatile boolean autoSpawn = true;
+    private volatile IEventListener eventListener;
     
-    private long particleCount;
+    /**
+     * Receives all events that influence the outcome of a simulation, see {@link ReplayRecorder}.
+     */
+    public interface IEventListener 
+    {
+        public void seeded(long seed);
+        
+        public void boundsChanged(int width,int height);
+        
+        /**
+         * Invoked at the start of each tick, after the bursts for this tick have been scheduled.
+         */
+        public void tickStarted(float deltaSeconds);
+        
+        /**
+         * Invoked before {@link OutOfBoundsVisitor#init(ParticleSystem)} spawns particles.
+         */
+        public void initialized();
+        
+        /**
+         * Invoked before a burst gets scheduled on the animator's {@link Emitter}.
+         * 
+         * @see OutOfBoundsVisitor#replayBurst(int, float, float, float, float, int, float)
+         */
+        public void burstScheduled(int shapeIdx,float x,float y,float vx,float vy,int count,float intervalSeconds);
+    }
+    
+    /**
+     * Finds the first alive particle at or after a given position in the alive particles of all chunks.
+     */
+    private static final class ParentSearch implements ParticleSystem.IRangeVisitor
+    {
+        private int start;
+        // position of the first particle of the next range, the parent's position once found
+        int position;
+        boolean found;
+        float x,y,vx,vy;
+
+        void reset(int start) 
+        {
+            this.start = start;
+            this.position = 0;
+            this.found = false;
+        }
+
+        @Override
+        public void visit(ParticleStorage storage, int[] indices, int from, int to) 
+        {
+            if ( found ) {
+                return;
+            }
+            for ( int i = from + Math.max( 0 , start - position ) ; i < to ; i++ )
+            {
+                final int idx = indices[i];
+                if ( storage.isAlive( idx ) ) 
+                {
+                    found = true;
+                    position += i - from;
+                    x = storage.posx[idx];
+                    y = storage.posy[idx];
+                    vx = storage.vx[idx];
+                    vy = storage.vy[idx];
+                    return;
+                }
+            }
+            position += to - from;
+        }
+    }
     
-    public OutOfBoundsVisitor(ParticleSystem system) {
-        this(system,new Random() );
+    public OutOfBoundsVisitor(IParticlePool pool) {
+        this(pool,new Random() );
     }
     
-    public OutOfBoundsVisitor(ParticleSystem system,Random rnd) {
-        this.system = system;
+    public OutOfBoundsVisitor(IParticlePool pool,Random rnd) {
+        this.pool = pool;
         this.rnd = rnd;
+        this.emitter = new Emitter( pool ).setColor( colors[0] ).setAge( colors.length-1 );
     }    
     
-    public void resetStatistics() {
-        particlesSpawned = 0;
-        particlesKilled = 0;
+    @Override
+    public void setParticlePool(IParticlePool pool) 
+    {
+        Validate.notNull(pool,"pool must not be NULL");
+        this.pool = pool;
+        emitter.setParticlePool( pool );
+    }
+    
+    /**
+     * Returns the emitter that spawns children, for example to {@link Emitter#setRateLimit(float, int) limit the spawn rate}.
+     */
+    public Emitter getEmitter() {
+        return emitter;
     }
     
-    public void setBounds(int width,int height) 
+    /**
+     * Sets how often children are spawned.
+     * 
+     * @param burstsPerSecond number of bursts scheduled per second, 0 disables spawning children
+     * @param shapesPerBurst number of times a burst emits its shape
+     * @param intervalSeconds time between the emissions of a burst
+     */
+    public synchronized void setBurstRate(float burstsPerSecond,int shapesPerBurst,float intervalSeconds) 
     {
+        if ( ! ( burstsPerSecond >= 0 ) || shapesPerBurst < 1 || ! ( intervalSeconds >= 0 ) ) {
+            throw new IllegalArgumentException("Invalid burst rate");
+        }
+        this.burstsPerSecond = burstsPerSecond;
+        this.shapesPerBurst = shapesPerBurst;
+        this.burstInterval = intervalSeconds;
+    }
+    
+    /**
+     * Returns the average number of particles per second the scheduled bursts emit, 
+     * a suitable {@link Emitter#setRateLimit(float, int) rate limit} for the emitter.
+     */
+    public synchronized float getScheduledParticleRate() 
+    {
+        final ShapeTemplate[] templates = templates();
+        long particles = 0;
+        for ( ShapeTemplate t : templates ) {
+            particles += t.size();
+        }
+        return burstsPerSecond * shapesPerBurst * particles / templates.length;
+    }
+    
+    /**
+     * Returns the number of particles emitted by the largest burst, a suitable 
+     * {@link Emitter#setRateLimit(float, int) burst capacity} for the emitter.
+     */
+    public synchronized int getMaxBurstSize() 
+    {
+        int largest = 0;
+        for ( ShapeTemplate t : templates() ) {
+            largest = Math.max( largest , t.size() );
+        }
+        return shapesPerBurst * largest;
+    }
+    
+    /**
+     * Returns the pipeline that processes particles, stages may be added between ticks.
+     * 
+     * Forces are applied by wrapping this visitor in a {@link ForceStage}.
+     */
+    public AnimatorPipeline getPipeline() {
+        return pipeline;
+    }
+    
+    public void setEventListener(IEventListener eventListener) {
+        this.eventListener = eventListener;
+    }
+    
+    /**
+     * Sets whether bursts of children are scheduled automatically at the start of each tick.
+     * 
+     * Replays disable this and schedule bursts through {@link #replayBurst(int, float, float, float, float, int, float)} instead.
+     */
+    public void setAutoSpawn(boolean autoSpawn) {
+        this.autoSpawn = autoSpawn;
+    }
+    
+    /**
+     * Re-seeds the random number generator.
+     */
+    public synchronized void setSeed(long seed) 
+    {
+        rnd.setSeed( seed );
+        final IEventListener l = eventListener;
+        if ( l != null ) {
+            l.seeded( seed );
+        }
+    }
+    
+    public void resetStatistics() 
+    {
+        particlesSpawned.reset();
+        particlesKilled.reset();
+    }
+    
+    /**
+     * Returns the number of particles spawned since the last {@link #resetStatistics() reset}.
+     */
+    public long getSpawnedCount() {
+        return particlesSpawned.sum();
+    }
+    
+    /**
+     * Returns the number of particles killed by the pipeline since the last {@link #resetStatistics() reset}.
+     */
+    public long getKilledCount() {
+        return particlesKilled.sum();
+    }
+    
+    /**
+     * Sets the bounds, particles get culled against the new bounds starting with the next tick.
+     */
+    public synchronized void setBounds(int width,int height) 
+    {
+        if ( pxmin == -width/2 && pxmax == width/2 && pymin == -height/2 && pymax == height/2 ) {
+            return;
+        }
         pxmin = -width/2;
         pxmax =  width/2;
         pymin = -height/2;
-        pymax =  height/2;             
+        pymax =  height/2;
+        boundsChanged = true;
+        final IEventListener l = eventListener;
+        if ( l != null ) {
+            l.boundsChanged( width , height );
+        }
     }
     
     public boolean isOutOfBounds(Particle p) {
-        return p.posx < pxmin || p.posy < pymin || p.posx > pxmax || p.posy > pymax; 
+        return isOutOfBounds( p.posx() , p.posy() ); 
+    }
+    
+    public boolean isOutOfBounds(float x,float y) {
+        return x < pxmin || y < pymin || x > pxmax || y > pymax; 
     }
     
     @Override
-    public void beforeVisitingParticles(float deltaSeconds) 
+    public synchronized void beforeVisitingParticles(float deltaSeconds) 
     {
-        elapsedTime+=deltaSeconds;
-        if ( elapsedTime > 0.15f) {
-            elapsedTime -= 0.15f;
-            if ( spawnCount > 0 ) {
-                spawnCount--;
+        if ( boundsChanged ) 
+        {
+            cull.setBounds( pxmin , pymin , pxmax , pymax );
+            boundsChanged = false;
+        }
+        if ( autoSpawn && burstsPerSecond > 0 ) 
+        {
+            pendingBursts += deltaSeconds * burstsPerSecond;
+            for ( ; pendingBursts >= 1 ; pendingBursts-- ) 
+            {
+                if ( ! scheduleBurst() ) 
+                {
+                    pendingBursts = 0; // no alive particles
+                    break;
+                }
             }
         }
+        final IEventListener l = eventListener;
+        if ( l != null ) {
+            l.tickStarted( deltaSeconds );
+        }
+        emitter.setAcceleration( 0 , -gravity );
+        particlesSpawned.add( emitter.update( deltaSeconds ) );
+    }
+    
+    /**
+     * Schedules a burst at the next alive particle.
+     * 
+     * @return <code>false</code> if there are no alive particles
+     */
+    private boolean scheduleBurst() 
+    {
+        final ParentSearch search = parentSearch;
+        search.reset( parentCursor );
+        pool.visitAliveParticles( search );
+        if ( ! search.found && parentCursor > 0 ) 
+        {
+            search.reset( 0 );
+            pool.visitAliveParticles( search );
+        }
+        if ( ! search.found ) {
+            return false;
+        }
+        parentCursor = search.position+1;
+        final ShapeTemplate[] templates = templates();
+        final int shape = shapeIdx % templates.length;
+        shapeIdx = (shape+1) % templates.length;
+        final IEventListener l = eventListener;
+        if ( l != null ) {
+            l.burstScheduled( shape , search.x , search.y , search.vx , search.vy , shapesPerBurst , burstInterval );
+        }
+        emitter.schedule( 0 , templates[shape] , search.x , search.y , search.vx , search.vy , shapesPerBurst , burstInterval );
+        return true;
     }
 
     @Override
     public void tick(Particle particle, float deltaSeconds)
     {
-        particleCount++;
-        particle.move( deltaSeconds );
-        particle.age--;
-        if ( particle.age < 0 || isOutOfBounds( particle ) )
-        {
-            particlesKilled++;
-            particle.kill();
-            return;
+        final int killed = pipeline.process( particle.getStorage() , particle.getIndex() , deltaSeconds );
+        if ( killed > 0 ) {
+            particlesKilled.add( killed );
+        }
+    }
+    
+    @Override
+    public void tick(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds)
+    {
+        final int killed = pipeline.process( storage , indices , from , to , deltaSeconds );
+        if ( killed > 0 ) {
+            particlesKilled.add( killed );
+        }
+    }
+    
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+    
+    @Override
+    public synchronized void saveState(DataOutput out) throws IOException
+    {
+        // java.util.Random does not expose its seed, serialize it instead
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( ObjectOutputStream oos = new ObjectOutputStream( bytes ) ) {
+            oos.writeObject( rnd );
+        }
+        out.writeInt( bytes.size() );
+        out.write( bytes.toByteArray() );
+        out.writeLong( particlesSpawned.sum() );
+        out.writeLong( particlesKilled.sum() );
+        out.writeInt( shapeIdx );
+        out.writeFloat( pendingBursts );
+        out.writeInt( parentCursor );
+        emitter.saveState( out );
+        out.writeFloat( pxmin );
+        out.writeFloat( pxmax );
+        out.writeFloat( pymin );
+        out.writeFloat( pymax );
+    }
+    
+    @Override
+    public synchronized void loadState(DataInput in) throws IOException
+    {
+        final byte[] bytes = new byte[ in.readInt() ];
+        in.readFully( bytes );
+        try ( ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( bytes ) ) ) {
+            rnd = (Random) ois.readObject();
         } 
-        if ( particle.age > 0 ) {
-            particle.color = colors[ particle.age ];
+        catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Failed to restore random number generator",e);
         }
-        if ( (particleCount%10000) == 0 && spawnCount < 10) 
-        {
-            if ( spawnChildren(particle) ) {
-                spawnCount++;
-            }
+        final long spawned = in.readLong();
+        final long killed = in.readLong();
+        shapeIdx = in.readInt();
+        pendingBursts = in.readFloat();
+        parentCursor = in.readInt();
+        if ( shapeIdx < 0 || parentCursor < 0 || spawned < 0 || killed < 0 ) {
+            throw new IOException("Corrupted animator state");
         }
+        resetStatistics();
+        particlesSpawned.add( spawned );
+        particlesKilled.add( killed );
+        emitter.loadState( in );
+        pxmin = in.readFloat();
+        pxmax = in.readFloat();
+        pymin = in.readFloat();
+        pymax = in.readFloat();
+        cull.setBounds( pxmin , pymin , pxmax , pymax );
+        boundsChanged = false;
     }
+    
 
-    protected boolean spawnChildren(Particle parent) 
+    /**
+     * Schedules a burst exactly like {@link #beforeVisitingParticles(float)} would.
+     * 
+     * @param shapeIdx index of the custom shape to use
+     * @see IEventListener#burstScheduled(int, float, float, float, float, int, float)
+     */
+    public synchronized void replayBurst(int shapeIdx,float x,float y,float vx,float vy,int count,float intervalSeconds) 
     {
-        boolean success = false;
-        if ( customShapes != null ) 
-        {
-            final List<Vec2d> customShape = customShapes.get( shapeIdx );
-            shapeIdx = (shapeIdx+1) % customShapes.size();
-            for ( int count = customShape.size()-1 ; count >= 0 ; count-- ) 
-            {
-                final Vec2d displacement = customShape.get(count);
-                final Particle child = system.claimDeadParticle();
-                if ( child == null ) 
-                {
-                    break;
-                }
-                
-                success = true;
-                
-                final float px = parent.posx;
-                final float py = parent.posy;
-                final float ax = 0;
-                final float ay = -9.81f*5;
-                final float vx = parent.vx+displacement.x;
-                final float vy = parent.vy+displacement.y;
-                final int maxAge = colors.length-1;
-                
-                particlesSpawned++;
-                child.instantiate().pos( px , py ).acceleration( ax,  ay ).color( colors[0] ).speed( vx , vy ).age( maxAge );                
-            }
-        } 
-        else 
+        final ShapeTemplate[] templates = templates();
+        if ( shapeIdx < 0 || shapeIdx >= templates.length ) {
+            throw new IllegalArgumentException("Shape index out of range: "+shapeIdx);
+        }
+        this.shapeIdx = (shapeIdx+1) % templates.length;
+        emitter.schedule( 0 , templates[shapeIdx] , x , y , vx , vy , count , intervalSeconds );
+    }
+
+    private ShapeTemplate[] templates() 
+    {
+        if ( customShapes == null ) {
+            return DEFAULT_SHAPES;
+        }
+        if ( templatesSource != customShapes ) 
         {
-            System.out.println("No custom shape");
-            for ( int count = 50 ; count >= 0 ; count-- ) 
-            {
-                final Particle child = system.claimDeadParticle();
-                if ( child == null ) 
-                {
-                    break;
-                }
-                spawnChild( parent , child );
-                success = true;
-            }
+            templates = customShapes.stream().map( ShapeTemplate::compile ).toArray( ShapeTemplate[]::new );
+            templatesSource = customShapes;
         }
-        return success;
+        return templates;
     }
 
-    private void spawnChild(Particle parent,Particle child) 
+    private static ShapeTemplate ring(int count,float speed) 
     {
-        initParticle( child );
-        child.posx = parent.posx;
-        child.posy = parent.posy;
-        child.vx += parent.vx;
-        child.vy += parent.vy;
+        final float[] offsets = new float[ count*2 ];
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            final double angle = 2*Math.PI*i/count;
+            offsets[i*2] = (float) ( Math.cos( angle )*speed );
+            offsets[i*2+1] = (float) ( Math.sin( angle )*speed );
+        }
+        return ShapeTemplate.of( offsets );
     }
-    
-    public void init(ParticleSystem system) 
+
+    /**
+     * Spawns up to 10000 particles at the center.
+     */
+    public void init(IParticlePool pool) 
     {
-        system.visitDeadParticles( particle -> 
+        final IEventListener l = eventListener;
+        if ( l != null ) {
+            l.initialized();
+        }
+        pool.claimDeadParticles( 10000 , (storage,indices,from,to) -> 
         {
-            initParticle( particle );
-            particle.age( colors.length - 1  );
-        }, 10000 );
+            final Particle particle = new Particle( storage , 0 );
+            for ( int i = from ; i < to ; i++ ) 
+            {
+                particle.index = indices[i];
+                initParticle( particle );
+                particle.age( colors.length - 1  );
+            }
+        });
     }
 
     private void initParticle(Particle particle)
@@ -170,12 +509,12 @@ public final class OutOfBoundsVisitor implements ParticleSystem.IAnimator
         final float px = (rnd.nextFloat()-0.5f)*20;
         final float py = (rnd.nextFloat()-0.5f)*20;
         final float ax = 0;
-        final float ay = -9.81f*5;
+        final float ay = -gravity;
         final float vx = (rnd.nextFloat()-0.5f)*200;
         final float vy = (rnd.nextFloat()-0.5f)*200;    
         final int maxAge = colors.length-1;
         
-        particlesSpawned++;
+        particlesSpawned.increment();
         particle.instantiate().pos( px , py ).acceleration( ax,  ay ).color( colors[0] ).speed( vx , vy ).age( maxAge );
     }    
 }
\ No newline at end of file
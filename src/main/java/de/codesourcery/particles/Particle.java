@@ -80,106 +80,117 @@ public class Particle
         }
     }
     
-    public float posx;
-    public float posy;
-    public float ax;
-    public float ay;
-    public float vx;
-    public float vy;
-    public int color = 0xffffff;
-    public int age;
-    private boolean mark;
-    private State state = State.DEAD;
-    
+    private final ParticleStorage storage;
+    int index;
+
+    /**
+     * Creates a view on a particle.
+     *
+     * @param storage storage holding the particle's data
+     * @param index index of the particle inside the storage
+     */
+    public Particle(ParticleStorage storage,int index) 
+    {
+        this.storage = storage;
+        this.index = index;
+    }
+
+    public ParticleStorage getStorage() {
+        return storage;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
     public Particle pos(float x,float y) {
-        this.posx = x;
-        this.posy = y;
+        storage.posx[index] = x;
+        storage.posy[index] = y;
         return this;
     }
     
     public void reset() 
     {
-        posx=posy=0;
-        ax=ay=0;
-        vx=vy=0;
-        color=0xffffffff;
-        age=0;
-        mark=false;
-        state = State.DEAD;
+        storage.reset( index );
     }
     
     public boolean isMarked() {
-        return mark;
+        return storage.mark[index];
     }
     
     public Particle mark(boolean yesNo) {
-        this.mark = yesNo;
+        storage.mark[index] = yesNo;
         return this;
     }
     
     public Particle age(int age) {
-        this.age = age;
+        storage.age[index] = age;
         return this;
     }
     
     public Particle speed(float x,float y) {
-        this.vx = x;
-        this.vy = y;
+        storage.vx[index] = x;
+        storage.vy[index] = y;
         return this;
     }    
     
     public Particle acceleration(float x,float y) {
-        this.ax = x;
-        this.ay = y;
+        storage.ax[index] = x;
+        storage.ay[index] = y;
         return this;
     }      
     
     public Particle color(int c) {
-        this.color = c;
+        storage.color[index] = c;
         return this;
     }      
     
+    public float posx() { return storage.posx[index]; }
+    public float posy() { return storage.posy[index]; }
+    public float vx() { return storage.vx[index]; }
+    public float vy() { return storage.vy[index]; }
+    public float ax() { return storage.ax[index]; }
+    public float ay() { return storage.ay[index]; }
+    public int color() { return storage.color[index]; }
+    public int age() { return storage.age[index]; }
+    
     public boolean isAlive()
     {
-        return state == State.ALIVE;
+        return storage.isAlive( index );
     }
     
     public boolean isDead() {
-        return state == State.DEAD;
+        return storage.isDead( index );
     }
     
     public Particle instantiate() 
     {
-        this.state = this.state.create();
+        storage.instantiate( index );
         return this;
     }
     
     public void kill() 
     {
-        this.state = this.state.die();
+        storage.kill( index );
     }
     
     public State getState() 
     {
-        return this.state;
+        return ParticleStorage.toState( storage.state[index] );
     }
     
     public void doStateTransition() {
-        this.state = this.state.transition();
+        storage.doStateTransition( index );
     }
     
-    public void move(float deltaMs) 
+    public void move(float deltaSeconds) 
     {
-        vx += ax*deltaMs;
-        vy += ay*deltaMs;
-        
-        posx += vx * deltaMs; 
-        posy += vy * deltaMs; 
+        storage.move( index , deltaSeconds );
     }
     
     @Override
     public String toString()
     {
-        return "Particle ["+state+"], age "+age+" @ ("+posx+","+posy+")";
+        return "Particle ["+getState()+"], age "+age()+" @ ("+posx()+","+posy()+")";
     }
 }
\ No newline at end of file
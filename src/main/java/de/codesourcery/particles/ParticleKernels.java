@@ -0,0 +1,74 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+/**
+ * Provides {@link IParticleKernel} implementations.
+ *
+ * The SIMD kernel requires JDK 17+ started with <code>--add-modules jdk.incubator.vector</code> and is only 
+ * used by default when enabled using <code>-Dparticles.vector=true</code>. C2 in JDK 17 crashed the JVM when 
+ * OSR-compiling its gather/scatter loops with 512-bit vectors, the kernel is now limited to 256-bit vectors
+ * but stays opt-in until that crash is understood.
+ */
+public final class ParticleKernels
+{
+    private static final IParticleKernel SCALAR = new ScalarKernel();
+    private static final IParticleKernel VECTOR = loadVectorKernel();
+    private static final IParticleKernel DEFAULT = 
+            VECTOR != null && Boolean.getBoolean( "particles.vector" ) ? VECTOR : SCALAR;
+
+    private ParticleKernels() {
+    }
+
+    private static IParticleKernel loadVectorKernel()
+    {
+        try 
+        {
+            final Class<?> clazz = Class.forName( "de.codesourcery.particles.VectorKernel" );
+            return (IParticleKernel) clazz.getDeclaredConstructor().newInstance();
+        } 
+        catch (Exception | LinkageError e) 
+        {
+            // class not compiled (JDK < 17) or module not available at runtime
+            return null;
+        }
+    }
+
+    public static IParticleKernel scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * Returns the SIMD kernel.
+     *
+     * @return kernel or <code>NULL</code> if the Vector API is not available
+     */
+    public static IParticleKernel vector() {
+        return VECTOR;
+    }
+
+    public static boolean isVectorAvailable() {
+        return VECTOR != null;
+    }
+
+    /**
+     * Returns the kernel used unless one is passed explicitly, the SIMD kernel 
+     * if it is available and <code>-Dparticles.vector=true</code> is set, otherwise the scalar kernel.
+     */
+    public static IParticleKernel getDefault() {
+        return DEFAULT;
+    }
+}
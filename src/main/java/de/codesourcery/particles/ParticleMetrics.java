@@ -0,0 +1,201 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Latency histograms, counters and gauges for a {@link ParticleSystem} and the {@link Renderer} drawing it.
+ *
+ * Metrics are disabled by default, components only record if an instance has been set
+ * (see {@link ParticleSystem#setMetrics(ParticleMetrics)} and {@link Renderer#setMetrics(ParticleMetrics)}), 
+ * otherwise the only overhead is a field read. The gauges hold the values seen at the end of the 
+ * latest tick so an instance should not be shared between particle systems.
+ */
+public class ParticleMetrics implements ParticleMetricsMXBean
+{
+    private final LatencyHistogram tickLatency = new LatencyHistogram();
+    private final LatencyHistogram renderLatency = new LatencyHistogram();
+    private final LatencyHistogram spawnLatency = new LatencyHistogram();
+
+    private final LongAdder spawns = new LongAdder();
+    private final LongAdder kills = new LongAdder();
+    private final LongAdder failedClaims = new LongAdder();
+
+    private volatile int aliveCount;
+    private volatile int capacity;
+
+    private ObjectName objectName;
+
+    /**
+     * Records a tick.
+     *
+     * @param nanos time the tick took
+     * @param aliveCount number of alive particles after the tick
+     * @param capacity capacity of the particle system
+     * @param killed number of particles that died during the tick
+     */
+    public void recordTick(long nanos,int aliveCount,int capacity,int killed)
+    {
+        tickLatency.record( nanos );
+        this.aliveCount = aliveCount;
+        this.capacity = capacity;
+        if ( killed > 0 ) {
+            kills.add( killed );
+        }
+    }
+
+    public void recordRender(long nanos) {
+        renderLatency.record( nanos );
+    }
+
+    /**
+     * Records an attempt to claim particles.
+     *
+     * @param nanos time the claim took
+     * @param claimed number of particles claimed, claims that returned no particles are counted as failed claims
+     */
+    public void recordSpawn(long nanos,int claimed)
+    {
+        spawnLatency.record( nanos );
+        if ( claimed > 0 ) {
+            spawns.add( claimed );
+        } else {
+            failedClaims.increment();
+        }
+    }
+
+    public LatencyHistogram getTickHistogram() {
+        return tickLatency;
+    }
+
+    public LatencyHistogram getRenderHistogram() {
+        return renderLatency;
+    }
+
+    public LatencyHistogram getSpawnHistogram() {
+        return spawnLatency;
+    }
+
+    @Override
+    public LatencyHistogram.Summary getTickLatency() {
+        return tickLatency.getSummary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getRenderLatency() {
+        return renderLatency.getSummary();
+    }
+
+    @Override
+    public LatencyHistogram.Summary getSpawnLatency() {
+        return spawnLatency.getSummary();
+    }
+
+    @Override
+    public long getSpawnCount() {
+        return spawns.sum();
+    }
+
+    @Override
+    public long getKillCount() {
+        return kills.sum();
+    }
+
+    @Override
+    public long getFailedClaimCount() {
+        return failedClaims.sum();
+    }
+
+    @Override
+    public int getAliveCount() {
+        return aliveCount;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public double getPoolUtilization() 
+    {
+        final int cap = capacity;
+        return cap == 0 ? 0 : aliveCount / (double) cap;
+    }
+
+    /**
+     * Resets histograms and counters, gauges are kept.
+     */
+    @Override
+    public void reset()
+    {
+        tickLatency.reset();
+        renderLatency.reset();
+        spawnLatency.reset();
+        spawns.reset();
+        kills.reset();
+        failedClaims.reset();
+    }
+
+    /**
+     * Registers this instance with the platform MBean server.
+     *
+     * @param name value of the <code>name</code> key of the object name (<code>de.codesourcery.particles:type=ParticleMetrics,name=...</code>)
+     * @return the object name
+     */
+    public synchronized ObjectName register(String name) throws JMException
+    {
+        Validate.notBlank(name,"name must not be NULL or blank");
+        if ( objectName != null ) {
+            throw new IllegalStateException("Already registered as "+objectName);
+        }
+        final ObjectName newName = new ObjectName( "de.codesourcery.particles:type=ParticleMetrics,name="+ObjectName.quote( name ) );
+        ManagementFactory.getPlatformMBeanServer().registerMBean( this , newName );
+        objectName = newName;
+        return newName;
+    }
+
+    /**
+     * Unregisters this instance from the platform MBean server, does nothing if it is not registered.
+     */
+    public synchronized void unregister() throws JMException
+    {
+        if ( objectName != null ) 
+        {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if ( server.isRegistered( objectName ) ) {
+                server.unregisterMBean( objectName );
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public String toString() 
+    {
+        return "tick: ["+tickLatency.getSummary()+"], render: ["+renderLatency.getSummary()+"], spawn: ["+spawnLatency.getSummary()+"]"
+                + ", spawned: "+getSpawnCount()+", killed: "+getKillCount()+", failed claims: "+getFailedClaimCount()
+                + ", alive: "+aliveCount+"/"+capacity;
+    }
+}
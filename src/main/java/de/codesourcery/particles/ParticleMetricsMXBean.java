@@ -0,0 +1,47 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+/**
+ * Management interface of {@link ParticleMetrics}.
+ *
+ * Latencies are in nanoseconds.
+ */
+public interface ParticleMetricsMXBean
+{
+    public LatencyHistogram.Summary getTickLatency();
+
+    public LatencyHistogram.Summary getRenderLatency();
+
+    public LatencyHistogram.Summary getSpawnLatency();
+
+    public long getSpawnCount();
+
+    public long getKillCount();
+
+    public long getFailedClaimCount();
+
+    public int getAliveCount();
+
+    public int getCapacity();
+
+    /**
+     * Returns the fraction of the particle pool that is in use (0...1).
+     */
+    public double getPoolUtilization();
+
+    public void reset();
+}
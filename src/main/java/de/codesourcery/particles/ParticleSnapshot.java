@@ -0,0 +1,64 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+/**
+ * Positions, velocities and colors of all alive particles at the end of a tick.
+ *
+ * Snapshots are published by {@link ParticleSystem} and must be treated as read-only,
+ * the arrays may be larger than {@link #count}.
+ */
+public final class ParticleSnapshot
+{
+    public final float[] posx;
+    public final float[] posy;
+    public final float[] vx;
+    public final float[] vy;
+    public final int[] color;
+
+    int count;
+    volatile long sequence;
+
+    ParticleSnapshot(int capacity)
+    {
+        this.posx = new float[ capacity ];
+        this.posy = new float[ capacity ];
+        this.vx = new float[ capacity ];
+        this.vy = new float[ capacity ];
+        this.color = new int[ capacity ];
+    }
+
+    /**
+     * Returns the number of particles in this snapshot.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the number of the tick this snapshot was taken after, starting with 1 for the first tick.
+     *
+     * A sequence number of 0 indicates an empty snapshot that was not published by a tick.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return "ParticleSnapshot #"+sequence+" ("+count+" particles)";
+    }
+}
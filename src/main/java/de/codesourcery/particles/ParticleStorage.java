@@ -0,0 +1,243 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.codesourcery.particles.Particle.State;
+
+/**
+ * Structure-of-arrays storage for particles.
+ *
+ * Every particle is identified by its index into the (parallel) primitive arrays,
+ * {@link Particle} instances are only light-weight views on a single index.
+ */
+public final class ParticleStorage
+{
+    public static final byte DYING = (byte) State.DYING.ordinal();
+    public static final byte DEAD = (byte) State.DEAD.ordinal();
+    public static final byte INITIALIZING = (byte) State.INITIALIZING.ordinal();
+    public static final byte ALIVE = (byte) State.ALIVE.ordinal();
+
+    private static final State[] STATES = State.values();
+
+    // state transition tables, indexed by State#ordinal()
+    private static final byte[] CREATE = new byte[ STATES.length ];
+    private static final byte[] DIE = new byte[ STATES.length ];
+    private static final byte[] TRANSITION = new byte[ STATES.length ];
+
+    static
+    {
+        for ( State s : STATES )
+        {
+            CREATE[ s.ordinal() ] = (byte) s.create().ordinal();
+            DIE[ s.ordinal() ] = (byte) s.die().ordinal();
+            TRANSITION[ s.ordinal() ] = (byte) s.transition().ordinal();
+        }
+    }
+
+    /**
+     * Number of bytes {@link #save(MappedSegments)} writes per particle.
+     */
+    static final int BYTES_PER_PARTICLE = 8*4 + 2;
+
+    public final int capacity;
+
+    public final float[] posx;
+    public final float[] posy;
+    public final float[] vx;
+    public final float[] vy;
+    public final float[] ax;
+    public final float[] ay;
+    public final int[] color;
+    public final int[] age;
+    public final byte[] state;
+    public final boolean[] mark;
+
+    // particles killed since the last call to takeKillCount()
+    private final LongAdder kills = new LongAdder();
+
+    public ParticleStorage(int capacity)
+    {
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException("Capacity must be >= 1");
+        }
+        this.capacity = capacity;
+        this.posx = new float[ capacity ];
+        this.posy = new float[ capacity ];
+        this.vx = new float[ capacity ];
+        this.vy = new float[ capacity ];
+        this.ax = new float[ capacity ];
+        this.ay = new float[ capacity ];
+        this.color = new int[ capacity ];
+        this.age = new int[ capacity ];
+        this.state = new byte[ capacity ];
+        this.mark = new boolean[ capacity ];
+        reset();
+    }
+
+    public static State toState(byte state) {
+        return STATES[ state ];
+    }
+
+    public static boolean isTransient(byte state) {
+        return state == INITIALIZING || state == DYING;
+    }
+
+    public void reset()
+    {
+        Arrays.fill( posx , 0 );
+        Arrays.fill( posy , 0 );
+        Arrays.fill( vx , 0 );
+        Arrays.fill( vy , 0 );
+        Arrays.fill( ax , 0 );
+        Arrays.fill( ay , 0 );
+        Arrays.fill( color , 0xffffffff );
+        Arrays.fill( age , 0 );
+        Arrays.fill( mark , false );
+        Arrays.fill( state , DEAD );
+        kills.reset();
+    }
+
+    public void reset(int idx)
+    {
+        posx[idx]=posy[idx]=0;
+        ax[idx]=ay[idx]=0;
+        vx[idx]=vy[idx]=0;
+        color[idx]=0xffffffff;
+        age[idx]=0;
+        mark[idx]=false;
+        state[idx]=DEAD;
+    }
+
+    public boolean isAlive(int idx) {
+        return state[idx] == ALIVE;
+    }
+
+    public boolean isDead(int idx) {
+        return state[idx] == DEAD;
+    }
+
+    public void instantiate(int idx) {
+        state[idx] = CREATE[ state[idx] ];
+    }
+
+    public void kill(int idx) 
+    {
+        final byte oldState = state[idx];
+        final byte newState = DIE[ oldState ];
+        if ( newState != oldState ) 
+        {
+            state[idx] = newState;
+            kills.increment();
+        }
+    }
+
+    /**
+     * Returns the number of particles killed since the last invocation of this method.
+     */
+    public long takeKillCount() {
+        return kills.sumThenReset();
+    }
+
+    /**
+     * Advances a transient particle state.
+     *
+     * @return the new state
+     */
+    public byte doStateTransition(int idx)
+    {
+        final byte newState = TRANSITION[ state[idx] ];
+        state[idx] = newState;
+        return newState;
+    }
+
+    public void move(int idx,float deltaSeconds)
+    {
+        vx[idx] += ax[idx]*deltaSeconds;
+        vy[idx] += ay[idx]*deltaSeconds;
+
+        posx[idx] += vx[idx] * deltaSeconds;
+        posy[idx] += vy[idx] * deltaSeconds;
+    }
+
+    /**
+     * Integrates the particles <code>indices[from]...indices[to-1]</code>.
+     */
+    public void move(int[] indices,int from,int to,float deltaSeconds)
+    {
+        final float[] posx = this.posx;
+        final float[] posy = this.posy;
+        final float[] vx = this.vx;
+        final float[] vy = this.vy;
+        final float[] ax = this.ax;
+        final float[] ay = this.ay;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int idx = indices[i];
+            final float nvx = vx[idx] + ax[idx]*deltaSeconds;
+            final float nvy = vy[idx] + ay[idx]*deltaSeconds;
+            vx[idx] = nvx;
+            vy[idx] = nvy;
+            posx[idx] += nvx * deltaSeconds;
+            posy[idx] += nvy * deltaSeconds;
+        }
+    }
+
+    /**
+     * Writes all particles, one array after the other.
+     */
+    void save(MappedSegments out) throws IOException
+    {
+        out.putFloats( posx );
+        out.putFloats( posy );
+        out.putFloats( vx );
+        out.putFloats( vy );
+        out.putFloats( ax );
+        out.putFloats( ay );
+        out.putInts( color );
+        out.putInts( age );
+        out.putBytes( state );
+        out.putBooleans( mark );
+    }
+
+    /**
+     * Reads all particles written by {@link #save(MappedSegments)}.
+     * 
+     * @throws IOException if the data holds invalid particle states
+     */
+    void load(MappedSegments in) throws IOException
+    {
+        in.getFloats( posx );
+        in.getFloats( posy );
+        in.getFloats( vx );
+        in.getFloats( vy );
+        in.getFloats( ax );
+        in.getFloats( ay );
+        in.getInts( color );
+        in.getInts( age );
+        in.getBytes( state );
+        in.getBooleans( mark );
+        for ( int i = 0 ; i < capacity ; i++ ) 
+        {
+            if ( state[i] < 0 || state[i] >= STATES.length ) {
+                throw new IOException("Particle "+i+" has invalid state "+state[i]);
+            }
+        }
+    }
+}
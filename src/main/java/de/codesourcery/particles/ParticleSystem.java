@@ -15,39 +15,180 @@
  */
 package de.codesourcery.particles;
 
-import java.util.Arrays;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang3.Validate;
 
-import de.codesourcery.particles.Particle.State;
-
-public class ParticleSystem
+public class ParticleSystem implements IParticlePool
 {
-    private final Particle[] particles;
-    private final Particle[] alive;
-    private final Particle[] dead;
+    /*
+     * File format used by save()/load(), all values are little endian:
+     * 
+     * int magic ('PSYS')
+     * int version
+     * int capacity
+     * int alive count
+     * int free count (unclaimed dead particles)
+     * int free count when the free list was last opened
+     * long tick counter
+     * int size of animator state in bytes
+     * (padding up to HEADER_SIZE)
+     * particle data as written by ParticleStorage#save()
+     * int[capacity] alive list
+     * int[capacity] dead list
+     * byte[] animator state
+     */
+    private static final int FILE_MAGIC = 0x50535953;
+    private static final int FILE_VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    
+    private final ParticleStorage storage;
+    private final int[] alive;
+    private final int[] dead;
+    
+    /*
+     * Lock-free free list of dead particles.
+     * 
+     * Bits 0-31 hold the number of unclaimed particles at the start of dead[], 
+     * bits 32-62 the number of claims currently in progress and bit 63 is set
+     * while tick() (or some other method) rebuilds the free list and claims need to wait.
+     */
+    private final AtomicLong freeList = new AtomicLong();
+    
+    private static final long FREE_MASK = 0xffffffffL;
+    private static final long CLAIM_IN_PROGRESS = 1L << 32;
+    private static final long CLAIMS_MASK = 0x7fffffffL << 32;
+    private static final long CLOSED = 1L << 63;
+    
+    // thread that closed the free list, claims by this thread would wait forever
+    private volatile Thread freeListOwner;
+    // number of claim visitors the current thread is running, the free list cannot be closed while > 0
+    private final ThreadLocal<int[]> claimDepth = ThreadLocal.withInitial( () -> new int[1] );
     
-    private int lastDeadIdx=-1;
-    private int aliveCounter;
+    // number of free particles when the free list was last opened,
+    // dead[freeCount...lastFreeCount-1] are the particles claimed since then
+    private int lastFreeCount;
+    
+    private volatile int aliveCounter;
     private IAnimator animator;
     
+    // whether tick() only visits the alive list and newly claimed particles
+    // instead of scanning the whole storage
+    private boolean incremental;
+    // particles removed from the alive list during an incremental tick
+    private int[] removed = new int[0];
+    
+    private long tickCounter;
+    
+    // triple-buffered snapshots: 'snapshotBack' is written by tick(), 'snapshotFront' is
+    // owned by the reader and 'snapshotExchange' holds the most recently published one
+    private ParticleSnapshot snapshotBack;
+    private volatile ParticleSnapshot snapshotFront;
+    private final AtomicReference<ParticleSnapshot> snapshotExchange = new AtomicReference<>();
+    
+    private ForkJoinPool pool;
+    private int chunkSize = 16*1024;
+    
+    private SpatialGrid spatialGrid;
+    private volatile ParticleMetrics metrics;
+    private volatile TickProfiler profiler;
+    
+    // per-chunk alive/dead counts of the last parallel partitioning
+    private int[] chunkAliveCounts = new int[0];
+    private int[] chunkDeadCounts = new int[0];
+    
     public interface IAnimator 
     {
         public void beforeVisitingParticles(float deltaSeconds);
         
         public void tick(Particle p,float deltaSeconds);
+        
+        /**
+         * Animates the particles <code>indices[from]...indices[to-1]</code>.
+         *
+         * Implementations should override this method and work on the storage's
+         * arrays directly, the default implementation just invokes {@link #tick(Particle, float)} for each particle.
+         */
+        public default void tick(ParticleStorage storage,int[] indices,int from,int to,float deltaSeconds)
+        {
+            final Particle view = new Particle( storage , 0 );
+            for ( int i = from ; i < to ; i++ ) 
+            {
+                view.index = indices[i];
+                tick( view , deltaSeconds );
+            }
+        }
+        
+        /**
+         * Returns whether {@link #tick(ParticleStorage, int[], int, int, float)} may be invoked
+         * concurrently for disjoint index ranges.
+         * 
+         * {@link #beforeVisitingParticles(float)} is always invoked by a single thread, before any of the
+         * <code>tick()</code> calls. Animators may claim particles while being ticked.
+         */
+        public default boolean isThreadSafe() {
+            return false;
+        }
+        
+        /**
+         * Writes any internal state (random number generators etc.) that is needed to 
+         * continue a simulation after {@link ParticleSystem#load(Path)}.
+         */
+        public default void saveState(DataOutput out) throws IOException {
+        }
+        
+        /**
+         * Restores state written by {@link #saveState(DataOutput)}.
+         */
+        public default void loadState(DataInput in) throws IOException {
+        }
+        
+        /**
+         * Invoked when the animator gets assigned to a system or an {@link ElasticParticlePool}, animators 
+         * that spawn particles must claim them from this pool.
+         */
+        public default void setParticlePool(IParticlePool pool) {
+        }
     }
     
     public void reset() 
     {
-        Arrays.fill(alive , null );
-        Arrays.fill(dead , null );
+        synchronized(storage) 
+        {
+            closeFreeList();
+            clear();
+            openFreeList( lastFreeCount );
+        }
+    }
+    
+    /**
+     * Kills all particles, must be called while the free list is closed.
+     */
+    private void clear()
+    {
         aliveCounter=0;
-        lastDeadIdx=-1;
-        for ( int i = particles.length-1; i >= 0 ; i-- ) 
+        storage.reset();
+        for ( int i = 0 , len = storage.capacity ; i < len ; i++ ) 
         {
-            this.particles[i].reset();
-        }        
+            dead[i] = len-1-i;
+        }
+        lastFreeCount = storage.capacity;
     }
     
     public ParticleSystem(int size) 
@@ -55,54 +196,707 @@ public class ParticleSystem
         if ( size < 1 ) {
             throw new IllegalArgumentException("Size must be >= 1");
         }
-        this.particles = new Particle[ size ];
-        this.alive = new Particle[ size+1 ];
-        this.dead = new Particle[ size+1 ];
-        for ( int i = size-1 ; i >= 0 ; i-- ) 
+        this.storage = new ParticleStorage( size );
+        this.alive = new int[ size ];
+        this.dead = new int[ size ];
+        reset();
+    }
+    
+    public ParticleStorage getStorage() {
+        return storage;
+    }
+    
+    public int getCapacity() {
+        return storage.capacity;
+    }
+    
+    /**
+     * Enables incremental bookkeeping.
+     * 
+     * When enabled, {@link #tick(float)} no longer scans the whole storage but only visits 
+     * the particles that were alive during the last tick plus the particles claimed since then, so
+     * its cost scales with the number of alive particles instead of the system's capacity.
+     * 
+     * Particles must only be brought to life through {@link #claimDeadParticle()}, {@link #claimDeadParticles(int, IRangeVisitor)}
+     * or {@link #visitDeadParticles(IVisitor, int)} while this mode is enabled.
+     */
+    public void setIncremental(boolean incremental) 
+    {
+        synchronized(storage) 
+        {
+            this.incremental = incremental;
+            if ( incremental && removed.length != storage.capacity ) {
+                removed = new int[ storage.capacity ];
+            }
+        }
+    }
+    
+    /**
+     * Enables publishing a {@link ParticleSnapshot} at the end of each tick.
+     * 
+     * @see #getLatestSnapshot()
+     */
+    public void setSnapshotsEnabled(boolean enabled) 
+    {
+        synchronized(storage) 
         {
-            this.particles[i] = new Particle();
+            if ( enabled && snapshotBack == null ) 
+            {
+                snapshotBack = new ParticleSnapshot( storage.capacity );
+                snapshotExchange.set( new ParticleSnapshot( storage.capacity ) );
+                snapshotFront = new ParticleSnapshot( storage.capacity );
+            } 
+            else if ( ! enabled ) 
+            {
+                snapshotBack = null;
+                snapshotExchange.set( null );
+                snapshotFront = null;
+            }
         }
     }
     
+    /**
+     * Returns the snapshot published by the most recent tick.
+     * 
+     * This method never blocks and is meant to be called by a single thread (the renderer) only. The returned
+     * snapshot stays unchanged until the next time this method is called by the same thread.
+     * 
+     * @return latest snapshot or <code>null</code> if snapshots are disabled 
+     * @see #setSnapshotsEnabled(boolean)
+     */
+    public ParticleSnapshot getLatestSnapshot() 
+    {
+        final ParticleSnapshot front = snapshotFront;
+        final ParticleSnapshot latest = snapshotExchange.get();
+        if ( front == null || latest == null ) {
+            return null;
+        }
+        if ( latest.sequence > front.sequence ) 
+        {
+            final ParticleSnapshot result = snapshotExchange.getAndSet( front );
+            snapshotFront = result;
+            return result;
+        }
+        return front;
+    }
+    
+    /**
+     * Sets a grid that gets rebuilt from the alive particles at the end of each tick.
+     * 
+     * @param grid grid or <code>null</code> to disable
+     */
+    public void setSpatialGrid(SpatialGrid grid) 
+    {
+        synchronized(storage) {
+            this.spatialGrid = grid;
+        }
+    }
+    
+    public SpatialGrid getSpatialGrid() {
+        return spatialGrid;
+    }
+    
+    /**
+     * Enables recording of tick/spawn latencies, counters and gauges.
+     * 
+     * @param metrics metrics to record to or <code>null</code> to disable
+     */
+    public void setMetrics(ParticleMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    public ParticleMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Enables timing the phases of each tick.
+     * 
+     * @param profiler profiler to use or <code>null</code> to disable
+     */
+    public void setProfiler(TickProfiler profiler) 
+    {
+        synchronized(storage) {
+            this.profiler = profiler;
+        }
+    }
+    
+    public TickProfiler getProfiler() {
+        return profiler;
+    }
+    
     public void setAnimator(IAnimator animator) 
     {
         Validate.notNull(animator,"animator must not be NULL");
         this.animator = animator;
+        animator.setParticlePool( this );
+    }
+    
+    public IAnimator getAnimator() {
+        return animator;
+    }
+    
+    /**
+     * Enables parallel ticking.
+     * 
+     * @param pool pool to use or <code>NULL</code> to tick on the caller's thread only
+     */
+    public void setForkJoinPool(ForkJoinPool pool) 
+    {
+        synchronized(storage) {
+            this.pool = pool;
+        }
+    }
+    
+    /**
+     * Sets the number of particles processed by a single task when ticking in parallel.
+     * 
+     * In incremental mode, the order of the alive/dead lists depends on the chunk size (but not on 
+     * whether a pool is set), so systems need to use the same chunk size to assign the same indices to claimed particles.
+     */
+    public void setChunkSize(int chunkSize) 
+    {
+        if ( chunkSize < 1 ) {
+            throw new IllegalArgumentException("Chunk size must be >= 1");
+        }
+        synchronized(storage) {
+            this.chunkSize = chunkSize;
+        }
     }
     
     public void tick(float deltaSeconds) 
     {
-        synchronized(particles) 
+        synchronized(storage) 
         {
+            // fail before the animator sees this tick
+            if ( freeListOwner == Thread.currentThread() || claimDepth.get()[0] > 0 ) {
+                throw new IllegalStateException("The system cannot be ticked from a visitor");
+            }
+            final ParticleMetrics m = metrics;
+            final long start = m != null ? System.nanoTime() : 0;
+            final TickProfiler p = profiler;
+            long phaseStart = p != null ? p.beginTick() : 0;
+            
             this.animator.beforeVisitingParticles( deltaSeconds );
+            if ( p != null ) {
+                phaseStart = p.phase( TickProfiler.Phase.PREPARE , phaseStart );
+            }
             
-            int alivePtr=0,deadPtr=0;
-            for (int i = particles.length-1 ; i >= 0 ; i--) 
+            final int freeCount = closeFreeList();
+            final int aliveCount;
+            if ( incremental ) 
+            {
+                aliveCount = updateIncrementally( freeCount );
+            } 
+            else if ( pool != null && storage.capacity > chunkSize ) 
             {
-                final Particle p = particles[i];
-                final State currentState = p.getState();
-                if ( currentState.isTransient() )
+                aliveCount = partitionParallel();
+            } else {
+                aliveCount = partition( 0 , storage.capacity );
+            }
+            this.aliveCounter = aliveCount;
+            this.lastFreeCount = storage.capacity - aliveCount;
+            openFreeList( lastFreeCount );
+            if ( p != null ) {
+                phaseStart = p.phase( TickProfiler.Phase.PARTITION , phaseStart );
+            }
+            
+            if ( pool != null && aliveCount > chunkSize && animator.isThreadSafe() ) 
+            {
+                final int chunks = chunkCount( aliveCount );
+                pool.invoke( new ChunkTask( 0 , chunks , chunk -> 
                 {
-                    p.doStateTransition();
-                    if ( p.isDead() ) 
-                    {
-                        p.mark( false ).age(100);
-                    } 
+                    final int from = chunk*chunkSize;
+                    final int to = Math.min( from + chunkSize , aliveCount );
+                    animate( p , from , to , deltaSeconds );
+                }));
+            } else {
+                animate( p , 0 , aliveCount , deltaSeconds );
+            }
+            if ( p != null ) {
+                phaseStart = p.phase( TickProfiler.Phase.ANIMATE , phaseStart );
+            }
+            
+            if ( spatialGrid != null ) 
+            {
+                spatialGrid.rebuild( storage , alive , aliveCount , pool , chunkSize );
+                if ( p != null ) {
+                    phaseStart = p.phase( TickProfiler.Phase.SPATIAL_GRID , phaseStart );
+                }
+            }
+            
+            tickCounter++;
+            if ( snapshotBack != null ) 
+            {
+                publishSnapshot( aliveCount );
+                if ( p != null ) {
+                    p.phase( TickProfiler.Phase.SNAPSHOT , phaseStart );
+                }
+            }
+            
+            // always drain the counter so enabling metrics later does not report stale kills,
+            // a particle dies at most once per tick so this fits into an int
+            final int killed = (int) storage.takeKillCount();
+            if ( m != null ) {
+                m.recordTick( System.nanoTime() - start , aliveCount , storage.capacity , killed );
+            }
+            if ( p != null ) {
+                p.endTick( aliveCount );
+            }
+        }
+    }
+    
+    private void animate(TickProfiler p,int from,int to,float deltaSeconds) 
+    {
+        final long start = p != null ? System.nanoTime() : 0;
+        animator.tick( storage , alive , from , to , deltaSeconds );
+        if ( p != null ) {
+            p.threadTime( TickProfiler.Phase.ANIMATE , System.nanoTime() - start );
+        }
+    }
+    
+    private void publishSnapshot(int aliveCount) 
+    {
+        final ParticleSnapshot snapshot = snapshotBack;
+        int count;
+        if ( pool != null && aliveCount > chunkSize ) 
+        {
+            final int chunks = chunkCount( aliveCount );
+            ensureChunkCapacity( chunks );
+            pool.invoke( new ChunkTask( 0 , chunks , chunk -> 
+            {
+                final int from = chunk*chunkSize;
+                final int to = Math.min( from + chunkSize , aliveCount );
+                chunkAliveCounts[chunk] = copyToSnapshot( snapshot , from , to );
+            }));
+            count = chunkAliveCounts[0];
+            for ( int chunk = 1 ; chunk < chunks ; chunk++ ) 
+            {
+                final int offset = chunk*chunkSize;
+                final int len = chunkAliveCounts[chunk];
+                System.arraycopy( snapshot.posx , offset , snapshot.posx , count , len );
+                System.arraycopy( snapshot.posy , offset , snapshot.posy , count , len );
+                System.arraycopy( snapshot.vx , offset , snapshot.vx , count , len );
+                System.arraycopy( snapshot.vy , offset , snapshot.vy , count , len );
+                System.arraycopy( snapshot.color , offset , snapshot.color , count , len );
+                count += len;
+            }
+        } else {
+            count = copyToSnapshot( snapshot , 0 , aliveCount );
+        }
+        snapshot.count = count;
+        snapshot.sequence = tickCounter;
+        snapshotBack = snapshotExchange.getAndSet( snapshot );
+    }
+    
+    /**
+     * Copies particles <code>alive[from...to-1]</code> that did not get killed 
+     * during this tick to <code>snapshot[from...]</code>.
+     * 
+     * @return number of particles copied
+     */
+    private int copyToSnapshot(ParticleSnapshot snapshot,int from,int to) 
+    {
+        final byte[] state = storage.state;
+        final float[] posx = storage.posx;
+        final float[] posy = storage.posy;
+        final float[] vx = storage.vx;
+        final float[] vy = storage.vy;
+        final int[] color = storage.color;
+        int ptr = from;
+        for ( int i = from ; i < to ; i++ ) 
+        {
+            final int idx = alive[i];
+            if ( state[idx] == ParticleStorage.ALIVE ) 
+            {
+                snapshot.posx[ptr] = posx[idx];
+                snapshot.posy[ptr] = posy[idx];
+                snapshot.vx[ptr] = vx[idx];
+                snapshot.vy[ptr] = vy[idx];
+                snapshot.color[ptr] = color[idx];
+                ptr++;
+            }
+        }
+        return ptr - from;
+    }
+    
+    private int updateIncrementally(int freeCount) 
+    {
+        // move newly claimed particles to the alive list
+        int aliveCount = this.aliveCounter;
+        int freePtr = freeCount;
+        for ( int i = freeCount ; i < lastFreeCount ; i++ ) 
+        {
+            final int idx = dead[i];
+            if ( transition( idx ) == ParticleStorage.ALIVE ) {
+                alive[ aliveCount++ ] = idx;
+            } else {
+                dead[ freePtr++ ] = idx;
+            }
+        }
+        
+        // remove dead particles from the alive list, always in chunks so that the 
+        // resulting order only depends on the chunk size and not on whether a pool is used
+        if ( aliveCount > chunkSize ) 
+        {
+            final int chunks = chunkCount( aliveCount );
+            ensureChunkCapacity( chunks );
+            final int count = aliveCount;
+            ChunkTask.run( pool , chunks , chunk -> 
+            {
+                final int from = chunk*chunkSize;
+                final int to = Math.min( from + chunkSize , count );
+                final int keep = removeDead( from , to );
+                chunkAliveCounts[chunk] = keep;
+                chunkDeadCounts[chunk] = (to-from) - keep;
+            });
+            
+            aliveCount = chunkAliveCounts[0];
+            System.arraycopy( removed , 0 , dead , freePtr , chunkDeadCounts[0] );
+            freePtr += chunkDeadCounts[0];
+            for ( int chunk = 1 ; chunk < chunks ; chunk++ ) 
+            {
+                final int offset = chunk*chunkSize;
+                System.arraycopy( alive , offset , alive , aliveCount , chunkAliveCounts[chunk] );
+                System.arraycopy( removed , offset , dead , freePtr , chunkDeadCounts[chunk] );
+                aliveCount += chunkAliveCounts[chunk];
+                freePtr += chunkDeadCounts[chunk];
+            }
+        } 
+        else 
+        {
+            final int keep = removeDead( 0 , aliveCount );
+            System.arraycopy( removed , 0 , dead , freePtr , aliveCount - keep );
+            aliveCount = keep;
+        }
+        return aliveCount;
+    }
+    
+    /**
+     * Performs state transitions on <code>alive[from...to-1]</code> and swap-removes
+     * all particles that are no longer alive, writing their indices to <code>removed[from...]</code>.
+     *  
+     * @return number of particles still alive
+     */
+    private int removeDead(int from,int to) 
+    {
+        final TickProfiler p = profiler;
+        final long start = p != null ? System.nanoTime() : 0;
+        int end = to;
+        int removedPtr = from;
+        for ( int i = from ; i < end ; ) 
+        {
+            final int idx = alive[i];
+            if ( transition( idx ) == ParticleStorage.ALIVE ) {
+                i++;
+            } else {
+                removed[ removedPtr++ ] = idx;
+                alive[i] = alive[--end];
+            }
+        }
+        if ( p != null ) {
+            p.threadTime( TickProfiler.Phase.PARTITION , System.nanoTime() - start );
+        }
+        return end - from;
+    }
+    
+    private byte transition(int idx) 
+    {
+        byte currentState = storage.state[idx];
+        if ( ParticleStorage.isTransient( currentState ) )
+        {
+            currentState = storage.doStateTransition( idx );
+            if ( currentState == ParticleStorage.DEAD ) 
+            {
+                storage.mark[idx] = false;
+                storage.age[idx] = 100;
+            } 
+        }
+        return currentState;
+    }
+    
+    private void ensureChunkCapacity(int chunks) 
+    {
+        if ( chunkAliveCounts.length < chunks ) 
+        {
+            chunkAliveCounts = new int[ chunks ];
+            chunkDeadCounts = new int[ chunks ];
+        }
+    }
+    
+    private int partitionParallel() 
+    {
+        final int chunks = chunkCount( storage.capacity );
+        ensureChunkCapacity( chunks );
+        pool.invoke( new ChunkTask( 0 , chunks , chunk -> 
+        {
+            final int from = chunk*chunkSize;
+            final int to = Math.min( from + chunkSize , storage.capacity );
+            final int aliveCount = partition( from , to );
+            chunkAliveCounts[chunk] = aliveCount;
+            chunkDeadCounts[chunk] = (to-from) - aliveCount;
+        }));
+        
+        // merge per-chunk results, chunk #0 already is at the right place
+        int alivePtr = chunkAliveCounts[0];
+        int deadPtr = chunkDeadCounts[0];
+        for ( int chunk = 1 ; chunk < chunks ; chunk++ ) 
+        {
+            final int offset = chunk*chunkSize;
+            final int aliveCount = chunkAliveCounts[chunk];
+            final int deadCount = chunkDeadCounts[chunk];
+            System.arraycopy( alive , offset , alive , alivePtr , aliveCount );
+            System.arraycopy( dead , offset , dead , deadPtr , deadCount );
+            alivePtr += aliveCount;
+            deadPtr += deadCount;
+        }
+        return alivePtr;
+    }
+    
+    private int chunkCount(int elements) {
+        return (elements + chunkSize - 1) / chunkSize;
+    }
+    
+    /**
+     * Performs state transitions and partitions a range of particles.
+     * 
+     * Particles are visited in descending index order, starting at index <code>capacity-1-from</code>. 
+     * Alive/dead particle indices are written to <code>alive[from...]</code> and <code>dead[from...]</code> respectively.
+     * 
+     * @param from start of range (inclusive)
+     * @param to end of range (exclusive)
+     * @return number of alive particles
+     */
+    private int partition(int from,int to) 
+    {
+        final TickProfiler p = profiler;
+        final long start = p != null ? System.nanoTime() : 0;
+        int alivePtr=from,deadPtr=from;
+        for (int i = storage.capacity-1-from , end = storage.capacity-1-to ; i > end ; i--) 
+        {
+            if ( transition( i ) == ParticleStorage.ALIVE ) 
+            {
+                this.alive[ alivePtr++ ] = i;  
+            } else {
+                this.dead[ deadPtr++ ] = i;                    
+            }
+        }
+        if ( p != null ) {
+            p.threadTime( TickProfiler.Phase.PARTITION , System.nanoTime() - start );
+        }
+        return alivePtr - from;
+    }
+    
+    /**
+     * Writes the state of all particles, the alive/dead bookkeeping and the animator's state to a file.
+     * 
+     * Claims are blocked while saving.
+     * 
+     * @see #load(Path)
+     */
+    public void save(Path file) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( file , StandardOpenOption.CREATE , StandardOpenOption.TRUNCATE_EXISTING , 
+                StandardOpenOption.READ , StandardOpenOption.WRITE ) )
+        {
+            save( channel , 0 );
+        }
+    }
+    
+    /**
+     * Writes the system's state to a file channel, starting at the given position.
+     * 
+     * @return number of bytes written
+     */
+    long save(FileChannel channel,long position) throws IOException {
+        return save( channel , position , MappedSegments.DEFAULT_SEGMENT_SIZE );
+    }
+    
+    /**
+     * Writes the system's state, mapping at most <code>segmentSize</code> bytes of the file at a time.
+     */
+    long save(FileChannel channel,long position,int segmentSize) throws IOException
+    {
+        synchronized(storage) 
+        {
+            final int freeCount = closeFreeList();
+            try 
+            {
+                final ByteArrayOutputStream animatorState = new ByteArrayOutputStream();
+                if ( animator != null ) 
+                {
+                    try ( DataOutputStream out = new DataOutputStream( animatorState ) ) {
+                        animator.saveState( out );
+                    }
+                }
+                final long size = fileSize( storage.capacity ) + animatorState.size();
+                final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+                header.putInt( FILE_MAGIC ).putInt( FILE_VERSION ).putInt( storage.capacity )
+                    .putInt( aliveCounter ).putInt( freeCount ).putInt( lastFreeCount )
+                    .putLong( tickCounter ).putInt( animatorState.size() );
+                header.clear();
+                while ( header.hasRemaining() ) {
+                    channel.write( header , position + header.position() );
+                }
+                final MappedSegments out = new MappedSegments( channel , MapMode.READ_WRITE , position + HEADER_SIZE , size - HEADER_SIZE , segmentSize );
+                storage.save( out );
+                out.putInts( alive );
+                out.putInts( dead );
+                out.putBytes( animatorState.toByteArray() );
+                out.finish();
+                return size;
+            } 
+            finally 
+            {
+                openFreeList( freeCount );
+            }
+        }
+    }
+    
+    /**
+     * Restores a system saved by {@link #save(Path)}.
+     * 
+     * The file must have been written by a system with the same capacity. The animator
+     * needs to be set before calling this method, the file only holds the animator's 
+     * state, not its configuration.
+     */
+    public void load(Path file) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( file , StandardOpenOption.READ ) )
+        {
+            if ( load( channel , 0 ) != channel.size() ) {
+                throw new IOException("Trailing garbage in particle system file: "+file);
+            }
+        }
+    }
+    
+    /**
+     * Restores the system's state from a file channel, starting at the given position.
+     * 
+     * @return number of bytes read
+     */
+    long load(FileChannel channel,long position) throws IOException {
+        return load( channel , position , MappedSegments.DEFAULT_SEGMENT_SIZE );
+    }
+    
+    /**
+     * Restores the system's state, mapping at most <code>segmentSize</code> bytes of the file at a time.
+     */
+    long load(FileChannel channel,long position,int segmentSize) throws IOException
+    {
+        synchronized(storage) 
+        {
+            int freeCount = closeFreeList();
+            boolean incomplete = false;
+            try 
+            {
+                final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+                while ( header.hasRemaining() && channel.read( header , position + header.position() ) > 0 ) {
+                    // read header
+                }
+                header.flip();
+                if ( header.remaining() < HEADER_SIZE || header.getInt() != FILE_MAGIC ) {
+                    throw new IOException("Not a particle system file");
+                }
+                final int version = header.getInt();
+                if ( version != FILE_VERSION ) {
+                    throw new IOException("Unsupported file version "+version+", expected "+FILE_VERSION);
+                }
+                final int capacity = header.getInt();
+                if ( capacity != storage.capacity ) {
+                    throw new IOException("File holds "+capacity+" particles but this system has a capacity of "+storage.capacity);
+                }
+                final int aliveCount = header.getInt();
+                final int savedFreeCount = header.getInt();
+                final int savedLastFreeCount = header.getInt();
+                final long savedTickCounter = header.getLong();
+                final int animatorStateSize = header.getInt();
+                final long size = fileSize( capacity ) + animatorStateSize;
+                if ( aliveCount < 0 || savedFreeCount < 0 || savedFreeCount > savedLastFreeCount || 
+                     aliveCount + savedLastFreeCount > capacity || animatorStateSize < 0 ||
+                     channel.size() - position < size ) 
+                {
+                    throw new IOException("Corrupted particle system file");
                 }
                 
-                if ( p.isAlive() ) 
+                final MappedSegments segments = new MappedSegments( channel , MapMode.READ_ONLY , position + HEADER_SIZE , size - HEADER_SIZE , segmentSize );
+                incomplete = true;
+                storage.load( segments );
+                segments.getInts( alive );
+                segments.getInts( dead );
+                validateIndices( aliveCount , savedLastFreeCount );
+                final byte[] animatorState = new byte[ animatorStateSize ];
+                segments.getBytes( animatorState );
+                if ( animator != null ) 
                 {
-                    this.alive[ alivePtr++ ] = p;  
-                    this.animator.tick( p , deltaSeconds );
+                    try ( DataInputStream in = new DataInputStream( new ByteArrayInputStream( animatorState ) ) ) {
+                        animator.loadState( in );
+                    }
+                }
+                this.aliveCounter = aliveCount;
+                this.lastFreeCount = savedLastFreeCount;
+                this.tickCounter = savedTickCounter;
+                freeCount = savedFreeCount;
+                incomplete = false;
+                return size;
+            } 
+            finally 
+            {
+                if ( incomplete ) 
+                {
+                    // do not leave a half-loaded system behind
+                    clear();
+                    openFreeList( lastFreeCount );
                 } else {
-                    this.dead[ deadPtr++ ] = p;                    
+                    openFreeList( freeCount );
                 }
             }
-            // write end marker (only save because we allocated the arrays with size+1 in the constructor)
-            this.lastDeadIdx = deadPtr-1;
-            this.dead[ deadPtr ] = null;
-            this.alive[ alivePtr ] = null;
-            this.aliveCounter = alivePtr;
+        }
+    }
+    
+    /**
+     * Checks that <code>alive[0...aliveCount-1]</code> and <code>dead[0...deadCount-1]</code> are 
+     * valid particle indices and that no particle is listed twice.
+     */
+    private void validateIndices(int aliveCount,int deadCount) throws IOException
+    {
+        final BitSet listed = new BitSet( storage.capacity );
+        for ( int i = 0 ; i < aliveCount + deadCount ; i++ ) 
+        {
+            final int idx = i < aliveCount ? alive[i] : dead[i - aliveCount];
+            if ( idx < 0 || idx >= storage.capacity ) {
+                throw new IOException("Corrupted particle system file, invalid particle index "+idx);
+            }
+            if ( listed.get( idx ) ) {
+                throw new IOException("Corrupted particle system file, particle "+idx+" is listed twice");
+            }
+            listed.set( idx );
+        }
+    }
+    
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + capacity * (long) ( ParticleStorage.BYTES_PER_PARTICLE + 2*4 );
+    }
+    
+    /**
+     * Permanently empties the free list if all particles are dead and unclaimed.
+     * 
+     * Used by {@link ElasticParticlePool} to release chunks, all subsequent claims will fail.
+     * 
+     * @return whether the system got retired
+     */
+    boolean retireIfIdle()
+    {
+        synchronized(storage) 
+        {
+            final int freeCount = closeFreeList();
+            if ( freeCount == storage.capacity && aliveCounter == 0 ) 
+            {
+                openFreeList( 0 );
+                return true;
+            }
+            openFreeList( freeCount );
+            return false;
         }
     }
     
@@ -111,82 +905,286 @@ public class ParticleSystem
         return getAliveCount() == 0 ;
     }
 
+    /**
+     * Returns the number of particles that were alive during the last tick.
+     * 
+     * This method never blocks.
+     */
+    @Override
     public int getAliveCount()
     {
-        synchronized(particles) 
-        {
-            return aliveCounter;
-        }
+        return aliveCounter;
     }
     
+    /**
+     * Visits a single particle.
+     * 
+     * Note that the {@link Particle} instance passed to this visitor is only a view
+     * that may get re-used for subsequent invocations, do not hold on to it.
+     */
     public interface IVisitor {
         
         public void visit(Particle particle);
     }
     
+    /**
+     * Visits the particles <code>indices[from]...indices[to-1]</code> of a storage.
+     * 
+     * A visitor passed to {@link ParticleSystem#claimDeadParticles(int, IRangeVisitor)} runs while the claim is in progress. 
+     * It may claim more particles, but it must not tick, save, load or reset the same system, or visit its dead particles. 
+     * Those operations wait for all claims to finish, so they fail with an {@link IllegalStateException} instead.
+     */
+    public interface IRangeVisitor {
+        
+        public void visit(ParticleStorage storage,int[] indices,int from,int to);
+    }
+    
+    /**
+     * Visits up to <code>maxVisits</code> unclaimed dead particles.
+     * 
+     * Particles that are no longer dead after the visitor returned are removed from the free list. Claims 
+     * are blocked while visiting, so the visitor must not claim particles from this system (nor tick, save, load or 
+     * reset it), doing so fails with an {@link IllegalStateException}.
+     */
     public void visitDeadParticles(IVisitor visitor,int maxVisits)
     {
         if ( maxVisits < 1 ) {
             throw new IllegalArgumentException("maxVisits must be >= 1");
         }
-        synchronized(particles) 
+        synchronized(storage) 
         {
-            for (int i = particles.length-1 , ptr=0 , visitsRemaining = maxVisits ; i >= 0; i--,ptr++) 
+            final int top = closeFreeList();
+            int newTop = top;
+            try 
             {
-                final Particle particle = dead[ptr];
-                if ( particle == null ) {
-                    break;
-                }
-                visitsRemaining--;
-                visitor.visit( particle ); 
-                if ( visitsRemaining == 0 ) 
-                { 
-                    break;
+                final Particle view = new Particle( storage , 0 );
+                for (int ptr = top-1 , end = Math.max( 0 , top - maxVisits ) ; ptr >= end ; ptr--) 
+                {
+                    view.index = dead[ptr];
+                    visitor.visit( view ); 
+                    if ( ! storage.isDead( view.index ) ) 
+                    {
+                        // remove from free list
+                        newTop--;
+                        dead[ptr] = dead[newTop];
+                        dead[newTop] = view.index;
+                    }
                 }
+            } 
+            finally 
+            {
+                openFreeList( newTop );
             }
         }
     }
     
+    public void visitDeadParticles(IVisitor visitor)
+    {
+        visitDeadParticles( visitor , Integer.MAX_VALUE );
+    }    
+    
+    /**
+     * Claims a single dead particle.
+     * 
+     * The particle is instantiated before being returned, this method never blocks
+     * unless the free list is currently being rebuilt by {@link #tick(float)}.
+     * 
+     * @return particle or <code>null</code> if there are no dead particles left
+     */
+    @Override
     public Particle claimDeadParticle() 
     {
-        synchronized(particles) 
+        final ParticleMetrics m = metrics;
+        final TickProfiler p = profiler;
+        final long start = m != null || p != null ? System.nanoTime() : 0;
+        final int top = beginClaim( 1 , 1 );
+        if ( top == 0 ) 
         {
-            if ( lastDeadIdx >= 0 ) 
+            recordClaim( m , p , start , 0 );
+            return null;
+        }
+        try 
+        {
+            final int idx = dead[top-1];
+            storage.instantiate( idx );
+            return new Particle( storage , idx );
+        } 
+        finally 
+        {
+            endClaim();
+            recordClaim( m , p , start , 1 );
+        }
+    }
+    
+    /**
+     * Claims up to <code>count</code> dead particles with a single atomic operation.
+     * 
+     * The claimed particles are instantiated and then passed to the visitor, which
+     * is expected to initialize them. Note that {@link #tick(float)} cannot proceed 
+     * while a visitor is running so it should be quick. 
+     * 
+     * @param count max. number of particles to claim
+     * @param visitor visitor that receives the claimed particles, may be <code>null</code>
+     * @return number of particles claimed, 0 if there are no dead particles left
+     */
+    @Override
+    public int claimDeadParticles(int count,IRangeVisitor visitor) 
+    {
+        return claimDeadParticles( count , 1 , visitor );
+    }
+    
+    /**
+     * Claims up to <code>count</code> dead particles, but only if at least <code>minCount</code> particles can be claimed.
+     * 
+     * @see #claimDeadParticles(int, IRangeVisitor)
+     */
+    int claimDeadParticles(int count,int minCount,IRangeVisitor visitor) 
+    {
+        if ( count < 1 || minCount < 1 || minCount > count ) {
+            throw new IllegalArgumentException("Need 1 <= minCount <= count");
+        }
+        final ParticleMetrics m = metrics;
+        final TickProfiler p = profiler;
+        final long start = m != null || p != null ? System.nanoTime() : 0;
+        final int top = beginClaim( count , minCount );
+        if ( top == 0 ) 
+        {
+            recordClaim( m , p , start , 0 );
+            return 0;
+        }
+        final int from = Math.max( 0 , top - count );
+        try 
+        {
+            for ( int i = from ; i < top ; i++ ) {
+                storage.instantiate( dead[i] );
+            }
+            if ( visitor != null ) 
+            {
+                final int[] depth = claimDepth.get();
+                depth[0]++;
+                try {
+                    visitor.visit( storage , dead , from , top );
+                } finally {
+                    depth[0]--;
+                }
+            }
+            return top - from;
+        } 
+        finally 
+        {
+            endClaim();
+            recordClaim( m , p , start , top - from );
+        }
+    }
+    
+    private static void recordClaim(ParticleMetrics m,TickProfiler p,long start,int claimed) 
+    {
+        if ( m != null || p != null ) 
+        {
+            final long nanos = System.nanoTime() - start;
+            if ( m != null ) {
+                m.recordSpawn( nanos , claimed );
+            }
+            if ( p != null ) {
+                p.spawn( nanos );
+            }
+        }
+    }
+    
+    /**
+     * Removes up to <code>count</code> particles from the free list.
+     * 
+     * Unless 0 is returned, the caller needs to call {@link #endClaim()} after
+     * being done with the claimed particles.
+     *  
+     * @return number of free particles before the claim, the claimed particles are <code>dead[ max(0,top-count) ... top-1 ]</code>.
+     * 0 if fewer than <code>minCount</code> particles are free.
+     */
+    private int beginClaim(int count,int minCount) 
+    {
+        while ( true ) 
+        {
+            final long current = freeList.get();
+            if ( current < 0 ) // CLOSED
             { 
-                return dead[lastDeadIdx--];
+                if ( freeListOwner == Thread.currentThread() ) {
+                    throw new IllegalStateException("Particles cannot be claimed while this thread blocks claims (visiting dead particles, saving or loading)");
+                }
+                Thread.yield();
+                continue;
             }
+            final int top = (int) (current & FREE_MASK);
+            if ( top < minCount ) {
+                return 0;
+            }
+            final int claimed = Math.min( top , count );
+            if ( freeList.compareAndSet( current , current - claimed + CLAIM_IN_PROGRESS ) ) {
+                return top;
+            }
+        }
+    }
+    
+    private void endClaim() {
+        freeList.addAndGet( -CLAIM_IN_PROGRESS );
+    }
+    
+    /**
+     * Blocks further claims and waits for all in-progress claims to finish.
+     * 
+     * Must be called while holding the storage lock.
+     * 
+     * @return number of unclaimed particles
+     */
+    private int closeFreeList() 
+    {
+        if ( freeListOwner == Thread.currentThread() ) {
+            throw new IllegalStateException("Claims are already blocked by this thread, the system cannot be ticked, saved, loaded or reset from a visitor");
         }
-        return null;
+        long current;
+        do {
+            current = freeList.get();
+        } while ( ! freeList.compareAndSet( current , current | CLOSED ) );
+        
+        if ( ( current & CLAIMS_MASK ) != 0 && claimDepth.get()[0] > 0 ) 
+        {
+            // one of the claims is held by this thread and would never finish
+            do {
+                current = freeList.get();
+            } while ( ! freeList.compareAndSet( current , current & ~CLOSED ) );
+            throw new IllegalStateException("The system cannot be ticked, saved, loaded or reset from a claim visitor");
+        }
+        while ( ( (current = freeList.get()) & CLAIMS_MASK ) != 0 ) {
+            Thread.yield();
+        }
+        freeListOwner = Thread.currentThread();
+        return (int) (current & FREE_MASK);
+    }
+    
+    private void openFreeList(int freeCount) 
+    {
+        freeListOwner = null;
+        freeList.set( freeCount );
     }
 
     public void visitAliveParticles(IVisitor visitor)
     {
-        synchronized(particles) 
+        synchronized(storage) 
         {
-            for (int i = 0,len=alive.length ; i < len ; i++ )
+            final Particle view = new Particle( storage , 0 );
+            for (int i = 0,len=aliveCounter ; i < len ; i++ )
             {
-                final Particle particle = alive[i];
-                if ( particle == null ) {
-                    return;
-                }
-                visitor.visit( particle );
+                view.index = alive[i];
+                visitor.visit( view );
             }
         }
     }
     
-    public void visitDeadParticles(IVisitor visitor)
+    @Override
+    public void visitAliveParticles(IRangeVisitor visitor)
     {
-        synchronized(particles) 
+        synchronized(storage) 
         {
-            for (int i = 0 , len = dead.length ; i < len ; i++) 
-            {
-                final Particle particle = particles[i];
-                if ( particle == null ) 
-                { 
-                    return;
-                }
-                visitor.visit( particle );
-            }
+            visitor.visit( storage , alive , 0 , aliveCounter );
         }
-    }    
+    }
 }
\ No newline at end of file
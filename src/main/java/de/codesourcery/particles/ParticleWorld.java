@@ -0,0 +1,296 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Ticks many independent particle systems ("effects") on a shared fork/join pool.
+ *
+ * Each tick, effects are scheduled as follows:
+ * <ul>
+ *   <li>effects with more than {@link #setSplitThreshold(int) a number of} alive particles get their own task and
+ *   use the shared pool to tick their particles in parallel</li>
+ *   <li>smaller effects are ticked on the caller's thread of a task, several of them are batched into a single task until 
+ *   the batch holds {@link #setBatchSize(int) a number of} particles</li>
+ *   <li>tasks are forked in order of decreasing (average) tick time so that heavy effects start first 
+ *   and cannot delay the tick by being picked up last</li>
+ * </ul>
+ * Tick times of each effect are tracked so that heavy effects can be identified.
+ */
+public class ParticleWorld
+{
+    private final ForkJoinPool pool;
+    private final List<Effect> effects = new CopyOnWriteArrayList<>();
+
+    private int splitThreshold = 64*1024;
+    private int batchSize = 16*1024;
+    private volatile int lastTaskCount;
+    private volatile long lastTickNanos;
+
+    /**
+     * A particle system and the emitters that spawn into it.
+     */
+    public static final class Effect
+    {
+        private final String name;
+        private final ParticleSystem system;
+        private final List<Emitter> emitters = new CopyOnWriteArrayList<>();
+        private boolean parallel;
+
+        private volatile long ticks;
+        private volatile long lastNanos;
+        private volatile long maxNanos;
+        private volatile double averageNanos;
+
+        Effect(String name,ParticleSystem system)
+        {
+            this.name = name;
+            this.system = system;
+        }
+
+        public Effect addEmitter(Emitter emitter)
+        {
+            Validate.notNull(emitter,"emitter must not be NULL");
+            emitters.add( emitter );
+            return this;
+        }
+
+        public boolean removeEmitter(Emitter emitter) {
+            return emitters.remove( emitter );
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ParticleSystem getSystem() {
+            return system;
+        }
+
+        /**
+         * Returns whether the last tick used the shared pool.
+         */
+        public boolean isParallel() {
+            return parallel;
+        }
+
+        void tick(float deltaSeconds)
+        {
+            final long start = System.nanoTime();
+            for ( Emitter emitter : emitters ) {
+                emitter.update( deltaSeconds );
+            }
+            system.tick( deltaSeconds );
+            final long elapsed = System.nanoTime() - start;
+            lastNanos = elapsed;
+            maxNanos = Math.max( maxNanos , elapsed );
+            // exponential moving average over roughly the last 30 ticks
+            averageNanos = ticks == 0 ? elapsed : averageNanos + ( elapsed - averageNanos ) / 16;
+            ticks++;
+        }
+
+        public long getTickCount() {
+            return ticks;
+        }
+
+        public long getLastTickNanos() {
+            return lastNanos;
+        }
+
+        public long getMaxTickNanos() {
+            return maxNanos;
+        }
+
+        public long getAverageTickNanos() {
+            return (long) averageNanos;
+        }
+
+        /**
+         * Resets the max. tick time.
+         */
+        public void resetMaxTickNanos() {
+            maxNanos = 0;
+        }
+
+        @Override
+        public String toString() {
+            return name+" ("+system.getAliveCount()+" particles, avg. "+(getAverageTickNanos()/1000)+" us)";
+        }
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param pool shared pool or <code>NULL</code> to tick all effects on the caller's thread
+     */
+    public ParticleWorld(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Adds a system.
+     *
+     * The system must not be ticked or have its fork/join pool changed by anyone else afterwards.
+     */
+    public Effect add(String name,ParticleSystem system)
+    {
+        Validate.notBlank(name,"name must not be NULL or blank");
+        Validate.notNull(system,"system must not be NULL");
+        final Effect effect = new Effect( name , system );
+        system.setForkJoinPool( null );
+        effects.add( effect );
+        return effect;
+    }
+
+    public boolean remove(Effect effect) {
+        return effects.remove( effect );
+    }
+
+    public List<Effect> getEffects() {
+        return Collections.unmodifiableList( effects );
+    }
+
+    /**
+     * Sets the number of alive particles above which an effect is ticked in parallel.
+     */
+    public void setSplitThreshold(int particles)
+    {
+        if ( particles < 1 ) {
+            throw new IllegalArgumentException("Threshold must be >= 1");
+        }
+        this.splitThreshold = particles;
+    }
+
+    /**
+     * Sets the number of particles small effects get batched up to.
+     */
+    public void setBatchSize(int particles)
+    {
+        if ( particles < 1 ) {
+            throw new IllegalArgumentException("Batch size must be >= 1");
+        }
+        this.batchSize = particles;
+    }
+
+    /**
+     * Ticks all effects, returns once all of them have been ticked.
+     */
+    public void tick(float deltaSeconds)
+    {
+        final long start = System.nanoTime();
+        final Effect[] sorted = effects.toArray( new Effect[0] );
+        // heaviest effects first
+        Arrays.sort( sorted , (a,b) -> Double.compare( b.averageNanos , a.averageNanos ) );
+
+        final List<Effect[]> tasks = new ArrayList<>();
+        final List<Effect> batch = new ArrayList<>();
+        int batchParticles = 0;
+        for ( Effect effect : sorted )
+        {
+            final int alive = effect.system.getAliveCount();
+            final boolean parallel = pool != null && alive > splitThreshold;
+            if ( parallel != effect.parallel ) 
+            {
+                effect.system.setForkJoinPool( parallel ? pool : null );
+                effect.parallel = parallel;
+            }
+            if ( parallel ) 
+            {
+                tasks.add( new Effect[] { effect } );
+                continue;
+            }
+            batch.add( effect );
+            batchParticles += alive;
+            if ( batchParticles >= batchSize ) 
+            {
+                tasks.add( batch.toArray( new Effect[0] ) );
+                batch.clear();
+                batchParticles = 0;
+            }
+        }
+        if ( ! batch.isEmpty() ) {
+            tasks.add( batch.toArray( new Effect[0] ) );
+        }
+        lastTaskCount = tasks.size();
+
+        if ( pool == null ) 
+        {
+            for ( Effect[] task : tasks ) {
+                tick( task , deltaSeconds );
+            }
+        } 
+        else 
+        {
+            pool.invoke( new RecursiveAction() 
+            {
+                @Override
+                protected void compute()
+                {
+                    // fork in order so that idle workers steal the heaviest remaining tasks first
+                    final RecursiveAction[] actions = new RecursiveAction[ tasks.size() ];
+                    for ( int i = 1 ; i < actions.length ; i++ ) 
+                    {
+                        final Effect[] task = tasks.get( i );
+                        actions[i] = new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                tick( task , deltaSeconds );
+                            }
+                        };
+                        actions[i].fork();
+                    }
+                    if ( actions.length > 0 ) {
+                        tick( tasks.get( 0 ) , deltaSeconds );
+                    }
+                    for ( int i = actions.length-1 ; i > 0 ; i-- ) {
+                        actions[i].join();
+                    }
+                }
+            });
+        }
+        lastTickNanos = System.nanoTime() - start;
+    }
+
+    private static void tick(Effect[] effects,float deltaSeconds)
+    {
+        for ( Effect effect : effects ) {
+            effect.tick( deltaSeconds );
+        }
+    }
+
+    /**
+     * Returns the number of tasks the last tick was split into.
+     */
+    public int getLastTaskCount() {
+        return lastTaskCount;
+    }
+
+    /**
+     * Returns the wall-clock time the last tick took.
+     */
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Writes each frame to a PNG file named <code>&lt;prefix&gt;_&lt;frame number&gt;.png</code>.
+ *
+ * Every writer thread re-uses its own image, so no image is allocated per frame.
+ */
+public class PngSequenceSink implements IFrameSink
+{
+    private final Path directory;
+    private final String prefix;
+    private final int width;
+    private final int height;
+    private final ThreadLocal<BufferedImage> images;
+
+    public PngSequenceSink(Path directory,String prefix,int width,int height) throws IOException
+    {
+        Validate.notNull(directory,"directory must not be NULL");
+        Validate.notBlank(prefix,"prefix must not be NULL or blank");
+        if ( width < 1 || height < 1 ) {
+            throw new IllegalArgumentException("Width and height must be >= 1");
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.width = width;
+        this.height = height;
+        this.images = ThreadLocal.withInitial( () -> new BufferedImage( width , height , BufferedImage.TYPE_INT_ARGB ) );
+        Files.createDirectories( directory );
+    }
+
+    /**
+     * Returns the file a given frame is written to.
+     */
+    public Path getFile(long frameNumber) {
+        return directory.resolve( String.format( "%s_%06d.png" , prefix , frameNumber ) );
+    }
+
+    @Override
+    public void writeFrame(long frameNumber,int[] pixels) throws IOException
+    {
+        if ( pixels.length < width*height ) {
+            throw new IllegalArgumentException("Frame too small, need "+(width*height)+" pixels but got "+pixels.length);
+        }
+        final BufferedImage image = images.get();
+        final int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy( pixels , 0 , data , 0 , width*height );
+        if ( ! ImageIO.write( image , "png" , getFile( frameNumber ).toFile() ) ) {
+            throw new IOException("No PNG writer available");
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.Arrays;
+
+/**
+ * Point attractors, repellers and vortices, evaluated using a Barnes-Hut quadtree.
+ *
+ * An attractor with strength <code>s</code> at distance <code>r</code> accelerates particles towards it by
+ * <code>s / (r*r + softening*softening)</code>, a negative strength turns it into a repeller. Vortices 
+ * use the same fall-off but accelerate particles perpendicular to the direction of the vortex center 
+ * (counter-clockwise for positive strengths).
+ *
+ * The quadtree is rebuilt at the start of the next tick whenever sources have been changed, forces and 
+ * {@link #accelerationAt(float, float, float[]) queries} always use the sources as of the last {@link #prepare(float)}. 
+ * When evaluating the force on a particle, the sources of a tree node are replaced by their (strength-weighted) center
+ * if <code>node size / distance &lt; theta</code>. Theta is the accuracy parameter: 0 yields exact results, 
+ * larger values trade accuracy for speed (0.5 is a common choice).
+ *
+ * Sources must only be changed between ticks.
+ */
+public class PointForceField implements IForce
+{
+    private static final int LEAF_SIZE = 4;
+    private static final int MAX_DEPTH = 24;
+    // nodes aggregate attractors/repellers and clockwise/counter-clockwise vortices separately
+    // as strengths of different sign would cancel each other out
+    private static final int GROUPS = 4;
+    private static final int STACK_SIZE = 3*MAX_DEPTH + 4;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial( Scratch::new );
+
+    // per-thread buffers used while traversing the tree
+    private static final class Scratch
+    {
+        final int[] stack = new int[ STACK_SIZE ];
+        final float[] result = new float[2];
+    }
+
+    private int sourceCount;
+    private float[] sx = new float[16];
+    private float[] sy = new float[16];
+    private float[] strength = new float[16];
+    private boolean[] vortex = new boolean[16];
+    private boolean dirty = true;
+
+    private float theta = 0.5f;
+    private float softening = 1;
+
+    // flattened quadtree, children of a node are stored next to each other
+    private int nodeCount;
+    private float[] nodeX = new float[0];
+    private float[] nodeY = new float[0];
+    private float[] nodeSize = new float[0];
+    private int[] nodeFirst = new int[0];
+    private int[] nodeLength = new int[0];
+    private int[] nodeChild = new int[0];
+    // per node and group: sum of strengths and center
+    private float[] groupStrength = new float[0];
+    private float[] groupX = new float[0];
+    private float[] groupY = new float[0];
+    // source indices, sources of a node are order[nodeFirst...nodeFirst+nodeLength-1]
+    private int[] order = new int[0];
+    private int[] scratch = new int[0];
+    // copies of the sources at the time the tree was built, in the same order as 'order'
+    private float[] treeX = new float[0];
+    private float[] treeY = new float[0];
+    private float[] treeStrength = new float[0];
+    private boolean[] treeVortex = new boolean[0];
+
+    /**
+     * Adds an attractor (positive strength) or repeller (negative strength).
+     *
+     * @return ID of the source
+     */
+    public int addAttractor(float x,float y,float strength) {
+        return addSource( x , y , strength , false );
+    }
+
+    /**
+     * Adds a vortex that rotates particles counter-clockwise (positive strength) or clockwise (negative strength).
+     *
+     * @return ID of the source
+     */
+    public int addVortex(float x,float y,float strength) {
+        return addSource( x , y , strength , true );
+    }
+
+    private int addSource(float x,float y,float s,boolean isVortex)
+    {
+        if ( sourceCount == sx.length ) 
+        {
+            final int newSize = sx.length*2;
+            sx = Arrays.copyOf( sx , newSize );
+            sy = Arrays.copyOf( sy , newSize );
+            strength = Arrays.copyOf( strength , newSize );
+            vortex = Arrays.copyOf( vortex , newSize );
+        }
+        sx[ sourceCount ] = x;
+        sy[ sourceCount ] = y;
+        strength[ sourceCount ] = s;
+        vortex[ sourceCount ] = isVortex;
+        dirty = true;
+        return sourceCount++;
+    }
+
+    public void setPosition(int source,float x,float y)
+    {
+        checkSource( source );
+        sx[source] = x;
+        sy[source] = y;
+        dirty = true;
+    }
+
+    public void setStrength(int source,float s)
+    {
+        checkSource( source );
+        strength[source] = s;
+        dirty = true;
+    }
+
+    private void checkSource(int source) 
+    {
+        if ( source < 0 || source >= sourceCount ) {
+            throw new IllegalArgumentException("Invalid source ID: "+source);
+        }
+    }
+
+    public int getSourceCount() {
+        return sourceCount;
+    }
+
+    /**
+     * Removes all sources.
+     */
+    public void clear()
+    {
+        sourceCount = 0;
+        dirty = true;
+    }
+
+    /**
+     * Sets the accuracy parameter.
+     *
+     * @param theta 0 for exact evaluation, larger values are faster but less accurate
+     */
+    public void setTheta(float theta)
+    {
+        if ( ! ( theta >= 0 ) ) {
+            throw new IllegalArgumentException("Theta must be >= 0");
+        }
+        this.theta = theta;
+    }
+
+    public float getTheta() {
+        return theta;
+    }
+
+    /**
+     * Sets the distance below which forces stop growing, avoids infinite accelerations close to a source.
+     */
+    public void setSoftening(float softening)
+    {
+        if ( ! ( softening >= 0 ) ) {
+            throw new IllegalArgumentException("Softening must be >= 0");
+        }
+        this.softening = softening;
+    }
+
+    @Override
+    public void prepare(float deltaSeconds)
+    {
+        if ( dirty ) 
+        {
+            buildTree();
+            dirty = false;
+        }
+    }
+
+    private void buildTree()
+    {
+        nodeCount = 0;
+        if ( sourceCount == 0 ) {
+            return;
+        }
+        if ( order.length < sourceCount ) 
+        {
+            order = new int[ sx.length ];
+            scratch = new int[ sx.length ];
+            treeX = new float[ sx.length ];
+            treeY = new float[ sx.length ];
+            treeStrength = new float[ sx.length ];
+            treeVortex = new boolean[ sx.length ];
+        }
+        float minX = Float.MAX_VALUE , minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE , maxY = -Float.MAX_VALUE;
+        for ( int i = 0 ; i < sourceCount ; i++ )
+        {
+            order[i] = i;
+            minX = Math.min( minX , sx[i] );
+            minY = Math.min( minY , sy[i] );
+            maxX = Math.max( maxX , sx[i] );
+            maxY = Math.max( maxY , sy[i] );
+        }
+        // slightly larger than the bounding box so that no source lies on the far edges
+        final float size = Math.max( Math.max( maxX - minX , maxY - minY ) * 1.001f , 1e-3f );
+        fillNode( reserveNodes( 1 ) , minX , minY , size , 0 , sourceCount , 0 );
+        for ( int i = 0 ; i < sourceCount ; i++ )
+        {
+            final int src = order[i];
+            treeX[i] = sx[src];
+            treeY[i] = sy[src];
+            treeStrength[i] = strength[src];
+            treeVortex[i] = vortex[src];
+        }
+    }
+
+    private int reserveNodes(int count)
+    {
+        final int first = nodeCount;
+        nodeCount += count;
+        if ( nodeCount > nodeX.length )
+        {
+            final int newSize = Math.max( nodeCount , nodeX.length*2 );
+            nodeX = Arrays.copyOf( nodeX , newSize );
+            nodeY = Arrays.copyOf( nodeY , newSize );
+            nodeSize = Arrays.copyOf( nodeSize , newSize );
+            nodeFirst = Arrays.copyOf( nodeFirst , newSize );
+            nodeLength = Arrays.copyOf( nodeLength , newSize );
+            nodeChild = Arrays.copyOf( nodeChild , newSize );
+            groupStrength = Arrays.copyOf( groupStrength , newSize*GROUPS );
+            groupX = Arrays.copyOf( groupX , newSize*GROUPS );
+            groupY = Arrays.copyOf( groupY , newSize*GROUPS );
+        }
+        return first;
+    }
+
+    private void fillNode(int node,float x,float y,float size,int first,int length,int depth)
+    {
+        nodeX[node] = x;
+        nodeY[node] = y;
+        nodeSize[node] = size;
+        nodeFirst[node] = first;
+        nodeLength[node] = length;
+        nodeChild[node] = -1;
+
+        // aggregate sources
+        final float[] weight = new float[ GROUPS ];
+        final float[] sum = new float[ GROUPS ];
+        final float[] cx = new float[ GROUPS ];
+        final float[] cy = new float[ GROUPS ];
+        for ( int i = first ; i < first+length ; i++ )
+        {
+            final int src = order[i];
+            final float s = strength[src];
+            final int group = ( vortex[src] ? 2 : 0 ) + ( s < 0 ? 1 : 0 );
+            final float w = Math.abs( s );
+            sum[group] += s;
+            weight[group] += w;
+            cx[group] += sx[src] * w;
+            cy[group] += sy[src] * w;
+        }
+        for ( int g = 0 ; g < GROUPS ; g++ )
+        {
+            final int idx = node*GROUPS + g;
+            groupStrength[idx] = sum[g];
+            groupX[idx] = weight[g] > 0 ? cx[g] / weight[g] : 0;
+            groupY[idx] = weight[g] > 0 ? cy[g] / weight[g] : 0;
+        }
+
+        if ( length <= LEAF_SIZE || depth >= MAX_DEPTH ) {
+            return;
+        }
+
+        // partition sources into quadrants
+        final float half = size / 2;
+        final float midX = x + half;
+        final float midY = y + half;
+        final int[] counts = new int[4];
+        for ( int i = first ; i < first+length ; i++ ) 
+        {
+            final int src = order[i];
+            final int quadrant = ( sx[src] >= midX ? 1 : 0 ) + ( sy[src] >= midY ? 2 : 0 );
+            scratch[i] = quadrant;
+            counts[quadrant]++;
+        }
+        final int[] starts = { first , first+counts[0] , first+counts[0]+counts[1] , first+counts[0]+counts[1]+counts[2] };
+        final int[] ptr = starts.clone();
+        final int[] sorted = new int[ length ];
+        for ( int i = first ; i < first+length ; i++ ) {
+            sorted[ ptr[ scratch[i] ]++ - first ] = order[i];
+        }
+        System.arraycopy( sorted , 0 , order , first , length );
+
+        final int child = reserveNodes( 4 );
+        nodeChild[node] = child;
+        for ( int q = 0 ; q < 4 ; q++ ) {
+            fillNode( child + q , (q & 1) == 0 ? x : midX , (q & 2) == 0 ? y : midY , half , starts[q] , counts[q] , depth+1 );
+        }
+    }
+
+    @Override
+    public void apply(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds)
+    {
+        if ( nodeCount == 0 ) {
+            return;
+        }
+        final Scratch tmp = SCRATCH.get();
+        final int[] stack = tmp.stack;
+        final float[] result = tmp.result;
+        final float[] posx = storage.posx;
+        final float[] posy = storage.posy;
+        final float[] vx = storage.vx;
+        final float[] vy = storage.vy;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int idx = indices[i];
+            accelerationAt( posx[idx] , posy[idx] , stack , result );
+            vx[idx] += result[0] * deltaSeconds;
+            vy[idx] += result[1] * deltaSeconds;
+        }
+    }
+
+    /**
+     * Calculates the acceleration at a given point, using the sources as of the last {@link #prepare(float)}.
+     *
+     * May be called concurrently, but not while {@link #prepare(float)} is running.
+     *
+     * @param result receives the acceleration (x,y)
+     */
+    public void accelerationAt(float px,float py,float[] result)
+    {
+        if ( nodeCount == 0 ) 
+        {
+            result[0] = result[1] = 0;
+            return;
+        }
+        accelerationAt( px , py , SCRATCH.get().stack , result );
+    }
+
+    private void accelerationAt(float px,float py,int[] stack,float[] result)
+    {
+        final float eps2 = softening*softening;
+        final float theta2 = theta*theta;
+        float ax = 0;
+        float ay = 0;
+        int sp = 0;
+        stack[sp++] = 0;
+        while ( sp > 0 )
+        {
+            final int node = stack[--sp];
+            final int length = nodeLength[node];
+            if ( length == 0 ) {
+                continue;
+            }
+            final int child = nodeChild[node];
+            if ( child < 0 ) 
+            {
+                // leaf, evaluate sources directly
+                for ( int i = nodeFirst[node] , end = i + length ; i < end ; i++ )
+                {
+                    final float dx = treeX[i] - px;
+                    final float dy = treeY[i] - py;
+                    final float r2 = dx*dx + dy*dy + eps2;
+                    if ( r2 > 0 ) 
+                    {
+                        final float f = treeStrength[i] / ( r2 * (float) Math.sqrt( r2 ) );
+                        if ( treeVortex[i] ) {
+                            ax += dy*f;
+                            ay -= dx*f;
+                        } else {
+                            ax += dx*f;
+                            ay += dy*f;
+                        }
+                    }
+                }
+                continue;
+            }
+            final float size = nodeSize[node];
+            final float cx = nodeX[node] + size/2 - px;
+            final float cy = nodeY[node] + size/2 - py;
+            if ( size*size < theta2 * (cx*cx + cy*cy) ) 
+            {
+                // far enough away, use aggregates
+                for ( int g = 0 ; g < GROUPS ; g++ )
+                {
+                    final int idx = node*GROUPS + g;
+                    final float s = groupStrength[idx];
+                    if ( s != 0 ) 
+                    {
+                        final float dx = groupX[idx] - px;
+                        final float dy = groupY[idx] - py;
+                        final float r2 = dx*dx + dy*dy + eps2;
+                        final float f = s / ( r2 * (float) Math.sqrt( r2 ) );
+                        if ( g >= 2 ) {
+                            ax += dy*f;
+                            ay -= dx*f;
+                        } else {
+                            ax += dx*f;
+                            ay += dy*f;
+                        }
+                    }
+                }
+            } 
+            else 
+            {
+                stack[sp++] = child;
+                stack[sp++] = child+1;
+                stack[sp++] = child+2;
+                stack[sp++] = child+3;
+            }
+        }
+        result[0] = ax;
+        result[1] = ay;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes frames to a single memory-mapped file.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int magic ('PFRM')
+ * int version
+ * int width
+ * int height
+ * long frame count (written on close)
+ * long reserved
+ * int[width*height] ARGB pixels for each frame, ordered by frame number
+ * </pre>
+ * The file is mapped in segments of multiple frames, every frame is written to its own
+ * region so frames may be written concurrently and in any order.
+ */
+public class RawFrameSink implements IFrameSink
+{
+    public static final int MAGIC = 0x5046524d;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    // max. size of a mapped segment
+    private static final long SEGMENT_SIZE = 256*1024*1024;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final long frameBytes;
+    private final int framesPerSegment;
+    private final ConcurrentHashMap<Long,MappedByteBuffer> segments = new ConcurrentHashMap<>();
+
+    private final Object countLock = new Object();
+    private long frameCount;
+    private boolean closed;
+
+    public RawFrameSink(Path file,int width,int height) throws IOException
+    {
+        if ( width < 1 || height < 1 ) {
+            throw new IllegalArgumentException("Width and height must be >= 1");
+        }
+        this.width = width;
+        this.height = height;
+        this.frameBytes = width*height*4L;
+        this.framesPerSegment = (int) Math.max( 1 , SEGMENT_SIZE / frameBytes );
+        this.channel = FileChannel.open( file , StandardOpenOption.CREATE , StandardOpenOption.TRUNCATE_EXISTING , 
+                StandardOpenOption.READ, StandardOpenOption.WRITE );
+        writeHeader( 0 );
+    }
+
+    @Override
+    public void writeFrame(long frameNumber,int[] pixels) throws IOException
+    {
+        if ( frameNumber < 0 ) {
+            throw new IllegalArgumentException("Frame number must be >= 0");
+        }
+        if ( pixels.length < width*height ) {
+            throw new IllegalArgumentException("Frame too small, need "+(width*height)+" pixels but got "+pixels.length);
+        }
+        final long segmentNo = frameNumber / framesPerSegment;
+        final MappedByteBuffer segment = getSegment( segmentNo );
+        final ByteBuffer view = segment.duplicate();
+        view.position( (int) ( (frameNumber % framesPerSegment) * frameBytes ) );
+        view.asIntBuffer().put( pixels , 0 , width*height );
+        synchronized( countLock ) {
+            frameCount = Math.max( frameCount , frameNumber+1 );
+        }
+    }
+
+    private MappedByteBuffer getSegment(long segmentNo) throws IOException
+    {
+        MappedByteBuffer result = segments.get( segmentNo );
+        if ( result == null )
+        {
+            synchronized( segments )
+            {
+                result = segments.get( segmentNo );
+                if ( result == null )
+                {
+                    if ( closed ) {
+                        throw new IOException("Sink is closed");
+                    }
+                    final long offset = HEADER_SIZE + segmentNo * framesPerSegment * frameBytes;
+                    result = channel.map( MapMode.READ_WRITE , offset , framesPerSegment * frameBytes );
+                    segments.put( segmentNo , result );
+                }
+            }
+        }
+        return result;
+    }
+
+    private void writeHeader(long frames) throws IOException
+    {
+        final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        header.putInt( MAGIC ).putInt( VERSION ).putInt( width ).putInt( height ).putLong( frames ).putLong( 0 );
+        header.flip();
+        while ( header.hasRemaining() ) {
+            channel.write( header , header.position() );
+        }
+    }
+
+    /**
+     * Writes the frame count, truncates the file to the frames actually written and closes it.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized( segments )
+        {
+            if ( closed ) {
+                return;
+            }
+            closed = true;
+        }
+        try 
+        {
+            for ( MappedByteBuffer segment : segments.values() ) {
+                segment.force();
+            }
+            segments.clear();
+            final long frames;
+            synchronized( countLock ) {
+                frames = frameCount;
+            }
+            writeHeader( frames );
+            try {
+                channel.truncate( HEADER_SIZE + frames * frameBytes );
+            } catch(IOException e) {
+                // some platforms do not allow truncating files that are still mapped,
+                // readers rely on the frame count from the header anyway
+            }
+        } 
+        finally 
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,964 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Rasterizes a {@link ParticleSnapshot} into an int[] framebuffer (one ARGB pixel per int, row-major).
+ *
+ * Particle coordinates are relative to the center of the framebuffer with the y-axis pointing up.
+ * This class does not depend on AWT/Swing and works in headless environments.
+ *
+ * Particles outside of the framebuffer are culled with a single branch on their (float) coordinates 
+ * before converting them to pixel offsets.
+ * 
+ * When a {@link ForkJoinPool} is set, rendering is done in three parallel passes: pixel offsets
+ * are calculated for chunks of particles while counting how many particles fall into each horizontal band of
+ * the framebuffer, particles are then sorted by band (keeping their relative order) and finally each
+ * band is cleared and plotted by a single task. The result is identical to rendering on a single thread.
+ * 
+ * With a {@link #setFrameBudget(long) frame budget}, the renderer adapts a level of detail to keep rendering 
+ * within the budget. The framebuffer is divided into tiles of 8x8 pixels (or less if the band height is smaller) and 
+ * tiles that received more than {@link #setDenseTileThreshold(int) a threshold} of particles in the previous frame only
+ * plot every 2nd, 4th, ... (up to every 2^{@value #MAX_DENSE_LEVEL}th) particle. If that is not enough, only every 
+ * 2nd, 4th, ... block of 16 consecutive particles is considered at all, so that rendering cost is bounded independent
+ * of the number of particles.
+ * 
+ * In {@link BlendMode#ADDITIVE additive} mode, particles add their color to per-channel accumulators instead of overwriting
+ * pixels and the sums are then {@link #setToneMapping(ToneMapping, float) tone-mapped} to pixel colors, so the result 
+ * does not depend on the order of the particles. Particles are always sorted by band in this mode and each band is 
+ * accumulated into a band-sized tile of the thread plotting it and tone-mapped right away, so tiles never need to be merged.
+ * Particles skipped by the level of detail are compensated for by scaling the color of the plotted ones.
+ * 
+ * With a {@link #setSplatRadius(int) splat radius}, particles are plotted as anti-aliased splats covering several pixels 
+ * with sub-pixel precision instead of a single truncated pixel. Splats are always blended additively, a splat that 
+ * overlaps several bands is sorted into each of them and each band only plots its own rows.
+ */
+public class Renderer
+{
+    public enum BlendMode 
+    {
+        /**
+         * Each particle overwrites the pixel it is plotted to.
+         */
+        REPLACE,
+        /**
+         * Particle colors are added up and tone-mapped (alpha is ignored).
+         */
+        ADDITIVE
+    }
+
+    public enum ToneMapping 
+    {
+        /**
+         * <code>min( 255 , exposure * sum )</code>
+         */
+        CLAMP,
+        /**
+         * <code>255 * ( 1 - exp( -exposure * sum / 255 ) )</code>, saturates smoothly.
+         */
+        EXPONENTIAL
+    }
+
+    /** LOD level up to which only particles in dense tiles are skipped */
+    public static final int MAX_DENSE_LEVEL = 6;
+    public static final int MAX_LOD_LEVEL = MAX_DENSE_LEVEL + 4;
+    /** smallest supported tone-mapping exposure, limits the size of the lookup tables */
+    public static final float MIN_EXPOSURE = 1/64f;
+    public static final int MAX_SPLAT_RADIUS = SplatKernel.MAX_RADIUS;
+
+    private static final int TILE_SHIFT = 3;
+    // keeps coordinates of visible splats positive when converting them to sub-pixel steps
+    private static final int SPLAT_BIAS = SplatKernel.MAX_RADIUS + 1;
+    private static final int SPLAT_ORIGIN = SPLAT_BIAS*SplatKernel.SUBPIXEL_STEPS;
+    // sub-pixel positions of splats are packed into 16 bits per axis
+    private static final int MAX_SPLAT_FRAMEBUFFER_SIZE = (1 << 16)/SplatKernel.SUBPIXEL_STEPS - 2*SPLAT_BIAS;
+    // particles are sampled in blocks that span a cache line of each snapshot array
+    private static final int SAMPLE_SHIFT = 4;
+    private static final int SAMPLE_BLOCK = 1 << SAMPLE_SHIFT;
+    // tile density is estimated from every 16th particle
+    private static final int DENSITY_SAMPLE_SHIFT = 4;
+    private static final int DENSITY_SAMPLE_MASK = (1 << DENSITY_SAMPLE_SHIFT) - 1;
+    // largest amount a single particle adds to a sum (full splat weight, standing in for 2^MAX_LOD_LEVEL particles)
+    private static final int MAX_CONTRIBUTION = 0xff << ( MAX_LOD_LEVEL + SplatKernel.WEIGHT_BITS );
+    // sums saturate at this value, so adding another contribution never overflows
+    private static final int MAX_SUM = Integer.MAX_VALUE - MAX_CONTRIBUTION;
+
+    private final int width;
+    private final int height;
+    private final int bandShift;
+    private final int bandPixels;
+    private final int bands;
+
+    private ForkJoinPool pool;
+    private int chunkSize = 64*1024;
+    private int background = 0xff000000;
+    private ParticleMetrics metrics;
+
+    // pixel offset for each particle of the current snapshot, -1 if outside the framebuffer
+    // (sub-pixel x and y of each splat, relative to SPLAT_ORIGIN, when plotting splats)
+    private int[] offsets = new int[0];
+    // (first) band for each particle of the current snapshot, -1 if a splat is outside the framebuffer
+    private short[] particleBands = new short[0];
+    // snapshot indices sorted by band, splats can be in more than one band
+    private int[] binned = new int[0];
+    // particles per (chunk,band), turned into write pointers after counting
+    private int[] histogram = new int[0];
+    private final int[] bandStart;
+    // whether a band contained particles when rendering to 'lastPixels'
+    private final boolean[] bandDirty;
+    private int[] lastPixels;
+
+    // level of detail
+    private final int tileShiftY;
+    private final int tilesX;
+    private final int tilesY;
+    // particles per tile in the current frame and whether a tile was dense in the previous frame
+    private final int[] tileCounts;
+    private final boolean[] denseTiles;
+    private int denseTileThreshold;
+    private long frameBudgetNanos;
+    private volatile int lodLevel;
+    // particles plotted per band, parallel rendering only
+    private final int[] bandDrawn;
+    private int lastDrawnCount;
+
+    // additive blending
+    private BlendMode blendMode = BlendMode.REPLACE;
+    private ToneMapping toneMapping = ToneMapping.CLAMP;
+    private float exposure = 1;
+    // red, green and blue sums for the pixels of a band, all zero outside of plotting a band
+    private final ThreadLocal<int[]> tiles;
+    // shifted channel values including the background, indexed by sum
+    private int[] toneMapR;
+    private int[] toneMapG;
+    private int[] toneMapB;
+    // NULL to plot single pixels
+    private SplatKernel splatKernel;
+
+    public Renderer(int width,int height)
+    {
+        this( width , height , 16 );
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param width framebuffer width in pixels
+     * @param height framebuffer height in pixels
+     * @param bandHeight height of the horizontal bands used for parallel rendering, must be a power of two
+     */
+    public Renderer(int width,int height,int bandHeight)
+    {
+        if ( width < 1 || height < 1 ) {
+            throw new IllegalArgumentException("Width and height must be >= 1");
+        }
+        if ( bandHeight < 1 || Integer.bitCount( bandHeight ) != 1 ) {
+            throw new IllegalArgumentException("Band height must be a power of two");
+        }
+        this.width = width;
+        this.height = height;
+        this.bandShift = Integer.numberOfTrailingZeros( bandHeight );
+        this.bandPixels = width*bandHeight;
+        this.bands = (height + bandHeight - 1) / bandHeight;
+        if ( bands > Short.MAX_VALUE ) {
+            throw new IllegalArgumentException("Band height too small");
+        }
+        this.bandStart = new int[ bands+1 ];
+        this.bandDirty = new boolean[ bands ];
+        this.bandDrawn = new int[ bands ];
+
+        // tiles must not span bands so that they can be updated by the task plotting the band
+        this.tileShiftY = Math.min( TILE_SHIFT , bandShift );
+        this.tilesX = (width + (1 << TILE_SHIFT) - 1) >> TILE_SHIFT;
+        this.tilesY = (height + (1 << tileShiftY) - 1) >> tileShiftY;
+        this.tileCounts = new int[ tilesX*tilesY ];
+        this.denseTiles = new boolean[ tilesX*tilesY ];
+        this.denseTileThreshold = 4 << (TILE_SHIFT+tileShiftY);
+
+        this.tiles = ThreadLocal.withInitial( () -> new int[ 3*bandPixels ] );
+        buildToneMap();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Enables parallel rendering.
+     *
+     * @param pool pool to use or <code>NULL</code> to render on the caller's thread only
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the number of particles processed by a single task when rendering in parallel.
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        if ( chunkSize < 1 ) {
+            throw new IllegalArgumentException("Chunk size must be >= 1");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Enables recording of render latencies.
+     *
+     * @param metrics metrics to record to or <code>null</code> to disable
+     */
+    public void setMetrics(ParticleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setBackground(int argb) 
+    {
+        this.background = argb;
+        this.lastPixels = null;
+        buildToneMap();
+    }
+
+    /**
+     * Sets how particles are combined with the framebuffer.
+     */
+    public void setBlendMode(BlendMode mode)
+    {
+        Validate.notNull(mode,"mode must not be NULL");
+        this.blendMode = mode;
+    }
+
+    public BlendMode getBlendMode() {
+        return blendMode;
+    }
+
+    /**
+     * Sets how accumulated colors are mapped to pixel colors in additive mode.
+     * 
+     * Tone-mapped values are added to the background color. 
+     * Defaults to {@link ToneMapping#CLAMP} with an exposure of 1.
+     * 
+     * @param mapping mapping to apply to each color channel
+     * @param exposure factor sums are multiplied with, must be &gt;= {@link #MIN_EXPOSURE}
+     */
+    public void setToneMapping(ToneMapping mapping,float exposure)
+    {
+        Validate.notNull(mapping,"mapping must not be NULL");
+        if ( ! ( exposure >= MIN_EXPOSURE ) || Float.isInfinite( exposure ) ) {
+            throw new IllegalArgumentException("Exposure must be >= "+MIN_EXPOSURE);
+        }
+        this.toneMapping = mapping;
+        this.exposure = exposure;
+        buildToneMap();
+    }
+
+    /**
+     * Sets the radius of the splats particles are plotted as.
+     * 
+     * A splat covers <code>2*radius x 2*radius</code> pixels, weighted by their distance from the particle (radius 1 
+     * distributes a particle among the 4 nearest pixels using bilinear weights). Splats are always blended additively, 
+     * independent of the {@link #setBlendMode(BlendMode) blend mode}.
+     * 
+     * @param radius radius in pixels (0...{@link #MAX_SPLAT_RADIUS}), 0 plots each particle as a single pixel
+     * @throws IllegalStateException if the framebuffer is wider or higher than 8182 pixels
+     */
+    public void setSplatRadius(int radius)
+    {
+        if ( radius < 0 || radius > MAX_SPLAT_RADIUS ) {
+            throw new IllegalArgumentException("Splat radius must be in range 0..."+MAX_SPLAT_RADIUS);
+        }
+        if ( radius > 0 && Math.max( width , height ) > MAX_SPLAT_FRAMEBUFFER_SIZE ) {
+            throw new IllegalStateException("Splats are not supported for framebuffers larger than "+MAX_SPLAT_FRAMEBUFFER_SIZE+" pixels");
+        }
+        this.splatKernel = radius == 0 ? null : SplatKernel.forRadius( radius );
+    }
+
+    public int getSplatRadius() 
+    {
+        final SplatKernel kernel = splatKernel;
+        return kernel == null ? 0 : kernel.radius;
+    }
+
+    public ToneMapping getToneMapping() {
+        return toneMapping;
+    }
+
+    public float getExposure() {
+        return exposure;
+    }
+
+    private void buildToneMap()
+    {
+        // smallest sum that maps to 255
+        final double saturation = toneMapping == ToneMapping.CLAMP ? 255 / exposure : 255 * Math.log( 2*255 ) / exposure;
+        final int size = (int) Math.ceil( saturation ) + 1;
+        final int[] mapR = new int[ size ];
+        final int[] mapG = new int[ size ];
+        final int[] mapB = new int[ size ];
+        for ( int sum = 0 ; sum < size ; sum++ )
+        {
+            final double value;
+            if ( toneMapping == ToneMapping.CLAMP ) {
+                value = sum * exposure;
+            } else {
+                value = 255 * ( 1 - Math.exp( -exposure * sum / 255 ) );
+            }
+            final int mapped = (int) Math.round( value );
+            mapR[sum] = Math.min( 255 , ColorUtils.r( background ) + mapped ) << 16;
+            mapG[sum] = Math.min( 255 , ColorUtils.g( background ) + mapped ) << 8;
+            mapB[sum] = Math.min( 255 , ColorUtils.b( background ) + mapped );
+        }
+        toneMapR = mapR;
+        toneMapG = mapG;
+        toneMapB = mapB;
+    }
+
+    /**
+     * Sets the time rendering a frame should take.
+     * 
+     * After each frame the level of detail is increased if rendering took longer than the budget and 
+     * decreased if it took less than half of the budget.
+     * 
+     * @param nanos budget in nanoseconds, 0 to disable adapting the level of detail
+     */
+    public void setFrameBudget(long nanos)
+    {
+        if ( nanos < 0 ) {
+            throw new IllegalArgumentException("Frame budget must be >= 0");
+        }
+        this.frameBudgetNanos = nanos;
+    }
+
+    public long getFrameBudget() {
+        return frameBudgetNanos;
+    }
+
+    /**
+     * Sets the number of particles a tile needs to receive for it to be subsampled in the next frame.
+     * 
+     * Defaults to 4 particles per pixel. Tile densities are estimated from every 16th particle.
+     */
+    public void setDenseTileThreshold(int threshold)
+    {
+        if ( threshold < 1 ) {
+            throw new IllegalArgumentException("Threshold must be >= 1");
+        }
+        this.denseTileThreshold = threshold;
+    }
+
+    /**
+     * Sets the level of detail.
+     * 
+     * Levels <code>1...MAX_DENSE_LEVEL</code> plot every <code>2^level</code>th particle in dense tiles, 
+     * higher levels additionally only consider every <code>2^(level-MAX_DENSE_LEVEL)</code>th block of 16 consecutive 
+     * particles of the snapshot.
+     * 
+     * @param level level (0...{@link #MAX_LOD_LEVEL}), 0 plots all particles
+     */
+    public void setLodLevel(int level)
+    {
+        if ( level < 0 || level > MAX_LOD_LEVEL ) {
+            throw new IllegalArgumentException("LOD level must be in range 0..."+MAX_LOD_LEVEL);
+        }
+        this.lodLevel = level;
+    }
+
+    public int getLodLevel() {
+        return lodLevel;
+    }
+
+    /**
+     * Returns the number of particles that were plotted in the last frame.
+     */
+    public int getLastDrawnCount() {
+        return lastDrawnCount;
+    }
+
+    /**
+     * Clears the framebuffer and renders a snapshot.
+     *
+     * @param snapshot the particles to render
+     * @param pixels framebuffer, must hold at least <code>width*height</code> pixels
+     * @param extrapolateSeconds time to advance each particle along its velocity before plotting it
+     */
+    public void render(ParticleSnapshot snapshot,int[] pixels,float extrapolateSeconds)
+    {
+        if ( pixels.length < width*height ) {
+            throw new IllegalArgumentException("Framebuffer too small, need "+(width*height)+" pixels but got "+pixels.length);
+        }
+        final ParticleMetrics m = metrics;
+        final long budget = frameBudgetNanos;
+        if ( m != null || budget > 0 )
+        {
+            final long start = System.nanoTime();
+            doRender( snapshot , pixels , extrapolateSeconds );
+            final long elapsed = System.nanoTime() - start;
+            if ( m != null ) {
+                m.recordRender( elapsed );
+            }
+            if ( budget > 0 ) 
+            {
+                final int level = lodLevel;
+                if ( elapsed > budget && level < MAX_LOD_LEVEL ) {
+                    lodLevel = level + 1;
+                } else if ( elapsed < budget/2 && level > 0 ) {
+                    lodLevel = level - 1;
+                }
+            }
+        } else {
+            doRender( snapshot , pixels , extrapolateSeconds );
+        }
+    }
+
+    private void doRender(ParticleSnapshot snapshot,int[] pixels,float extrapolateSeconds)
+    {
+        if ( pixels != lastPixels )
+        {
+            // unknown framebuffer contents
+            Arrays.fill( bandDirty , true );
+            lastPixels = pixels;
+        }
+
+        final int count = snapshot.getCount();
+        final int level = lodLevel;
+        final boolean lod = level > 0 || frameBudgetNanos > 0;
+        final int denseShift = Math.min( level , MAX_DENSE_LEVEL );
+        final int denseMask = (1 << denseShift) - 1;
+        final int strideShift = Math.max( 0 , level - MAX_DENSE_LEVEL );
+        final int stride = 1 << strideShift;
+        final SplatKernel kernel = splatKernel;
+        final boolean additive = blendMode == BlendMode.ADDITIVE || kernel != null;
+
+        final ForkJoinPool workers = count <= chunkSize ? null : pool;
+        if ( workers == null && ! additive )
+        {
+            renderSerial( snapshot , pixels , extrapolateSeconds , lod , denseMask , strideShift );
+            return;
+        }
+
+        if ( offsets.length < count )
+        {
+            offsets = new int[ count ];
+            particleBands = new short[ count ];
+        }
+        // splats may cover more than one band
+        final int maxBinned = kernel == null ? count : count * Math.min( bands , ((kernel.size-1) >> bandShift) + 2 );
+        if ( binned.length < maxBinned ) {
+            binned = new int[ maxBinned ];
+        }
+
+        final int chunks = (count + chunkSize - 1) / chunkSize;
+        if ( histogram.length < chunks*bands ) {
+            histogram = new int[ chunks*bands ];
+        }
+
+        // pass 1: calculate offsets and count particles per band
+        ChunkTask.run( workers , chunks , chunk ->
+        {
+            final int from = chunk*chunkSize;
+            final int to = Math.min( from + chunkSize , count );
+            final int histOffset = chunk*bands;
+            Arrays.fill( histogram , histOffset , histOffset + bands , 0 );
+            if ( stride == 1 ) {
+                computeOffsets( snapshot , from , to , extrapolateSeconds , histOffset , kernel );
+            } 
+            else 
+            {
+                for ( int block = firstBlock( from , stride ) ; block < to ; block += stride*SAMPLE_BLOCK ) {
+                    computeOffsets( snapshot , Math.max( block , from ) , Math.min( block + SAMPLE_BLOCK , to ) , extrapolateSeconds , histOffset , kernel );
+                }
+            }
+        });
+
+        // turn counts into write pointers so that particles of one band end up in snapshot order
+        int ptr = 0;
+        for ( int band = 0 ; band < bands ; band++ )
+        {
+            bandStart[band] = ptr;
+            for ( int chunk = 0 ; chunk < chunks ; chunk++ )
+            {
+                final int idx = chunk*bands + band;
+                final int bandCount = histogram[idx];
+                histogram[idx] = ptr;
+                ptr += bandCount;
+            }
+        }
+        bandStart[bands] = ptr;
+
+        // pass 2: sort particles by band
+        ChunkTask.run( workers , chunks , chunk ->
+        {
+            final int from = chunk*chunkSize;
+            final int to = Math.min( from + chunkSize , count );
+            final int histOffset = chunk*bands;
+            if ( stride == 1 ) {
+                binParticles( from , to , histOffset , kernel );
+            } 
+            else 
+            {
+                for ( int block = firstBlock( from , stride ) ; block < to ; block += stride*SAMPLE_BLOCK ) {
+                    binParticles( Math.max( block , from ) , Math.min( block + SAMPLE_BLOCK , to ) , histOffset , kernel );
+                }
+            }
+        });
+
+        // pass 3: clear and plot each band
+        final int[] color = snapshot.color;
+        ChunkTask.run( workers , bands , band ->
+        {
+            final int start = bandStart[band];
+            final int end = bandStart[band+1];
+            if ( additive ) 
+            {
+                if ( end > start || bandDirty[band] ) 
+                {
+                    final int[] sums = tiles.get();
+                    if ( kernel == null ) 
+                    {
+                        bandDrawn[band] = accumulatePixels( sums , binned , start , end , color , band , lod , denseShift , strideShift );
+                        bandDirty[band] = bandDrawn[band] > 0;
+                    } else {
+                        bandDrawn[band] = accumulateSplats( sums , binned , start , end , color , kernel , band , lod , denseShift , strideShift );
+                    }
+                    toneMap( sums , pixels , band , kernel == null ? 0 : SplatKernel.WEIGHT_BITS );
+                } else {
+                    bandDrawn[band] = 0;
+                }
+                // splats may be counted in a neighboring band's tiles, their densities are updated after plotting all bands
+                if ( lod && kernel == null ) {
+                    updateDensity( band << (bandShift - tileShiftY) , (band+1) << (bandShift - tileShiftY) , strideShift );
+                }
+                return;
+            }
+            clearBand( pixels , band );
+            if ( lod ) 
+            {
+                bandDrawn[band] = plotLod( binned , start , end , color , pixels , denseMask );
+                updateDensity( band << (bandShift - tileShiftY) , (band+1) << (bandShift - tileShiftY) , strideShift );
+            } 
+            else 
+            {
+                for ( int i = start ; i < end ; i++ )
+                {
+                    final int idx = binned[i];
+                    pixels[ offsets[idx] ] = color[idx];
+                }
+                bandDrawn[band] = end - start;
+            }
+            bandDirty[band] = bandDrawn[band] > 0;
+        });
+
+        if ( lod && kernel != null ) {
+            updateDensity( 0 , tilesY , strideShift );
+        }
+
+        int drawn = 0;
+        for ( int band = 0 ; band < bands ; band++ ) {
+            drawn += bandDrawn[band];
+        }
+        lastDrawnCount = drawn;
+    }
+
+    private void renderSerial(ParticleSnapshot snapshot,int[] pixels,float extrapolateSeconds,boolean lod,int denseMask,int strideShift)
+    {
+        for ( int band = 0 ; band < bands ; band++ ) {
+            clearBand( pixels , band );
+        }
+        final int count = snapshot.getCount();
+        final int stride = 1 << strideShift;
+        int drawn = 0;
+        if ( stride == 1 ) {
+            drawn = plotSerial( snapshot , 0 , count , pixels , extrapolateSeconds , lod , denseMask );
+        } 
+        else 
+        {
+            for ( int block = 0 ; block < count ; block += stride*SAMPLE_BLOCK ) {
+                drawn += plotSerial( snapshot , block , Math.min( block + SAMPLE_BLOCK , count ) , pixels , extrapolateSeconds , lod , denseMask );
+            }
+        }
+        if ( lod ) {
+            updateDensity( 0 , tilesY , strideShift );
+        }
+        lastDrawnCount = drawn;
+    }
+
+    /**
+     * Plots snapshot particles <code>from...to-1</code>.
+     * 
+     * @return number of particles plotted
+     */
+    private int plotSerial(ParticleSnapshot snapshot,int from,int to,int[] pixels,float dt,boolean lod,int denseMask)
+    {
+        final float[] posx = snapshot.posx;
+        final float[] posy = snapshot.posy;
+        final float[] vx = snapshot.vx;
+        final float[] vy = snapshot.vy;
+        final int[] color = snapshot.color;
+        final float cx = width/2;
+        final float cy = height/2;
+        final float w = width;
+        final float h = height;
+        int drawn = 0;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final float x = posx[i] + vx[i]*dt + cx;
+            final float y = cy - (posy[i] + vy[i]*dt);
+            // (int) truncates towards zero so (-1,0) still maps to the first row/column
+            if ( (x > -1f) & (x < w) & (y > -1f) & (y < h) ) 
+            {
+                final int px = (int) x;
+                final int py = (int) y;
+                if ( lod ) 
+                {
+                    final int tile = (py >> tileShiftY)*tilesX + (px >> TILE_SHIFT);
+                    if ( ( i & DENSITY_SAMPLE_MASK ) == 0 ) {
+                        tileCounts[tile]++;
+                    }
+                    if ( ( i & denseMask ) != 0 && denseTiles[tile] ) {
+                        continue;
+                    }
+                }
+                pixels[ px + py*width ] = color[i];
+                bandDirty[ py >> bandShift ] = true;
+                drawn++;
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * Plots particles <code>indices[from...to-1]</code>, skipping particles in dense tiles 
+     * unless their index is a multiple of <code>denseMask+1</code>.
+     * 
+     * @return number of particles plotted
+     */
+    private int plotLod(int[] indices,int from,int to,int[] color,int[] pixels,int denseMask)
+    {
+        int drawn = 0;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int idx = indices[i];
+            final int offset = offsets[idx];
+            final int py = offset / width;
+            final int tile = (py >> tileShiftY)*tilesX + ((offset - py*width) >> TILE_SHIFT);
+            if ( ( idx & DENSITY_SAMPLE_MASK ) == 0 ) {
+                tileCounts[tile]++;
+            }
+            if ( ( idx & denseMask ) == 0 || ! denseTiles[tile] ) 
+            {
+                pixels[ offset ] = color[idx];
+                drawn++;
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * Adds the colors of particles <code>indices[from...to-1]</code> (that all fall into a band) to 
+     * the accumulators of the band's pixels.
+     * 
+     * @return number of particles accumulated
+     */
+    private int accumulatePixels(int[] sums,int[] indices,int from,int to,int[] color,int band,boolean lod,int denseShift,int strideShift)
+    {
+        final int bandOffset = band*bandPixels;
+        final int denseMask = (1 << denseShift) - 1;
+        int drawn = 0;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int idx = indices[i];
+            final int offset = offsets[idx];
+            // particles stand in for the ones that were skipped
+            int shift = strideShift;
+            if ( lod ) 
+            {
+                final int py = offset / width;
+                final int tile = (py >> tileShiftY)*tilesX + ((offset - py*width) >> TILE_SHIFT);
+                if ( ( idx & DENSITY_SAMPLE_MASK ) == 0 ) {
+                    tileCounts[tile]++;
+                }
+                if ( denseTiles[tile] ) 
+                {
+                    if ( ( idx & denseMask ) != 0 ) {
+                        continue;
+                    }
+                    shift += denseShift;
+                }
+            }
+            final int argb = color[idx];
+            final int ptr = offset - bandOffset;
+            sums[ptr] = Math.min( sums[ptr] + ( ((argb >> 16) & 0xff) << shift ) , MAX_SUM );
+            sums[ptr+bandPixels] = Math.min( sums[ptr+bandPixels] + ( ((argb >> 8) & 0xff) << shift ) , MAX_SUM );
+            sums[ptr+2*bandPixels] = Math.min( sums[ptr+2*bandPixels] + ( (argb & 0xff) << shift ) , MAX_SUM );
+            drawn++;
+        }
+        return drawn;
+    }
+
+    /**
+     * Adds the weighted colors of the rows of splats <code>indices[from...to-1]</code> that fall into a band 
+     * to the accumulators of the band's pixels and marks the band as dirty if any splat was plotted.
+     * 
+     * Dense tiles are looked up by the pixel a particle is in and only counted by the band that contains this pixel. 
+     * 
+     * @return number of splats whose first row is in this band
+     */
+    private int accumulateSplats(int[] sums,int[] indices,int from,int to,int[] color,
+            SplatKernel kernel,int band,boolean lod,int denseShift,int strideShift)
+    {
+        final int[] weights = kernel.weights;
+        final int radius = kernel.radius;
+        final int size = kernel.size;
+        final int denseMask = (1 << denseShift) - 1;
+        final int stepMask = SplatKernel.SUBPIXEL_STEPS - 1;
+        final int firstRow = band << bandShift;
+        final int endRow = Math.min( firstRow + (1 << bandShift) , height );
+        int drawn = 0;
+        int plotted = 0;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int idx = indices[i];
+            final int position = offsets[idx];
+            final int sx = (position & 0xffff) - SPLAT_ORIGIN;
+            final int sy = (position >>> 16) - SPLAT_ORIGIN;
+            int shift = strideShift;
+            if ( lod ) 
+            {
+                // pixel containing the particle
+                final int px = (sx + SplatKernel.SUBPIXEL_STEPS/2) >> SplatKernel.SUBPIXEL_BITS;
+                final int py = (sy + SplatKernel.SUBPIXEL_STEPS/2) >> SplatKernel.SUBPIXEL_BITS;
+                if ( px >= 0 && px < width && py >= 0 && py < height ) 
+                {
+                    final int tile = (py >> tileShiftY)*tilesX + (px >> TILE_SHIFT);
+                    if ( ( idx & DENSITY_SAMPLE_MASK ) == 0 && ( py >> bandShift ) == band ) {
+                        tileCounts[tile]++;
+                    }
+                    if ( denseTiles[tile] ) 
+                    {
+                        if ( ( idx & denseMask ) != 0 ) {
+                            continue;
+                        }
+                        shift += denseShift;
+                    }
+                }
+            }
+            // top-left pixel covered by the splat
+            final int left = (sx >> SplatKernel.SUBPIXEL_BITS) - radius + 1;
+            final int top = (sy >> SplatKernel.SUBPIXEL_BITS) - radius + 1;
+            if ( Math.max( top , 0 ) >= firstRow ) {
+                drawn++;
+            }
+            plotted++;
+            final int fromX = Math.max( left , 0 );
+            final int toX = Math.min( left + size , width );
+            final int fromY = Math.max( top , firstRow );
+            final int toY = Math.min( top + size , endRow );
+            final int argb = color[idx];
+            final int r = ((argb >> 16) & 0xff) << shift;
+            final int g = ((argb >> 8) & 0xff) << shift;
+            final int b = (argb & 0xff) << shift;
+            final int kernelOffset = kernel.kernelOffset( sx & stepMask , sy & stepMask );
+            for ( int y = fromY ; y < toY ; y++ )
+            {
+                final int weightRow = kernelOffset + (y - top)*size - left;
+                final int row = (y - firstRow)*width;
+                for ( int x = fromX ; x < toX ; x++ )
+                {
+                    final int w = weights[ weightRow + x ];
+                    final int ptr = row + x;
+                    sums[ptr] = Math.min( sums[ptr] + r*w , MAX_SUM );
+                    sums[ptr+bandPixels] = Math.min( sums[ptr+bandPixels] + g*w , MAX_SUM );
+                    sums[ptr+2*bandPixels] = Math.min( sums[ptr+2*bandPixels] + b*w , MAX_SUM );
+                }
+            }
+        }
+        bandDirty[band] = plotted > 0;
+        return drawn;
+    }
+
+    /**
+     * Tone-maps the accumulators of a band into the framebuffer and resets them.
+     * 
+     * @param fractionBits number of fractional bits of the sums
+     */
+    private void toneMap(int[] sums,int[] pixels,int band,int fractionBits)
+    {
+        final int[] mapR = toneMapR;
+        final int[] mapG = toneMapG;
+        final int[] mapB = toneMapB;
+        final int max = mapR.length - 1;
+        final int alpha = background & 0xff000000;
+        final int bandOffset = band*bandPixels;
+        final int len = Math.min( bandPixels , width*height - bandOffset );
+        for ( int i = 0 ; i < len ; i++ )
+        {
+            pixels[bandOffset+i] = alpha | mapR[ toneMapIndex( sums[i] >>> fractionBits , max ) ] 
+                    | mapG[ toneMapIndex( sums[i+bandPixels] >>> fractionBits , max ) ] 
+                    | mapB[ toneMapIndex( sums[i+2*bandPixels] >>> fractionBits , max ) ];
+        }
+        Arrays.fill( sums , 0 );
+    }
+
+    private static int toneMapIndex(int sum,int max) {
+        return Math.min( sum , max );
+    }
+
+    /**
+     * Marks tiles in rows <code>fromRow...toRow-1</code> as dense for the next frame and resets their counts.
+     * 
+     * @param strideShift counts are scaled by <code>2^strideShift</code> to account for particles that were not considered at all
+     */
+    private void updateDensity(int fromRow,int toRow,int strideShift)
+    {
+        final int threshold = denseTileThreshold;
+        for ( int i = fromRow*tilesX , end = Math.min( toRow , tilesY )*tilesX ; i < end ; i++ )
+        {
+            denseTiles[i] = ( (long) tileCounts[i] << (strideShift + DENSITY_SAMPLE_SHIFT) ) > threshold;
+            tileCounts[i] = 0;
+        }
+    }
+
+    private void clearBand(int[] pixels,int band)
+    {
+        if ( bandDirty[band] )
+        {
+            final int from = band*bandPixels;
+            Arrays.fill( pixels , from , Math.min( from + bandPixels , width*height ) , background );
+            bandDirty[band] = false;
+        }
+    }
+
+    /**
+     * Returns the start of the first sampled block that overlaps with <code>from...</code>.
+     */
+    private static int firstBlock(int from,int stride) {
+        return from & ~((stride << SAMPLE_SHIFT) - 1);
+    }
+
+    private void computeOffsets(ParticleSnapshot snapshot,int from,int to,float dt,int histOffset,SplatKernel kernel)
+    {
+        if ( kernel == null ) 
+        {
+            for ( int i = from ; i < to ; i++ ) {
+                computeOffset( snapshot , i , dt , histOffset );
+            }
+        } 
+        else 
+        {
+            for ( int i = from ; i < to ; i++ ) {
+                computeSplatBands( snapshot , i , dt , histOffset , kernel.radius );
+            }
+        }
+    }
+
+    /**
+     * Calculates the pixel offset and band of a snapshot particle and counts it in the histogram 
+     * if it is inside the framebuffer.
+     */
+    private void computeOffset(ParticleSnapshot snapshot,int i,float dt,int histOffset)
+    {
+        final float x = snapshot.posx[i] + snapshot.vx[i]*dt + width/2;
+        final float y = height/2 - (snapshot.posy[i] + snapshot.vy[i]*dt);
+        // (int) truncates towards zero so (-1,0) still maps to the first row/column
+        if ( (x > -1f) & (x < width) & (y > -1f) & (y < height) ) 
+        {
+            final int py = (int) y;
+            final int band = py >> bandShift;
+            offsets[i] = (int) x + py*width;
+            particleBands[i] = (short) band;
+            histogram[ histOffset + band ]++;
+        } else {
+            offsets[i] = -1;
+        }
+    }
+
+    /**
+     * Calculates the sub-pixel position and the first band covered by the splat of a snapshot particle and counts 
+     * it in the histogram of each band it covers if any part of it is inside the framebuffer.
+     */
+    private void computeSplatBands(ParticleSnapshot snapshot,int i,float dt,int histOffset,int radius)
+    {
+        final float x = snapshot.posx[i] + snapshot.vx[i]*dt + width/2;
+        final float y = height/2 - (snapshot.posy[i] + snapshot.vy[i]*dt);
+        // rule out coordinates that are too large to be converted
+        if ( (x > -radius) & (x < width + radius) & (y > -radius) & (y < height + radius) ) 
+        {
+            final int sx = toSubpixel( x );
+            final int sy = toSubpixel( y );
+            final int left = (sx >> SplatKernel.SUBPIXEL_BITS) - radius + 1;
+            final int top = (sy >> SplatKernel.SUBPIXEL_BITS) - radius + 1;
+            final int right = left + 2*radius - 1;
+            final int bottom = top + 2*radius - 1;
+            if ( right >= 0 && left < width && bottom >= 0 && top < height ) 
+            {
+                final int firstBand = Math.max( top , 0 ) >> bandShift;
+                final int lastBand = Math.min( bottom , height - 1 ) >> bandShift;
+                particleBands[i] = (short) firstBand;
+                offsets[i] = (sx + SPLAT_ORIGIN) | (sy + SPLAT_ORIGIN) << 16;
+                for ( int band = firstBand ; band <= lastBand ; band++ ) {
+                    histogram[ histOffset + band ]++;
+                }
+                return;
+            }
+        }
+        particleBands[i] = -1;
+    }
+
+    /**
+     * Converts a framebuffer coordinate to the number of the nearest sub-pixel step, relative 
+     * to the center of the first pixel.
+     * 
+     * @param coord coordinate, must be greater than <code>-MAX_SPLAT_RADIUS</code>
+     */
+    private static int toSubpixel(float coord) {
+        return (int) ( (coord - 0.5f + SPLAT_BIAS) * SplatKernel.SUBPIXEL_STEPS + 0.5f ) - SPLAT_BIAS*SplatKernel.SUBPIXEL_STEPS;
+    }
+
+    private void binParticles(int from,int to,int histOffset,SplatKernel kernel)
+    {
+        if ( kernel == null ) 
+        {
+            for ( int i = from ; i < to ; i++ )
+            {
+                if ( offsets[i] >= 0 ) {
+                    binned[ histogram[ histOffset + particleBands[i] ]++ ] = i;
+                }
+            }
+            return;
+        }
+        final int lastRow = height - 1;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int first = particleBands[i];
+            if ( first >= 0 )
+            {
+                final int bottom = ((offsets[i] >>> 16) - SPLAT_ORIGIN >> SplatKernel.SUBPIXEL_BITS) + kernel.radius;
+                for ( int band = first , last = Math.min( bottom , lastRow ) >> bandShift ; band <= last ; band++ ) {
+                    binned[ histogram[ histOffset + band ]++ ] = i;
+                }
+            }
+        }
+    }
+}
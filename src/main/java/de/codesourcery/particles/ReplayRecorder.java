@@ -0,0 +1,220 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Records everything needed to reproduce a simulation driven by an {@link OutOfBoundsVisitor}.
+ *
+ * The log starts with a checkpoint of the particle system (see {@link ParticleSystem#save(Path)}), followed by
+ * an append-only stream of events (tick deltas, seeds, bounds changes, bursts scheduled on the animator's {@link Emitter}) in the order they happened. Events are
+ * collected in a direct buffer and written to the file whenever the buffer is full.
+ *
+ * Log layout (little endian):
+ * <pre>
+ * int magic ('PRPL')
+ * int version
+ * long checkpoint size in bytes
+ * byte[] checkpoint
+ * events, each starting with a single type byte
+ * </pre>
+ *
+ * @see Replayer
+ */
+public class ReplayRecorder implements OutOfBoundsVisitor.IEventListener, Closeable
+{
+    static final int MAGIC = 0x5052504c;
+    static final int VERSION = 3;
+    static final int HEADER_SIZE = 16;
+
+    static final byte EVENT_SEED = 1;
+    static final byte EVENT_TICK = 2;
+    static final byte EVENT_INIT = 3;
+    static final byte EVENT_BURST = 4;
+    static final byte EVENT_BOUNDS = 5;
+
+    // max. size of a single event
+    static final int MAX_EVENT_SIZE = 1 + 7*4;
+
+    private final OutOfBoundsVisitor animator;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect( 64*1024 ).order( ByteOrder.LITTLE_ENDIAN );
+
+    private long position;
+    private long eventCount;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Starts recording.
+     *
+     * Must not be called while the system is being ticked.
+     *
+     * @param file log file to write, existing files are overwritten
+     * @param system the system to record
+     * @param animator the system's animator
+     */
+    public ReplayRecorder(Path file,ParticleSystem system,OutOfBoundsVisitor animator) throws IOException
+    {
+        Validate.notNull(file,"file must not be NULL");
+        Validate.notNull(system,"system must not be NULL");
+        Validate.notNull(animator,"animator must not be NULL");
+        this.animator = animator;
+        this.channel = FileChannel.open( file , StandardOpenOption.CREATE , StandardOpenOption.TRUNCATE_EXISTING , 
+                StandardOpenOption.READ , StandardOpenOption.WRITE );
+        try 
+        {
+            final long checkpointSize = system.save( channel , HEADER_SIZE );
+            final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+            header.putInt( MAGIC ).putInt( VERSION ).putLong( checkpointSize ).flip();
+            while ( header.hasRemaining() ) {
+                channel.write( header , header.position() );
+            }
+            this.position = HEADER_SIZE + checkpointSize;
+        } 
+        catch(IOException | RuntimeException e) 
+        {
+            channel.close();
+            throw e;
+        }
+        animator.setEventListener( this );
+    }
+
+    @Override
+    public synchronized void seeded(long seed) 
+    {
+        if ( prepare() ) {
+            buffer.put( EVENT_SEED ).putLong( seed );
+        }
+    }
+
+    @Override
+    public synchronized void boundsChanged(int width,int height) 
+    {
+        if ( prepare() ) {
+            buffer.put( EVENT_BOUNDS ).putInt( width ).putInt( height );
+        }
+    }
+
+    @Override
+    public synchronized void tickStarted(float deltaSeconds) 
+    {
+        if ( prepare() ) {
+            buffer.put( EVENT_TICK ).putFloat( deltaSeconds );
+        }
+    }
+
+    @Override
+    public synchronized void initialized() 
+    {
+        if ( prepare() ) {
+            buffer.put( EVENT_INIT );
+        }
+    }
+
+    @Override
+    public synchronized void burstScheduled(int shapeIdx,float x,float y,float vx,float vy,int count,float intervalSeconds) 
+    {
+        if ( prepare() ) 
+        {
+            buffer.put( EVENT_BURST ).putInt( shapeIdx ).putFloat( x ).putFloat( y ).putFloat( vx ).putFloat( vy )
+                .putInt( count ).putFloat( intervalSeconds );
+        }
+    }
+
+    /**
+     * Makes sure the buffer can hold another event.
+     *
+     * Write errors are not propagated to the animator, they are rethrown by {@link #close()}.
+     *
+     * @return <code>false</code> if the event should be ignored because recording stopped
+     */
+    private boolean prepare() 
+    {
+        if ( closed ) {
+            return false;
+        }
+        if ( buffer.remaining() < MAX_EVENT_SIZE ) 
+        {
+            try {
+                flush();
+            } 
+            catch(IOException e) 
+            {
+                failure = e;
+                closed = true;
+                return false;
+            }
+        }
+        eventCount++;
+        return true;
+    }
+
+    private void flush() throws IOException
+    {
+        buffer.flip();
+        while ( buffer.hasRemaining() ) {
+            position += channel.write( buffer , position );
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the number of events recorded so far.
+     */
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Stops recording and writes all pending events.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        animator.setEventListener( null );
+        synchronized(this) 
+        {
+            if ( channel.isOpen() )
+            {
+                try 
+                {
+                    if ( ! closed ) {
+                        flush();
+                    }
+                    channel.force( false );
+                } 
+                finally 
+                {
+                    closed = true;
+                    channel.close();
+                }
+            }
+            if ( failure != null ) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Replays a log written by {@link ReplayRecorder}.
+ *
+ * The system is restored from the log's checkpoint and then ticked with the recorded time deltas as fast as possible.
+ * Automatic spawning is disabled while replaying, bursts are scheduled on the animator's {@link Emitter} exactly 
+ * when and where the log says instead, so the replay yields the same particle states as the recorded run - regardless 
+ * of whether the recorded run ticked in parallel or not. The replaying system must use the same 
+ * {@link ParticleSystem#setChunkSize(int) chunk size} and bookkeeping mode as the recorded one, a pool is optional.
+ */
+public class Replayer implements Closeable
+{
+    private final ParticleSystem system;
+    private final OutOfBoundsVisitor animator;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect( 64*1024 ).order( ByteOrder.LITTLE_ENDIAN );
+
+    // file offset of the first byte not yet read into the buffer
+    private long position;
+    private long tickCount;
+
+    /**
+     * Opens a log and restores the system to the state it had when recording started.
+     *
+     * @param file log to replay
+     * @param system system to replay into, must have the same capacity as the recorded one
+     * @param animator the system's animator, configured like the recorded one (bounds, custom shapes)
+     */
+    public Replayer(Path file,ParticleSystem system,OutOfBoundsVisitor animator) throws IOException
+    {
+        Validate.notNull(file,"file must not be NULL");
+        Validate.notNull(system,"system must not be NULL");
+        Validate.notNull(animator,"animator must not be NULL");
+        Validate.isTrue( system.getAnimator() == animator , "animator must be the system's animator");
+        this.system = system;
+        this.animator = animator;
+        this.channel = FileChannel.open( file , StandardOpenOption.READ );
+        try 
+        {
+            final ByteBuffer header = ByteBuffer.allocate( ReplayRecorder.HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+            while ( header.hasRemaining() && channel.read( header , header.position() ) > 0 ) {
+                // read header
+            }
+            header.flip();
+            if ( header.remaining() < ReplayRecorder.HEADER_SIZE || header.getInt() != ReplayRecorder.MAGIC ) {
+                throw new IOException("Not a replay log: "+file);
+            }
+            final int version = header.getInt();
+            if ( version != ReplayRecorder.VERSION ) {
+                throw new IOException("Unsupported replay log version "+version+", expected "+ReplayRecorder.VERSION);
+            }
+            final long checkpointSize = header.getLong();
+            if ( system.load( channel , ReplayRecorder.HEADER_SIZE ) != checkpointSize ) {
+                throw new IOException("Corrupted replay log: "+file);
+            }
+            this.position = ReplayRecorder.HEADER_SIZE + checkpointSize;
+        } 
+        catch(IOException | RuntimeException e) 
+        {
+            channel.close();
+            throw e;
+        }
+        buffer.limit( 0 );
+        animator.setAutoSpawn( false );
+    }
+
+    /**
+     * Replays the next tick along with all events that happened until the tick after it.
+     *
+     * @return <code>false</code> if the end of the log has been reached
+     */
+    public boolean step() throws IOException
+    {
+        int type;
+        while ( ( type = nextEvent() ) != -1 && type != ReplayRecorder.EVENT_TICK ) {
+            replay( type );
+        }
+        if ( type == -1 ) {
+            return false;
+        }
+        replay( type );
+        while ( ( type = nextEvent() ) != -1 && type != ReplayRecorder.EVENT_TICK ) {
+            replay( type );
+        }
+        return true;
+    }
+
+    /**
+     * Replays ticks until a given number of ticks has been reached or the log ends.
+     *
+     * @return number of ticks replayed so far
+     */
+    public long skipTo(long tick) throws IOException
+    {
+        while ( tickCount < tick && step() ) {
+            // replay
+        }
+        return tickCount;
+    }
+
+    /**
+     * Returns the number of ticks replayed so far.
+     */
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    private void replay(int type)
+    {
+        buffer.get(); // type
+        switch( type ) 
+        {
+            case ReplayRecorder.EVENT_SEED:
+                animator.setSeed( buffer.getLong() );
+                break;
+            case ReplayRecorder.EVENT_BOUNDS:
+                final int width = buffer.getInt();
+                final int height = buffer.getInt();
+                animator.setBounds( width , height );
+                break;
+            case ReplayRecorder.EVENT_TICK:
+                system.tick( buffer.getFloat() );
+                tickCount++;
+                break;
+            case ReplayRecorder.EVENT_INIT:
+                animator.init( system );
+                break;
+            case ReplayRecorder.EVENT_BURST:
+                final int shapeIdx = buffer.getInt();
+                final float px = buffer.getFloat();
+                final float py = buffer.getFloat();
+                final float vx = buffer.getFloat();
+                final float vy = buffer.getFloat();
+                final int count = buffer.getInt();
+                final float interval = buffer.getFloat();
+                animator.replayBurst( shapeIdx , px , py , vx , vy , count , interval );
+                break;
+            default:
+                throw new IllegalStateException("Unreachable code reached");
+        }
+    }
+
+    /**
+     * Makes sure the next event is completely in the buffer.
+     *
+     * @return type of the next event or -1 if the log ended (a truncated event at the end of the log is ignored)
+     */
+    private int nextEvent() throws IOException
+    {
+        if ( ! fill( 1 ) ) {
+            return -1;
+        }
+        final byte type = buffer.get( buffer.position() );
+        final int size;
+        switch( type ) 
+        {
+            case ReplayRecorder.EVENT_SEED:   size = 1 + 8; break;
+            case ReplayRecorder.EVENT_BOUNDS: size = 1 + 2*4; break;
+            case ReplayRecorder.EVENT_TICK:   size = 1 + 4; break;
+            case ReplayRecorder.EVENT_INIT:   size = 1; break;
+            case ReplayRecorder.EVENT_BURST:  size = 1 + 7*4; break;
+            default:
+                throw new IOException("Corrupted replay log, unknown event type "+type);
+        }
+        return fill( size ) ? type : -1;
+    }
+
+    private boolean fill(int bytes) throws IOException
+    {
+        if ( buffer.remaining() >= bytes ) {
+            return true;
+        }
+        buffer.compact();
+        int read;
+        while ( buffer.position() < bytes && ( read = channel.read( buffer , position ) ) > 0 ) {
+            position += read;
+        }
+        buffer.flip();
+        return buffer.remaining() >= bytes;
+    }
+
+    /**
+     * Closes the log and re-enables automatic spawning so that the simulation can continue from the replayed state.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        animator.setAutoSpawn( true );
+        channel.close();
+    }
+}
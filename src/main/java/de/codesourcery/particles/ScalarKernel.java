@@ -0,0 +1,68 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+/**
+ * Plain Java loops.
+ */
+final class ScalarKernel implements IParticleKernel
+{
+    @Override
+    public void move(ParticleStorage storage, int[] indices, int count, float deltaSeconds) {
+        storage.move( indices , 0 , count , deltaSeconds );
+    }
+
+    @Override
+    public boolean age(AnimatorPipeline.Batch batch)
+    {
+        final int[] age = batch.storage.age;
+        final int[] indices = batch.indices;
+        boolean anyKilled = false;
+        for ( int i = 0 , count = batch.count ; i < count ; i++ )
+        {
+            if ( --age[ indices[i] ] < 0 ) {
+                batch.kill( i );
+                anyKilled = true;
+            }
+        }
+        return anyKilled;
+    }
+
+    @Override
+    public boolean cull(AnimatorPipeline.Batch batch, float minX, float minY, float maxX, float maxY)
+    {
+        final float[] posx = batch.storage.posx;
+        final float[] posy = batch.storage.posy;
+        final int[] indices = batch.indices;
+        boolean anyKilled = false;
+        for ( int i = 0 , count = batch.count ; i < count ; i++ )
+        {
+            final int idx = indices[i];
+            final float x = posx[idx];
+            final float y = posy[idx];
+            if ( x < minX || y < minY || x > maxX || y > maxY ) {
+                batch.kill( i );
+                anyKilled = true;
+            }
+        }
+        return anyKilled;
+    }
+
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * A shape compiled into packed velocity offsets, ready to be spawned by an {@link Emitter}.
+ *
+ * Offsets are stored as <code>vx0,vy0,vx1,vy1,...</code> in a single array. Instances are immutable.
+ */
+public final class ShapeTemplate
+{
+    final float[] offsets;
+
+    private ShapeTemplate(float[] offsets) {
+        this.offsets = offsets;
+    }
+
+    /**
+     * Compiles a list of velocity offsets as returned by {@link ImageToVectors}.
+     */
+    public static ShapeTemplate compile(List<Vec2d> velocities)
+    {
+        Validate.notNull(velocities,"velocities must not be NULL");
+        final float[] offsets = new float[ velocities.size()*2 ];
+        int ptr = 0;
+        for ( Vec2d v : velocities ) 
+        {
+            offsets[ptr++] = v.x;
+            offsets[ptr++] = v.y;
+        }
+        return new ShapeTemplate( offsets );
+    }
+
+    /**
+     * Creates a template from packed velocity offsets.
+     */
+    public static ShapeTemplate of(float... offsets)
+    {
+        if ( (offsets.length & 1) != 0 ) {
+            throw new IllegalArgumentException("Need an even number of values");
+        }
+        return new ShapeTemplate( offsets.clone() );
+    }
+
+    /**
+     * @see ImageToVectors#scanImage(BufferedImage, float)
+     */
+    public static ShapeTemplate fromImage(BufferedImage image,float timeToDisplay) {
+        return compile( ImageToVectors.scanImage( image , timeToDisplay ) );
+    }
+
+    /**
+     * @see ImageToVectors#load(String, float)
+     */
+    public static ShapeTemplate fromText(String text,float timeToDisplay) {
+        return compile( ImageToVectors.load( text , timeToDisplay ) );
+    }
+
+    /**
+     * Returns the number of particles in this shape.
+     */
+    public int size() {
+        return offsets.length/2;
+    }
+
+    public float getVelocityX(int particle) {
+        return offsets[ particle*2 ];
+    }
+
+    public float getVelocityY(int particle) {
+        return offsets[ particle*2+1 ];
+    }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Drives a {@link ParticleSystem} with a fixed time step.
+ *
+ * Elapsed (wall-clock) time is added to an accumulator and the system is ticked once for
+ * every full time step in the accumulator, up to {@link #setMaxStepsPerAdvance(int) a maximum number of steps}.
+ * Time that exceeds this limit is dropped so that a long pause (GC, debugger, ...) does not cause a burst of ticks.
+ *
+ * The loop can either run on its own thread ({@link #start()}) or be driven manually by calling {@link #advance(long)}
+ * or {@link #step(int)}, for example when running headless.
+ */
+public class SimulationLoop
+{
+    private final ParticleSystem system;
+    private final float stepSeconds;
+    private final long stepNanos;
+
+    private int maxStepsPerAdvance = 5;
+    private ThreadFactory threadFactory = r ->
+    {
+        final Thread t = new Thread( r , "simulation-loop" );
+        t.setDaemon( true );
+        return t;
+    };
+    private IStepListener listener;
+
+    private final Object threadLock = new Object();
+    private Thread thread;
+    private volatile boolean running;
+
+    // accumulated time not yet simulated
+    private volatile long accumulatorNanos;
+    private volatile long totalSteps;
+    private volatile long droppedSteps;
+    private volatile float simulationRate;
+
+    private long rateWindowStart;
+    private long rateWindowSteps;
+
+    public interface IStepListener
+    {
+        /**
+         * Invoked on the simulation thread after each step.
+         *
+         * @param system the system that has been ticked
+         * @param stepNumber number of steps taken so far, starting with 1
+         */
+        public void afterStep(ParticleSystem system,long stepNumber);
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param system the system to drive
+     * @param stepsPerSecond simulation rate
+     */
+    public SimulationLoop(ParticleSystem system,int stepsPerSecond)
+    {
+        Validate.notNull(system,"system must not be NULL");
+        if ( stepsPerSecond < 1 ) {
+            throw new IllegalArgumentException("Steps per second must be >= 1");
+        }
+        this.system = system;
+        this.stepNanos = TimeUnit.SECONDS.toNanos( 1 ) / stepsPerSecond;
+        this.stepSeconds = 1.0f / stepsPerSecond;
+    }
+
+    public void setListener(IStepListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the max. number of steps a single call to {@link #advance(long)} may take to catch up.
+     */
+    public void setMaxStepsPerAdvance(int maxSteps)
+    {
+        if ( maxSteps < 1 ) {
+            throw new IllegalArgumentException("Max. steps must be >= 1");
+        }
+        this.maxStepsPerAdvance = maxSteps;
+    }
+
+    /**
+     * Sets the factory used to create the simulation thread when {@link #start()} is called.
+     */
+    public void setThreadFactory(ThreadFactory threadFactory)
+    {
+        Validate.notNull(threadFactory,"threadFactory must not be NULL");
+        this.threadFactory = threadFactory;
+    }
+
+    public float getStepSeconds() {
+        return stepSeconds;
+    }
+
+    /**
+     * Adds elapsed time to the accumulator and performs as many fixed-size steps as the
+     * accumulated time allows, up to the configured max. number of steps.
+     *
+     * @param elapsedNanos elapsed time since the last call
+     * @return number of steps taken
+     */
+    public int advance(long elapsedNanos)
+    {
+        if ( elapsedNanos < 0 ) {
+            throw new IllegalArgumentException("Elapsed time must be >= 0");
+        }
+        long acc = accumulatorNanos + elapsedNanos;
+        int steps = 0;
+        while ( acc >= stepNanos && steps < maxStepsPerAdvance )
+        {
+            doStep();
+            acc -= stepNanos;
+            steps++;
+        }
+        if ( acc >= stepNanos )
+        {
+            // could not catch up, drop whole steps and keep the fraction
+            droppedSteps += acc / stepNanos;
+            acc %= stepNanos;
+        }
+        accumulatorNanos = acc;
+        updateRate( steps );
+        return steps;
+    }
+
+    /**
+     * Performs a number of steps, ignoring the accumulator.
+     */
+    public void step(int count)
+    {
+        for ( int i = 0 ; i < count ; i++ ) {
+            doStep();
+        }
+        updateRate( count );
+    }
+
+    private void doStep()
+    {
+        system.tick( stepSeconds );
+        final long stepNumber = ++totalSteps;
+        final IStepListener l = listener;
+        if ( l != null ) {
+            l.afterStep( system , stepNumber );
+        }
+    }
+
+    private void updateRate(int steps)
+    {
+        final long now = System.nanoTime();
+        if ( rateWindowSteps == 0 && rateWindowStart == 0 ) {
+            rateWindowStart = now;
+        }
+        rateWindowSteps += steps;
+        final long elapsed = now - rateWindowStart;
+        if ( elapsed >= TimeUnit.SECONDS.toNanos( 1 ) )
+        {
+            simulationRate = rateWindowSteps / (elapsed / 1_000_000_000f);
+            rateWindowStart = now;
+            rateWindowSteps = 0;
+        }
+    }
+
+    /**
+     * Returns the fraction of a step that has accumulated but not been simulated yet (0...1).
+     *
+     * Renderers can use this to extrapolate particle positions between steps.
+     */
+    public float getInterpolationAlpha() {
+        return accumulatorNanos / (float) stepNanos;
+    }
+
+    /**
+     * Returns the measured number of steps per second.
+     */
+    public float getSimulationRate() {
+        return simulationRate;
+    }
+
+    /**
+     * Returns the number of steps that were skipped because the simulation could not keep up.
+     */
+    public long getDroppedSteps() {
+        return droppedSteps;
+    }
+
+    /**
+     * Returns the time (in nanoseconds) the simulation currently lags behind wall-clock time.
+     */
+    public long getLagNanos() {
+        return accumulatorNanos;
+    }
+
+    public long getTotalSteps() {
+        return totalSteps;
+    }
+
+    /**
+     * Starts simulating on a new thread.
+     */
+    public void start()
+    {
+        synchronized(threadLock)
+        {
+            if ( thread != null ) {
+                throw new IllegalStateException("Already running");
+            }
+            running = true;
+            thread = threadFactory.newThread( this::run );
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the simulation thread and waits for it to terminate.
+     */
+    public void stop() throws InterruptedException
+    {
+        final Thread t;
+        synchronized(threadLock)
+        {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if ( t != null )
+        {
+            LockSupport.unpark( t );
+            t.join();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void run()
+    {
+        try 
+        {
+            long last = System.nanoTime();
+            while ( running )
+            {
+                final long now = System.nanoTime();
+                advance( now - last );
+                last = now;
+                
+                final long sleepNanos = stepNanos - accumulatorNanos - (System.nanoTime() - now);
+                if ( sleepNanos > 0 ) {
+                    LockSupport.parkNanos( sleepNanos );
+                }
+            }
+        } 
+        finally 
+        {
+            running = false;
+        }
+    }
+}
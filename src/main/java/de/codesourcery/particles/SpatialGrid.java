@@ -0,0 +1,359 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A uniform grid over the alive particles of a {@link ParticleSystem}.
+ *
+ * The grid is rebuilt from scratch after every tick using a counting sort: particles are
+ * counted per cell, the counts are turned into offsets and the particle indices (along with copies of
+ * their positions) are then scattered into a single array that is ordered by cell. There are no per-cell lists
+ * and once the internal arrays have grown to their final size, rebuilding does not allocate any memory.
+ *
+ * Particles outside of the grid's area are put into the nearest border cell, so every alive
+ * particle can be found by a query.
+ *
+ * Queries must not run concurrently with {@link #rebuild(ParticleStorage, int[], int, ForkJoinPool, int) rebuilding}, 
+ * when attached to a system via {@link ParticleSystem#setSpatialGrid(SpatialGrid)} this means they may run
+ * anytime except at the very end of a tick. Positions reported by queries are the ones at the time the grid was built.
+ */
+public class SpatialGrid
+{
+    private static final int[] EMPTY = new int[0];
+
+    private final float minX;
+    private final float minY;
+    private final float invCellSize;
+    final int columns;
+    private final int rows;
+    private final int cells;
+
+    // cellStart[cell]...cellStart[cell+1]-1 are the entries of a cell
+    final int[] cellStart;
+    // particle indices, positions and (optionally) velocities, ordered by cell
+    int[] particles = new int[0];
+    float[] x = new float[0];
+    float[] y = new float[0];
+    float[] vx = new float[0];
+    float[] vy = new float[0];
+    private boolean storeVelocities;
+    // whether vx/vy are valid for the current contents
+    boolean hasVelocities;
+    // cell of each particle that was passed to rebuild(), -1 if the particle is not alive
+    private int[] cellOf = new int[0];
+    // entries per (chunk,cell), turned into write pointers after counting
+    int[] histogram = new int[0];
+    private int count;
+
+    /**
+     * Visits a particle found by a query.
+     */
+    public interface IGridVisitor
+    {
+        /**
+         * @param particle index of the particle
+         * @param x x coordinate of the particle
+         * @param y y coordinate of the particle
+         */
+        public void visit(int particle,float x,float y);
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param minX left edge of the grid
+     * @param minY bottom edge of the grid
+     * @param width grid width
+     * @param height grid height
+     * @param cellSize edge length of a (square) cell
+     */
+    public SpatialGrid(float minX,float minY,float width,float height,float cellSize)
+    {
+        if ( ! ( width > 0 && height > 0 ) ) {
+            throw new IllegalArgumentException("Width and height must be > 0");
+        }
+        if ( ! ( cellSize > 0 ) ) {
+            throw new IllegalArgumentException("Cell size must be > 0");
+        }
+        final long columns = (long) Math.ceil( width / cellSize );
+        final long rows = (long) Math.ceil( height / cellSize );
+        if ( columns * rows > 64*1024*1024 ) {
+            throw new IllegalArgumentException("Cell size too small, grid would have "+(columns*rows)+" cells");
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.invCellSize = 1f / cellSize;
+        this.columns = (int) columns;
+        this.rows = (int) rows;
+        this.cells = this.columns * this.rows;
+        this.cellStart = new int[ cells + 1 ];
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the number of particles in the grid.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Sets whether the grid should keep copies of the particles' velocities as well.
+     */
+    public void setStoreVelocities(boolean storeVelocities) {
+        this.storeVelocities = storeVelocities;
+    }
+
+    public boolean isStoreVelocities() {
+        return storeVelocities;
+    }
+
+    int column(float px) 
+    {
+        final int col = (int) ( (px - minX) * invCellSize );
+        return col < 0 ? 0 : col >= columns ? columns-1 : col;
+    }
+
+    int row(float py) 
+    {
+        final int row = (int) ( (py - minY) * invCellSize );
+        return row < 0 ? 0 : row >= rows ? rows-1 : row;
+    }
+
+    /**
+     * Rebuilds the grid on the caller's thread.
+     *
+     * @see #rebuild(ParticleStorage, int[], int, ForkJoinPool, int)
+     */
+    public void rebuild(ParticleStorage storage,int[] indices,int count) 
+    {
+        rebuild( storage , indices , count , null , Math.max( 1 , count ) );
+    }
+
+    /**
+     * Rebuilds the grid from the {@link ParticleStorage#ALIVE alive} particles among <code>indices[0]...indices[count-1]</code>.
+     *
+     * Clearing the per-chunk histograms and turning them into write pointers takes time proportional to 
+     * <code>chunks * cells</code>, so chunks are made larger than <code>maxChunkSize</code> when needed to keep 
+     * their number below the pool's parallelism and below <code>count / cells</code>.
+     *
+     * @param pool pool to use or <code>null</code> to rebuild on the caller's thread
+     * @param maxChunkSize number of particles processed by a single task
+     */
+    public void rebuild(ParticleStorage storage,int[] indices,int count,ForkJoinPool pool,int maxChunkSize)
+    {
+        if ( maxChunkSize < 1 ) {
+            throw new IllegalArgumentException("Chunk size must be >= 1");
+        }
+        // every chunk needs its own histogram, so only use multiple chunks when running in parallel
+        int chunks = 1;
+        if ( pool != null ) 
+        {
+            final long maxChunks = Math.min( pool.getParallelism() , count / (long) cells );
+            chunks = (int) Math.max( 1 , Math.min( (count + (long) maxChunkSize - 1) / maxChunkSize , maxChunks ) );
+        }
+        final int chunkSize = Math.max( 1 , (count + chunks - 1) / chunks );
+        if ( cellOf.length < count ) 
+        {
+            final int size = Math.max( count , storage.capacity );
+            cellOf = new int[ size ];
+            particles = new int[ size ];
+            x = new float[ size ];
+            y = new float[ size ];
+        }
+        final boolean withVelocities = storeVelocities;
+        if ( withVelocities && vx.length != particles.length ) 
+        {
+            vx = new float[ particles.length ];
+            vy = new float[ particles.length ];
+        }
+        if ( histogram.length < chunks * cells ) {
+            histogram = new int[ chunks * cells ];
+        }
+
+        // pass 1: determine cells and count entries per cell
+        ChunkTask.run( pool , chunks , chunk -> 
+        {
+            final int from = chunk*chunkSize;
+            final int to = Math.min( from + chunkSize , count );
+            final int histOffset = chunk*cells;
+            Arrays.fill( histogram , histOffset , histOffset + cells , 0 );
+            final byte[] state = storage.state;
+            final float[] posx = storage.posx;
+            final float[] posy = storage.posy;
+            for ( int i = from ; i < to ; i++ )
+            {
+                final int idx = indices[i];
+                if ( state[idx] == ParticleStorage.ALIVE ) 
+                {
+                    final int cell = row( posy[idx] ) * columns + column( posx[idx] );
+                    cellOf[i] = cell;
+                    histogram[ histOffset + cell ]++;
+                } else {
+                    cellOf[i] = -1;
+                }
+            }
+        });
+
+        // turn counts into write pointers, entries of a cell keep the order of 'indices'
+        int ptr = 0;
+        for ( int cell = 0 ; cell < cells ; cell++ )
+        {
+            cellStart[cell] = ptr;
+            for ( int idx = cell ; idx < chunks*cells ; idx += cells )
+            {
+                final int cellCount = histogram[idx];
+                histogram[idx] = ptr;
+                ptr += cellCount;
+            }
+        }
+        cellStart[cells] = ptr;
+        this.count = ptr;
+        this.hasVelocities = withVelocities;
+
+        // pass 2: scatter
+        ChunkTask.run( pool , chunks , chunk -> 
+        {
+            final int from = chunk*chunkSize;
+            final int to = Math.min( from + chunkSize , count );
+            final int histOffset = chunk*cells;
+            final float[] posx = storage.posx;
+            final float[] posy = storage.posy;
+            for ( int i = from ; i < to ; i++ )
+            {
+                final int cell = cellOf[i];
+                if ( cell >= 0 ) 
+                {
+                    final int idx = indices[i];
+                    final int dst = histogram[ histOffset + cell ]++;
+                    particles[dst] = idx;
+                    x[dst] = posx[idx];
+                    y[dst] = posy[idx];
+                    if ( withVelocities ) 
+                    {
+                        vx[dst] = storage.vx[idx];
+                        vy[dst] = storage.vy[idx];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Visits all particles inside a rectangle (inclusive).
+     *
+     * @return number of particles visited
+     */
+    public int visitRange(float x0,float y0,float x1,float y1,IGridVisitor visitor)
+    {
+        final float xmin = Math.min( x0 , x1 );
+        final float xmax = Math.max( x0 , x1 );
+        final float ymin = Math.min( y0 , y1 );
+        final float ymax = Math.max( y0 , y1 );
+        final int c0 = column( xmin );
+        final int c1 = column( xmax );
+        int visited = 0;
+        for ( int row = row( ymin ) , lastRow = row( ymax ) ; row <= lastRow ; row++ )
+        {
+            // cells c0...c1 of a row are adjacent in the sorted arrays
+            for ( int i = cellStart[ row*columns + c0 ] , end = cellStart[ row*columns + c1 + 1 ] ; i < end ; i++ )
+            {
+                final float px = x[i];
+                final float py = y[i];
+                if ( px >= xmin && px <= xmax && py >= ymin && py <= ymax ) 
+                {
+                    visitor.visit( particles[i] , px , py );
+                    visited++;
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Visits all particles within a given distance of a point (inclusive).
+     *
+     * @return number of particles visited
+     */
+    public int visitRadius(float cx,float cy,float radius,IGridVisitor visitor)
+    {
+        final float r2 = radius*radius;
+        final int c0 = column( cx - radius );
+        final int c1 = column( cx + radius );
+        int visited = 0;
+        for ( int row = row( cy - radius ) , lastRow = row( cy + radius ) ; row <= lastRow ; row++ )
+        {
+            for ( int i = cellStart[ row*columns + c0 ] , end = cellStart[ row*columns + c1 + 1 ] ; i < end ; i++ )
+            {
+                final float dx = x[i] - cx;
+                final float dy = y[i] - cy;
+                if ( dx*dx + dy*dy <= r2 ) 
+                {
+                    visitor.visit( particles[i] , x[i] , y[i] );
+                    visited++;
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Collects the indices of all particles within a given distance of a point (inclusive).
+     *
+     * @param result array to store particle indices in
+     * @return number of particles found, only the first <code>result.length</code> are stored
+     */
+    public int queryRadius(float cx,float cy,float radius,int[] result)
+    {
+        final float r2 = radius*radius;
+        final int c0 = column( cx - radius );
+        final int c1 = column( cx + radius );
+        int found = 0;
+        for ( int row = row( cy - radius ) , lastRow = row( cy + radius ) ; row <= lastRow ; row++ )
+        {
+            for ( int i = cellStart[ row*columns + c0 ] , end = cellStart[ row*columns + c1 + 1 ] ; i < end ; i++ )
+            {
+                final float dx = x[i] - cx;
+                final float dy = y[i] - cy;
+                if ( dx*dx + dy*dy <= r2 ) 
+                {
+                    if ( found < result.length ) {
+                        result[found] = particles[i];
+                    }
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the number of particles within a given distance of a point (inclusive).
+     */
+    public int countRadius(float cx,float cy,float radius) {
+        return queryRadius( cx , cy , radius , EMPTY );
+    }
+}
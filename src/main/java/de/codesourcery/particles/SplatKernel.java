@@ -0,0 +1,137 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+/**
+ * Precomputed weights for plotting a particle as an anti-aliased splat.
+ *
+ * A splat with radius <code>r</code> covers <code>2r x 2r</code> pixels, each pixel is weighted with a tent filter 
+ * of half-width <code>r</code> centered on the particle (radius 1 is bilinear interpolation between the 4 nearest pixels). 
+ * The sub-pixel position of a particle is quantized to {@link #SUBPIXEL_STEPS} steps per axis and the weights for each 
+ * step are calculated up-front, so plotting only takes table lookups.
+ *
+ * Weights are fixed-point numbers with {@link #WEIGHT_BITS} fractional bits and the weights of each 
+ * kernel add up to exactly <code>1 &lt;&lt; WEIGHT_BITS</code>, so splats keep their brightness while moving.
+ */
+final class SplatKernel
+{
+    public static final int MAX_RADIUS = 4;
+
+    public static final int SUBPIXEL_BITS = 3;
+    public static final int SUBPIXEL_STEPS = 1 << SUBPIXEL_BITS;
+    public static final int WEIGHT_BITS = 8;
+
+    private static final SplatKernel[] CACHE = new SplatKernel[ MAX_RADIUS+1 ];
+
+    static
+    {
+        for ( int r = 1 ; r <= MAX_RADIUS ; r++ ) {
+            CACHE[r] = new SplatKernel( r );
+        }
+    }
+
+    public final int radius;
+    /** width and height in pixels */
+    public final int size;
+    /** weights of row-major <code>size x size</code> kernels, one for each sub-pixel step (<code>stepY*SUBPIXEL_STEPS+stepX</code>) */
+    public final int[] weights;
+
+    private SplatKernel(int radius)
+    {
+        this.radius = radius;
+        this.size = 2*radius;
+        this.weights = new int[ SUBPIXEL_STEPS*SUBPIXEL_STEPS*size*size ];
+
+        final double[][] tent = new double[ SUBPIXEL_STEPS ][];
+        for ( int step = 0 ; step < SUBPIXEL_STEPS ; step++ ) {
+            tent[step] = tent( step );
+        }
+        final int total = 1 << WEIGHT_BITS;
+        for ( int stepY = 0 ; stepY < SUBPIXEL_STEPS ; stepY++ )
+        {
+            for ( int stepX = 0 ; stepX < SUBPIXEL_STEPS ; stepX++ )
+            {
+                final int offset = kernelOffset( stepX , stepY );
+                final double[] remainders = new double[ size*size ];
+                int sum = 0;
+                for ( int y = 0 ; y < size ; y++ )
+                {
+                    for ( int x = 0 ; x < size ; x++ )
+                    {
+                        final double weight = tent[stepX][x] * tent[stepY][y] * total;
+                        weights[offset + y*size + x] = (int) weight;
+                        remainders[y*size + x] = weight - (int) weight;
+                        sum += (int) weight;
+                    }
+                }
+                // distribute what got lost by rounding down to the weights with the largest remainders
+                for ( ; sum < total ; sum++ )
+                {
+                    int largest = 0;
+                    for ( int i = 1 ; i < remainders.length ; i++ ) 
+                    {
+                        if ( remainders[i] > remainders[largest] ) {
+                            largest = i;
+                        }
+                    }
+                    weights[offset + largest]++;
+                    remainders[largest] = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns normalized tent filter weights of the pixels covered by a splat along one axis.
+     */
+    private double[] tent(int step)
+    {
+        final double fraction = step / (double) SUBPIXEL_STEPS;
+        final double[] result = new double[ size ];
+        double sum = 0;
+        for ( int i = 0 ; i < size ; i++ )
+        {
+            // distance between the pixel center and the particle
+            final double distance = Math.abs( i - radius + 1 - fraction );
+            result[i] = Math.max( 0 , radius - distance );
+            sum += result[i];
+        }
+        for ( int i = 0 ; i < size ; i++ ) {
+            result[i] /= sum;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the offset of a kernel in {@link #weights}.
+     */
+    public int kernelOffset(int stepX,int stepY) {
+        return (stepY*SUBPIXEL_STEPS + stepX)*size*size;
+    }
+
+    /**
+     * Returns the cached kernel for a radius.
+     *
+     * @param radius radius (1...{@link #MAX_RADIUS})
+     */
+    public static SplatKernel forRadius(int radius)
+    {
+        if ( radius < 1 || radius > MAX_RADIUS ) {
+            throw new IllegalArgumentException("Radius must be in range 1..."+MAX_RADIUS);
+        }
+        return CACHE[radius];
+    }
+}
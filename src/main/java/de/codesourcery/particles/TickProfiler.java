@@ -0,0 +1,459 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times the phases of {@link ParticleSystem#tick(float)}, both per tick and per worker thread.
+ *
+ * Timings are aggregated into windows of a fixed number of ticks and the most recent windows are kept.
+ * Optionally, each tick and each completed window is emitted as a JFR event (<code>de.codesourcery.particles.Tick</code> 
+ * and <code>de.codesourcery.particles.ProfileWindow</code>) so that frame spikes can be correlated with GC and safepoint
+ * events in a flight recording. 
+ * 
+ * Per-tick methods are only invoked by the ticking thread and the pool threads it forks, while holding
+ * the particle system's lock. 
+ * 
+ * @see ParticleSystem#setProfiler(TickProfiler)
+ */
+public class TickProfiler
+{
+    public enum Phase 
+    {
+        /** {@link ParticleSystem.IAnimator#beforeVisitingParticles(float)} */
+        PREPARE,
+        /** state transitions and partitioning into alive/dead particles, done in a single pass */
+        PARTITION,
+        /** animator callbacks for all alive particles */
+        ANIMATE,
+        /** rebuilding the spatial grid */
+        SPATIAL_GRID,
+        /** publishing the snapshot */
+        SNAPSHOT,
+        /** claiming dead particles, overlaps with other phases if particles are claimed by the animator */
+        SPAWN;
+    }
+
+    private static final IEventSink JFR = loadJfr();
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final int PHASE_COUNT = PHASES.length;
+
+    private final int windowTicks;
+    private final int historySize;
+
+    // per-tick timings
+    private final long[] tickPhases = new long[ PHASE_COUNT ];
+    private long tickStart;
+    private long tickNumber;
+    // sink and event of the current tick
+    private IEventSink tickSink;
+    private Object eventToken;
+
+    // timings of the current window
+    private final long[] windowTotals = new long[ PHASE_COUNT ];
+    private final long[] windowMax = new long[ PHASE_COUNT ];
+    private long windowTickTotal;
+    private long windowTickMax;
+    private int windowTickCount;
+    private long windowFirstTick;
+
+    // busy time per worker thread and phase, each array is only written by its thread
+    private final Map<Thread,long[]> threadNanos = new ConcurrentHashMap<>();
+
+    private final LongAdder spawnNanos = new LongAdder();
+
+    private final ArrayDeque<Window> history = new ArrayDeque<>();
+    private IWindowListener listener;
+
+    private volatile IEventSink eventSink;
+
+    public interface IWindowListener 
+    {
+        /**
+         * Invoked on the ticking thread whenever a window is completed.
+         */
+        public void windowCompleted(Window window);
+    }
+
+    /**
+     * Receives per-tick and per-window results, implemented by the JFR integration.
+     */
+    interface IEventSink 
+    {
+        public Object beginTick();
+
+        public void endTick(Object token,long tickNumber,long[] phaseNanos,int aliveCount);
+
+        public void windowCompleted(Window window);
+    }
+
+    /**
+     * Timings of a number of consecutive ticks.
+     */
+    public static final class Window 
+    {
+        private final long firstTick;
+        private final int tickCount;
+        private final long tickTotal;
+        private final long tickMax;
+        private final long[] totals;
+        private final long[] max;
+        private final Map<String,long[]> threads;
+
+        Window(long firstTick,int tickCount,long tickTotal,long tickMax,long[] totals,long[] max,Map<String,long[]> threads) 
+        {
+            this.firstTick = firstTick;
+            this.tickCount = tickCount;
+            this.tickTotal = tickTotal;
+            this.tickMax = tickMax;
+            this.totals = totals;
+            this.max = max;
+            this.threads = threads;
+        }
+
+        /**
+         * Returns the number of the first tick in this window, starting with 1 for the first profiled tick.
+         */
+        public long getFirstTick() {
+            return firstTick;
+        }
+
+        public int getTickCount() {
+            return tickCount;
+        }
+
+        public long getTickNanos() {
+            return tickTotal;
+        }
+
+        public long getMaxTickNanos() {
+            return tickMax;
+        }
+
+        public double getMeanTickNanos() {
+            return tickTotal / (double) tickCount;
+        }
+
+        public long getNanos(Phase phase) {
+            return totals[ phase.ordinal() ];
+        }
+
+        /**
+         * Returns the longest time a single tick spent in a phase.
+         */
+        public long getMaxNanos(Phase phase) {
+            return max[ phase.ordinal() ];
+        }
+
+        public double getMeanNanos(Phase phase) {
+            return totals[ phase.ordinal() ] / (double) tickCount;
+        }
+
+        /**
+         * Returns the fraction of the total tick time spent in a phase (0...1).
+         */
+        public double getShare(Phase phase) {
+            return tickTotal == 0 ? 0 : totals[ phase.ordinal() ] / (double) tickTotal;
+        }
+
+        /**
+         * Returns the names of all threads that did work for a tick in this window.
+         */
+        public List<String> getThreadNames() {
+            return new ArrayList<>( threads.keySet() );
+        }
+
+        /**
+         * Returns the time a thread was busy with a phase.
+         * 
+         * @return time in nanoseconds, 0 if the thread did not work on the phase
+         */
+        public long getThreadNanos(String threadName,Phase phase) 
+        {
+            final long[] nanos = threads.get( threadName );
+            return nanos == null ? 0 : nanos[ phase.ordinal() ];
+        }
+
+        /**
+         * Returns the timings in "folded stacks" format (one <code>frame;frame;... value</code> line per stack) 
+         * as understood by flame graph tools.
+         * 
+         * Phases with per-thread timings are broken down into the busy time of each thread, 
+         * the other phases are reported with their elapsed time.
+         */
+        public String toFoldedStacks() 
+        {
+            final StringBuilder result = new StringBuilder();
+            for ( Phase phase : PHASES ) 
+            {
+                boolean hasThreads = false;
+                for ( Map.Entry<String,long[]> entry : threads.entrySet() ) 
+                {
+                    final long nanos = entry.getValue()[ phase.ordinal() ];
+                    if ( nanos > 0 ) 
+                    {
+                        result.append( "tick;" ).append( phase ).append( ';' ).append( entry.getKey().replace( ' ' , '_' ).replace( ';' , '_' ) )
+                            .append( ' ' ).append( nanos ).append( '\n' );
+                        hasThreads = true;
+                    }
+                }
+                if ( ! hasThreads && totals[ phase.ordinal() ] > 0 ) {
+                    result.append( "tick;" ).append( phase ).append( ' ' ).append( totals[ phase.ordinal() ] ).append( '\n' );
+                }
+            }
+            return result.toString();
+        }
+
+        @Override
+        public String toString() 
+        {
+            final StringBuilder result = new StringBuilder( "Ticks "+firstTick+"..."+(firstTick+tickCount-1)+": mean "+(long) getMeanTickNanos()+" ns, max "+tickMax+" ns" );
+            for ( Phase phase : PHASES ) {
+                result.append( ", " ).append( phase ).append( ' ' ).append( Math.round( getShare( phase )*100 ) ).append( '%' );
+            }
+            return result.toString();
+        }
+    }
+
+    /**
+     * Create instance.
+     * 
+     * @param windowTicks number of ticks aggregated into one window
+     * @param historySize number of completed windows to keep
+     */
+    public TickProfiler(int windowTicks,int historySize) 
+    {
+        if ( windowTicks < 1 ) {
+            throw new IllegalArgumentException("Window size must be >= 1");
+        }
+        if ( historySize < 1 ) {
+            throw new IllegalArgumentException("History size must be >= 1");
+        }
+        this.windowTicks = windowTicks;
+        this.historySize = historySize;
+    }
+
+    private static IEventSink loadJfr()
+    {
+        try 
+        {
+            final Class<?> clazz = Class.forName( "de.codesourcery.particles.JfrEventSink" );
+            return (IEventSink) clazz.getDeclaredConstructor().newInstance();
+        } 
+        catch (Exception | LinkageError e) 
+        {
+            // class not compiled (JDK < 11) or module not available at runtime
+            return null;
+        }
+    }
+
+    public synchronized void setListener(IWindowListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns whether JFR events are supported by this JVM.
+     */
+    public static boolean isJfrAvailable() {
+        return JFR != null;
+    }
+
+    /**
+     * Enables emitting JFR events.
+     * 
+     * Events are only recorded while a flight recording with these events enabled is running.
+     * 
+     * @throws UnsupportedOperationException if JFR is not available
+     */
+    public void setJfrEnabled(boolean enabled) 
+    {
+        if ( enabled ) 
+        {
+            if ( JFR == null ) {
+                throw new UnsupportedOperationException("JFR is not available");
+            }
+            eventSink = JFR;
+        } else {
+            eventSink = null;
+        }
+    }
+
+    public boolean isJfrEnabled() {
+        return eventSink != null;
+    }
+
+    /**
+     * Returns the completed windows, oldest first.
+     */
+    public synchronized List<Window> getWindows() {
+        return new ArrayList<>( history );
+    }
+
+    /**
+     * Returns the most recently completed window.
+     * 
+     * @return window or <code>null</code> if no window has been completed yet
+     */
+    public synchronized Window getLatestWindow() {
+        return history.peekLast();
+    }
+
+    // ---------------------------------------------------------------------------------------
+    // called by ParticleSystem
+    // ---------------------------------------------------------------------------------------
+
+    /**
+     * Starts timing a tick.
+     * 
+     * @return current time
+     */
+    long beginTick() 
+    {
+        tickSink = eventSink;
+        eventToken = tickSink != null ? tickSink.beginTick() : null;
+        tickStart = System.nanoTime();
+        return tickStart;
+    }
+
+    /**
+     * Records the time elapsed since <code>start</code> for a phase of the current tick.
+     * 
+     * @return current time
+     */
+    long phase(Phase phase,long start) 
+    {
+        final long now = System.nanoTime();
+        tickPhases[ phase.ordinal() ] += now - start;
+        return now;
+    }
+
+    /**
+     * Adds to the busy time of the current thread.
+     */
+    void threadTime(Phase phase,long nanos) 
+    {
+        final Thread thread = Thread.currentThread();
+        long[] nanosByPhase = threadNanos.get( thread );
+        if ( nanosByPhase == null ) 
+        {
+            nanosByPhase = new long[ PHASE_COUNT ];
+            threadNanos.put( thread , nanosByPhase );
+        }
+        nanosByPhase[ phase.ordinal() ] += nanos;
+    }
+
+    /**
+     * Records time spent claiming particles, may be called by any thread.
+     */
+    void spawn(long nanos) {
+        spawnNanos.add( nanos );
+    }
+
+    void endTick(int aliveCount) 
+    {
+        final long tickNanos = System.nanoTime() - tickStart;
+        tickPhases[ Phase.SPAWN.ordinal() ] = spawnNanos.sumThenReset();
+        tickNumber++;
+
+        if ( tickSink != null ) 
+        {
+            tickSink.endTick( eventToken , tickNumber , tickPhases , aliveCount );
+            eventToken = null;
+        }
+
+        if ( windowTickCount == 0 ) {
+            windowFirstTick = tickNumber;
+        }
+        windowTickCount++;
+        windowTickTotal += tickNanos;
+        windowTickMax = Math.max( windowTickMax , tickNanos );
+        for ( int i = 0 ; i < PHASE_COUNT ; i++ ) 
+        {
+            windowTotals[i] += tickPhases[i];
+            windowMax[i] = Math.max( windowMax[i] , tickPhases[i] );
+            tickPhases[i] = 0;
+        }
+        if ( windowTickCount == windowTicks ) {
+            completeWindow();
+        }
+    }
+
+    private void completeWindow() 
+    {
+        final Map<String,long[]> threads = new LinkedHashMap<>();
+        for ( Iterator<Map.Entry<Thread,long[]>> it = threadNanos.entrySet().iterator() ; it.hasNext() ; ) 
+        {
+            final Map.Entry<Thread,long[]> entry = it.next();
+            final long[] nanos = entry.getValue();
+            boolean idle = true;
+            for ( long value : nanos ) {
+                idle &= value == 0;
+            }
+            if ( idle ) 
+            {
+                // thread did not do any work during this window
+                it.remove();
+                continue;
+            }
+            final long[] existing = threads.get( entry.getKey().getName() );
+            if ( existing != null ) 
+            {
+                for ( int i = 0 ; i < PHASE_COUNT ; i++ ) {
+                    existing[i] += nanos[i];
+                }
+            } else {
+                threads.put( entry.getKey().getName() , nanos.clone() );
+            }
+            Arrays.fill( nanos , 0 );
+        }
+
+        final Window window = new Window( windowFirstTick , windowTickCount , windowTickTotal , windowTickMax , 
+                windowTotals.clone() , windowMax.clone() , Collections.unmodifiableMap( threads ) );
+
+        windowTickCount = 0;
+        windowTickTotal = 0;
+        windowTickMax = 0;
+        Arrays.fill( windowTotals , 0 );
+        Arrays.fill( windowMax , 0 );
+
+        final IWindowListener l;
+        synchronized(this) 
+        {
+            if ( history.size() == historySize ) {
+                history.removeFirst();
+            }
+            history.addLast( window );
+            l = listener;
+        }
+        if ( tickSink != null ) {
+            tickSink.windowCompleted( window );
+        }
+        if ( l != null ) {
+            l.windowCompleted( window );
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+/**
+ * Constant acceleration for all particles (gravity, wind).
+ */
+public class UniformForce implements IForce
+{
+    public volatile float ax;
+    public volatile float ay;
+
+    public UniformForce(float ax,float ay)
+    {
+        this.ax = ax;
+        this.ay = ay;
+    }
+
+    @Override
+    public void apply(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds)
+    {
+        final float dvx = ax * deltaSeconds;
+        final float dvy = ay * deltaSeconds;
+        final float[] vx = storage.vx;
+        final float[] vy = storage.vy;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int idx = indices[i];
+            vx[idx] += dvx;
+            vy[idx] += dvy;
+        }
+    }
+}
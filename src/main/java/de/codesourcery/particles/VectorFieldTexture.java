@@ -0,0 +1,131 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A force given by a grid of acceleration vectors that is sampled with bilinear interpolation.
+ *
+ * Sample <code>(col,row)</code> lies at <code>(minX + col*width/(columns-1) , minY + row*height/(rows-1))</code>. 
+ * Particles outside of the covered area are not affected.
+ */
+public class VectorFieldTexture implements IForce
+{
+    private final float minX;
+    private final float minY;
+    private final float maxX;
+    private final float maxY;
+    private final int columns;
+    private final int rows;
+    private final float scaleX;
+    private final float scaleY;
+    private final float[] fx;
+    private final float[] fy;
+
+    /**
+     * Create instance.
+     *
+     * @param minX left edge of the covered area
+     * @param minY bottom edge of the covered area
+     * @param width width of the covered area
+     * @param height height of the covered area
+     * @param columns number of samples per row, at least 2
+     * @param rows number of rows, at least 2
+     * @param fx x components of the samples, row by row starting with the bottom row
+     * @param fy y components of the samples, row by row starting with the bottom row
+     */
+    public VectorFieldTexture(float minX,float minY,float width,float height,int columns,int rows,float[] fx,float[] fy)
+    {
+        if ( ! ( width > 0 && height > 0 ) ) {
+            throw new IllegalArgumentException("Width and height must be > 0");
+        }
+        if ( columns < 2 || rows < 2 ) {
+            throw new IllegalArgumentException("Need at least 2x2 samples");
+        }
+        if ( fx.length != columns*rows || fy.length != columns*rows ) {
+            throw new IllegalArgumentException("Expected "+(columns*rows)+" samples");
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = minX + width;
+        this.maxY = minY + height;
+        this.columns = columns;
+        this.rows = rows;
+        this.scaleX = (columns-1) / width;
+        this.scaleY = (rows-1) / height;
+        this.fx = fx.clone();
+        this.fy = fy.clone();
+    }
+
+    /**
+     * Creates a field from an image, the red and green channels hold the x and y components 
+     * mapped from 0...255 to <code>-maxAcceleration...maxAcceleration</code>.
+     *
+     * The top-left pixel of the image corresponds to the top-left corner of the covered area.
+     */
+    public static VectorFieldTexture fromImage(BufferedImage image,float minX,float minY,float width,float height,float maxAcceleration)
+    {
+        final int columns = image.getWidth();
+        final int rows = image.getHeight();
+        final float[] fx = new float[ columns*rows ];
+        final float[] fy = new float[ columns*rows ];
+        for ( int row = 0 ; row < rows ; row++ )
+        {
+            for ( int col = 0 ; col < columns ; col++ )
+            {
+                final int argb = image.getRGB( col , rows - 1 - row );
+                fx[ row*columns + col ] = ( ( (argb >> 16) & 0xff ) / 127.5f - 1 ) * maxAcceleration;
+                fy[ row*columns + col ] = ( ( (argb >>  8) & 0xff ) / 127.5f - 1 ) * maxAcceleration;
+            }
+        }
+        return new VectorFieldTexture( minX , minY , width , height , columns , rows , fx , fy );
+    }
+
+    @Override
+    public void apply(ParticleStorage storage, int[] indices, int from, int to, float deltaSeconds)
+    {
+        final float[] posx = storage.posx;
+        final float[] posy = storage.posy;
+        final float[] vx = storage.vx;
+        final float[] vy = storage.vy;
+        for ( int i = from ; i < to ; i++ )
+        {
+            final int idx = indices[i];
+            final float x = posx[idx];
+            final float y = posy[idx];
+            if ( x >= minX && x <= maxX && y >= minY && y <= maxY )
+            {
+                final float u = (x - minX) * scaleX;
+                final float v = (y - minY) * scaleY;
+                final int col = Math.min( (int) u , columns-2 );
+                final int row = Math.min( (int) v , rows-2 );
+                final float tx = u - col;
+                final float ty = v - row;
+                final int i00 = row*columns + col;
+                final int i10 = i00 + 1;
+                final int i01 = i00 + columns;
+                final int i11 = i01 + 1;
+                final float w00 = (1-tx)*(1-ty);
+                final float w10 = tx*(1-ty);
+                final float w01 = (1-tx)*ty;
+                final float w11 = tx*ty;
+                vx[idx] += ( fx[i00]*w00 + fx[i10]*w10 + fx[i01]*w01 + fx[i11]*w11 ) * deltaSeconds;
+                vy[idx] += ( fy[i00]*w00 + fy[i10]*w10 + fy[i01]*w01 + fy[i11]*w11 ) * deltaSeconds;
+            }
+        }
+    }
+}
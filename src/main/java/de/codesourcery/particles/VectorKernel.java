@@ -0,0 +1,153 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernel using the (incubating) JDK Vector API.
+ *
+ * This is the only class that requires JDK 17+, it is compiled by the <code>vector-api</code> Maven profile
+ * and only gets loaded by {@link ParticleKernels} when the <code>jdk.incubator.vector</code> module is present.
+ * Particles are gathered/scattered through the index array, results are bit-identical to {@link ScalarKernel}.
+ */
+final class VectorKernel implements IParticleKernel
+{
+    // capped at 256 bits, C2 in JDK 17 crashes when OSR-compiling the 512-bit gather/scatter loops on AVX-512 hardware
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED.vectorBitSize() > 256 ? 
+            FloatVector.SPECIES_256 : FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = VectorSpecies.of( int.class , FLOATS.vectorShape() );
+
+    @Override
+    public void move(ParticleStorage storage, int[] indices, int count, float deltaSeconds)
+    {
+        final float[] posx = storage.posx;
+        final float[] posy = storage.posy;
+        final float[] vx = storage.vx;
+        final float[] vy = storage.vy;
+        final float[] ax = storage.ax;
+        final float[] ay = storage.ay;
+        final int upperBound = FLOATS.loopBound( count );
+        int i = 0;
+        for ( ; i < upperBound ; i += FLOATS.length() )
+        {
+            final FloatVector nvx = FloatVector.fromArray( FLOATS , ax , 0 , indices , i ).mul( deltaSeconds )
+                    .add( FloatVector.fromArray( FLOATS , vx , 0 , indices , i ) );
+            final FloatVector nvy = FloatVector.fromArray( FLOATS , ay , 0 , indices , i ).mul( deltaSeconds )
+                    .add( FloatVector.fromArray( FLOATS , vy , 0 , indices , i ) );
+            nvx.intoArray( vx , 0 , indices , i );
+            nvy.intoArray( vy , 0 , indices , i );
+            nvx.mul( deltaSeconds ).add( FloatVector.fromArray( FLOATS , posx , 0 , indices , i ) ).intoArray( posx , 0 , indices , i );
+            nvy.mul( deltaSeconds ).add( FloatVector.fromArray( FLOATS , posy , 0 , indices , i ) ).intoArray( posy , 0 , indices , i );
+        }
+        for ( ; i < count ; i++ ) {
+            storage.move( indices[i] , deltaSeconds );
+        }
+    }
+
+    @Override
+    public boolean age(AnimatorPipeline.Batch batch)
+    {
+        final int[] age = batch.storage.age;
+        final int[] indices = batch.indices;
+        final int count = batch.count;
+        final int upperBound = INTS.loopBound( count );
+        boolean anyKilled = false;
+        int i = 0;
+        for ( ; i < upperBound ; i += INTS.length() )
+        {
+            final IntVector newAge = IntVector.fromArray( INTS , age , 0 , indices , i ).sub( 1 );
+            newAge.intoArray( age , 0 , indices , i );
+            final VectorMask<Integer> dead = newAge.compare( VectorOperators.LT , 0 );
+            if ( dead.anyTrue() ) 
+            {
+                anyKilled = true;
+                killAll( batch , i , dead.toLong() );
+            }
+        }
+        for ( ; i < count ; i++ )
+        {
+            if ( --age[ indices[i] ] < 0 ) {
+                batch.kill( i );
+                anyKilled = true;
+            }
+        }
+        return anyKilled;
+    }
+
+    @Override
+    public boolean cull(AnimatorPipeline.Batch batch, float minX, float minY, float maxX, float maxY)
+    {
+        final float[] posx = batch.storage.posx;
+        final float[] posy = batch.storage.posy;
+        final int[] indices = batch.indices;
+        final int count = batch.count;
+        final int upperBound = FLOATS.loopBound( count );
+        boolean anyKilled = false;
+        int i = 0;
+        for ( ; i < upperBound ; i += FLOATS.length() )
+        {
+            final FloatVector x = FloatVector.fromArray( FLOATS , posx , 0 , indices , i );
+            final FloatVector y = FloatVector.fromArray( FLOATS , posy , 0 , indices , i );
+            final VectorMask<Float> outside = x.compare( VectorOperators.LT , minX )
+                    .or( y.compare( VectorOperators.LT , minY ) )
+                    .or( x.compare( VectorOperators.GT , maxX ) )
+                    .or( y.compare( VectorOperators.GT , maxY ) );
+            if ( outside.anyTrue() ) 
+            {
+                anyKilled = true;
+                killAll( batch , i , outside.toLong() );
+            }
+        }
+        return cullTail( batch , i , minX , minY , maxX , maxY ) | anyKilled;
+    }
+
+    private static boolean cullTail(AnimatorPipeline.Batch batch,int from,float minX, float minY, float maxX, float maxY)
+    {
+        final float[] posx = batch.storage.posx;
+        final float[] posy = batch.storage.posy;
+        boolean anyKilled = false;
+        for ( int i = from , count = batch.count ; i < count ; i++ )
+        {
+            final int idx = batch.indices[i];
+            final float x = posx[idx];
+            final float y = posy[idx];
+            if ( x < minX || y < minY || x > maxX || y > maxY ) {
+                batch.kill( i );
+                anyKilled = true;
+            }
+        }
+        return anyKilled;
+    }
+
+    private static void killAll(AnimatorPipeline.Batch batch,int offset,long lanes)
+    {
+        while ( lanes != 0 )
+        {
+            batch.kill( offset + Long.numberOfTrailingZeros( lanes ) );
+            lanes &= lanes - 1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "vector ("+FLOATS+")";
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AnimatorPipelineTest
+{
+    private static ParticleStorage createStorage(int count)
+    {
+        final Random rnd = new Random( 0xdeadbeef );
+        final ParticleStorage storage = new ParticleStorage( count );
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            storage.instantiate( i );
+            storage.doStateTransition( i );
+            storage.posx[i] = (rnd.nextFloat()-0.5f)*100;
+            storage.posy[i] = (rnd.nextFloat()-0.5f)*100;
+            storage.vx[i] = (rnd.nextFloat()-0.5f)*100;
+            storage.vy[i] = (rnd.nextFloat()-0.5f)*100;
+            storage.ay[i] = -10;
+            storage.age[i] = rnd.nextInt( 5 );
+        }
+        return storage;
+    }
+
+    private static int[] range(int count)
+    {
+        final int[] indices = new int[ count ];
+        for ( int i = 0 ; i < count ; i++ ) {
+            indices[i] = i;
+        }
+        return indices;
+    }
+
+    @Test
+    public void testMatchesPerParticleProcessing()
+    {
+        final int count = 1000;
+        final int[] colors = new int[] { 0 , 1 , 2 , 3 , 4 , 5 };
+        final ParticleStorage expected = createStorage( count );
+        for ( int idx = 0 ; idx < count ; idx++ )
+        {
+            expected.move( idx , 0.1f );
+            final int age = --expected.age[idx];
+            if ( age < 0 || Math.abs( expected.posx[idx] ) > 40 || Math.abs( expected.posy[idx] ) > 40 ) {
+                expected.kill( idx );
+                continue;
+            }
+            if ( age > 0 ) {
+                expected.color[idx] = colors[age];
+            }
+        }
+
+        final ParticleStorage actual = createStorage( count );
+        final AnimatorPipeline pipeline = new AnimatorPipeline( 
+                new AnimatorPipeline.Integrate(),
+                new AnimatorPipeline.Age(),
+                new AnimatorPipeline.Cull( -40 , -40 , 40 , 40 ),
+                new AnimatorPipeline.ColorByAge( colors ) );
+
+        // process in uneven chunks
+        final int[] indices = range( count );
+        int killed = 0;
+        for ( int from = 0 ; from < count ; from += 33 ) {
+            killed += pipeline.process( actual , indices , from , Math.min( from + 33 , count ) , 0.1f );
+        }
+
+        assertArrayEquals( expected.posx , actual.posx , 0f );
+        assertArrayEquals( expected.posy , actual.posy , 0f );
+        assertArrayEquals( expected.age , actual.age );
+        assertArrayEquals( expected.color , actual.color );
+        int expectedKilled = 0;
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            assertEquals( expected.isAlive( i ) , actual.isAlive( i ) );
+            if ( ! expected.isAlive( i ) ) {
+                expectedKilled++;
+            }
+        }
+        assertEquals( expectedKilled , killed );
+        assertEquals( expectedKilled , pipeline.getKilledCount() );
+    }
+
+    @Test
+    public void testSingleParticleMatchesBatch()
+    {
+        final ParticleStorage expected = createStorage( 10 );
+        final ParticleStorage actual = createStorage( 10 );
+        final AnimatorPipeline pipeline = new AnimatorPipeline( new AnimatorPipeline.Integrate() , new AnimatorPipeline.Age() );
+        pipeline.beforeVisitingParticles( 0.5f );
+        pipeline.process( expected , range( 10 ) , 3 , 4 , 0.5f );
+        pipeline.process( actual , 3 , 0.5f );
+        assertEquals( expected.posx[3] , actual.posx[3] , 0f );
+        assertEquals( expected.posy[3] , actual.posy[3] , 0f );
+        assertEquals( expected.age[3] , actual.age[3] );
+        assertEquals( expected.state[3] , actual.state[3] );
+        assertEquals( expected.posx[4] , actual.posx[4] , 0f );
+    }
+}
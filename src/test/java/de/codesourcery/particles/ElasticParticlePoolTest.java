@@ -0,0 +1,167 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ElasticParticlePoolTest
+{
+    // kills particles once their age drops below zero
+    private static final ParticleSystem.IAnimator AGING = new ParticleSystem.IAnimator()
+    {
+        @Override
+        public void beforeVisitingParticles(float deltaSeconds) {
+        }
+
+        @Override
+        public void tick(Particle p, float deltaSeconds) 
+        {
+            if ( --p.getStorage().age[ p.getIndex() ] < 0 ) {
+                p.getStorage().kill( p.getIndex() );
+            }
+        }
+    };
+
+    @Test
+    public void testGrowsUpToMaxChunks()
+    {
+        final List<String> events = new ArrayList<>();
+        final ElasticParticlePool pool = new ElasticParticlePool( 10 , 1 , 3 );
+        pool.setResizeListener( new ElasticParticlePool.IResizeListener() 
+        {
+            @Override
+            public void grown(int oldCapacity, int newCapacity, long durationNanos) {
+                events.add( "grown "+oldCapacity+" -> "+newCapacity );
+            }
+
+            @Override
+            public void shrunk(int oldCapacity, int newCapacity) {
+                events.add( "shrunk "+oldCapacity+" -> "+newCapacity );
+            }
+        });
+        assertEquals( 10 , pool.getCapacity() );
+
+        final int[] visited = new int[2];
+        final ParticleSystem.IRangeVisitor visitor = (storage,indices,from,to) -> 
+        {
+            visited[0]++;
+            visited[1] += to - from;
+        };
+        // at most one chunk at a time
+        assertEquals( 10 , pool.claimDeadParticles( 25 , visitor ) );
+        assertEquals( 10 , pool.claimDeadParticles( 15 , visitor ) );
+        assertEquals( 5 , pool.claimDeadParticles( 5 , visitor ) );
+        assertEquals( 3 , visited[0] );
+        assertEquals( 25 , visited[1] );
+        assertEquals( 30 , pool.getCapacity() );
+        assertNotNull( pool.claimDeadParticle() );
+        // exhausted, only the remaining particles are claimed
+        assertEquals( 4 , pool.claimDeadParticles( 8 , visitor ) );
+        assertNull( pool.claimDeadParticle() );
+        assertEquals( 0 , pool.claimDeadParticles( 1 , null ) );
+
+        pool.tick( 0.1f );
+        assertEquals( 30 , pool.getAliveCount() );
+        assertEquals( 2 , pool.getGrowCount() );
+        assertEquals( 30 , pool.getPeakCapacity() );
+        assertEquals( "[grown 10 -> 20, grown 20 -> 30]" , events.toString() );
+    }
+
+    @Test
+    public void testShrinksAfterSustainedLowWatermark()
+    {
+        final ElasticParticlePool pool = new ElasticParticlePool( 10 , 1 , 4 );
+        pool.setAnimator( AGING );
+        pool.setShrinkPolicy( 0.5f , 3 );
+
+        // 16 short-lived particles and 1 long-lived particle
+        final ParticleSystem.IRangeVisitor shortLived = (storage,indices,from,to) -> 
+        {
+            for ( int i = from ; i < to ; i++ ) {
+                storage.age[ indices[i] ] = 0;
+            }
+        };
+        assertEquals( 10 , pool.claimDeadParticles( 10 , shortLived ) );
+        assertEquals( 6 , pool.claimDeadParticles( 6 , shortLived ) );
+        pool.claimDeadParticle().age( 1000 );
+        assertEquals( 2 , pool.getChunkCount() );
+
+        pool.tick( 0.1f ); // short-lived particles die
+        pool.tick( 0.1f ); // ... and are no longer counted
+        assertEquals( 1 , pool.getAliveCount() );
+        pool.tick( 0.1f );
+        assertEquals( 2 , pool.getChunkCount() );
+        pool.tick( 0.1f );
+        assertEquals( 1 , pool.getChunkCount() );
+        assertEquals( 1 , pool.getShrinkCount() );
+        assertEquals( 1 , pool.getAliveCount() );
+
+        // never shrinks below the initial number of chunks
+        for ( int i = 0 ; i < 10 ; i++ ) {
+            pool.tick( 0.1f );
+        }
+        assertEquals( 1 , pool.getChunkCount() );
+    }
+
+    @Test
+    public void testDoesNotReleaseChunksWithClaimedParticles()
+    {
+        final ElasticParticlePool pool = new ElasticParticlePool( 10 , 1 , 2 );
+        pool.setShrinkPolicy( 1f , 1 );
+        pool.claimDeadParticles( 10 , null );
+        pool.claimDeadParticles( 1 , null );
+        assertEquals( 2 , pool.getChunkCount() );
+        pool.getChunks().get( 1 ).tick( 0.1f );
+
+        // both chunks hold alive particles
+        pool.tick( 0.1f );
+        assertEquals( 2 , pool.getChunkCount() );
+        assertEquals( 11 , pool.getAliveCount() );
+    }
+
+    @Test
+    public void testAnimatorClaimsFromPool()
+    {
+        final ElasticParticlePool pool = new ElasticParticlePool( 1000 , 1 , 4 );
+        final OutOfBoundsVisitor animator = new OutOfBoundsVisitor( pool , new Random( 0xdeadbeef ) );
+        animator.setBounds( 100000 , 100000 );
+        pool.setAnimator( animator );
+
+        animator.init( pool );
+        pool.tick( 0.1f );
+        assertEquals( 1000 , pool.getAliveCount() );
+        assertEquals( 1 , pool.getChunkCount() );
+
+        // children do not fit into the first chunk
+        for ( int i = 0 ; i < 10 ; i++ ) {
+            pool.tick( 0.1f );
+        }
+        assertTrue( animator.getEmitter().getEmittedCount() > 0 );
+        assertEquals( 0 , animator.getEmitter().getDroppedCount() );
+        assertTrue( pool.getChunkCount() > 1 );
+        assertEquals( 1000 + animator.getEmitter().getEmittedCount() , pool.getAliveCount() , 
+                animator.getEmitter().getEmittedCount() );
+    }
+}
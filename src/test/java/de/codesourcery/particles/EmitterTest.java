@@ -0,0 +1,204 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EmitterTest
+{
+    private static final ShapeTemplate SHAPE = ShapeTemplate.of( 1 , 2 , 3 , 4 , 5 , 6 );
+
+    @Test
+    public void testSpawnsWholeShape()
+    {
+        final ParticleSystem system = new ParticleSystem( 10 );
+        system.setAnimator( new AnimatorPipeline() );
+        final Emitter emitter = new Emitter( system ).setAcceleration( 0 , -1 ).setColor( 0xff00ff00 ).setAge( 42 );
+        assertEquals( 3 , ShapeTemplate.compile( Arrays.asList( new Vec2d( 1 , 2 ) , new Vec2d( 3 , 4 ) , new Vec2d( 5 , 6 ) ) ).size() );
+
+        assertEquals( 3 , emitter.spawn( SHAPE , 10 , 20 , 100 , 200 ) );
+        system.tick( 0 );
+        final float[] sum = new float[2];
+        system.visitAliveParticles( p -> 
+        {
+            assertEquals( 10 , p.posx() , 0f );
+            assertEquals( 20 , p.posy() , 0f );
+            assertEquals( -1 , p.getStorage().ay[ p.getIndex() ] , 0f );
+            assertEquals( 0xff00ff00 , p.color() );
+            assertEquals( 42 , p.age() );
+            sum[0] += p.vx();
+            sum[1] += p.vy();
+        });
+        assertEquals( 3 , system.getAliveCount() );
+        assertEquals( 300 + 1 + 3 + 5 , sum[0] , 0f );
+        assertEquals( 600 + 2 + 4 + 6 , sum[1] , 0f );
+
+        // only 7 particles left
+        assertEquals( 3 , emitter.spawn( SHAPE , 0 , 0 , 0 , 0 ) );
+        assertEquals( 3 , emitter.spawn( SHAPE , 0 , 0 , 0 , 0 ) );
+        assertEquals( 1 , emitter.spawn( SHAPE , 0 , 0 , 0 , 0 ) );
+        assertEquals( 10 , emitter.getEmittedCount() );
+        assertEquals( 2 , emitter.getDroppedCount() );
+    }
+
+    @Test
+    public void testRateLimitDropsWholeShapes()
+    {
+        final Emitter emitter = new Emitter( new ParticleSystem( 100 ) );
+        emitter.setRateLimit( 30 , 6 );
+        assertEquals( 3 , emitter.emit( SHAPE , 0 , 0 , 0 , 0 ) );
+        assertEquals( 3 , emitter.emit( SHAPE , 0 , 0 , 0 , 0 ) );
+        assertEquals( 0 , emitter.emit( SHAPE , 0 , 0 , 0 , 0 ) );
+        emitter.update( 0.05f ); // 1.5 tokens
+        assertEquals( 0 , emitter.emit( SHAPE , 0 , 0 , 0 , 0 ) );
+        emitter.update( 0.05f ); // 3 tokens
+        assertEquals( 3 , emitter.emit( SHAPE , 0 , 0 , 0 , 0 ) );
+        assertEquals( 9 , emitter.getEmittedCount() );
+        assertEquals( 6 , emitter.getDroppedCount() );
+    }
+
+    @Test
+    public void testScheduledBurstsWaitForRateLimit()
+    {
+        final Emitter emitter = new Emitter( new ParticleSystem( 100 ) );
+        emitter.schedule( 0.1f , SHAPE , 0 , 0 , 0 , 0 , 3 , 0.1f );
+        assertEquals( 3 , emitter.getScheduledCount() );
+        assertEquals( 0 , emitter.update( 0.05f ) );
+        assertEquals( 3 , emitter.update( 0.05f ) );
+        // two emissions due at once
+        assertEquals( 6 , emitter.update( 0.2f ) );
+        assertEquals( 0 , emitter.getScheduledCount() );
+
+        emitter.setRateLimit( 30 , 3 );
+        emitter.schedule( 0 , SHAPE , 0 , 0 , 0 , 0 , 2 , 0 );
+        assertEquals( 3 , emitter.update( 0 ) );
+        assertEquals( 0 , emitter.update( 0.05f ) );
+        assertEquals( 3 , emitter.update( 0.05f ) );
+        assertEquals( 0 , emitter.getDroppedCount() );
+    }
+
+    @Test
+    public void testOversubscribedEmitterDropsOverdueBursts()
+    {
+        final Emitter emitter = new Emitter( new ParticleSystem( 100000 ) );
+        emitter.setRateLimit( 300 , 30 );
+        emitter.setMaxDelay( 0.5f );
+        // demand is 10 times the limit
+        for ( int tick = 0 ; tick < 1000 ; tick++ ) 
+        {
+            emitter.schedule( 0 , ShapeTemplate.of( new float[ 2*10 ] ) , 0 , 0 , 0 , 0 , 3 , 0.1f );
+            emitter.update( 0.01f );
+            // emissions are due within 0.2 seconds and wait for at most 0.5 seconds
+            assertTrue( "Scheduled: "+emitter.getScheduledCount() , emitter.getScheduledCount() <= 3*( 70 + 1 ) );
+        }
+        final long total = 1000*3*10;
+        assertEquals( total , emitter.getEmittedCount() + emitter.getDroppedCount() + 10*emitter.getScheduledCount() );
+        assertEquals( 300*10 , emitter.getEmittedCount() , 30 );
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testRejectsShapesLargerThanBurstCapacity() 
+    {
+        final Emitter emitter = new Emitter( new ParticleSystem( 100 ) );
+        emitter.setRateLimit( 100 , 2 );
+        emitter.schedule( 0 , SHAPE , 0 , 0 , 0 , 0 , 1 , 0 );
+    }
+
+    @Test
+    public void testRateLimitMustFitScheduledShapes() 
+    {
+        final Emitter emitter = new Emitter( new ParticleSystem( 100 ) );
+        emitter.schedule( 1 , SHAPE , 0 , 0 , 0 , 0 , 1 , 0 );
+        try {
+            emitter.setRateLimit( 100 , 2 );
+            fail( "Should have failed" );
+        } catch(IllegalArgumentException e) {
+            // ok
+        }
+        emitter.setRateLimit( 100 , 3 );
+        assertEquals( 3 , emitter.update( 1 ) );
+    }
+
+    @Test
+    public void testRestoredEmitterEmitsLikeTheSavedOne() throws IOException
+    {
+        final Emitter original = new Emitter( new ParticleSystem( 100 ) );
+        original.setRateLimit( 30 , 6 );
+        original.schedule( 0.1f , SHAPE , 0 , 0 , 0 , 0 , 5 , 0.05f );
+        original.schedule( 0.1f , ShapeTemplate.of( 1 , 1 ) , 0 , 0 , 0 , 0 , 3 , 0 );
+        original.update( 0.12f );
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        original.saveState( new DataOutputStream( bytes ) );
+        final Emitter restored = new Emitter( new ParticleSystem( 100 ) );
+        restored.loadState( new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) ) );
+
+        assertEquals( original.getScheduledCount() , restored.getScheduledCount() );
+        for ( int i = 0 ; i < 20 ; i++ ) {
+            assertEquals( original.update( 0.03f ) , restored.update( 0.03f ) );
+        }
+        assertEquals( original.getEmittedCount() , restored.getEmittedCount() );
+        assertEquals( original.getDroppedCount() , restored.getDroppedCount() );
+    }
+
+    @Test
+    public void testAnimatorSchedulesBurstsAtConfiguredRate()
+    {
+        final ParticleSystem system = new ParticleSystem( 10000 );
+        final OutOfBoundsVisitor animator = new OutOfBoundsVisitor( system , new Random( 0xdeadbeef ) );
+        animator.setBounds( 100000 , 100000 );
+        animator.setBurstRate( 10 , 2 , 0.05f );
+        animator.customShapes = Arrays.asList( Arrays.asList( new Vec2d( 1 , 2 ) , new Vec2d( 3 , 4 ) ) );
+        assertEquals( 10*2*2 , animator.getScheduledParticleRate() , 0f );
+        assertEquals( 2*2 , animator.getMaxBurstSize() );
+        system.setAnimator( animator );
+        system.visitDeadParticles( p -> p.instantiate().age( OutOfBoundsVisitor.colors.length-1 ) , 10 );
+
+        final int[] scheduled = {0};
+        animator.setEventListener( new OutOfBoundsVisitor.IEventListener() 
+        {
+            @Override public void seeded(long seed) { }
+            @Override public void boundsChanged(int width, int height) { }
+            @Override public void tickStarted(float deltaSeconds) { }
+            @Override public void initialized() { }
+
+            @Override
+            public void burstScheduled(int shapeIdx, float x, float y, float vx, float vy, int count, float intervalSeconds) 
+            {
+                assertEquals( 2 , count );
+                scheduled[0]++;
+            }
+        });
+        for ( int tick = 0 ; tick < 100 ; tick++ ) {
+            system.tick( 0.01f );
+        }
+        // one burst per 0.1 seconds, the first tick has no alive parent yet
+        assertTrue( "Scheduled: "+scheduled[0] , scheduled[0] >= 9 && scheduled[0] <= 10 );
+        assertEquals( 2*2*scheduled[0] , animator.getEmitter().getEmittedCount() , 2*2 );
+    }
+}
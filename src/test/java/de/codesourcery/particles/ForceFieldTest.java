@@ -0,0 +1,192 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ForceFieldTest
+{
+    private static PointForceField createField(int sources,Random rnd)
+    {
+        final PointForceField field = new PointForceField();
+        for ( int i = 0 ; i < sources ; i++ )
+        {
+            final float x = (rnd.nextFloat()-0.5f)*1000;
+            final float y = (rnd.nextFloat()-0.5f)*1000;
+            final float s = (rnd.nextFloat()-0.3f)*1000;
+            if ( (i & 3) == 0 ) {
+                field.addVortex( x , y , s );
+            } else {
+                field.addAttractor( x , y , s );
+            }
+        }
+        return field;
+    }
+
+    private static float[] bruteForce(PointForceField field,float px,float py,float[] sx,float[] sy,float[] s,boolean[] vortex)
+    {
+        double ax = 0, ay = 0;
+        for ( int i = 0 ; i < sx.length ; i++ )
+        {
+            final double dx = sx[i] - px;
+            final double dy = sy[i] - py;
+            final double r2 = dx*dx + dy*dy + 1;
+            final double f = s[i] / ( r2 * Math.sqrt( r2 ) );
+            if ( vortex[i] ) {
+                ax += dy*f;
+                ay -= dx*f;
+            } else {
+                ax += dx*f;
+                ay += dy*f;
+            }
+        }
+        return new float[] { (float) ax , (float) ay };
+    }
+
+    @Test
+    public void testBarnesHutMatchesBruteForce()
+    {
+        final int sources = 500;
+        final Random rnd = new Random( 0xdeadbeef );
+        final float[] sx = new float[ sources ];
+        final float[] sy = new float[ sources ];
+        final float[] s = new float[ sources ];
+        final boolean[] vortex = new boolean[ sources ];
+        final PointForceField field = new PointForceField();
+        for ( int i = 0 ; i < sources ; i++ )
+        {
+            sx[i] = (rnd.nextFloat()-0.5f)*1000;
+            sy[i] = (rnd.nextFloat()-0.5f)*1000;
+            // mostly positive strengths as opposite signs inside a node cancel each other out
+            s[i] = rnd.nextFloat()*1000;
+            vortex[i] = (i & 3) == 0;
+            if ( vortex[i] ) {
+                field.addVortex( sx[i] , sy[i] , s[i] );
+            } else {
+                field.addAttractor( sx[i] , sy[i] , s[i] );
+            }
+        }
+
+        field.prepare( 0 );
+        final float[] actual = new float[2];
+        for ( int i = 0 ; i < 100 ; i++ )
+        {
+            final float px = (rnd.nextFloat()-0.5f)*1200;
+            final float py = (rnd.nextFloat()-0.5f)*1200;
+            final float[] expected = bruteForce( field , px , py , sx , sy , s , vortex );
+            final float magnitude = (float) Math.hypot( expected[0] , expected[1] );
+
+            field.setTheta( 0 );
+            field.accelerationAt( px , py , actual );
+            assertEquals( expected[0] , actual[0] , magnitude*1e-4f );
+            assertEquals( expected[1] , actual[1] , magnitude*1e-4f );
+
+            field.setTheta( 0.5f );
+            field.accelerationAt( px , py , actual );
+            assertEquals( expected[0] , actual[0] , magnitude*0.05f );
+            assertEquals( expected[1] , actual[1] , magnitude*0.05f );
+        }
+    }
+
+    @Test
+    public void testSourceChangesRebuildTree()
+    {
+        final PointForceField field = createField( 50 , new Random( 42 ) );
+        field.setTheta( 0 );
+        final float[] before = new float[2];
+        field.accelerationAt( 0 , 0 , before );
+        assertEquals( 0 , before[0] , 0f );
+        field.prepare( 0 );
+        field.accelerationAt( 0 , 0 , before );
+
+        final int id = field.addAttractor( 10 , 0 , 1000 );
+        final float[] after = new float[2];
+        // queries use the tree built by the last prepare()
+        field.accelerationAt( 0 , 0 , after );
+        assertEquals( before[0] , after[0] , 0f );
+        field.prepare( 0 );
+        field.accelerationAt( 0 , 0 , after );
+        assertEquals( before[0] + 1000 * 10 / Math.pow( 101 , 1.5 ) , after[0] , 0.001f );
+
+        field.setStrength( id , 0 );
+        field.accelerationAt( 0 , 0 , after );
+        assertEquals( before[0] + 1000 * 10 / Math.pow( 101 , 1.5 ) , after[0] , 0.001f );
+        field.prepare( 0 );
+        field.accelerationAt( 0 , 0 , after );
+        assertEquals( before[0] , after[0] , 0.001f );
+
+        field.clear();
+        field.prepare( 0 );
+        field.accelerationAt( 0 , 0 , after );
+        assertEquals( 0 , after[0] , 0f );
+        assertEquals( 0 , after[1] , 0f );
+    }
+
+    @Test
+    public void testVectorFieldTextureInterpolatesBilinearly()
+    {
+        // 2x2 samples covering (0,0)...(10,10)
+        final float[] fx = { 0 , 10 , 20 , 30 };
+        final float[] fy = { 1 , 1 , 1 , 1 };
+        final VectorFieldTexture texture = new VectorFieldTexture( 0 , 0 , 10 , 10 , 2 , 2 , fx , fy );
+
+        final ParticleStorage storage = new ParticleStorage( 3 );
+        storage.posx[0] = 5;
+        storage.posy[0] = 5;
+        storage.posx[1] = 10;
+        storage.posy[1] = 0;
+        storage.posx[2] = 11;
+        storage.posy[2] = 5;
+        texture.apply( storage , new int[] { 0 , 1 , 2 } , 0 , 3 , 0.5f );
+
+        assertEquals( 15*0.5f , storage.vx[0] , 0.0001f );
+        assertEquals( 0.5f , storage.vy[0] , 0.0001f );
+        assertEquals( 10*0.5f , storage.vx[1] , 0.0001f );
+        // outside
+        assertEquals( 0 , storage.vx[2] , 0f );
+        assertEquals( 0 , storage.vy[2] , 0f );
+    }
+
+    @Test
+    public void testForceStageAppliesForcesBeforeDelegate()
+    {
+        final float[] seenVy = new float[1];
+        final ParticleSystem system = new ParticleSystem( 10 );
+        final PointForceField field = new PointForceField();
+        field.setSoftening( 0 );
+        field.addAttractor( 10 , 0 , 100 );
+        system.setAnimator( new ForceStage( new ParticleSystem.IAnimator()
+        {
+            @Override
+            public void beforeVisitingParticles(float deltaSeconds) {
+            }
+
+            @Override
+            public void tick(Particle p, float deltaSeconds) {
+                seenVy[0] = p.vy();
+            }
+        }, new UniformForce( 0 , -10 ) , field ) );
+
+        final Particle p = system.claimDeadParticle().pos( 0 , 0 ).speed( 0 , 0 );
+        system.tick( 0.1f );
+        assertEquals( -1 , seenVy[0] , 0.0001f );
+        assertEquals( 0.1f , p.vx() , 0.0001f );
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FrameExporterTest
+{
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void exportFrames(FrameExporter exporter,int count)
+    {
+        for ( int i = 0 ; i < count ; i++ ) 
+        {
+            int[] frame;
+            while ( ( frame = exporter.acquireFrame() ) == null ) {
+                Thread.yield();
+            }
+            Arrays.fill( frame , 0xff000000 | i );
+            while ( ! exporter.submit( frame ) ) 
+            {
+                Thread.yield();
+                while ( ( frame = exporter.acquireFrame() ) == null ) {
+                    Thread.yield();
+                }
+                Arrays.fill( frame , 0xff000000 | i );
+            }
+        }
+    }
+
+    @Test
+    public void testRawFrameFile() throws IOException
+    {
+        final File file = new File( folder.getRoot() , "frames.raw" );
+        final FrameExporter exporter = new FrameExporter( new RawFrameSink( file.toPath() , WIDTH , HEIGHT ) , 
+                new FrameBufferPool( WIDTH , HEIGHT , 4 ) , 2 , 2 );
+        exportFrames( exporter , 10 );
+        exporter.close();
+        assertEquals( 10 , exporter.getFramesWritten() );
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) )
+        {
+            assertEquals( RawFrameSink.MAGIC , in.readInt() );
+            assertEquals( RawFrameSink.VERSION , in.readInt() );
+            assertEquals( WIDTH , in.readInt() );
+            assertEquals( HEIGHT , in.readInt() );
+            assertEquals( 10 , in.readLong() );
+            in.readLong();
+            for ( int frame = 0 ; frame < 10 ; frame++ ) 
+            {
+                for ( int i = 0 ; i < WIDTH*HEIGHT ; i++ ) {
+                    assertEquals( 0xff000000 | frame , in.readInt() );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPngSequence() throws IOException
+    {
+        final PngSequenceSink sink = new PngSequenceSink( folder.getRoot().toPath() , "frame" , WIDTH , HEIGHT );
+        final FrameExporter exporter = new FrameExporter( sink , new FrameBufferPool( WIDTH , HEIGHT , 2 ) , 1 , 1 );
+        exportFrames( exporter , 3 );
+        exporter.close();
+
+        for ( int frame = 0 ; frame < 3 ; frame++ )
+        {
+            final BufferedImage image = ImageIO.read( sink.getFile( frame ).toFile() );
+            assertEquals( WIDTH , image.getWidth() );
+            assertEquals( HEIGHT , image.getHeight() );
+            assertEquals( 0xff000000 | frame , image.getRGB( 3 , 5 ) );
+        }
+    }
+
+    @Test
+    public void testDropsFramesWhenPoolIsExhausted() throws IOException
+    {
+        final FrameBufferPool pool = new FrameBufferPool( WIDTH , HEIGHT , 1 );
+        final FrameExporter exporter = new FrameExporter( (no,pixels) -> {} , pool , 1 , 1 );
+        final int[] frame = exporter.acquireFrame();
+        assertNotNull( frame );
+        assertNull( exporter.acquireFrame() );
+        assertEquals( 1 , exporter.getFramesDropped() );
+        exporter.submit( frame );
+        exporter.close();
+        assertEquals( 1 , exporter.getFramesWritten() );
+        assertEquals( 1 , pool.getAvailable() );
+    }
+}
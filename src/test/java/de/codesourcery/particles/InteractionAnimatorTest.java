@@ -0,0 +1,87 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class InteractionAnimatorTest
+{
+    // keeps particles where they are so that only the interaction changes velocities
+    private static final ParticleSystem.IAnimator STATIONARY = new ParticleSystem.IAnimator()
+    {
+        @Override
+        public void beforeVisitingParticles(float deltaSeconds) {
+        }
+
+        @Override
+        public void tick(Particle p, float deltaSeconds) {
+        }
+    };
+
+    private static ParticleSystem createSystem(InteractionAnimator.Mode mode,SpatialGrid grid)
+    {
+        final ParticleSystem system = new ParticleSystem( 10 );
+        system.setSpatialGrid( grid );
+        system.setAnimator( new InteractionAnimator( STATIONARY , grid , mode , 1 ) );
+        return system;
+    }
+
+    @Test
+    public void testHeadOnCollisionSwapsVelocities()
+    {
+        final SpatialGrid grid = new SpatialGrid( -10 , -10 , 20 , 20 , 1 );
+        final ParticleSystem system = createSystem( InteractionAnimator.Mode.COLLISION , grid );
+        final Particle p1 = system.claimDeadParticle().pos( 0 , 0 ).speed( 1 , 0 );
+        final Particle p2 = system.claimDeadParticle().pos( 0.5f , 0 ).speed( -1 , 0 );
+
+        system.tick( 0.1f ); // particles become alive, grid gets built
+        assertEquals( 2 , grid.getCount() );
+        assertEquals( 1 , p1.vx() , 0f );
+
+        system.tick( 0.1f );
+        assertEquals( -1 , p1.vx() , 0.0001f );
+        assertEquals( 1 , p2.vx() , 0.0001f );
+        assertEquals( 0 , p1.vy() , 0.0001f );
+        assertEquals( 0 , p2.vy() , 0.0001f );
+
+        // particles are now moving apart and must not collide again
+        system.tick( 0.1f );
+        assertEquals( -1 , p1.vx() , 0.0001f );
+        assertEquals( 1 , p2.vx() , 0.0001f );
+    }
+
+    @Test
+    public void testRepulsionIsSymmetric()
+    {
+        final SpatialGrid grid = new SpatialGrid( -10 , -10 , 20 , 20 , 1 );
+        final ParticleSystem system = createSystem( InteractionAnimator.Mode.REPULSION , grid );
+        final Particle p1 = system.claimDeadParticle().pos( 0 , 0 ).speed( 0 , 0 );
+        final Particle p2 = system.claimDeadParticle().pos( 0.3f , 0.4f ).speed( 0 , 0 );
+        final Particle far = system.claimDeadParticle().pos( 5 , 5 ).speed( 0 , 0 );
+
+        system.tick( 0.1f );
+        system.tick( 0.1f );
+        assertTrue( p1.vx() < 0 && p1.vy() < 0 );
+        assertEquals( -p1.vx() , p2.vx() , 0.0001f );
+        assertEquals( -p1.vy() , p2.vy() , 0.0001f );
+        // distance 0.5 , strength 100 , dt 0.1 -> |dv| = 100 * 0.5 * 0.1
+        assertEquals( 5 , Math.sqrt( p1.vx()*p1.vx() + p1.vy()*p1.vy() ) , 0.0001f );
+        assertEquals( 0 , far.vx() , 0f );
+    }
+}
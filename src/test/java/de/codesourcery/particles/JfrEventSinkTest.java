@@ -0,0 +1,80 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class JfrEventSinkTest
+{
+    @Test
+    public void testEmitsEvents() throws Exception
+    {
+        Assume.assumeTrue( TickProfiler.isJfrAvailable() );
+
+        final TickProfiler profiler = new TickProfiler( 2 , 1 );
+        profiler.setJfrEnabled( true );
+        final ParticleSystem system = TickProfilerTest.createSystem( profiler , null );
+
+        final File file = File.createTempFile( "particles" , ".jfr" );
+        try ( Recording recording = new Recording() )
+        {
+            recording.enable( "de.codesourcery.particles.Tick" );
+            recording.enable( "de.codesourcery.particles.ProfileWindow" );
+            recording.start();
+            for ( int i = 0 ; i < 4 ; i++ ) {
+                system.tick( 0.01f );
+            }
+            recording.stop();
+            recording.dump( file.toPath() );
+
+            final List<RecordedEvent> events = RecordingFile.readAllEvents( file.toPath() );
+            int ticks = 0;
+            int windows = 0;
+            for ( RecordedEvent event : events ) 
+            {
+                switch( event.getEventType().getName() ) 
+                {
+                    case "de.codesourcery.particles.Tick":
+                        ticks++;
+                        assertEquals( 500 , event.getInt( "alive" ) );
+                        assertTrue( event.getDuration().toNanos() > 0 );
+                        break;
+                    case "de.codesourcery.particles.ProfileWindow":
+                        windows++;
+                        assertEquals( 2 , event.getInt( "ticks" ) );
+                        break;
+                    default:
+                }
+            }
+            assertEquals( 4 , ticks );
+            assertEquals( 2 , windows );
+        } 
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ParticleKernelTest
+{
+    private static final int COUNT = 1003; // not a multiple of any vector length
+
+    private static ParticleStorage createStorage()
+    {
+        final Random rnd = new Random( 0xdeadbeef );
+        final ParticleStorage storage = new ParticleStorage( COUNT );
+        for ( int i = 0 ; i < COUNT ; i++ )
+        {
+            storage.instantiate( i );
+            storage.doStateTransition( i );
+            storage.posx[i] = (rnd.nextFloat()-0.5f)*100;
+            storage.posy[i] = (rnd.nextFloat()-0.5f)*100;
+            storage.vx[i] = (rnd.nextFloat()-0.5f)*100;
+            storage.vy[i] = (rnd.nextFloat()-0.5f)*100;
+            storage.ax[i] = rnd.nextFloat();
+            storage.ay[i] = -10;
+            storage.age[i] = rnd.nextInt( 5 );
+        }
+        return storage;
+    }
+
+    private static int[] shuffledIndices()
+    {
+        final Random rnd = new Random( 42 );
+        final int[] indices = new int[ COUNT ];
+        for ( int i = 0 ; i < COUNT ; i++ ) {
+            indices[i] = i;
+        }
+        for ( int i = COUNT-1 ; i > 0 ; i-- )
+        {
+            final int j = rnd.nextInt( i+1 );
+            final int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
+        }
+        return indices;
+    }
+
+    private static ParticleStorage run(IParticleKernel kernel,int[] killed)
+    {
+        final ParticleStorage storage = createStorage();
+        final AnimatorPipeline pipeline = new AnimatorPipeline(
+                new AnimatorPipeline.Integrate( kernel ),
+                new AnimatorPipeline.Age( kernel ),
+                new AnimatorPipeline.Cull( -40 , -40 , 40 , 40 , kernel ) );
+        final int[] indices = shuffledIndices();
+        for ( int tick = 0 ; tick < 3 ; tick++ ) 
+        {
+            killed[0] += pipeline.process( storage , indices , 0 , COUNT , 0.1f );
+            killed[0] += pipeline.process( storage , indices , 0 , 0 , 0.1f );
+        }
+        return storage;
+    }
+
+    @Test
+    public void testVectorKernelMatchesScalarKernel()
+    {
+        Assume.assumeTrue( ParticleKernels.isVectorAvailable() );
+
+        final int[] expectedKilled = new int[1];
+        final ParticleStorage expected = run( ParticleKernels.scalar() , expectedKilled );
+        final int[] actualKilled = new int[1];
+        final ParticleStorage actual = run( ParticleKernels.vector() , actualKilled );
+
+        assertEquals( expectedKilled[0] , actualKilled[0] );
+        assertArrayEquals( expected.posx , actual.posx , 0f );
+        assertArrayEquals( expected.posy , actual.posy , 0f );
+        assertArrayEquals( expected.vx , actual.vx , 0f );
+        assertArrayEquals( expected.vy , actual.vy , 0f );
+        assertArrayEquals( expected.age , actual.age );
+        for ( int i = 0 ; i < COUNT ; i++ ) {
+            assertEquals( expected.isAlive( i ) , actual.isAlive( i ) );
+        }
+    }
+
+    /**
+     * Keeps the gather/scatter loop of {@link IParticleKernel#move(ParticleStorage, int[], int, float)} hot 
+     * with varying counts, this crashed the JVM within ~2 seconds when C2 OSR-compiled the loop with 512-bit vectors.
+     */
+    public static final class MoveStress
+    {
+        public static void main(String[] args)
+        {
+            final IParticleKernel kernel = ParticleKernels.vector();
+            final Random rnd = new Random( 1 );
+            for ( int round = 0 ; round < 200 ; round++ )
+            {
+                final int capacity = 1000 + rnd.nextInt( 100000 );
+                final ParticleStorage storage = new ParticleStorage( capacity );
+                final int[] indices = new int[ capacity ];
+                for ( int i = 0 ; i < capacity ; i++ ) {
+                    indices[i] = i;
+                }
+                for ( int i = capacity-1 ; i > 0 ; i-- )
+                {
+                    final int j = rnd.nextInt( i+1 );
+                    final int tmp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = tmp;
+                }
+                final int count = rnd.nextInt( capacity );
+                for ( int i = 0 ; i < 50 ; i++ ) {
+                    kernel.move( storage , indices , count , 0.01f );
+                }
+            }
+            System.out.println("ok");
+        }
+    }
+
+    @Test
+    public void testVectorKernelSurvivesOnStackReplacement() throws Exception
+    {
+        Assume.assumeTrue( ParticleKernels.isVectorAvailable() );
+
+        // run in a separate JVM so that a crash fails this test instead of the whole test run
+        final File errorFile = File.createTempFile( "hs_err_vectorkernel" , ".log" );
+        final File output = File.createTempFile( "vectorkernel" , ".out" );
+        try 
+        {
+            final Process process = new ProcessBuilder( 
+                    new File( System.getProperty( "java.home" ) , "bin/java" ).getAbsolutePath(),
+                    "--add-modules" , "jdk.incubator.vector" ,
+                    "-XX:ErrorFile="+errorFile.getAbsolutePath() ,
+                    "-cp" , System.getProperty( "java.class.path" ) ,
+                    MoveStress.class.getName() )
+                    .redirectErrorStream( true )
+                    .redirectOutput( output )
+                    .start();
+            if ( ! process.waitFor( 5 , TimeUnit.MINUTES ) ) 
+            {
+                process.destroyForcibly();
+                throw new AssertionError("Stress test timed out");
+            }
+            final String out = new String( Files.readAllBytes( output.toPath() ) , "UTF-8" );
+            assertEquals( "JVM crashed or failed: "+out , 0 , process.exitValue() );
+            assertTrue( out , out.contains( "ok" ) );
+        } 
+        finally 
+        {
+            errorFile.delete();
+            output.delete();
+        }
+    }
+}
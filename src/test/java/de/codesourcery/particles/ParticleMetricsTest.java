@@ -0,0 +1,197 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+public class ParticleMetricsTest
+{
+    @Test
+    public void testHistogramBuckets()
+    {
+        for ( long value : new long[] { 0 , 1 , 31 , 32 , 33 , 1000 , 123456789 , Long.MAX_VALUE } )
+        {
+            final int bucket = LatencyHistogram.bucketIndex( value );
+            assertTrue( "value "+value , LatencyHistogram.highestValue( bucket ) >= value );
+            if ( bucket > 0 ) {
+                assertTrue( "value "+value , LatencyHistogram.highestValue( bucket-1 ) < value );
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals( 0 , histogram.getValueAtPercentile( 99 ) );
+        for ( int i = 1 ; i <= 10000 ; i++ ) {
+            histogram.record( i*1000L );
+        }
+        assertEquals( 10000 , histogram.getCount() );
+        assertEquals( 10_000_000 , histogram.getMax() );
+        assertEquals( 5_000_500 , histogram.getMean() , 1 );
+        assertEquals( 5_000_000 , histogram.getValueAtPercentile( 50 ) , 5_000_000 * 0.07 );
+        assertEquals( 9_900_000 , histogram.getValueAtPercentile( 99 ) , 9_900_000 * 0.07 );
+        assertEquals( 10_000_000 , histogram.getValueAtPercentile( 100 ) );
+
+        histogram.reset();
+        assertEquals( 0 , histogram.getCount() );
+        assertEquals( 0 , histogram.getMax() );
+    }
+
+    @Test
+    public void testParticleSystemMetrics()
+    {
+        final ParticleSystem system = new ParticleSystem( 10 );
+        system.setAnimator( new AnimatorPipeline() );
+        system.setSnapshotsEnabled( true );
+        final ParticleMetrics metrics = new ParticleMetrics();
+        system.setMetrics( metrics );
+
+        assertEquals( 8 , system.claimDeadParticles( 8 , null ) );
+        assertEquals( 2 , system.claimDeadParticles( 5 , null ) );
+        assertEquals( 0 , system.claimDeadParticles( 5 , null ) );
+        assertEquals( null , system.claimDeadParticle() );
+        system.tick( 0.01f );
+
+        assertEquals( 10 , metrics.getSpawnCount() );
+        assertEquals( 2 , metrics.getFailedClaimCount() );
+        assertEquals( 4 , metrics.getSpawnHistogram().getCount() );
+        assertEquals( 1 , metrics.getTickHistogram().getCount() );
+        assertEquals( 10 , metrics.getAliveCount() );
+        assertEquals( 1.0 , metrics.getPoolUtilization() , 0 );
+
+        final int[] killed = { 0 };
+        system.visitAliveParticles( p -> 
+        {
+            if ( killed[0]++ < 3 ) {
+                p.kill();
+            }
+        });
+        system.tick( 0.01f );
+        assertEquals( 3 , metrics.getKillCount() );
+        assertEquals( 7 , metrics.getAliveCount() );
+        assertEquals( 0.7 , metrics.getPoolUtilization() , 0.0001 );
+
+        final Renderer renderer = new Renderer( 16 , 16 );
+        renderer.setMetrics( metrics );
+        renderer.render( system.getLatestSnapshot() , new int[ 16*16 ] , 0 );
+        assertEquals( 1 , metrics.getRenderHistogram().getCount() );
+
+        metrics.reset();
+        assertEquals( 0 , metrics.getSpawnCount() );
+        assertEquals( 0 , metrics.getTickHistogram().getCount() );
+        assertEquals( 7 , metrics.getAliveCount() );
+    }
+
+    @Test
+    public void testKillsAreCountedInTheSameTick()
+    {
+        final ParticleSystem system = new ParticleSystem( 10 );
+        final ParticleMetrics metrics = new ParticleMetrics();
+        system.setMetrics( metrics );
+        final int[] toKill = { 0 };
+        system.setAnimator( new ParticleSystem.IAnimator() 
+        {
+            @Override
+            public void beforeVisitingParticles(float deltaSeconds) {
+            }
+
+            @Override
+            public void tick(Particle p, float deltaSeconds) 
+            {
+                if ( toKill[0] > 0 ) 
+                {
+                    toKill[0]--;
+                    p.kill();
+                    p.kill(); // killing a dying particle must not count twice
+                }
+            }
+        });
+        assertEquals( 10 , system.claimDeadParticles( 10 , null ) );
+        system.tick( 0.01f );
+        assertEquals( 0 , metrics.getKillCount() );
+
+        toKill[0] = 4;
+        system.tick( 0.01f );
+        assertEquals( 4 , metrics.getKillCount() );
+
+        system.tick( 0.01f );
+        assertEquals( 4 , metrics.getKillCount() );
+        assertEquals( 6 , metrics.getAliveCount() );
+    }
+
+    @Test
+    public void testAnimatorCountersMatchMetricsInParallelTicks()
+    {
+        final ParticleSystem system = new ParticleSystem( 50000 );
+        final OutOfBoundsVisitor animator = new OutOfBoundsVisitor( system , new Random( 0xdeadbeef ) );
+        // most particles leave the bounds quickly
+        animator.setBounds( 200 , 200 );
+        system.setAnimator( animator );
+        system.setForkJoinPool( new ForkJoinPool( 4 ) );
+        system.setChunkSize( 100 );
+        final ParticleMetrics metrics = new ParticleMetrics();
+        system.setMetrics( metrics );
+        animator.init( system );
+        for ( int tick = 0 ; tick < 100 ; tick++ ) {
+            system.tick( 0.02f );
+        }
+        assertTrue( animator.getKilledCount() > 1000 );
+        assertEquals( metrics.getKillCount() , animator.getKilledCount() );
+        assertEquals( metrics.getSpawnCount() , animator.getSpawnedCount() );
+
+        animator.resetStatistics();
+        assertEquals( 0 , animator.getSpawnedCount() );
+        assertEquals( 0 , animator.getKilledCount() );
+    }
+
+    @Test
+    public void testJmxExport() throws Exception
+    {
+        final ParticleMetrics metrics = new ParticleMetrics();
+        metrics.recordTick( 2000 , 5 , 10 , 1 );
+        metrics.recordSpawn( 100 , 0 );
+
+        final ObjectName name = metrics.register( "test" );
+        try 
+        {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals( 0.5 , (Double) server.getAttribute( name , "PoolUtilization" ) , 0 );
+            assertEquals( 1L , server.getAttribute( name , "FailedClaimCount" ) );
+            final CompositeData tick = (CompositeData) server.getAttribute( name , "TickLatency" );
+            assertEquals( 1L , tick.get( "count" ) );
+            assertEquals( 2000L , tick.get( "max" ) );
+        } 
+        finally 
+        {
+            metrics.unregister();
+        }
+        assertFalse( ManagementFactory.getPlatformMBeanServer().isRegistered( name ) );
+    }
+}
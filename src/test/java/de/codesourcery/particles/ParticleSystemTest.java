@@ -0,0 +1,468 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParticleSystemTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final class KillingAnimator implements ParticleSystem.IAnimator
+    {
+        public int maxAge;
+        public boolean threadSafe;
+
+        @Override
+        public boolean isThreadSafe() {
+            return threadSafe;
+        }
+
+        @Override
+        public void beforeVisitingParticles(float deltaSeconds) {
+        }
+
+        @Override
+        public void tick(Particle p, float deltaSeconds)
+        {
+            p.move( deltaSeconds );
+            p.age( p.age()+1 );
+            if ( p.age() > maxAge ) {
+                p.kill();
+            }
+        }
+    }
+
+    @Test
+    public void testClaimAndTick()
+    {
+        final ParticleSystem system = new ParticleSystem( 10 );
+        final KillingAnimator animator = new KillingAnimator();
+        animator.maxAge = 2;
+        system.setAnimator( animator );
+
+        assertTrue( system.allDead() );
+
+        for ( int i = 0 ; i < 10 ; i++ )
+        {
+            final Particle p = system.claimDeadParticle();
+            assertNotNull( p );
+            p.instantiate().pos( 0 , 0 ).speed( 1 , 2 ).acceleration( 0 , 0 ).age( 0 );
+        }
+        assertNull( system.claimDeadParticle() );
+
+        system.tick( 1 ); // INITIALIZING -> ALIVE , age 1
+        assertEquals( 10 , system.getAliveCount() );
+        system.visitAliveParticles( p ->
+        {
+            assertEquals( 1 , p.posx() , 0.0001f );
+            assertEquals( 2 , p.posy() , 0.0001f );
+        });
+
+        system.tick( 1 ); // age 2
+        system.tick( 1 ); // age 3 -> DYING
+        assertEquals( 10 , system.getAliveCount() );
+        system.tick( 1 ); // DYING -> DEAD
+        assertTrue( system.allDead() );
+
+        final int[] deadCount = {0};
+        system.visitDeadParticles( p ->
+        {
+            assertTrue( p.isDead() );
+            deadCount[0]++;
+        });
+        assertEquals( 10 , deadCount[0] );
+        assertNotNull( system.claimDeadParticle() );
+    }
+
+    @Test
+    public void testRangeVisitorSeesAliveParticles()
+    {
+        final ParticleSystem system = new ParticleSystem( 100 );
+        final OutOfBoundsVisitor animator = new OutOfBoundsVisitor( system , new Random(0xdeadbeef) );
+        animator.setBounds( 100000 , 100000 );
+        system.setAnimator( animator );
+        animator.init( system );
+
+        system.tick( 0.016f );
+        assertEquals( 100 , system.getAliveCount() );
+
+        final int[] visited = {0};
+        system.visitAliveParticles( (ParticleStorage storage,int[] indices,int from,int to) ->
+        {
+            for ( int i = from ; i < to ; i++ )
+            {
+                assertTrue( storage.isAlive( indices[i] ) );
+                visited[0]++;
+            }
+        });
+        assertEquals( 100 , visited[0] );
+    }
+
+    @Test
+    public void testParallelTickMatchesSerialTick()
+    {
+        final ParticleSystem serial = createRandomSystem( false );
+        final ParticleSystem parallel = createRandomSystem( true );
+
+        for ( int tick = 0 ; tick < 20 ; tick++ )
+        {
+            serial.tick( 0.1f );
+            parallel.tick( 0.1f );
+            assertEquals( serial.getAliveCount() , parallel.getAliveCount() );
+            assertEquals( aliveIndices( serial ) , aliveIndices( parallel ) );
+        }
+        final ParticleStorage s1 = serial.getStorage();
+        final ParticleStorage s2 = parallel.getStorage();
+        for ( int i = 0 ; i < s1.capacity ; i++ )
+        {
+            assertEquals( s1.state[i] , s2.state[i] );
+            assertEquals( s1.posx[i] , s2.posx[i] , 0f );
+            assertEquals( s1.posy[i] , s2.posy[i] , 0f );
+        }
+    }
+
+    @Test
+    public void testConcurrentBulkClaims() throws InterruptedException
+    {
+        final ParticleSystem system = new ParticleSystem( 100000 );
+        final AtomicIntegerArray claimCounts = new AtomicIntegerArray( 100000 );
+        final Thread[] threads = new Thread[4];
+        for ( int i = 0 ; i < threads.length ; i++ )
+        {
+            threads[i] = new Thread( () ->
+            {
+                while ( system.claimDeadParticles( 37 , (storage,indices,from,to) ->
+                {
+                    for ( int j = from ; j < to ; j++ ) {
+                        claimCounts.incrementAndGet( indices[j] );
+                    }
+                }) > 0 ) { }
+            });
+            threads[i].start();
+        }
+        for ( Thread t : threads ) {
+            t.join();
+        }
+        for ( int i = 0 ; i < claimCounts.length() ; i++ ) {
+            assertEquals( 1 , claimCounts.get( i ) );
+        }
+        assertNull( system.claimDeadParticle() );
+        final KillingAnimator animator = new KillingAnimator();
+        animator.maxAge = 10;
+        system.setAnimator( animator );
+        system.tick( 0.1f );
+        assertEquals( 100000 , system.getAliveCount() );
+    }
+
+    @Test
+    public void testIncrementalTickMatchesFullScan()
+    {
+        final ParticleSystem fullScan = createRandomSystem( false );
+        final ParticleSystem incremental = createRandomSystem( false );
+        incremental.setIncremental( true );
+        final ParticleSystem parallelIncremental = createRandomSystem( true );
+        parallelIncremental.setIncremental( true );
+
+        for ( int tick = 0 ; tick < 30 ; tick++ )
+        {
+            for ( ParticleSystem system : new ParticleSystem[] { fullScan , incremental , parallelIncremental } )
+            {
+                system.claimDeadParticles( 300 , (storage,indices,from,to) ->
+                {
+                    for ( int i = from ; i < to ; i++ ) {
+                        storage.age[ indices[i] ] = 0;
+                    }
+                });
+                system.tick( 0.1f );
+            }
+            assertEquals( fullScan.getAliveCount() , incremental.getAliveCount() );
+            assertEquals( fullScan.getAliveCount() , parallelIncremental.getAliveCount() );
+            assertEquals( aliveAges( fullScan ) , aliveAges( incremental ) );
+            assertEquals( aliveAges( fullScan ) , aliveAges( parallelIncremental ) );
+        }
+    }
+
+    @Test
+    public void testSnapshots()
+    {
+        final ParticleSystem system = createRandomSystem( true );
+        assertNull( system.getLatestSnapshot() );
+        system.setSnapshotsEnabled( true );
+        assertEquals( 0 , system.getLatestSnapshot().getSequence() );
+
+        system.tick( 0.1f );
+        final ParticleSnapshot first = system.getLatestSnapshot();
+        assertEquals( 7000 , first.getCount() );
+        final float x = first.posx[0];
+
+        system.tick( 0.1f );
+        system.tick( 0.1f );
+        // snapshot must not change until the reader asks for a new one
+        assertEquals( x , first.posx[0] , 0f );
+
+        final ParticleSnapshot latest = system.getLatestSnapshot();
+        assertTrue( latest != first );
+        assertEquals( first.getSequence() + 2 , latest.getSequence() );
+        assertTrue( latest == system.getLatestSnapshot() );
+
+        final int[] alive = {0};
+        system.visitAliveParticles( p ->
+        {
+            if ( p.isAlive() ) {
+                alive[0]++;
+            }
+        });
+        assertEquals( alive[0] , latest.getCount() );
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException
+    {
+        final ParticleSystem original = createSpawningSystem( 0xdeadbeef );
+        ((OutOfBoundsVisitor) original.getAnimator()).init( original );
+        for ( int tick = 0 ; tick < 10 ; tick++ ) {
+            original.tick( 0.05f );
+        }
+        // particles claimed after the last tick must survive a save/load cycle as well
+        ((OutOfBoundsVisitor) original.getAnimator()).init( original );
+
+        final File file = new File( folder.getRoot() , "system.bin" );
+        original.save( file.toPath() );
+        final ParticleSystem restored = createSpawningSystem( 42 );
+        restored.load( file.toPath() );
+        assertEquals( original.getAliveCount() , restored.getAliveCount() );
+
+        for ( int tick = 0 ; tick < 20 ; tick++ )
+        {
+            if ( tick == 5 ) 
+            {
+                // uses the animator's random number generator
+                ((OutOfBoundsVisitor) original.getAnimator()).init( original );
+                ((OutOfBoundsVisitor) restored.getAnimator()).init( restored );
+            }
+            original.tick( 0.05f );
+            restored.tick( 0.05f );
+            assertEquals( aliveIndices( original ) , aliveIndices( restored ) );
+        }
+        final ParticleStorage s1 = original.getStorage();
+        final ParticleStorage s2 = restored.getStorage();
+        for ( int i = 0 ; i < s1.capacity ; i++ )
+        {
+            assertEquals( s1.state[i] , s2.state[i] );
+            assertEquals( s1.age[i] , s2.age[i] );
+            assertEquals( s1.posx[i] , s2.posx[i] , 0f );
+            assertEquals( s1.vy[i] , s2.vy[i] , 0f );
+        }
+    }
+
+    @Test
+    public void testSaveAndLoadInSegments() throws IOException
+    {
+        final ParticleSystem original = createSpawningSystem( 0xdeadbeef );
+        ((OutOfBoundsVisitor) original.getAnimator()).init( original );
+        for ( int tick = 0 ; tick < 10 ; tick++ ) {
+            original.tick( 0.05f );
+        }
+        final File file = new File( folder.getRoot() , "system.bin" );
+        final ParticleSystem restored = createSpawningSystem( 42 );
+        try ( FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.CREATE , StandardOpenOption.READ , StandardOpenOption.WRITE ) ) 
+        {
+            // segment sizes that are not a multiple of the value sizes
+            final long size = original.save( channel , 0 , 1001 );
+            assertEquals( size , restored.load( channel , 0 , 333 ) );
+        }
+        assertEquals( original.getAliveCount() , restored.getAliveCount() );
+        assertEquals( aliveIndices( original ) , aliveIndices( restored ) );
+        final ParticleStorage s1 = original.getStorage();
+        final ParticleStorage s2 = restored.getStorage();
+        assertArrayEquals( s1.state , s2.state );
+        assertArrayEquals( s1.age , s2.age );
+        assertArrayEquals( s1.color , s2.color );
+        assertArrayEquals( s1.posx , s2.posx , 0f );
+        assertArrayEquals( s1.vy , s2.vy , 0f );
+        
+        original.tick( 0.05f );
+        restored.tick( 0.05f );
+        assertEquals( aliveIndices( original ) , aliveIndices( restored ) );
+    }
+
+    @Test
+    public void testLoadRejectsInvalidStatesAndIndices() throws IOException
+    {
+        final ParticleSystem original = createSpawningSystem( 0xdeadbeef );
+        ((OutOfBoundsVisitor) original.getAnimator()).init( original );
+        original.tick( 0.05f );
+        final int capacity = original.getStorage().capacity;
+        final File file = new File( folder.getRoot() , "system.bin" );
+        original.save( file.toPath() );
+
+        final long stateOffset = ParticleSystem.HEADER_SIZE + capacity * 8L*4;
+        final long aliveOffset = ParticleSystem.HEADER_SIZE + capacity * (long) ParticleStorage.BYTES_PER_PARTICLE;
+        final long deadOffset = aliveOffset + capacity * 4L;
+        assertCorruptionDetected( file , stateOffset + 17 , new byte[] { 42 } );
+        assertCorruptionDetected( file , aliveOffset , new byte[] { -1 , -1 , -1 , -1 } );
+        // first alive particle listed as free as well
+        original.save( file.toPath() );
+        final ByteBuffer firstAlive = ByteBuffer.allocate( 4 );
+        try ( FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.READ ) ) {
+            channel.read( firstAlive , aliveOffset );
+        }
+        assertCorruptionDetected( file , deadOffset , firstAlive.array() );
+    }
+
+    private void assertCorruptionDetected(File file,long offset,byte[] data) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.WRITE ) ) {
+            channel.write( ByteBuffer.wrap( data ) , offset );
+        }
+        final ParticleSystem restored = createSpawningSystem( 42 );
+        try {
+            restored.load( file.toPath() );
+            fail("Should've failed");
+        } 
+        catch(IOException e) {
+            // ok
+        }
+        // not left half-loaded
+        assertEquals( 0 , restored.getAliveCount() );
+        assertNotNull( restored.claimDeadParticle() );
+    }
+
+    @Test(timeout=10000)
+    public void testTickFromClaimVisitorFails()
+    {
+        final ParticleSystem system = new ParticleSystem( 100 );
+        system.setAnimator( new KillingAnimator() );
+        try {
+            system.claimDeadParticles( 10 , (storage,indices,from,to) -> system.tick( 0.1f ) );
+            fail("Should've failed");
+        } 
+        catch(IllegalStateException e) {
+            // ok
+        }
+        try {
+            system.claimDeadParticles( 10 , (storage,indices,from,to) -> system.reset() );
+            fail("Should've failed");
+        } 
+        catch(IllegalStateException e) {
+            // ok
+        }
+        // nested claims are fine
+        assertEquals( 5 , system.claimDeadParticles( 5 , (storage,indices,from,to) -> assertNotNull( system.claimDeadParticle() ) ) );
+        // 10+10 particles claimed by the failed claims stay claimed
+        system.tick( 0.1f );
+        assertEquals( 10 + 10 + 5 + 1 , system.getAliveCount() );
+    }
+
+    @Test(timeout=10000)
+    public void testClaimWhileVisitingDeadParticlesFails()
+    {
+        final ParticleSystem system = new ParticleSystem( 100 );
+        system.setAnimator( new KillingAnimator() );
+        try {
+            system.visitDeadParticles( p -> system.claimDeadParticle() , 1 );
+            fail("Should've failed");
+        } 
+        catch(IllegalStateException e) {
+            // ok
+        }
+        try {
+            system.visitDeadParticles( p -> system.tick( 0.1f ) , 1 );
+            fail("Should've failed");
+        } 
+        catch(IllegalStateException e) {
+            // ok
+        }
+        assertEquals( 100 , system.claimDeadParticles( 100 , null ) );
+    }
+
+    private static ParticleSystem createSpawningSystem(long seed)
+    {
+        final ParticleSystem system = new ParticleSystem( 30000 );
+        system.setIncremental( true );
+        final OutOfBoundsVisitor animator = new OutOfBoundsVisitor( system , new Random( seed ) );
+        animator.setBounds( 400 , 300 );
+        final List<Vec2d> shape = new ArrayList<>();
+        for ( int i = 0 ; i < 20 ; i++ ) {
+            shape.add( new Vec2d( i , -i ) );
+        }
+        animator.customShapes = Collections.singletonList( shape );
+        system.setAnimator( animator );
+        return system;
+    }
+
+    private static List<Integer> aliveAges(ParticleSystem system)
+    {
+        final List<Integer> result = new ArrayList<>();
+        system.visitAliveParticles( p ->
+        {
+            assertTrue( p.isAlive() || p.getState() == Particle.State.DYING );
+            result.add( p.age() );
+        });
+        Collections.sort( result );
+        return result;
+    }
+
+    private static ParticleSystem createRandomSystem(boolean parallel)
+    {
+        final ParticleSystem system = new ParticleSystem( 10000 );
+        final KillingAnimator animator = new KillingAnimator();
+        animator.maxAge = 10;
+        animator.threadSafe = parallel;
+        system.setAnimator( animator );
+        if ( parallel )
+        {
+            system.setForkJoinPool( new ForkJoinPool( 4 ) );
+            system.setChunkSize( 100 );
+        }
+        final Random rnd = new Random( 0xdeadbeef );
+        for ( int i = 0 ; i < 7000 ; i++ )
+        {
+            system.claimDeadParticle().instantiate().speed( rnd.nextFloat() , rnd.nextFloat() ).age( rnd.nextInt( 10 ) );
+        }
+        return system;
+    }
+
+    private static List<Integer> aliveIndices(ParticleSystem system)
+    {
+        final List<Integer> result = new ArrayList<>();
+        system.visitAliveParticles( p -> result.add( p.getIndex() ) );
+        return result;
+    }
+}
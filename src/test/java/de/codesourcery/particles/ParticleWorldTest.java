@@ -0,0 +1,92 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class ParticleWorldTest
+{
+    private static ParticleSystem createSystem(int alive)
+    {
+        final ParticleSystem system = new ParticleSystem( alive+10 );
+        system.setAnimator( new AnimatorPipeline( new AnimatorPipeline.Integrate() ) );
+        if ( alive > 0 ) 
+        {
+            system.claimDeadParticles( alive , (storage,indices,from,to) -> 
+            {
+                for ( int i = from ; i < to ; i++ ) {
+                    storage.vx[ indices[i] ] = 1;
+                }
+            });
+        }
+        system.tick( 0 );
+        return system;
+    }
+
+    @Test
+    public void testBatchesSmallAndSplitsLargeEffects()
+    {
+        final ParticleWorld world = new ParticleWorld( new ForkJoinPool( 2 ) );
+        world.setSplitThreshold( 1000 );
+        world.setBatchSize( 100 );
+        final ParticleWorld.Effect large = world.add( "large" , createSystem( 5000 ) );
+        for ( int i = 0 ; i < 10 ; i++ ) {
+            world.add( "small"+i , createSystem( 30 ) );
+        }
+
+        world.tick( 1 );
+
+        assertTrue( large.isParallel() );
+        // 1 large effect + 10 small effects in batches of 4,4,2
+        assertEquals( 4 , world.getLastTaskCount() );
+        for ( ParticleWorld.Effect effect : world.getEffects() )
+        {
+            assertEquals( 1 , effect.getTickCount() );
+            assertTrue( effect.getLastTickNanos() > 0 );
+            assertEquals( effect.getLastTickNanos() , effect.getMaxTickNanos() );
+            assertEquals( effect == large , effect.isParallel() );
+            effect.getSystem().visitAliveParticles( (storage,indices,from,to) -> 
+            {
+                for ( int i = from ; i < to ; i++ ) {
+                    assertEquals( 1 , storage.posx[ indices[i] ] , 0f );
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testTicksEmittersWithoutPool()
+    {
+        final ParticleWorld world = new ParticleWorld( null );
+        world.setSplitThreshold( 1 );
+        final ParticleSystem system = createSystem( 0 );
+        final Emitter emitter = new Emitter( system );
+        emitter.schedule( 0.5f , ShapeTemplate.of( 0 , 0 , 1 , 1 ) , 0 , 0 , 0 , 0 , 1 , 0 );
+        final ParticleWorld.Effect effect = world.add( "fx" , system ).addEmitter( emitter );
+
+        world.tick( 0.5f );
+        assertFalse( effect.isParallel() );
+        world.tick( 0.5f );
+        assertEquals( 2 , system.getAliveCount() );
+        assertEquals( 2 , effect.getTickCount() );
+    }
+}
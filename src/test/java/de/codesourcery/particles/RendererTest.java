@@ -0,0 +1,443 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RendererTest
+{
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private static ParticleSnapshot createSnapshot(int count)
+    {
+        final Random rnd = new Random( 0xdeadbeef );
+        final ParticleSnapshot snapshot = new ParticleSnapshot( count );
+        for ( int i = 0 ; i < count ; i++ )
+        {
+            // deliberately render some particles outside of the framebuffer
+            snapshot.posx[i] = (rnd.nextFloat()-0.5f) * WIDTH * 1.2f;
+            snapshot.posy[i] = (rnd.nextFloat()-0.5f) * HEIGHT * 1.2f;
+            snapshot.vx[i] = rnd.nextFloat();
+            snapshot.vy[i] = rnd.nextFloat();
+            snapshot.color[i] = i;
+        }
+        snapshot.count = count;
+        return snapshot;
+    }
+
+    @Test
+    public void testPlotsRelativeToCenter()
+    {
+        final ParticleSnapshot snapshot = new ParticleSnapshot( 2 );
+        snapshot.posx[0] = 0;
+        snapshot.posy[0] = 0;
+        snapshot.color[0] = 0xffff0000;
+        snapshot.posx[1] = -WIDTH;
+        snapshot.posy[1] = 0;
+        snapshot.color[1] = 0xff00ff00;
+        snapshot.count = 2;
+
+        final int[] pixels = new int[ WIDTH*HEIGHT ];
+        new Renderer( WIDTH , HEIGHT ).render( snapshot , pixels , 0 );
+        assertEquals( 0xffff0000 , pixels[ WIDTH/2 + HEIGHT/2 * WIDTH ] );
+        int background = 0;
+        for ( int pixel : pixels ) {
+            if ( pixel == 0xff000000 ) {
+                background++;
+            }
+        }
+        assertEquals( WIDTH*HEIGHT-1 , background );
+    }
+
+    @Test
+    public void testParallelRenderingMatchesSerialRendering()
+    {
+        final ParticleSnapshot snapshot = createSnapshot( 10000 );
+
+        final int[] expected = new int[ WIDTH*HEIGHT ];
+        new Renderer( WIDTH , HEIGHT ).render( snapshot , expected , 0.5f );
+
+        final Renderer parallel = new Renderer( WIDTH , HEIGHT , 4 );
+        parallel.setForkJoinPool( new ForkJoinPool( 4 ) );
+        parallel.setChunkSize( 333 );
+        final int[] actual = new int[ WIDTH*HEIGHT ];
+        parallel.render( snapshot , actual , 0.5f );
+        assertArrayEquals( expected , actual );
+
+        // render again into the same framebuffer, bands without particles must be cleared
+        snapshot.count = 10;
+        new Renderer( WIDTH , HEIGHT ).render( snapshot , expected , 0.5f );
+        parallel.setChunkSize( 3 );
+        parallel.render( snapshot , actual , 0.5f );
+        assertArrayEquals( expected , actual );
+    }
+
+    @Test
+    public void testCullsParticlesOutsideOfFramebuffer()
+    {
+        final ParticleSnapshot snapshot = new ParticleSnapshot( 4 );
+        snapshot.posx[0] = -WIDTH/2 - 0.5f; // truncated to the first column
+        snapshot.posx[1] = -WIDTH/2 - 1.5f;
+        snapshot.posx[2] = WIDTH/2;
+        snapshot.posy[3] = Float.NaN;
+        snapshot.color[0] = 0xff00ff00;
+        snapshot.count = 4;
+
+        final int[] pixels = new int[ WIDTH*HEIGHT ];
+        final Renderer renderer = new Renderer( WIDTH , HEIGHT );
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 1 , renderer.getLastDrawnCount() );
+        assertEquals( 0xff00ff00 , pixels[ HEIGHT/2 * WIDTH ] );
+    }
+
+    @Test
+    public void testSubsamplesDenseTiles()
+    {
+        // particles #0...#100 on the same pixel, #101 on its own
+        final ParticleSnapshot snapshot = new ParticleSnapshot( 102 );
+        for ( int i = 0 ; i < 101 ; i++ ) {
+            snapshot.color[i] = i;
+        }
+        snapshot.posx[101] = 20;
+        snapshot.posy[101] = 20;
+        snapshot.color[101] = 101;
+        snapshot.count = 102;
+
+        final int[] pixels = new int[ WIDTH*HEIGHT ];
+        final Renderer renderer = new Renderer( WIDTH , HEIGHT );
+        renderer.setLodLevel( 1 );
+        renderer.setDenseTileThreshold( 10 );
+
+        // tile density is only known after the first frame
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 102 , renderer.getLastDrawnCount() );
+
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 51 + 1 , renderer.getLastDrawnCount() );
+        assertEquals( 100 , pixels[ WIDTH/2 + HEIGHT/2 * WIDTH ] );
+        assertEquals( 101 , pixels[ WIDTH/2 + 20 + (HEIGHT/2 - 20) * WIDTH ] );
+
+        // beyond the max. dense level only every 2nd block of 16 particles is considered (#0-#15, #32-#47, ...)
+        // and every 64th particle is plotted in dense tiles 
+        renderer.setLodLevel( Renderer.MAX_DENSE_LEVEL + 1 );
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 2 + 1 , renderer.getLastDrawnCount() );
+        assertEquals( 64 , pixels[ WIDTH/2 + HEIGHT/2 * WIDTH ] );
+        assertEquals( 101 , pixels[ WIDTH/2 + 20 + (HEIGHT/2 - 20) * WIDTH ] );
+
+        snapshot.count = 100;
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 0xff000000 , pixels[ WIDTH/2 + 20 + (HEIGHT/2 - 20) * WIDTH ] );
+    }
+
+    @Test
+    public void testParallelLodMatchesSerialLod()
+    {
+        final ParticleSnapshot snapshot = createSnapshot( 10000 );
+        final Renderer serial = new Renderer( WIDTH , HEIGHT , 4 );
+        final Renderer parallel = new Renderer( WIDTH , HEIGHT , 4 );
+        parallel.setForkJoinPool( new ForkJoinPool( 4 ) );
+        parallel.setChunkSize( 333 );
+
+        final int[] expected = new int[ WIDTH*HEIGHT ];
+        final int[] actual = new int[ WIDTH*HEIGHT ];
+        for ( int level : new int[] { 2 , 2 , Renderer.MAX_DENSE_LEVEL + 1 , 3 } ) 
+        {
+            serial.setLodLevel( level );
+            parallel.setLodLevel( level );
+            serial.render( snapshot , expected , 0.5f );
+            parallel.render( snapshot , actual , 0.5f );
+            assertArrayEquals( expected , actual );
+            assertEquals( serial.getLastDrawnCount() , parallel.getLastDrawnCount() );
+        }
+        assertTrue( serial.getLastDrawnCount() < 10000 );
+    }
+
+    @Test
+    public void testFrameBudgetAdaptsLevelOfDetail()
+    {
+        final ParticleSnapshot snapshot = createSnapshot( 1000 );
+        final int[] pixels = new int[ WIDTH*HEIGHT ];
+        final Renderer renderer = new Renderer( WIDTH , HEIGHT );
+
+        renderer.setFrameBudget( 1 );
+        for ( int i = 0 ; i < Renderer.MAX_LOD_LEVEL + 2 ; i++ ) {
+            renderer.render( snapshot , pixels , 0 );
+        }
+        assertEquals( Renderer.MAX_LOD_LEVEL , renderer.getLodLevel() );
+
+        renderer.setFrameBudget( TimeUnit.SECONDS.toNanos( 10 ) );
+        for ( int i = 0 ; i < Renderer.MAX_LOD_LEVEL + 2 ; i++ ) {
+            renderer.render( snapshot , pixels , 0 );
+        }
+        assertEquals( 0 , renderer.getLodLevel() );
+        assertEquals( 1000 , renderer.getLastDrawnCount() + countOutside( snapshot ) );
+    }
+
+    @Test
+    public void testAdditiveBlendingSumsColors()
+    {
+        final ParticleSnapshot snapshot = new ParticleSnapshot( 5 );
+        snapshot.color[0] = 0xff100000;
+        snapshot.color[1] = 0x00200010;
+        snapshot.posx[2] = 10;
+        snapshot.posx[3] = 10;
+        snapshot.posx[4] = 10;
+        snapshot.color[2] = 0xff808080;
+        snapshot.color[3] = 0xff808080;
+        snapshot.color[4] = 0xff808080;
+        snapshot.count = 5;
+
+        final int[] pixels = new int[ WIDTH*HEIGHT ];
+        final Renderer renderer = new Renderer( WIDTH , HEIGHT );
+        renderer.setBlendMode( Renderer.BlendMode.ADDITIVE );
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 0xff300010 , pixels[ WIDTH/2 + HEIGHT/2 * WIDTH ] );
+        assertEquals( 0xffffffff , pixels[ WIDTH/2 + 10 + HEIGHT/2 * WIDTH ] );
+
+        // 255 * ( 1 - exp(-1) ) = 161, added to the background
+        renderer.setBackground( 0xff000010 );
+        renderer.setToneMapping( Renderer.ToneMapping.EXPONENTIAL , 1 );
+        snapshot.color[4] = 0xffffffff;
+        snapshot.count = 1;
+        snapshot.posx[0] = 10;
+        snapshot.color[0] = 0xffffffff;
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 0xffa1a1b1 , pixels[ WIDTH/2 + 10 + HEIGHT/2 * WIDTH ] );
+        assertEquals( 0xff000010 , pixels[ WIDTH/2 + HEIGHT/2 * WIDTH ] );
+        assertEquals( 0xff000010 , pixels[0] );
+    }
+
+    @Test
+    public void testAdditiveBlendingIsOrderIndependent()
+    {
+        final ParticleSnapshot snapshot = createSnapshot( 10000 );
+        final ParticleSnapshot shuffled = new ParticleSnapshot( 10000 );
+        final Random rnd = new Random( 42 );
+        for ( int i = 0 ; i < snapshot.count ; i++ ) 
+        {
+            snapshot.color[i] = rnd.nextInt() | 0xff000000;
+            final int j = (i * 7919) % snapshot.count;
+            shuffled.posx[j] = snapshot.posx[i];
+            shuffled.posy[j] = snapshot.posy[i];
+            shuffled.vx[j] = snapshot.vx[i];
+            shuffled.vy[j] = snapshot.vy[i];
+            shuffled.color[j] = snapshot.color[i];
+        }
+        shuffled.count = snapshot.count;
+
+        final Renderer serial = new Renderer( WIDTH , HEIGHT , 4 );
+        serial.setBlendMode( Renderer.BlendMode.ADDITIVE );
+        serial.setToneMapping( Renderer.ToneMapping.EXPONENTIAL , 0.5f );
+        final Renderer parallel = new Renderer( WIDTH , HEIGHT , 4 );
+        parallel.setBlendMode( Renderer.BlendMode.ADDITIVE );
+        parallel.setToneMapping( Renderer.ToneMapping.EXPONENTIAL , 0.5f );
+        parallel.setForkJoinPool( new ForkJoinPool( 4 ) );
+        parallel.setChunkSize( 333 );
+
+        final int[] expected = new int[ WIDTH*HEIGHT ];
+        final int[] actual = new int[ WIDTH*HEIGHT ];
+        serial.render( snapshot , expected , 0.5f );
+        parallel.render( shuffled , actual , 0.5f );
+        assertArrayEquals( expected , actual );
+        serial.render( shuffled , actual , 0.5f );
+        assertArrayEquals( expected , actual );
+
+        // accumulators are reset after each frame
+        for ( int level : new int[] { 0 , 3 , Renderer.MAX_DENSE_LEVEL + 1 } ) 
+        {
+            serial.setLodLevel( level );
+            parallel.setLodLevel( level );
+            serial.render( snapshot , expected , 0.5f );
+            parallel.render( snapshot , actual , 0.5f );
+            assertArrayEquals( expected , actual );
+        }
+        snapshot.count = 10;
+        serial.setLodLevel( 0 );
+        parallel.setLodLevel( 0 );
+        parallel.setChunkSize( 3 );
+        new Renderer( WIDTH , HEIGHT , 4 ).render( snapshot , expected , 0.5f );
+        parallel.setToneMapping( Renderer.ToneMapping.CLAMP , 1 );
+        parallel.render( snapshot , actual , 0.5f );
+        assertArrayEquals( expected , actual );
+    }
+
+    @Test
+    public void testAdditiveBlendingCompensatesSkippedParticles()
+    {
+        // particles #0...#99 on the same pixel
+        final ParticleSnapshot snapshot = new ParticleSnapshot( 100 );
+        Arrays.fill( snapshot.color , 0xff010101 );
+        snapshot.count = 100;
+
+        final int[] pixels = new int[ WIDTH*HEIGHT ];
+        final Renderer renderer = new Renderer( WIDTH , HEIGHT );
+        renderer.setBlendMode( Renderer.BlendMode.ADDITIVE );
+        renderer.setDenseTileThreshold( 10 );
+        renderer.setLodLevel( 2 );
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 0xff646464 , pixels[ WIDTH/2 + HEIGHT/2 * WIDTH ] );
+
+        // every 4th particle counts 4 times
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 25 , renderer.getLastDrawnCount() );
+        assertEquals( 0xff646464 , pixels[ WIDTH/2 + HEIGHT/2 * WIDTH ] );
+    }
+
+    @Test
+    public void testDenseHotspotSaturatesAtMaxLod()
+    {
+        // 256 particles are drawn, each one standing in for 2^10 particles and adding 2^6 with a 
+        // splat weight of 2^8, so the sums of the center pixel would wrap around to exactly 2^32
+        final ParticleSnapshot snapshot = new ParticleSnapshot( 1 << 16 );
+        // center of pixel (32,24)
+        Arrays.fill( snapshot.posx , 0.5f );
+        Arrays.fill( snapshot.posy , -0.5f );
+        Arrays.fill( snapshot.color , 0xff404040 );
+        snapshot.count = snapshot.posx.length;
+
+        final int[] pixels = new int[ WIDTH*HEIGHT ];
+        for ( int radius : new int[] { 0 , 1 } ) 
+        {
+            final Renderer renderer = new Renderer( WIDTH , HEIGHT );
+            renderer.setBlendMode( Renderer.BlendMode.ADDITIVE );
+            renderer.setSplatRadius( radius );
+            renderer.setLodLevel( Renderer.MAX_LOD_LEVEL );
+            // the first frame only detects the dense tile
+            for ( int frame = 0 ; frame < 2 ; frame++ ) 
+            {
+                renderer.render( snapshot , pixels , 0 );
+                assertEquals( "radius "+radius , 0xffffffff , pixels[ WIDTH/2 + HEIGHT/2 * WIDTH ] );
+            }
+            assertEquals( 256 , renderer.getLastDrawnCount() );
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testRejectsTooSmallExposure() {
+        new Renderer( WIDTH , HEIGHT ).setToneMapping( Renderer.ToneMapping.CLAMP , Renderer.MIN_EXPOSURE / 2 );
+    }
+
+    @Test
+    public void testPlotsSplatsWithSubpixelPrecision()
+    {
+        final ParticleSnapshot snapshot = new ParticleSnapshot( 2 );
+        // center of pixel (32,24)
+        snapshot.posx[0] = 0.5f;
+        snapshot.posy[0] = -0.5f;
+        snapshot.color[0] = 0xffffffff;
+        // halfway between (10,24) and (11,24)
+        snapshot.posx[1] = -21f;
+        snapshot.posy[1] = -0.5f;
+        snapshot.color[1] = 0xff00ff00;
+        snapshot.count = 2;
+
+        final int[] pixels = new int[ WIDTH*HEIGHT ];
+        final Renderer renderer = new Renderer( WIDTH , HEIGHT );
+        renderer.setSplatRadius( 1 );
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 2 , renderer.getLastDrawnCount() );
+        assertEquals( 0xffffffff , pixels[ 32 + 24*WIDTH ] );
+        assertEquals( 0xff007f00 , pixels[ 10 + 24*WIDTH ] );
+        assertEquals( 0xff007f00 , pixels[ 11 + 24*WIDTH ] );
+        int background = 0;
+        for ( int pixel : pixels ) {
+            if ( pixel == 0xff000000 ) {
+                background++;
+            }
+        }
+        assertEquals( WIDTH*HEIGHT-3 , background );
+
+        // partially visible
+        snapshot.posx[0] = -WIDTH/2 - 1f;
+        snapshot.count = 1;
+        renderer.setSplatRadius( 2 );
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 1 , renderer.getLastDrawnCount() );
+        assertTrue( pixels[ 24*WIDTH ] != 0xff000000 );
+        assertEquals( 0xff000000 , pixels[ 32 + 24*WIDTH ] );
+
+        snapshot.posx[0] = -WIDTH/2 - 2f;
+        renderer.render( snapshot , pixels , 0 );
+        assertEquals( 0 , renderer.getLastDrawnCount() );
+        assertEquals( 0xff000000 , pixels[ 24*WIDTH ] );
+    }
+
+    @Test
+    public void testParallelSplatsMatchSerialSplats()
+    {
+        final ParticleSnapshot snapshot = createSnapshot( 10000 );
+        for ( int i = 0 ; i < snapshot.count ; i++ ) {
+            snapshot.color[i] = 0xff000000 | i;
+        }
+        // splats span up to 3 bands
+        final Renderer serial = new Renderer( WIDTH , HEIGHT , 4 );
+        serial.setSplatRadius( 3 );
+        serial.setToneMapping( Renderer.ToneMapping.EXPONENTIAL , 0.25f );
+        final Renderer parallel = new Renderer( WIDTH , HEIGHT , 4 );
+        parallel.setSplatRadius( 3 );
+        parallel.setToneMapping( Renderer.ToneMapping.EXPONENTIAL , 0.25f );
+        parallel.setForkJoinPool( new ForkJoinPool( 4 ) );
+        parallel.setChunkSize( 333 );
+
+        final int[] expected = new int[ WIDTH*HEIGHT ];
+        final int[] actual = new int[ WIDTH*HEIGHT ];
+        for ( int level : new int[] { 0 , 2 , 2 , Renderer.MAX_DENSE_LEVEL + 1 } ) 
+        {
+            serial.setLodLevel( level );
+            parallel.setLodLevel( level );
+            serial.render( snapshot , expected , 0.5f );
+            parallel.render( snapshot , actual , 0.5f );
+            assertArrayEquals( expected , actual );
+            assertEquals( serial.getLastDrawnCount() , parallel.getLastDrawnCount() );
+        }
+
+        // bands only covered by the lower rows of a splat must be cleared as well
+        snapshot.count = 1;
+        snapshot.posx[0] = 0;
+        snapshot.posy[0] = 0;
+        parallel.render( snapshot , actual , 0 );
+        snapshot.count = 0;
+        parallel.render( snapshot , actual , 0 );
+        for ( int pixel : actual ) {
+            assertEquals( 0xff000000 , pixel );
+        }
+    }
+
+    private static int countOutside(ParticleSnapshot snapshot)
+    {
+        int outside = 0;
+        for ( int i = 0 ; i < snapshot.count ; i++ )
+        {
+            final float x = snapshot.posx[i] + WIDTH/2;
+            final float y = HEIGHT/2 - snapshot.posy[i];
+            if ( x <= -1 || x >= WIDTH || y <= -1 || y >= HEIGHT ) {
+                outside++;
+            }
+        }
+        return outside;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReplayTest
+{
+    private static final int TICKS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ParticleSystem createSystem(long seed)
+    {
+        final ParticleSystem system = new ParticleSystem( 30000 );
+        system.setIncremental( true );
+        final OutOfBoundsVisitor animator = new OutOfBoundsVisitor( system , new Random( seed ) );
+        animator.setBounds( 400 , 300 );
+        final List<Vec2d> shape = new ArrayList<>();
+        for ( int i = 0 ; i < 20 ; i++ ) {
+            shape.add( new Vec2d( i , -i ) );
+        }
+        animator.customShapes = Collections.singletonList( shape );
+        system.setAnimator( animator );
+        return system;
+    }
+
+    @Test
+    public void testReplayIsBitIdentical() throws IOException
+    {
+        final File log = new File( folder.getRoot() , "replay.log" );
+
+        // record a parallel run with irregular time steps
+        final ParticleSystem recorded = createSystem( 0xdeadbeef );
+        final OutOfBoundsVisitor recordedAnimator = (OutOfBoundsVisitor) recorded.getAnimator();
+        recorded.setForkJoinPool( new ForkJoinPool( 4 ) );
+        recorded.setChunkSize( 500 );
+        recordedAnimator.init( recorded );
+        recorded.tick( 0.016f );
+
+        final ReplayRecorder recorder = new ReplayRecorder( log.toPath() , recorded , recordedAnimator );
+        final Random deltas = new Random( 42 );
+        for ( int tick = 0 ; tick < TICKS ; tick++ )
+        {
+            if ( tick == TICKS/2 ) 
+            {
+                recordedAnimator.setSeed( 123 );
+                recordedAnimator.setBounds( 300 , 200 );
+            }
+            if ( recorded.allDead() || tick % 20 == 0 ) {
+                recordedAnimator.init( recorded );
+            }
+            recorded.tick( 0.01f + deltas.nextFloat() * 0.02f );
+        }
+        recorder.close();
+        // ticks, inits, seed, bounds and at least a few spawns
+        assertTrue( recorder.getEventCount() > TICKS + 5 + 2 + 5 );
+
+        // replay serially, the alive/dead bookkeeping only depends on the chunk size
+        final ParticleSystem replayed = createSystem( 0 );
+        replayed.setChunkSize( 500 );
+        try ( Replayer replayer = new Replayer( log.toPath() , replayed , (OutOfBoundsVisitor) replayed.getAnimator() ) )
+        {
+            assertEquals( TICKS/2 , replayer.skipTo( TICKS/2 ) );
+            assertEquals( TICKS , replayer.skipTo( Long.MAX_VALUE ) );
+            assertFalse( replayer.step() );
+        }
+
+        assertEquals( recorded.getAliveCount() , replayed.getAliveCount() );
+        final ParticleStorage s1 = recorded.getStorage();
+        final ParticleStorage s2 = replayed.getStorage();
+        assertArrayEquals( s1.state , s2.state );
+        assertArrayEquals( s1.age , s2.age );
+        assertArrayEquals( s1.color , s2.color );
+        for ( int i = 0 ; i < s1.capacity ; i++ )
+        {
+            assertEquals( Float.floatToRawIntBits( s1.posx[i] ) , Float.floatToRawIntBits( s2.posx[i] ) );
+            assertEquals( Float.floatToRawIntBits( s1.posy[i] ) , Float.floatToRawIntBits( s2.posy[i] ) );
+            assertEquals( Float.floatToRawIntBits( s1.vx[i] ) , Float.floatToRawIntBits( s2.vx[i] ) );
+            assertEquals( Float.floatToRawIntBits( s1.vy[i] ) , Float.floatToRawIntBits( s2.vy[i] ) );
+        }
+    }
+}
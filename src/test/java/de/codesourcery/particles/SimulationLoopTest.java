@@ -0,0 +1,77 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SimulationLoopTest
+{
+    private static final long STEP_NANOS = TimeUnit.SECONDS.toNanos( 1 ) / 100;
+
+    private final List<Float> deltas = new ArrayList<>();
+
+    private SimulationLoop createLoop()
+    {
+        final ParticleSystem system = new ParticleSystem( 10 );
+        system.setAnimator( new ParticleSystem.IAnimator()
+        {
+            @Override
+            public void beforeVisitingParticles(float deltaSeconds) {
+                deltas.add( deltaSeconds );
+            }
+
+            @Override
+            public void tick(Particle p, float deltaSeconds) {
+            }
+        });
+        return new SimulationLoop( system , 100 );
+    }
+
+    @Test
+    public void testAccumulatesPartialSteps()
+    {
+        final SimulationLoop loop = createLoop();
+        assertEquals( 0 , loop.advance( STEP_NANOS / 2 ) );
+        assertEquals( 0.5f , loop.getInterpolationAlpha() , 0.001f );
+        assertEquals( 1 , loop.advance( STEP_NANOS / 2 ) );
+        assertEquals( 0f , loop.getInterpolationAlpha() , 0.001f );
+        assertEquals( 2 , loop.advance( 2 * STEP_NANOS + STEP_NANOS / 4 ) );
+        assertEquals( STEP_NANOS / 4 , loop.getLagNanos() );
+
+        assertEquals( 3 , deltas.size() );
+        for ( float delta : deltas ) {
+            assertEquals( 0.01f , delta , 0f );
+        }
+        assertEquals( 3 , loop.getTotalSteps() );
+        assertEquals( 0 , loop.getDroppedSteps() );
+    }
+
+    @Test
+    public void testDropsStepsBeyondCatchUpLimit()
+    {
+        final SimulationLoop loop = createLoop();
+        loop.setMaxStepsPerAdvance( 3 );
+        assertEquals( 3 , loop.advance( 10 * STEP_NANOS + STEP_NANOS / 2 ) );
+        assertEquals( 7 , loop.getDroppedSteps() );
+        assertEquals( STEP_NANOS / 2 , loop.getLagNanos() );
+    }
+}
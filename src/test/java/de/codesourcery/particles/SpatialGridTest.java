@@ -0,0 +1,184 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class SpatialGridTest
+{
+    private static ParticleSystem createSystem()
+    {
+        final ParticleSystem system = new ParticleSystem( 5000 );
+        system.setAnimator( new ParticleSystem.IAnimator() 
+        {
+            @Override
+            public void beforeVisitingParticles(float deltaSeconds) {
+            }
+
+            @Override
+            public void tick(Particle p, float deltaSeconds) {
+            }
+        });
+        final Random rnd = new Random( 0xdeadbeef );
+        for ( int i = 0 ; i < 4000 ; i++ ) 
+        {
+            // some particles are outside of the grid
+            system.claimDeadParticle().pos( (rnd.nextFloat()-0.5f) * 240 , (rnd.nextFloat()-0.5f) * 240 );
+        }
+        system.tick( 0.1f );
+        // particles killed during the last tick must not show up in the grid
+        system.visitAliveParticles( p -> 
+        {
+            if ( p.getIndex() % 10 == 0 ) {
+                p.kill();
+            }
+        });
+        return system;
+    }
+
+    private static List<Integer> bruteForce(ParticleSystem system,float cx,float cy,float radius)
+    {
+        final List<Integer> result = new ArrayList<>();
+        system.visitAliveParticles( p -> 
+        {
+            final float dx = p.posx() - cx;
+            final float dy = p.posy() - cy;
+            if ( p.isAlive() && dx*dx + dy*dy <= radius*radius ) {
+                result.add( p.getIndex() );
+            }
+        });
+        Collections.sort( result );
+        return result;
+    }
+
+    private static List<Integer> radius(SpatialGrid grid,float cx,float cy,float radius)
+    {
+        final List<Integer> result = new ArrayList<>();
+        final int count = grid.visitRadius( cx , cy , radius , (idx,x,y) -> result.add( idx ) );
+        assertEquals( count , result.size() );
+        assertEquals( count , grid.countRadius( cx , cy , radius ) );
+        return result;
+    }
+
+    @Test
+    public void testQueriesMatchBruteForce()
+    {
+        final ParticleSystem system = createSystem();
+        final SpatialGrid grid = new SpatialGrid( -100 , -100 , 200 , 200 , 7 );
+        system.visitAliveParticles( (storage,indices,from,to) -> grid.rebuild( storage , indices , to ) );
+
+        final Random rnd = new Random( 42 );
+        for ( int i = 0 ; i < 100 ; i++ )
+        {
+            final float cx = (rnd.nextFloat()-0.5f) * 260;
+            final float cy = (rnd.nextFloat()-0.5f) * 260;
+            final float r = rnd.nextFloat() * 40;
+
+            final List<Integer> actual = radius( grid , cx , cy , r );
+            Collections.sort( actual );
+            assertEquals( bruteForce( system , cx , cy , r ) , actual );
+
+            final int[] result = new int[ 5 ];
+            final int found = grid.queryRadius( cx , cy , r , result );
+            assertEquals( actual.size() , found );
+
+            final List<Integer> inRange = new ArrayList<>();
+            grid.visitRange( cx + r , cy + r , cx - r , cy - r , (idx,x,y) -> 
+            {
+                assertEquals( system.getStorage().posx[idx] , x , 0f );
+                inRange.add( idx );
+            });
+            // the circle is inside the square
+            assertTrue( inRange.containsAll( actual ) );
+        }
+    }
+
+    @Test
+    public void testParallelRebuildMatchesSerialRebuild()
+    {
+        final ParticleSystem system = createSystem();
+        final SpatialGrid serial = new SpatialGrid( -100 , -100 , 200 , 200 , 10 );
+        final SpatialGrid parallel = new SpatialGrid( -100 , -100 , 200 , 200 , 10 );
+        final ForkJoinPool pool = new ForkJoinPool( 4 );
+        system.visitAliveParticles( (storage,indices,from,to) -> 
+        {
+            serial.rebuild( storage , indices , to );
+            parallel.rebuild( storage , indices , to , pool , 123 );
+        });
+        assertEquals( serial.getCount() , parallel.getCount() );
+        for ( float cx = -120 ; cx <= 120 ; cx += 15 ) 
+        {
+            for ( float cy = -120 ; cy <= 120 ; cy += 15 ) {
+                assertEquals( radius( serial , cx , cy , 20 ) , radius( parallel , cx , cy , 20 ) );
+            }
+        }
+    }
+
+    @Test
+    public void testParallelRebuildLimitsHistograms()
+    {
+        final ParticleSystem system = createSystem();
+        final ForkJoinPool pool = new ForkJoinPool( 4 );
+        // more cells than particles, a single histogram suffices
+        final SpatialGrid serial = new SpatialGrid( -100 , -100 , 200 , 200 , 1 );
+        final SpatialGrid fine = new SpatialGrid( -100 , -100 , 200 , 200 , 1 );
+        // one histogram per thread
+        final SpatialGrid coarse = new SpatialGrid( -100 , -100 , 200 , 200 , 20 );
+        system.visitAliveParticles( (storage,indices,from,to) -> 
+        {
+            serial.rebuild( storage , indices , to );
+            fine.rebuild( storage , indices , to , pool , 10 );
+            coarse.rebuild( storage , indices , to , pool , 10 );
+        });
+        assertEquals( 200*200 , fine.histogram.length );
+        assertEquals( 4*10*10 , coarse.histogram.length );
+        assertEquals( serial.getCount() , fine.getCount() );
+        assertEquals( serial.getCount() , coarse.getCount() );
+        for ( float cx = -120 ; cx <= 120 ; cx += 15 ) 
+        {
+            for ( float cy = -120 ; cy <= 120 ; cy += 15 ) 
+            {
+                assertEquals( radius( serial , cx , cy , 20 ) , radius( fine , cx , cy , 20 ) );
+                // cells of different size visit particles in a different order
+                final List<Integer> expected = radius( serial , cx , cy , 20 );
+                final List<Integer> actual = radius( coarse , cx , cy , 20 );
+                Collections.sort( expected );
+                Collections.sort( actual );
+                assertEquals( expected , actual );
+            }
+        }
+    }
+
+    @Test
+    public void testRebuiltAfterEachTick()
+    {
+        final ParticleSystem system = createSystem();
+        final SpatialGrid grid = new SpatialGrid( -100 , -100 , 200 , 200 , 10 );
+        system.setSpatialGrid( grid );
+        system.tick( 0.1f );
+        assertEquals( system.getAliveCount() , grid.getCount() );
+        assertEquals( bruteForce( system , 0 , 0 , 500 ).size() , grid.countRadius( 0 , 0 , 500 ) );
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SplatKernelTest
+{
+    @Test
+    public void testWeightsAddUpToOne()
+    {
+        for ( int radius = 1 ; radius <= SplatKernel.MAX_RADIUS ; radius++ )
+        {
+            final SplatKernel kernel = SplatKernel.forRadius( radius );
+            assertEquals( 2*radius , kernel.size );
+            for ( int stepY = 0 ; stepY < SplatKernel.SUBPIXEL_STEPS ; stepY++ )
+            {
+                for ( int stepX = 0 ; stepX < SplatKernel.SUBPIXEL_STEPS ; stepX++ )
+                {
+                    final int offset = kernel.kernelOffset( stepX , stepY );
+                    int sum = 0;
+                    for ( int i = 0 ; i < kernel.size*kernel.size ; i++ ) 
+                    {
+                        assertTrue( kernel.weights[offset+i] >= 0 );
+                        sum += kernel.weights[offset+i];
+                    }
+                    assertEquals( 1 << SplatKernel.WEIGHT_BITS , sum );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRadiusOneIsBilinear()
+    {
+        final SplatKernel kernel = SplatKernel.forRadius( 1 );
+        assertArrayEquals( new int[] { 256 , 0 , 0 , 0 } , weights( kernel , 0 , 0 ) );
+        assertArrayEquals( new int[] { 128 , 128 , 0 , 0 } , weights( kernel , 4 , 0 ) );
+        assertArrayEquals( new int[] { 64 , 64 , 64 , 64 } , weights( kernel , 4 , 4 ) );
+        // (1-0.25)*(1-0.5) , 0.25*(1-0.5) , ...
+        assertArrayEquals( new int[] { 96 , 32 , 96 , 32 } , weights( kernel , 2 , 4 ) );
+    }
+
+    @Test
+    public void testKernelsAreCached() {
+        assertTrue( SplatKernel.forRadius( 2 ) == SplatKernel.forRadius( 2 ) );
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testRejectsInvalidRadius() {
+        SplatKernel.forRadius( 0 );
+    }
+
+    private static int[] weights(SplatKernel kernel,int stepX,int stepY)
+    {
+        final int offset = kernel.kernelOffset( stepX , stepY );
+        return Arrays.copyOfRange( kernel.weights , offset , offset + kernel.size*kernel.size );
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2017 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.particles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class TickProfilerTest
+{
+    static ParticleSystem createSystem(TickProfiler profiler,ForkJoinPool pool)
+    {
+        final ParticleSystem system = new ParticleSystem( 1000 );
+        system.setAnimator( new AnimatorPipeline( new AnimatorPipeline.Integrate() ) );
+        system.setChunkSize( 100 );
+        system.setForkJoinPool( pool );
+        system.setProfiler( profiler );
+        system.claimDeadParticles( 500 , null );
+        return system;
+    }
+
+    @Test
+    public void testAggregatesWindows()
+    {
+        final TickProfiler profiler = new TickProfiler( 3 , 2 );
+        final List<TickProfiler.Window> completed = new ArrayList<>();
+        profiler.setListener( completed::add );
+
+        final ParticleSystem system = createSystem( profiler , new ForkJoinPool( 2 ) );
+        for ( int i = 0 ; i < 7 ; i++ ) 
+        {
+            system.tick( 0.01f );
+            system.claimDeadParticles( 10 , null );
+        }
+
+        assertEquals( 2 , completed.size() );
+        assertEquals( completed , profiler.getWindows() );
+        final TickProfiler.Window window = profiler.getLatestWindow();
+        assertSame( completed.get( 1 ) , window );
+        assertEquals( 4 , window.getFirstTick() );
+        assertEquals( 3 , window.getTickCount() );
+
+        long phases = 0;
+        for ( TickProfiler.Phase phase : TickProfiler.Phase.values() ) 
+        {
+            assertTrue( window.getMaxNanos( phase ) <= window.getNanos( phase ) );
+            if ( phase != TickProfiler.Phase.SPAWN ) {
+                phases += window.getNanos( phase );
+            }
+        }
+        assertTrue( phases <= window.getTickNanos() );
+        assertTrue( window.getNanos( TickProfiler.Phase.PARTITION ) > 0 );
+        assertTrue( window.getNanos( TickProfiler.Phase.ANIMATE ) > 0 );
+        assertTrue( window.getNanos( TickProfiler.Phase.SPAWN ) > 0 );
+        assertEquals( 0 , window.getNanos( TickProfiler.Phase.SPATIAL_GRID ) );
+
+        // per-thread busy time for the partitioning and animation done in chunks
+        assertFalse( window.getThreadNames().isEmpty() );
+        long animate = 0;
+        for ( String thread : window.getThreadNames() ) {
+            animate += window.getThreadNanos( thread , TickProfiler.Phase.ANIMATE );
+        }
+        assertTrue( animate > 0 );
+
+        final String folded = window.toFoldedStacks();
+        assertTrue( folded , folded.contains( "tick;ANIMATE;" ) );
+        assertTrue( folded , folded.contains( "tick;PREPARE " ) );
+        for ( String line : folded.split( "\n" ) ) {
+            assertTrue( line , line.matches( "tick;[A-Z_]+(;\\S+)? \\d+" ) );
+        }
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        final TickProfiler profiler = new TickProfiler( 1 , 1 );
+        final ParticleSystem system = createSystem( profiler , null );
+        system.setProfiler( null );
+        system.tick( 0.01f );
+        assertEquals( null , profiler.getLatestWindow() );
+    }
+}